@@ -0,0 +1,421 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.batch.rule.Severity;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.plugins.github.GitHubPluginConfiguration.PublishMode;
+
+/**
+ * All WS interaction with Bitbucket Server. Issues are published as a Code Insights report on the head commit of the pull
+ * request, with all its annotations sent in a single request, instead of a comment per issue.
+ */
+class BitbucketPullRequestHost implements PullRequestHost {
+
+  private static final Logger LOG = Loggers.get(BitbucketPullRequestHost.class);
+
+  static final String REPORT_KEY = "sonarqube";
+  // Bitbucket Server rejects reports having more annotations
+  static final int MAX_ANNOTATIONS = 1000;
+  // Bitbucket Server rejects longer annotation messages and report details
+  static final int MAX_TEXT_LENGTH = 2000;
+
+  private final GitHubPluginConfiguration config;
+  private final HttpConnector connector;
+  // Calls made during the publication fail when they don't end in time
+  private volatile long deadlineMs = Long.MAX_VALUE;
+  private String project;
+  private String slug;
+  private int pullRequestNumber;
+  private String analyzedSha;
+  private PullRequestLease lease;
+
+  BitbucketPullRequestHost(GitHubPluginConfiguration config) {
+    this.config = config;
+    this.connector = config.hostCallsPerMinute() > 0 ? HostRateLimiter.forEndpoint(config.bitbucketEndpoint(), config.hostCallsPerMinute()) : HttpConnector.DEFAULT;
+  }
+
+  @Override
+  @CheckForNull
+  public PatchPositionIndex load(int pullRequestNumber, @Nullable String checkedOutSha) throws IOException {
+    String[] projectAndSlug = config.bitbucketRepository();
+    project = projectAndSlug[0];
+    slug = projectAndSlug[1];
+    this.pullRequestNumber = pullRequestNumber;
+    String headSha = headSha();
+    analyzedSha = checkedOutSha != null ? checkedOutSha : headSha;
+    LOG.info("Starting analysis of pull request: " + config.bitbucketEndpoint() + "/projects/" + project + "/repos/" + slug + "/pull-requests/" + pullRequestNumber);
+    if (!analyzedSha.equals(headSha)) {
+      // Taking the lease would stop the analysis of the head from publishing
+      LOG.info("Analyzed commit " + analyzedSha + " is not the head " + headSha + " of the pull request, results will not be published");
+    } else if (!config.resultsPublishedElsewhere()) {
+      lease = PullRequestLease.forPullRequest(config.bitbucketEndpoint(), project + "/" + slug, pullRequestNumber, config.scopeByProject() ? config.projectKey() : null);
+      lease.acquire(analyzedSha);
+    }
+    if (config.publishMode() == PublishMode.STATUS_ONLY) {
+      // The diff is not needed to publish the report without annotations
+      return null;
+    }
+    return indexDiff();
+  }
+
+  @Override
+  @CheckForNull
+  public String analyzedSha() {
+    return analyzedSha;
+  }
+
+  private String pullRequestPath() {
+    return "/rest/api/1.0/projects/" + project + "/repos/" + slug + "/pull-requests/" + pullRequestNumber;
+  }
+
+  private String reportPath() {
+    return "/rest/insights/1.0/projects/" + project + "/repos/" + slug + "/commits/" + analyzedSha + "/reports/" + reportKey();
+  }
+
+  /**
+   * Analyses of several projects publish their own report when comments and status are scoped by project
+   */
+  String reportKey() {
+    return config.scopeByProject() ? (REPORT_KEY + "-" + MarkDownUtils.encodeForUrl(config.projectKey())) : REPORT_KEY;
+  }
+
+  private String headSha() throws IOException {
+    String headSha = null;
+    HttpURLConnection connection = connect("GET", pullRequestPath(), null);
+    try (JsonReader json = new JsonReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+      json.beginObject();
+      while (json.hasNext()) {
+        if ("fromRef".equals(json.nextName())) {
+          headSha = readLatestCommit(json);
+        } else {
+          json.skipValue();
+        }
+      }
+      json.endObject();
+    } finally {
+      connection.disconnect();
+    }
+    if (headSha == null) {
+      throw new IOException("Missing head commit of pull request " + pullRequestNumber + " in Bitbucket Server response");
+    }
+    return headSha;
+  }
+
+  @CheckForNull
+  private static String readLatestCommit(JsonReader ref) throws IOException {
+    String latestCommit = null;
+    ref.beginObject();
+    while (ref.hasNext()) {
+      if ("latestCommit".equals(ref.nextName())) {
+        latestCommit = ref.nextStringOrNull();
+      } else {
+        ref.skipValue();
+      }
+    }
+    ref.endObject();
+    return latestCommit;
+  }
+
+  /**
+   * The diff of the pull request is streamed, and the patch of each file is indexed and then discarded, so that only the compact index is kept.
+   */
+  private PatchPositionIndex indexDiff() throws IOException {
+    PatchPositionIndex index = new PatchPositionIndex();
+    HttpURLConnection connection = connect("GET", pullRequestPath() + ".diff", null);
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+      String path = null;
+      StringBuilder patch = new StringBuilder();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith("diff --git ")) {
+          indexPatch(index, path, patch);
+          path = null;
+        } else if (patch.length() == 0 && line.startsWith("--- ") && path == null) {
+          // Removed files have no new path
+          path = pathOfDiffHeader(line);
+        } else if (patch.length() == 0 && line.startsWith("+++ ")) {
+          path = "/dev/null".equals(line.substring(4)) ? path : pathOfDiffHeader(line);
+        } else if (path != null && (patch.length() > 0 || line.startsWith("@@"))) {
+          patch.append(line).append('\n');
+        }
+      }
+      indexPatch(index, path, patch);
+    } finally {
+      connection.disconnect();
+    }
+    return index;
+  }
+
+  private static void indexPatch(PatchPositionIndex index, @Nullable String path, StringBuilder patch) throws IOException {
+    if (path != null) {
+      index.addFile(path);
+      PullRequestFacade.processPatch(PullRequestFacade.indexer(index), patch.toString());
+    }
+    patch.setLength(0);
+  }
+
+  /**
+   * Bitbucket Server prefixes paths with src:// and dst://, while Git prefixes them with a/ and b/
+   */
+  @CheckForNull
+  static String pathOfDiffHeader(String line) {
+    String path = line.substring(4);
+    if ("/dev/null".equals(path)) {
+      return null;
+    }
+    if (path.startsWith("src://") || path.startsWith("dst://")) {
+      return path.substring(6);
+    }
+    if (path.startsWith("a/") || path.startsWith("b/")) {
+      return path.substring(2);
+    }
+    return path;
+  }
+
+  @Override
+  public String fileUrl(String path, @Nullable Integer line) {
+    return config.bitbucketEndpoint() + "/projects/" + project + "/repos/" + slug + "/browse/" + path + "?at=" + analyzedSha + (line != null ? ("#" + line) : "");
+  }
+
+  /**
+   * The report replaces the one of the previous analysis of the same commit, with its annotations. Review and global comments
+   * are not published, since annotations and the report already display the issues.
+   */
+  @Override
+  public void publish(PullRequestState desired) {
+    // Like on GitHub, no call outlasts the publication
+    deadlineMs = PublicationDeadline.of(config.publishTimeoutMs()).endOfNote();
+    try {
+      if (isStale()) {
+        return;
+      }
+      List<PullRequestState.Annotation> annotations = desired.annotations();
+      if (annotations.size() > MAX_ANNOTATIONS) {
+        LOG.info("Only the " + MAX_ANNOTATIONS + " most severe of the " + annotations.size() + " issues are annotated on Bitbucket Server");
+        annotations = annotations.subList(0, MAX_ANNOTATIONS);
+      }
+      String report = reportJson(desired.status());
+      if (config.dryRun()) {
+        LOG.info("Dry run, nothing is published on Bitbucket Server. Report " + report + " with " + annotations.size() + " annotations");
+        return;
+      }
+      LOG.info("Publishing on Bitbucket Server: report with " + annotations.size() + " annotations");
+      request("PUT", reportPath(), report);
+      if (config.publishMode() == PublishMode.STATUS_ONLY) {
+        return;
+      }
+      request("DELETE", reportPath() + "/annotations", null);
+      if (!annotations.isEmpty()) {
+        request("POST", reportPath() + "/annotations", annotationsJson(annotations));
+      }
+    } catch (IOException e) {
+      // Like on GitHub, a failure to publish the results doesn't fail the analysis
+      LOG.warn("Unable to publish Code Insights report on Bitbucket Server: " + e.getMessage());
+      LOG.debug("Publication failure", e);
+    } finally {
+      deadlineMs = Long.MAX_VALUE;
+      if (lease != null) {
+        lease.release();
+      }
+    }
+  }
+
+  /**
+   * The report is published without its annotations
+   */
+  @Override
+  public void publishStatus(CommitState status, String description) {
+    try {
+      String report = reportJson(new PullRequestState().setStatus(status, description, null).status());
+      if (config.dryRun()) {
+        LOG.info("Dry run, nothing is published on Bitbucket Server. Report " + report);
+        return;
+      }
+      request("PUT", reportPath(), report);
+    } catch (IOException e) {
+      LOG.warn("Unable to publish Code Insights report on Bitbucket Server: " + e.getMessage());
+      LOG.debug("Publication failure", e);
+    }
+  }
+
+  /**
+   * Results of this analysis are stale when a newer commit was pushed to the pull request, or when a newer analysis
+   * of the pull request started on this machine.
+   */
+  boolean isStale() {
+    String headSha = null;
+    try {
+      headSha = headSha();
+    } catch (IOException e) {
+      LOG.warn("Unable to check the head of the pull request: " + e.getMessage());
+    }
+    if (headSha != null && !headSha.equals(analyzedSha)) {
+      LOG.info("Head of the pull request moved from " + analyzedSha + " to " + headSha + ", results of this analysis are not published");
+      return true;
+    }
+    return lease != null && lease.isTakenOver(headSha);
+  }
+
+  private String reportJson(@Nullable PullRequestState.Status status) throws IOException {
+    StringWriter json = new StringWriter();
+    json.write("{\"title\":");
+    SarifWriter.writeString(json, config.scopeByProject() ? ("SonarQube " + config.projectKey()) : "SonarQube");
+    json.write(",\"reporter\":\"SonarQube\"");
+    if (status != null) {
+      String result = result(status.state());
+      if (result != null) {
+        json.write(",\"result\":\"" + result + "\"");
+      }
+      String description = status.description();
+      if (description != null) {
+        json.write(",\"details\":");
+        SarifWriter.writeString(json, truncate(description));
+      }
+    }
+    json.write('}');
+    return json.toString();
+  }
+
+  /**
+   * @return result of the report, null while the analysis is pending
+   */
+  @CheckForNull
+  static String result(CommitState state) {
+    switch (state) {
+      case SUCCESS:
+        return "PASS";
+      case FAILURE:
+      case ERROR:
+        return "FAIL";
+      default:
+        return null;
+    }
+  }
+
+  private static String annotationsJson(List<PullRequestState.Annotation> annotations) throws IOException {
+    StringWriter json = new StringWriter();
+    json.write("{\"annotations\":[");
+    boolean first = true;
+    for (PullRequestState.Annotation annotation : annotations) {
+      if (!first) {
+        json.write(',');
+      }
+      first = false;
+      json.write("{\"path\":");
+      SarifWriter.writeString(json, annotation.path());
+      json.write(",\"line\":" + annotation.line() + ",\"severity\":\"" + severity(annotation.severity()) + "\",\"message\":");
+      SarifWriter.writeString(json, truncate(annotation.message()));
+      String link = annotation.link();
+      if (link != null) {
+        json.write(",\"link\":");
+        SarifWriter.writeString(json, link);
+      }
+      json.write('}');
+    }
+    json.write("]}");
+    return json.toString();
+  }
+
+  /**
+   * Blocker and critical issues fail the commit status, so they are of high severity
+   */
+  static String severity(Severity severity) {
+    switch (severity) {
+      case BLOCKER:
+      case CRITICAL:
+        return "HIGH";
+      case MAJOR:
+        return "MEDIUM";
+      default:
+        return "LOW";
+    }
+  }
+
+  private static String truncate(String text) {
+    return text.length() <= MAX_TEXT_LENGTH ? text : (text.substring(0, MAX_TEXT_LENGTH - 3) + "...");
+  }
+
+  private String request(String method, String path, @Nullable String body) throws IOException {
+    HttpURLConnection connection = connect(method, path, body);
+    try (InputStream in = connection.getInputStream()) {
+      return read(in);
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private HttpURLConnection connect(String method, String path, @Nullable String body) throws IOException {
+    URL url = new URL(config.bitbucketEndpoint() + path);
+    HttpURLConnection connection = connector.connect(url);
+    if (deadlineMs != Long.MAX_VALUE) {
+      HttpConnector.withTimeouts(connection, deadlineMs);
+    }
+    connection.setRequestMethod(method);
+    String token = config.bitbucketToken();
+    if (token != null) {
+      connection.setRequestProperty("Authorization", "Bearer " + token);
+    }
+    connection.setRequestProperty("Accept", "application/json");
+    if (body != null) {
+      connection.setRequestProperty("Content-Type", "application/json");
+      connection.setDoOutput(true);
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(body.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    int code = connection.getResponseCode();
+    if (code / 100 != 2) {
+      String error;
+      try (InputStream in = connection.getErrorStream()) {
+        error = in == null ? "" : read(in);
+      } finally {
+        connection.disconnect();
+      }
+      throw new IOException("Server returned HTTP response code: " + code + " for URL: " + url + ": " + error);
+    }
+    return connection;
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      body.write(buffer, 0, read);
+    }
+    return new String(body.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Upload of a SARIF report to GitHub code scanning, in a single request. The report is gzipped and base64 encoded while
+ * it is sent, so that it is never loaded in memory.
+ */
+final class CodeScanningUpload {
+
+  private CodeScanningUpload() {
+    // only static methods
+  }
+
+  static void upload(HttpConnector connector, String endpoint, String repository, String token, String commitSha, String ref, Path sarif) throws IOException {
+    URL url = new URL(endpoint + "/repos/" + repository + "/code-scanning/sarifs");
+    HttpURLConnection connection = connector.connect(url);
+    try {
+      connection.setRequestMethod("POST");
+      connection.setRequestProperty("Authorization", "token " + token);
+      connection.setRequestProperty("Accept", "application/vnd.github+json");
+      connection.setRequestProperty("Content-Type", "application/json");
+      connection.setDoOutput(true);
+      connection.setChunkedStreamingMode(0);
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(("{\"commit_sha\":\"" + commitSha + "\",\"ref\":\"" + ref + "\",\"sarif\":\"").getBytes(StandardCharsets.UTF_8));
+        writeGzippedBase64(sarif, out);
+        out.write("\"}".getBytes(StandardCharsets.UTF_8));
+      }
+      int code = connection.getResponseCode();
+      if (code / 100 != 2) {
+        throw new IOException("Server returned HTTP response code: " + code + " for URL: " + url + ": " + readError(connection));
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  static void writeGzippedBase64(Path file, OutputStream out) throws IOException {
+    // Closing the encoder writes its padding, but the request body must stay open
+    OutputStream notClosing = new FilterOutputStream(out) {
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    };
+    try (OutputStream gzip = new GZIPOutputStream(Base64.getEncoder().wrap(notClosing))) {
+      Files.copy(file, gzip);
+    }
+  }
+
+  private static String readError(HttpURLConnection connection) throws IOException {
+    try (InputStream in = connection.getErrorStream()) {
+      if (in == null) {
+        return "";
+      }
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        body.write(buffer, 0, read);
+      }
+      return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.util.Locale;
+
+/**
+ * State of a commit status, as named by the GitHub API in lower case.
+ */
+public enum CommitState {
+  PENDING, SUCCESS, ERROR, FAILURE;
+
+  String apiName() {
+    return name().toLowerCase(Locale.ENGLISH);
+  }
+
+  static CommitState ofApiName(String apiName) {
+    return valueOf(apiName.toUpperCase(Locale.ENGLISH));
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Read the commit checked out in a Git working tree, without a Git library: the HEAD file of the repository, and the ref it points to,
+ * either loose or packed. Working trees whose ".git" is a file, like linked working trees and submodules, are supported.
+ */
+class GitHead {
+
+  private static final Logger LOG = Loggers.get(GitHead.class);
+  private static final String GIT_DIR_PREFIX = "gitdir:";
+  private static final String REF_PREFIX = "ref:";
+  private static final Pattern SHA_PATTERN = Pattern.compile("[0-9a-f]{40}");
+
+  private GitHead() {
+    // only static methods
+  }
+
+  /**
+   * @return SHA of the commit checked out in the working tree, or null when it can't be read
+   */
+  @CheckForNull
+  static String read(File workTree) {
+    File gitDir = new File(workTree, ".git");
+    try {
+      if (gitDir.isFile()) {
+        String gitDirPointer = firstLine(gitDir);
+        if (!gitDirPointer.startsWith(GIT_DIR_PREFIX)) {
+          return null;
+        }
+        gitDir = resolve(workTree, gitDirPointer.substring(GIT_DIR_PREFIX.length()).trim());
+      }
+      File headFile = new File(gitDir, "HEAD");
+      if (!headFile.isFile()) {
+        return null;
+      }
+      String head = firstLine(headFile);
+      if (!head.startsWith(REF_PREFIX)) {
+        // Detached HEAD, as checked out by most CIs
+        return sha(head);
+      }
+      String ref = head.substring(REF_PREFIX.length()).trim();
+      // Refs of a linked working tree are in the common directory of the repository
+      File commonDir = new File(gitDir, "commondir");
+      File refsDir = commonDir.isFile() ? resolve(gitDir, firstLine(commonDir)) : gitDir;
+      return readRef(refsDir, ref);
+    } catch (IOException e) {
+      LOG.debug("Unable to read the commit checked out in " + workTree, e);
+      return null;
+    }
+  }
+
+  @CheckForNull
+  private static String readRef(File refsDir, String ref) throws IOException {
+    File looseRef = new File(refsDir, ref);
+    if (looseRef.isFile()) {
+      return sha(firstLine(looseRef));
+    }
+    File packedRefs = new File(refsDir, "packed-refs");
+    if (!packedRefs.isFile()) {
+      return null;
+    }
+    for (String line : Files.readAllLines(packedRefs.toPath(), StandardCharsets.UTF_8)) {
+      String[] shaAndRef = line.trim().split(" ", 2);
+      if (shaAndRef.length == 2 && shaAndRef[1].equals(ref)) {
+        return sha(shaAndRef[0]);
+      }
+    }
+    return null;
+  }
+
+  private static File resolve(File dir, String path) {
+    File file = new File(path);
+    return file.isAbsolute() ? file : new File(dir, path);
+  }
+
+  @CheckForNull
+  private static String sha(String value) {
+    return SHA_PATTERN.matcher(value).matches() ? value : null;
+  }
+
+  private static String firstLine(File file) throws IOException {
+    List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    return lines.isEmpty() ? "" : lines.get(0).trim();
+  }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Properties;
+import javax.annotation.CheckForNull;
+import org.sonar.api.utils.MessageException;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Authenticate as a GitHub App installation. A JSON Web Token signed with the private key of the App is exchanged for an
+ * installation token, which is cached on disk until it expires, so that consecutive analyses on the same machine reuse it.
+ */
+class GitHubAppAuthentication {
+
+  private static final Logger LOG = Loggers.get(GitHubAppAuthentication.class);
+
+  // Installation tokens are valid 1 hour. They are renewed a bit before, so that they don't expire during an analysis.
+  private static final long EXPIRATION_MARGIN_MS = 5 * 60 * 1000L;
+  // JWT are valid at most 10 minutes. Issue date is set in the past to allow for clock drift.
+  private static final long JWT_CLOCK_DRIFT_S = 60;
+  private static final long JWT_VALIDITY_S = 9 * 60;
+  private static final String ACCEPT_HEADER = "application/vnd.github.machine-man-preview+json";
+  private static final byte[] PKCS1_TO_PKCS8_RSA_HEADER = {
+    // AlgorithmIdentifier of rsaEncryption, with its NULL parameters
+    0x30, 0x0d, 0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x01, 0x05, 0x00};
+
+  private final String endpoint;
+  private final String appId;
+  private final File privateKeyFile;
+  private final String installationId;
+  private final File cacheDir;
+  private final System2 system;
+
+  GitHubAppAuthentication(String endpoint, String appId, File privateKeyFile, String installationId, File cacheDir, System2 system) {
+    this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+    this.appId = appId;
+    this.privateKeyFile = privateKeyFile;
+    this.installationId = installationId;
+    this.cacheDir = cacheDir;
+    this.system = system;
+  }
+
+  static GitHubAppAuthentication of(GitHubPluginConfiguration config) {
+    return new GitHubAppAuthentication(config.endpoint(), config.appId(), config.appPrivateKeyFile(), config.appInstallationId(),
+      new File(System.getProperty("user.home"), ".sonar/github"), System2.INSTANCE);
+  }
+
+  static class InstallationToken {
+    private final String token;
+    private final long expiresAt;
+    private final String login;
+
+    InstallationToken(String token, long expiresAt, String login) {
+      this.token = token;
+      this.expiresAt = expiresAt;
+      this.login = login;
+    }
+
+    String token() {
+      return token;
+    }
+
+    /**
+     * @return expiration date, in milliseconds since epoch
+     */
+    long expiresAt() {
+      return expiresAt;
+    }
+
+    /**
+     * @return login of the bot account comments are written by
+     */
+    String login() {
+      return login;
+    }
+  }
+
+  InstallationToken installationToken() {
+    // Ids of Apps and installations are only unique on a given GitHub instance
+    File cacheFile = new File(cacheDir, "app-" + appId + "-installation-" + installationId + "-" + endpointHash() + ".properties");
+    InstallationToken cached = readCache(cacheFile);
+    if (cached != null && cached.expiresAt() - EXPIRATION_MARGIN_MS > system.now()) {
+      LOG.debug("Using cached GitHub App installation token");
+      return cached;
+    }
+    try {
+      String jwt = jwt();
+      String slug = jsonField(request("GET", "/app", jwt), "slug");
+      String response = request("POST", "/app/installations/" + installationId + "/access_tokens", jwt);
+      InstallationToken token = new InstallationToken(jsonField(response, "token"), Instant.parse(jsonField(response, "expires_at")).toEpochMilli(), slug + "[bot]");
+      writeCache(cacheFile, token);
+      return token;
+    } catch (IOException | GeneralSecurityException e) {
+      LOG.debug("Unable to get a GitHub App installation token", e);
+      throw MessageException.of("Unable to get an installation token for GitHub App " + appId + ": " + e.getMessage());
+    }
+  }
+
+  private String endpointHash() {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(endpoint.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hash = new StringBuilder();
+      for (int i = 0; i < 8; i++) {
+        hash.append(String.format("%02x", digest[i]));
+      }
+      return hash.toString();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  String jwt() throws IOException, GeneralSecurityException {
+    long now = system.now() / 1000;
+    Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    String header = encoder.encodeToString("{\"alg\":\"RS256\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8));
+    String payload = encoder.encodeToString(("{\"iat\":" + (now - JWT_CLOCK_DRIFT_S) + ",\"exp\":" + (now + JWT_VALIDITY_S) + ",\"iss\":\"" + appId + "\"}")
+      .getBytes(StandardCharsets.UTF_8));
+    Signature signature = Signature.getInstance("SHA256withRSA");
+    signature.initSign(readPrivateKey(new String(Files.readAllBytes(privateKeyFile.toPath()), StandardCharsets.UTF_8)));
+    signature.update((header + "." + payload).getBytes(StandardCharsets.US_ASCII));
+    return header + "." + payload + "." + encoder.encodeToString(signature.sign());
+  }
+
+  /**
+   * Read a PEM encoded RSA private key, either PKCS#8 ("BEGIN PRIVATE KEY") or PKCS#1 ("BEGIN RSA PRIVATE KEY") as generated by GitHub.
+   */
+  static PrivateKey readPrivateKey(String pem) throws GeneralSecurityException {
+    boolean pkcs1 = pem.contains("BEGIN RSA PRIVATE KEY");
+    String base64 = pem.replaceAll("-----[A-Z ]+-----", "").replaceAll("\\s", "");
+    byte[] der = Base64.getDecoder().decode(base64);
+    if (pkcs1) {
+      der = pkcs1ToPkcs8(der);
+    }
+    return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(der));
+  }
+
+  /**
+   * Wrap a PKCS#1 RSA key in a PKCS#8 PrivateKeyInfo: SEQUENCE { INTEGER 0, AlgorithmIdentifier, OCTET STRING { key } }
+   */
+  private static byte[] pkcs1ToPkcs8(byte[] pkcs1) {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    // version
+    content.write(0x02);
+    content.write(0x01);
+    content.write(0x00);
+    content.write(PKCS1_TO_PKCS8_RSA_HEADER, 0, PKCS1_TO_PKCS8_RSA_HEADER.length);
+    content.write(0x04);
+    writeDerLength(content, pkcs1.length);
+    content.write(pkcs1, 0, pkcs1.length);
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    result.write(0x30);
+    writeDerLength(result, content.size());
+    byte[] bytes = content.toByteArray();
+    result.write(bytes, 0, bytes.length);
+    return result.toByteArray();
+  }
+
+  private static void writeDerLength(ByteArrayOutputStream out, int length) {
+    if (length < 0x80) {
+      out.write(length);
+    } else if (length < 0x100) {
+      out.write(0x81);
+      out.write(length);
+    } else if (length < 0x10000) {
+      out.write(0x82);
+      out.write(length >> 8);
+      out.write(length & 0xff);
+    } else {
+      out.write(0x83);
+      out.write(length >> 16);
+      out.write((length >> 8) & 0xff);
+      out.write(length & 0xff);
+    }
+  }
+
+  private String request(String method, String path, String jwt) throws IOException {
+    HttpURLConnection connection = HttpConnector.DEFAULT.connect(new URL(endpoint + path));
+    connection.setRequestMethod(method);
+    connection.setRequestProperty("Authorization", "Bearer " + jwt);
+    connection.setRequestProperty("Accept", ACCEPT_HEADER);
+    if ("POST".equals(method)) {
+      connection.setDoOutput(true);
+      connection.getOutputStream().close();
+    }
+    int code = connection.getResponseCode();
+    if (code / 100 != 2) {
+      throw new IOException("Server returned HTTP response code: " + code + " for URL: " + endpoint + path);
+    }
+    try (InputStream in = connection.getInputStream()) {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        body.write(buffer, 0, read);
+      }
+      return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Read a top-level string field of the response, nested objects like the permissions of the token are skipped.
+   */
+  private static String jsonField(String response, String name) throws IOException {
+    String value = null;
+    try (JsonReader json = new JsonReader(new StringReader(response))) {
+      json.beginObject();
+      while (json.hasNext()) {
+        if (name.equals(json.nextName())) {
+          value = json.nextStringOrNull();
+        } else {
+          json.skipValue();
+        }
+      }
+      json.endObject();
+    }
+    if (value == null) {
+      throw new IOException("Missing field '" + name + "' in GitHub response");
+    }
+    return value;
+  }
+
+  @CheckForNull
+  private static InstallationToken readCache(File cacheFile) {
+    if (!cacheFile.isFile()) {
+      return null;
+    }
+    Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(cacheFile.toPath(), StandardCharsets.UTF_8)) {
+      properties.load(reader);
+      return new InstallationToken(properties.getProperty("token"), Long.parseLong(properties.getProperty("expiresAt")), properties.getProperty("login"));
+    } catch (IOException | RuntimeException e) {
+      LOG.debug("Ignoring invalid GitHub App token cache " + cacheFile, e);
+      return null;
+    }
+  }
+
+  private static void writeCache(File cacheFile, InstallationToken token) {
+    Properties properties = new Properties();
+    properties.setProperty("token", token.token());
+    properties.setProperty("expiresAt", String.valueOf(token.expiresAt()));
+    properties.setProperty("login", token.login());
+    try {
+      Files.createDirectories(cacheFile.getParentFile().toPath());
+      File tmp = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getParentFile());
+      // Token grants access to the repositories of the installation: keep it private to the current user
+      tmp.setReadable(false, false);
+      tmp.setReadable(true, true);
+      try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+        properties.store(writer, null);
+      }
+      Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.warn("Unable to cache GitHub App installation token in " + cacheFile + ": " + e.getMessage());
+    }
+  }
+
+}
@@ -0,0 +1,673 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+/**
+ * Minimal client of the GitHub REST API, limited to the endpoints used to publish on a pull request. Responses are read with
+ * a streaming {@link JsonReader}, and lists are read page by page. Nothing is called until needed: creating a client does not
+ * call GitHub, and the login of the authenticated user is only read once.
+ */
+class GitHubClient {
+
+  private static final String ACCEPT_HEADER = "application/vnd.github.v3+json";
+  private static final int PAGE_SIZE = 100;
+  private static final Pattern NEXT_PAGE_PATTERN = Pattern.compile("<([^>]+)>;\\s*rel=\"next\"");
+
+  private final String endpoint;
+  private final String token;
+  private final HttpConnector connector;
+  private volatile String myLogin;
+  private final AtomicInteger calls = new AtomicInteger();
+  private volatile long deadlineMs = Long.MAX_VALUE;
+
+  /**
+   * @param endpoint URL of the API, without trailing slash
+   * @param token OAuth token, or null for anonymous calls
+   */
+  GitHubClient(String endpoint, @Nullable String token, HttpConnector connector) {
+    this.endpoint = endpoint;
+    this.token = token;
+    this.connector = connector;
+  }
+
+  /**
+   * Calls made until the deadline is reset fail when they don't end in time
+   * @param endMs {@link Long#MAX_VALUE} to reset the deadline
+   */
+  void setDeadline(long endMs) {
+    this.deadlineMs = endMs;
+  }
+
+  /**
+   * @return number of calls made by this client that count against the rate limit, pages of lists included
+   */
+  int calls() {
+    return calls.get();
+  }
+
+  static class PullRequest {
+    private final String repository;
+    private final int number;
+    private final String htmlUrl;
+    private final String headSha;
+    private final String repositoryHtmlUrl;
+    private final String mergeCommitSha;
+
+    PullRequest(String repository, int number, String htmlUrl, String headSha, String repositoryHtmlUrl) {
+      this(repository, number, htmlUrl, headSha, repositoryHtmlUrl, null);
+    }
+
+    PullRequest(String repository, int number, String htmlUrl, String headSha, String repositoryHtmlUrl, @Nullable String mergeCommitSha) {
+      this.repository = repository;
+      this.number = number;
+      this.htmlUrl = htmlUrl;
+      this.headSha = headSha;
+      this.repositoryHtmlUrl = repositoryHtmlUrl;
+      this.mergeCommitSha = mergeCommitSha;
+    }
+
+    /**
+     * @return full name of the repository, like SonarSource/sonar-github
+     */
+    String repository() {
+      return repository;
+    }
+
+    int number() {
+      return number;
+    }
+
+    String htmlUrl() {
+      return htmlUrl;
+    }
+
+    String headSha() {
+      return headSha;
+    }
+
+    String repositoryHtmlUrl() {
+      return repositoryHtmlUrl;
+    }
+
+    /**
+     * @return test merge of the head into the base branch, which some CIs check out, null when it is not computed yet
+     */
+    @CheckForNull
+    String mergeCommitSha() {
+      return mergeCommitSha;
+    }
+  }
+
+  /**
+   * Review comment, or global comment of the pull request which GitHub names issue comment
+   */
+  static class Comment {
+    private final long id;
+    private final String login;
+    private final String body;
+    private final String path;
+    private final Integer position;
+
+    Comment(long id, String login, @Nullable String body, @Nullable String path, @Nullable Integer position) {
+      this.id = id;
+      this.login = login;
+      this.body = body;
+      this.path = path;
+      this.position = position;
+    }
+
+    long id() {
+      return id;
+    }
+
+    String login() {
+      return login;
+    }
+
+    @CheckForNull
+    String body() {
+      return body;
+    }
+
+    /**
+     * @return path of the file of a review comment
+     */
+    @CheckForNull
+    String path() {
+      return path;
+    }
+
+    /**
+     * @return position of a review comment in the patch of its file, null when the comment is outdated
+     */
+    @CheckForNull
+    Integer position() {
+      return position;
+    }
+  }
+
+  static class CommitStatus {
+    private final CommitState state;
+    private final String description;
+    private final String targetUrl;
+    private final String context;
+
+    CommitStatus(CommitState state, @Nullable String description, @Nullable String targetUrl, String context) {
+      this.state = state;
+      this.description = description;
+      this.targetUrl = targetUrl;
+      this.context = context;
+    }
+
+    CommitState state() {
+      return state;
+    }
+
+    @CheckForNull
+    String description() {
+      return description;
+    }
+
+    @CheckForNull
+    String targetUrl() {
+      return targetUrl;
+    }
+
+    String context() {
+      return context;
+    }
+  }
+
+  static class RateLimit {
+    private final int remaining;
+    private final long resetAt;
+
+    /**
+     * @param resetAt time the rate limit is reset, in milliseconds since epoch, 0 when unknown
+     */
+    RateLimit(int remaining, long resetAt) {
+      this.remaining = remaining;
+      this.resetAt = resetAt;
+    }
+
+    int remaining() {
+      return remaining;
+    }
+
+    long resetAt() {
+      return resetAt;
+    }
+  }
+
+  @FunctionalInterface
+  interface FileConsumer {
+    /**
+     * @param patch of the file, null when GitHub does not provide it, for example for binary files
+     */
+    void accept(String path, @Nullable String patch) throws IOException;
+  }
+
+  @FunctionalInterface
+  private interface ValueReader<T> {
+    T read(JsonReader json) throws IOException;
+  }
+
+  /**
+   * @return login of the authenticated user, read once
+   */
+  String myLogin() throws IOException {
+    String login = myLogin;
+    if (login == null) {
+      login = get("/user", json -> readField(json, "login"));
+      myLogin = login;
+    }
+    return login;
+  }
+
+  /**
+   * Querying the rate limit does not count against it.
+   */
+  RateLimit rateLimit() throws IOException {
+    return get("/rate_limit", json -> {
+      RateLimit rateLimit = null;
+      json.beginObject();
+      while (json.hasNext()) {
+        if ("rate".equals(json.nextName())) {
+          rateLimit = readRateLimit(json);
+        } else {
+          json.skipValue();
+        }
+      }
+      json.endObject();
+      if (rateLimit == null) {
+        throw new IOException("Missing rate limit in GitHub response");
+      }
+      return rateLimit;
+    });
+  }
+
+  private static RateLimit readRateLimit(JsonReader json) throws IOException {
+    int remaining = Integer.MAX_VALUE;
+    long resetAt = 0L;
+    json.beginObject();
+    while (json.hasNext()) {
+      String name = json.nextName();
+      if ("remaining".equals(name)) {
+        remaining = json.nextInt();
+      } else if ("reset".equals(name)) {
+        resetAt = json.nextLong() * 1000L;
+      } else {
+        json.skipValue();
+      }
+    }
+    json.endObject();
+    return new RateLimit(remaining, resetAt);
+  }
+
+  PullRequest pullRequest(String repository, int number) throws IOException {
+    return get("/repos/" + repository + "/pulls/" + number, json -> readPullRequest(json, repository));
+  }
+
+  private static PullRequest readPullRequest(JsonReader json, String repository) throws IOException {
+    int number = 0;
+    String htmlUrl = null;
+    String headSha = null;
+    String repositoryHtmlUrl = null;
+    String mergeCommitSha = null;
+    json.beginObject();
+    while (json.hasNext()) {
+      switch (json.nextName()) {
+        case "number":
+          number = json.nextInt();
+          break;
+        case "html_url":
+          htmlUrl = json.nextString();
+          break;
+        case "head":
+          headSha = readField(json, "sha");
+          break;
+        case "merge_commit_sha":
+          mergeCommitSha = json.nextStringOrNull();
+          break;
+        case "base":
+          repositoryHtmlUrl = readBaseRepositoryHtmlUrl(json);
+          break;
+        default:
+          json.skipValue();
+      }
+    }
+    json.endObject();
+    if (headSha == null || htmlUrl == null) {
+      throw new IOException("Missing head or URL of pull request in GitHub response");
+    }
+    return new PullRequest(repository, number, htmlUrl, headSha, repositoryHtmlUrl != null ? repositoryHtmlUrl : htmlUrl.replaceFirst("/pull/\\d+$", ""),
+      mergeCommitSha);
+  }
+
+  @CheckForNull
+  private static String readBaseRepositoryHtmlUrl(JsonReader json) throws IOException {
+    String htmlUrl = null;
+    json.beginObject();
+    while (json.hasNext()) {
+      if ("repo".equals(json.nextName()) && json.peek() == JsonReader.Token.BEGIN_OBJECT) {
+        htmlUrl = readField(json, "html_url");
+      } else {
+        json.skipValue();
+      }
+    }
+    json.endObject();
+    return htmlUrl;
+  }
+
+  List<Comment> listReviewComments(String repository, int pullRequestNumber) throws IOException {
+    return list("/repos/" + repository + "/pulls/" + pullRequestNumber + "/comments", GitHubClient::readComment);
+  }
+
+  List<Comment> listIssueComments(String repository, int pullRequestNumber) throws IOException {
+    return list("/repos/" + repository + "/issues/" + pullRequestNumber + "/comments", GitHubClient::readComment);
+  }
+
+  private static Comment readComment(JsonReader json) throws IOException {
+    long id = 0L;
+    String login = null;
+    String body = null;
+    String path = null;
+    Integer position = null;
+    json.beginObject();
+    while (json.hasNext()) {
+      switch (json.nextName()) {
+        case "id":
+          id = json.nextLong();
+          break;
+        case "user":
+          login = json.peek() == JsonReader.Token.NULL ? skipNull(json) : readField(json, "login");
+          break;
+        case "body":
+          body = json.nextStringOrNull();
+          break;
+        case "path":
+          path = json.nextStringOrNull();
+          break;
+        case "position":
+          position = json.peek() == JsonReader.Token.NULL ? skipNull(json) : Integer.valueOf(json.nextInt());
+          break;
+        default:
+          json.skipValue();
+      }
+    }
+    json.endObject();
+    return new Comment(id, login, body, path, position);
+  }
+
+  /**
+   * Files are read page by page, and each one is handed to the consumer, so that their patches are not all kept in memory.
+   */
+  void listFiles(String repository, int pullRequestNumber, FileConsumer consumer) throws IOException {
+    list("/repos/" + repository + "/pulls/" + pullRequestNumber + "/files", json -> {
+      String filename = null;
+      String patch = null;
+      json.beginObject();
+      while (json.hasNext()) {
+        String name = json.nextName();
+        if ("filename".equals(name)) {
+          filename = json.nextString();
+        } else if ("patch".equals(name)) {
+          patch = json.nextStringOrNull();
+        } else {
+          json.skipValue();
+        }
+      }
+      json.endObject();
+      consumer.accept(filename, patch);
+      return null;
+    });
+  }
+
+  Comment createReviewComment(String repository, int pullRequestNumber, String body, String commitId, String path, int position) throws IOException {
+    StringWriter json = new StringWriter();
+    json.write("{\"body\":");
+    SarifWriter.writeString(json, body);
+    json.write(",\"commit_id\":");
+    SarifWriter.writeString(json, commitId);
+    json.write(",\"path\":");
+    SarifWriter.writeString(json, path);
+    json.write(",\"position\":" + position + "}");
+    return send("POST", "/repos/" + repository + "/pulls/" + pullRequestNumber + "/comments", json.toString(), GitHubClient::readComment);
+  }
+
+  void updateReviewComment(String repository, long id, String body) throws IOException {
+    send("PATCH", "/repos/" + repository + "/pulls/comments/" + id, bodyJson(body), null);
+  }
+
+  void deleteReviewComment(String repository, long id) throws IOException {
+    send("DELETE", "/repos/" + repository + "/pulls/comments/" + id, null, null);
+  }
+
+  Comment createIssueComment(String repository, int pullRequestNumber, String body) throws IOException {
+    return send("POST", "/repos/" + repository + "/issues/" + pullRequestNumber + "/comments", bodyJson(body), GitHubClient::readComment);
+  }
+
+  void updateIssueComment(String repository, long id, String body) throws IOException {
+    send("PATCH", "/repos/" + repository + "/issues/comments/" + id, bodyJson(body), null);
+  }
+
+  void deleteIssueComment(String repository, long id) throws IOException {
+    send("DELETE", "/repos/" + repository + "/issues/comments/" + id, null, null);
+  }
+
+  private static String bodyJson(String body) throws IOException {
+    StringWriter json = new StringWriter();
+    json.write("{\"body\":");
+    SarifWriter.writeString(json, body);
+    json.write('}');
+    return json.toString();
+  }
+
+  /**
+   * @return statuses of the commit, the most recent first
+   */
+  List<CommitStatus> listCommitStatuses(String repository, String sha) throws IOException {
+    return list("/repos/" + repository + "/commits/" + sha + "/statuses", json -> {
+      CommitState state = null;
+      String description = null;
+      String targetUrl = null;
+      String context = null;
+      json.beginObject();
+      while (json.hasNext()) {
+        switch (json.nextName()) {
+          case "state":
+            state = CommitState.ofApiName(json.nextString());
+            break;
+          case "description":
+            description = json.nextStringOrNull();
+            break;
+          case "target_url":
+            targetUrl = json.nextStringOrNull();
+            break;
+          case "context":
+            context = json.nextStringOrNull();
+            break;
+          default:
+            json.skipValue();
+        }
+      }
+      json.endObject();
+      return new CommitStatus(state, description, targetUrl, context);
+    });
+  }
+
+  void createCommitStatus(String repository, String sha, CommitState state, @Nullable String targetUrl, @Nullable String description, String context)
+    throws IOException {
+    StringWriter json = new StringWriter();
+    json.write("{\"state\":\"" + state.apiName() + "\"");
+    if (targetUrl != null) {
+      json.write(",\"target_url\":");
+      SarifWriter.writeString(json, targetUrl);
+    }
+    if (description != null) {
+      json.write(",\"description\":");
+      SarifWriter.writeString(json, description);
+    }
+    json.write(",\"context\":");
+    SarifWriter.writeString(json, context);
+    json.write('}');
+    send("POST", "/repos/" + repository + "/statuses/" + sha, json.toString(), null);
+  }
+
+  @CheckForNull
+  private static <T> T skipNull(JsonReader json) throws IOException {
+    json.nextNull();
+    return null;
+  }
+
+  /**
+   * @return string value of the field of the next object, other fields being skipped
+   */
+  @CheckForNull
+  private static String readField(JsonReader json, String field) throws IOException {
+    String value = null;
+    json.beginObject();
+    while (json.hasNext()) {
+      if (field.equals(json.nextName())) {
+        value = json.nextStringOrNull();
+      } else {
+        json.skipValue();
+      }
+    }
+    json.endObject();
+    return value;
+  }
+
+  private <T> T get(String path, ValueReader<T> reader) throws IOException {
+    return send("GET", path, null, reader);
+  }
+
+  /**
+   * @param reader of the response, or null when the response is ignored
+   */
+  @CheckForNull
+  private <T> T send(String method, String path, @Nullable String body, @Nullable ValueReader<T> reader) throws IOException {
+    HttpURLConnection connection = open(method, new URL(endpoint + path), body);
+    try {
+      if (reader == null) {
+        return null;
+      }
+      try (JsonReader json = new JsonReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+        return reader.read(json);
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Read all the pages of a list, following the links provided by GitHub
+   */
+  private <T> List<T> list(String path, ValueReader<T> reader) throws IOException {
+    List<T> values = new ArrayList<>();
+    String url = endpoint + path + "?per_page=" + PAGE_SIZE;
+    while (url != null) {
+      HttpURLConnection connection = open("GET", new URL(url), null);
+      try {
+        try (JsonReader json = new JsonReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+          json.beginArray();
+          while (json.hasNext()) {
+            T value = reader.read(json);
+            if (value != null) {
+              values.add(value);
+            }
+          }
+          json.endArray();
+        }
+        url = nextPage(connection.getHeaderField("Link"));
+      } finally {
+        connection.disconnect();
+      }
+    }
+    return values;
+  }
+
+  @CheckForNull
+  static String nextPage(@Nullable String linkHeader) {
+    if (linkHeader == null) {
+      return null;
+    }
+    Matcher matcher = NEXT_PAGE_PATTERN.matcher(linkHeader);
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
+  /**
+   * A call rejected by GitHub is retried once when the connector waited for the cause of the rejection to go away
+   */
+  private HttpURLConnection open(String method, URL url, @Nullable String body) throws IOException {
+    try {
+      return openOnce(method, url, body);
+    } catch (IOException e) {
+      if (!connector.backOff(e)) {
+        throw e;
+      }
+      return openOnce(method, url, body);
+    }
+  }
+
+  private HttpURLConnection openOnce(String method, URL url, @Nullable String body) throws IOException {
+    if (!url.getPath().endsWith("/rate_limit")) {
+      calls.incrementAndGet();
+    }
+    HttpURLConnection connection = connector.connect(url);
+    if (deadlineMs != Long.MAX_VALUE) {
+      HttpConnector.withTimeouts(connection, deadlineMs);
+    }
+    setRequestMethod(connection, method);
+    if (token != null) {
+      connection.setRequestProperty("Authorization", "token " + token);
+    }
+    connection.setRequestProperty("Accept", ACCEPT_HEADER);
+    if (body != null) {
+      connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+      connection.setDoOutput(true);
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(body.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    int code = connection.getResponseCode();
+    if (code / 100 != 2) {
+      String error;
+      try {
+        error = readError(connection);
+      } finally {
+        connection.disconnect();
+      }
+      if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+        // GitHub answers 404 instead of 403 when the account is not allowed to see or update the resource
+        throw new FileNotFoundException(url + ": " + error);
+      }
+      throw new IOException("Server returned HTTP response code: " + code + " for URL: " + url + ": " + error);
+    }
+    return connection;
+  }
+
+  /**
+   * {@link HttpURLConnection} rejects PATCH, which GitHub also accepts as a POST overriding its method
+   */
+  private static void setRequestMethod(HttpURLConnection connection, String method) throws IOException {
+    try {
+      connection.setRequestMethod(method);
+    } catch (ProtocolException e) {
+      connection.setRequestMethod("POST");
+      connection.setRequestProperty("X-HTTP-Method-Override", method);
+    }
+  }
+
+  private static String readError(HttpURLConnection connection) throws IOException {
+    try (InputStream in = connection.getErrorStream()) {
+      if (in == null) {
+        return "";
+      }
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        body.write(buffer, 0, read);
+      }
+      return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+}
@@ -35,15 +35,54 @@ import org.sonar.api.PropertyType;
   @Property(
     key = GitHubPlugin.GITHUB_OAUTH,
     name = "GitHub OAuth token",
-    description = "Authentication token",
+    description = "Authentication token. Several tokens separated by commas form a pool: each pull request is commented by the account of one of them, "
+      + "another one being used only when its rate limit is exhausted.",
     global = false,
     type = PropertyType.PASSWORD),
+  @Property(
+    key = GitHubPlugin.GITHUB_OAUTH_FILE,
+    name = "GitHub OAuth tokens file",
+    description = "Path to a file containing GitHub OAuth tokens, one per line, added to the pool of tokens of '" + GitHubPlugin.GITHUB_OAUTH + "'",
+    global = false),
+  @Property(
+    key = GitHubPlugin.GITHUB_APP_ID,
+    name = "GitHub App ID",
+    description = "Authenticate as an installation of this GitHub App instead of using an OAuth token",
+    global = false),
+  @Property(
+    key = GitHubPlugin.GITHUB_APP_PRIVATE_KEY_FILE,
+    name = "GitHub App private key file",
+    description = "Path to the PEM file of the private key of the GitHub App",
+    global = false),
+  @Property(
+    key = GitHubPlugin.GITHUB_APP_INSTALLATION_ID,
+    name = "GitHub App installation ID",
+    description = "Installation of the GitHub App on the organization or user owning the repository",
+    global = false),
   @Property(
     key = GitHubPlugin.GITHUB_REPO,
     name = "GitHub repository",
     description = "GitHub repository for this project. Will be guessed from '" + CoreProperties.LINKS_SOURCES_DEV + "' if present",
     project = false,
     global = false),
+  @Property(
+    key = GitHubPlugin.BITBUCKET_ENDPOINT,
+    name = "Bitbucket Server URL",
+    description = "URL of the Bitbucket Server hosting the repository, for example https://bitbucket.mycompany.com. When set, the pull request "
+      + "is decorated on Bitbucket Server instead of GitHub, with a Code Insights report and annotations.",
+    global = true),
+  @Property(
+    key = GitHubPlugin.BITBUCKET_TOKEN,
+    name = "Bitbucket Server token",
+    description = "HTTP access token of an account allowed to read the repository and to publish Code Insights reports",
+    global = false,
+    type = PropertyType.PASSWORD),
+  @Property(
+    key = GitHubPlugin.BITBUCKET_REPOSITORY,
+    name = "Bitbucket Server repository",
+    description = "Bitbucket Server repository for this project, as the key of its project and its slug separated by a slash, for example PROJ/my-repo",
+    project = false,
+    global = false),
   @Property(
     key = GitHubPlugin.GITHUB_PULL_REQUEST,
     name = "GitHub Pull Request",
@@ -52,6 +91,14 @@ import org.sonar.api.PropertyType;
     module = false,
     global = false,
     type = PropertyType.INTEGER),
+  @Property(
+    key = GitHubPlugin.GITHUB_REVISION,
+    name = "Analyzed commit",
+    description = "SHA of the analyzed commit of the pull request, when it is not the HEAD of the Git working tree of the project. "
+      + "Results are only published when it is the head of the pull request.",
+    project = false,
+    module = false,
+    global = false),
   @Property(
     key = GitHubPlugin.GITHUB_DISABLE_INLINE_COMMENTS,
     defaultValue = "false",
@@ -59,15 +106,176 @@ import org.sonar.api.PropertyType;
     description = "Issues will not be reported as inline comments but only in the global summary comment",
     project = true,
     global = true,
-    type = PropertyType.BOOLEAN)
+    type = PropertyType.BOOLEAN),
+  @Property(
+    key = GitHubPlugin.GITHUB_PUBLISH_MODE,
+    defaultValue = "FULL",
+    name = "Publish mode",
+    description = "FULL publishes the status, the summary comment and inline comments. SUMMARY_ONLY publishes the status and the summary comment, "
+      + "without reading the patches of the pull request. STATUS_ONLY only publishes the status, without reading the comments nor the files of the "
+      + "pull request: new issues are then not restricted to the files modified by the pull request.",
+    project = true,
+    global = true,
+    type = PropertyType.SINGLE_SELECT_LIST,
+    options = {"FULL", "SUMMARY_ONLY", "STATUS_ONLY"}),
+  @Property(
+    key = GitHubPlugin.GITHUB_DRY_RUN,
+    defaultValue = "false",
+    name = "Dry run",
+    description = "Only log the comments and status that would be published on the pull request, without publishing them",
+    project = false,
+    global = false,
+    type = PropertyType.BOOLEAN),
+  @Property(
+    key = GitHubPlugin.GITHUB_SARIF_EXPORT,
+    defaultValue = "false",
+    name = "Export issues to SARIF",
+    description = "Write the new issues of the pull request to the SARIF file 'sonar-github.sarif' of the working directory of the analysis",
+    project = true,
+    global = true,
+    type = PropertyType.BOOLEAN),
+  @Property(
+    key = GitHubPlugin.GITHUB_CODE_SCANNING_UPLOAD,
+    defaultValue = "false",
+    name = "Upload issues to GitHub code scanning",
+    description = "Upload the SARIF file of the new issues to GitHub code scanning in a single request. The comments and the commit status are still published: "
+      + "disable the inline comments with '" + GitHubPlugin.GITHUB_DISABLE_INLINE_COMMENTS + "' to only report the issues through code scanning and the global comment.",
+    project = true,
+    global = true,
+    type = PropertyType.BOOLEAN),
+  @Property(
+    key = GitHubPlugin.GITHUB_SCOPE_BY_PROJECT,
+    defaultValue = "false",
+    name = "Scope comments and status by project",
+    description = "Tag comments with the project key and use a commit status context per project, so that the analyses of several projects "
+      + "can publish on the same pull request without removing the comments and status of each other",
+    project = true,
+    global = true,
+    type = PropertyType.BOOLEAN),
+  @Property(
+    key = GitHubPlugin.GITHUB_SHARD,
+    name = "Pull request shard",
+    description = "Name of the part of the pull request analyzed by this analysis, when the analysis of the pull request is split over several analyses. "
+      + "Issues are written to a shard file in '" + GitHubPlugin.GITHUB_SHARD_DIR + "' instead of being published, "
+      + "and are published by a last analysis with '" + GitHubPlugin.GITHUB_MERGE_SHARDS + "'.",
+    project = false,
+    global = false),
+  @Property(
+    key = GitHubPlugin.GITHUB_MERGE_SHARDS,
+    defaultValue = "false",
+    name = "Merge pull request shards",
+    description = "Publish the issues of this analysis together with the ones of all the shard files of '" + GitHubPlugin.GITHUB_SHARD_DIR + "'",
+    project = false,
+    global = false,
+    type = PropertyType.BOOLEAN),
+  @Property(
+    key = GitHubPlugin.GITHUB_SHARD_DIR,
+    name = "Pull request shards directory",
+    description = "Directory of the shard files of a pull request analysis split over several analyses",
+    project = false,
+    global = false),
+  @Property(
+    key = GitHubPlugin.GITHUB_SPOOL_DIR,
+    name = "Publisher daemon spool directory",
+    description = "Directory where the results of the analysis are left for the publisher daemon running on this machine, instead of being "
+      + "published on GitHub by the analysis. The daemon coalesces the results waiting for the same pull request, and only publishes the most recent ones.",
+    project = false,
+    global = true),
+  @Property(
+    key = GitHubPlugin.GITHUB_PUBLISH_THREADS,
+    defaultValue = "4",
+    name = "Concurrent GitHub requests",
+    description = "Maximum number of GitHub WS calls done in parallel when publishing the pull request comments",
+    project = true,
+    global = true,
+    type = PropertyType.INTEGER),
+  @Property(
+    key = GitHubPlugin.GITHUB_PUBLISH_TIMEOUT,
+    name = "Publication timeout",
+    description = "Maximum time in seconds spent publishing the results of a pull request analysis on GitHub. The status is published first, "
+      + "then the summary, the inline comments of blocker and critical issues, the other inline comments, and outdated comments are deleted last. "
+      + "When the time is over, the publication stops and the summary tells that results are partially published. "
+      + "On Bitbucket Server, calls still running when the time is over fail, and the report may not be published. Leave empty for no limit.",
+    project = true,
+    global = true,
+    type = PropertyType.INTEGER),
+  @Property(
+    key = GitHubPlugin.GITHUB_ANALYSIS_SCOPE,
+    defaultValue = "ALL",
+    name = "Analysis scope",
+    description = "Files analyzed during pull request analysis. ALL analyzes the whole project. CHANGED_FILES only analyzes the files modified by the pull request "
+      + "that are matched by the existing inclusions. "
+      + "CHANGED_MODULES fully analyzes the modules containing at least one modified file, to keep the rest of those modules available as context, and skips the others.",
+    project = true,
+    global = true,
+    type = PropertyType.SINGLE_SELECT_LIST,
+    options = {"ALL", "CHANGED_FILES", "CHANGED_MODULES"}),
+  @Property(
+    key = GitHubPlugin.GITHUB_HOST_CALLS_PER_MINUTE,
+    name = "GitHub calls per minute on this machine",
+    description = "Maximum number of GitHub WS calls per minute shared by all the analyses running on the same machine with the same GitHub endpoint, "
+      + "so that concurrent analyses don't trigger the secondary rate limit of GitHub. Also applies to the calls to Bitbucket Server. Leave empty for no limit.",
+    project = false,
+    global = true,
+    type = PropertyType.INTEGER),
+  @Property(
+    key = GitHubPlugin.GITHUB_MAX_INLINE_COMMENTS,
+    name = "Maximum number of inline comments",
+    description = "Maximum number of inline comments added to a pull request by an analysis. The most severe issues are commented first, "
+      + "the others are reported in the global summary comment. Leave empty for no limit.",
+    project = true,
+    global = true,
+    type = PropertyType.INTEGER),
+  @Property(
+    key = GitHubPlugin.GITHUB_INLINE_COMMENT_GROUPING,
+    defaultValue = "LINE",
+    name = "Grouping of issues in inline comments",
+    description = "LINE adds one inline comment per line having issues. HUNK adds one inline comment per diff hunk, on the first line having issues. "
+      + "WINDOW adds one inline comment per block of lines of a diff hunk, the size of the blocks being configured by '" + GitHubPlugin.GITHUB_INLINE_COMMENT_WINDOW + "'.",
+    project = true,
+    global = true,
+    type = PropertyType.SINGLE_SELECT_LIST,
+    options = {"LINE", "HUNK", "WINDOW"}),
+  @Property(
+    key = GitHubPlugin.GITHUB_INLINE_COMMENT_WINDOW,
+    defaultValue = "10",
+    name = "Lines per inline comment",
+    description = "Number of lines covered by a single inline comment when issues are grouped by WINDOW",
+    project = true,
+    global = true,
+    type = PropertyType.INTEGER)
 })
 public class GitHubPlugin implements Plugin {
 
   public static final String GITHUB_ENDPOINT = "sonar.github.endpoint";
   public static final String GITHUB_OAUTH = "sonar.github.oauth";
+  public static final String GITHUB_OAUTH_FILE = "sonar.github.oauthFile";
+  public static final String GITHUB_APP_ID = "sonar.github.app.id";
+  public static final String GITHUB_APP_PRIVATE_KEY_FILE = "sonar.github.app.privateKeyFile";
+  public static final String GITHUB_APP_INSTALLATION_ID = "sonar.github.app.installationId";
   public static final String GITHUB_REPO = "sonar.github.repository";
+  public static final String BITBUCKET_ENDPOINT = "sonar.bitbucket.endpoint";
+  public static final String BITBUCKET_TOKEN = "sonar.bitbucket.token";
+  public static final String BITBUCKET_REPOSITORY = "sonar.bitbucket.repository";
   public static final String GITHUB_PULL_REQUEST = "sonar.github.pullRequest";
+  public static final String GITHUB_REVISION = "sonar.github.revision";
   public static final String GITHUB_DISABLE_INLINE_COMMENTS = "sonar.github.disableInlineComments";
+  public static final String GITHUB_PUBLISH_MODE = "sonar.github.publishMode";
+  public static final String GITHUB_DRY_RUN = "sonar.github.dryRun";
+  public static final String GITHUB_SARIF_EXPORT = "sonar.github.sarifExport";
+  public static final String GITHUB_CODE_SCANNING_UPLOAD = "sonar.github.codeScanningUpload";
+  public static final String GITHUB_SCOPE_BY_PROJECT = "sonar.github.scopeByProject";
+  public static final String GITHUB_SHARD = "sonar.github.shard";
+  public static final String GITHUB_MERGE_SHARDS = "sonar.github.mergeShards";
+  public static final String GITHUB_SHARD_DIR = "sonar.github.shardDir";
+  public static final String GITHUB_SPOOL_DIR = "sonar.github.spoolDir";
+  public static final String GITHUB_PUBLISH_THREADS = "sonar.github.publishThreads";
+  public static final String GITHUB_PUBLISH_TIMEOUT = "sonar.github.publishTimeout";
+  public static final String GITHUB_ANALYSIS_SCOPE = "sonar.github.analysisScope";
+  public static final String GITHUB_HOST_CALLS_PER_MINUTE = "sonar.github.hostCallsPerMinute";
+  public static final String GITHUB_MAX_INLINE_COMMENTS = "sonar.github.maxInlineComments";
+  public static final String GITHUB_INLINE_COMMENT_GROUPING = "sonar.github.inlineCommentGrouping";
+  public static final String GITHUB_INLINE_COMMENT_WINDOW = "sonar.github.inlineCommentWindow";
 
   @Override
   public void define(Context context) {
@@ -76,6 +284,7 @@ public class GitHubPlugin implements Plugin {
       GitHubPluginConfiguration.class,
       PullRequestProjectBuilder.class,
       PullRequestFacade.class,
+      PullRequestChangedLines.class,
       MarkDownUtils.class);
   }
 
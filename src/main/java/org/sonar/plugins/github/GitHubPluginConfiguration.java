@@ -19,23 +19,48 @@
  */
 package org.sonar.plugins.github;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 import org.sonar.api.CoreProperties;
 import org.sonar.api.batch.BatchSide;
 import org.sonar.api.batch.InstantiationStrategy;
 import org.sonar.api.config.Settings;
 import org.sonar.api.utils.MessageException;
 
-import static org.apache.commons.lang.StringUtils.isNotBlank;
-
 @BatchSide
 @InstantiationStrategy(InstantiationStrategy.PER_BATCH)
 public class GitHubPluginConfiguration {
 
   public static final int MAX_GLOBAL_ISSUES = 10;
 
+  public enum AnalysisScope {
+    ALL, CHANGED_FILES, CHANGED_MODULES
+  }
+
+  public enum InlineCommentGrouping {
+    LINE, HUNK, WINDOW
+  }
+
+  /**
+   * What is published on the pull request, from the most to the least complete. Lighter modes need fewer WS calls.
+   */
+  public enum PublishMode {
+    FULL, SUMMARY_ONLY, STATUS_ONLY
+  }
+
   private Settings settings;
   private Pattern gitSshPattern;
   private Pattern gitHttpPattern;
@@ -50,6 +75,14 @@ public class GitHubPluginConfiguration {
     return settings.getInt(GitHubPlugin.GITHUB_PULL_REQUEST);
   }
 
+  /**
+   * @return SHA of the analyzed commit, null when it is the HEAD of the Git working tree
+   */
+  @CheckForNull
+  public String revision() {
+    return settings.getString(GitHubPlugin.GITHUB_REVISION);
+  }
+
   public String repository() {
     if (settings.hasKey(GitHubPlugin.GITHUB_REPO)) {
       return repoFromProp();
@@ -105,6 +138,99 @@ public class GitHubPluginConfiguration {
     return settings.getString(GitHubPlugin.GITHUB_OAUTH);
   }
 
+  /**
+   * @return tokens of '{@value GitHubPlugin#GITHUB_OAUTH}', separated by commas, followed by the ones of the file '{@value GitHubPlugin#GITHUB_OAUTH_FILE}'
+   */
+  public List<String> oauthTokens() {
+    List<String> tokens = new ArrayList<>();
+    for (String token : settings.getStringArray(GitHubPlugin.GITHUB_OAUTH)) {
+      if (isNotBlank(token)) {
+        tokens.add(token.trim());
+      }
+    }
+    String file = settings.getString(GitHubPlugin.GITHUB_OAUTH_FILE);
+    if (isNotBlank(file)) {
+      try {
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+          if (isNotBlank(line) && !line.trim().startsWith("#")) {
+            tokens.add(line.trim());
+          }
+        }
+      } catch (IOException e) {
+        throw MessageException.of("Unable to read GitHub tokens from file '" + file + "' configured by property '" + GitHubPlugin.GITHUB_OAUTH_FILE + "': " + e.getMessage());
+      }
+    }
+    return tokens;
+  }
+
+  /**
+   * @return the token when a single one is configured, by '{@value GitHubPlugin#GITHUB_OAUTH}' or by the file '{@value GitHubPlugin#GITHUB_OAUTH_FILE}',
+   * otherwise null
+   */
+  @CheckForNull
+  public String singleOauthToken() {
+    List<String> tokens = oauthTokens();
+    return tokens.size() == 1 ? tokens.get(0) : null;
+  }
+
+  /**
+   * @return true when authenticating as a GitHub App installation rather than with an OAuth token
+   */
+  public boolean isGitHubApp() {
+    return settings.hasKey(GitHubPlugin.GITHUB_APP_ID);
+  }
+
+  @CheckForNull
+  public String appId() {
+    return settings.getString(GitHubPlugin.GITHUB_APP_ID);
+  }
+
+  public File appPrivateKeyFile() {
+    return new File(requiredAppProperty(GitHubPlugin.GITHUB_APP_PRIVATE_KEY_FILE));
+  }
+
+  public String appInstallationId() {
+    return requiredAppProperty(GitHubPlugin.GITHUB_APP_INSTALLATION_ID);
+  }
+
+  private String requiredAppProperty(String key) {
+    String value = settings.getString(key);
+    if (isBlank(value)) {
+      throw MessageException.of("Property '" + key + "' is required when authenticating as a GitHub App with '" + GitHubPlugin.GITHUB_APP_ID + "'");
+    }
+    return value;
+  }
+
+  /**
+   * @return true when the pull request is hosted on Bitbucket Server rather than on GitHub
+   */
+  public boolean isBitbucket() {
+    return settings.hasKey(GitHubPlugin.BITBUCKET_ENDPOINT);
+  }
+
+  public String bitbucketEndpoint() {
+    String endpoint = settings.getString(GitHubPlugin.BITBUCKET_ENDPOINT);
+    return endpoint != null && endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+  }
+
+  @CheckForNull
+  public String bitbucketToken() {
+    return settings.getString(GitHubPlugin.BITBUCKET_TOKEN);
+  }
+
+  /**
+   * @return key of the Bitbucket Server project and slug of the repository
+   */
+  public String[] bitbucketRepository() {
+    String repository = settings.getString(GitHubPlugin.BITBUCKET_REPOSITORY);
+    String[] projectAndSlug = repository == null ? new String[0] : repository.trim().split("/");
+    if (projectAndSlug.length != 2 || isBlank(projectAndSlug[0]) || isBlank(projectAndSlug[1])) {
+      throw MessageException.of("Property '" + GitHubPlugin.BITBUCKET_REPOSITORY + "' is required on Bitbucket Server, as the key of the project and the slug "
+        + "of the repository separated by a slash, for example PROJ/my-repo");
+    }
+    return projectAndSlug;
+  }
+
   public boolean isEnabled() {
     return settings.hasKey(GitHubPlugin.GITHUB_PULL_REQUEST);
   }
@@ -114,7 +240,153 @@ public class GitHubPluginConfiguration {
   }
 
   public boolean tryReportIssuesInline() {
-    return !settings.getBoolean(GitHubPlugin.GITHUB_DISABLE_INLINE_COMMENTS);
+    return !settings.getBoolean(GitHubPlugin.GITHUB_DISABLE_INLINE_COMMENTS) && publishMode() == PublishMode.FULL;
+  }
+
+  public PublishMode publishMode() {
+    return enumValue(GitHubPlugin.GITHUB_PUBLISH_MODE, PublishMode.class, PublishMode.FULL);
+  }
+
+  public boolean dryRun() {
+    return settings.getBoolean(GitHubPlugin.GITHUB_DRY_RUN);
+  }
+
+  public boolean sarifExport() {
+    return settings.getBoolean(GitHubPlugin.GITHUB_SARIF_EXPORT) || codeScanningUpload();
+  }
+
+  public boolean codeScanningUpload() {
+    return settings.getBoolean(GitHubPlugin.GITHUB_CODE_SCANNING_UPLOAD);
+  }
+
+  public boolean scopeByProject() {
+    return settings.getBoolean(GitHubPlugin.GITHUB_SCOPE_BY_PROJECT);
+  }
+
+  public String projectKey() {
+    return settings.getString(CoreProperties.PROJECT_KEY_PROPERTY);
+  }
+
+  /**
+   * @return name of the part of the pull request analyzed by this analysis, or null when the analysis of the pull request is not split
+   */
+  @CheckForNull
+  public String shard() {
+    String shard = settings.getString(GitHubPlugin.GITHUB_SHARD);
+    return isBlank(shard) ? null : shard.trim();
+  }
+
+  public boolean mergeShards() {
+    return settings.getBoolean(GitHubPlugin.GITHUB_MERGE_SHARDS);
+  }
+
+  public File shardDir() {
+    String dir = settings.getString(GitHubPlugin.GITHUB_SHARD_DIR);
+    if (isBlank(dir)) {
+      throw MessageException.of("Property '" + GitHubPlugin.GITHUB_SHARD_DIR + "' is required when '" + GitHubPlugin.GITHUB_SHARD + "' or '"
+        + GitHubPlugin.GITHUB_MERGE_SHARDS + "' is set");
+    }
+    return new File(dir);
+  }
+
+  /**
+   * @return directory where results are left for the publisher daemon, or null when the analysis publishes its results
+   */
+  @CheckForNull
+  public File spoolDir() {
+    String dir = settings.getString(GitHubPlugin.GITHUB_SPOOL_DIR);
+    return isBlank(dir) ? null : new File(dir);
+  }
+
+  /**
+   * @return true when the results of this analysis are published by another one: the analysis merging the shards, or the publisher daemon
+   */
+  public boolean resultsPublishedElsewhere() {
+    return shard() != null || spoolDir() != null;
+  }
+
+  /**
+   * @return properties of the analysis needed by the publisher daemon to publish its results like the analysis would. Credentials are
+   * not part of them, the daemon uses its own.
+   */
+  public Map<String, String> publicationProperties() {
+    Map<String, String> properties = new LinkedHashMap<>();
+    properties.put(GitHubPlugin.GITHUB_REPO, repository());
+    properties.put(GitHubPlugin.GITHUB_PULL_REQUEST, String.valueOf(pullRequestNumber()));
+    for (String key : Arrays.asList(CoreProperties.PROJECT_KEY_PROPERTY, GitHubPlugin.GITHUB_SCOPE_BY_PROJECT, GitHubPlugin.GITHUB_PUBLISH_MODE,
+      GitHubPlugin.GITHUB_PUBLISH_TIMEOUT, GitHubPlugin.GITHUB_DISABLE_INLINE_COMMENTS, GitHubPlugin.GITHUB_DRY_RUN)) {
+      String value = settings.getString(key);
+      if (value != null) {
+        properties.put(key, value);
+      }
+    }
+    return properties;
+  }
+
+  public int publishThreads() {
+    return Math.max(1, settings.getInt(GitHubPlugin.GITHUB_PUBLISH_THREADS));
+  }
+
+  /**
+   * @return maximum time spent publishing on GitHub in milliseconds, 0 when there is no limit
+   */
+  public long publishTimeoutMs() {
+    return Math.max(0L, settings.getLong(GitHubPlugin.GITHUB_PUBLISH_TIMEOUT)) * 1000L;
+  }
+
+  /**
+   * @return maximum number of inline comments to add, {@link Integer#MAX_VALUE} when there is no limit
+   */
+  public int maxInlineComments() {
+    if (!settings.hasKey(GitHubPlugin.GITHUB_MAX_INLINE_COMMENTS)) {
+      return Integer.MAX_VALUE;
+    }
+    return Math.max(0, settings.getInt(GitHubPlugin.GITHUB_MAX_INLINE_COMMENTS));
+  }
+
+  /**
+   * @return maximum number of GitHub WS calls per minute shared by the analyses running on this machine, 0 when there is no limit
+   */
+  public int hostCallsPerMinute() {
+    return Math.max(0, settings.getInt(GitHubPlugin.GITHUB_HOST_CALLS_PER_MINUTE));
+  }
+
+  public AnalysisScope analysisScope() {
+    return enumValue(GitHubPlugin.GITHUB_ANALYSIS_SCOPE, AnalysisScope.class, AnalysisScope.ALL);
+  }
+
+  public InlineCommentGrouping inlineCommentGrouping() {
+    return enumValue(GitHubPlugin.GITHUB_INLINE_COMMENT_GROUPING, InlineCommentGrouping.class, InlineCommentGrouping.LINE);
+  }
+
+  /**
+   * @return number of lines covered by a single inline comment when grouping issues by {@link InlineCommentGrouping#WINDOW}
+   */
+  public int inlineCommentWindow() {
+    return Math.max(1, settings.getInt(GitHubPlugin.GITHUB_INLINE_COMMENT_WINDOW));
+  }
+
+  private <E extends Enum<E>> E enumValue(String key, Class<E> enumClass, E defaultValue) {
+    String value = settings.getString(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Enum.valueOf(enumClass, value.trim().toUpperCase(Locale.ENGLISH));
+    } catch (IllegalArgumentException e) {
+      throw MessageException.of("Invalid value for property '" + key + "': " + value + ". Supported values are " + Arrays.toString(enumClass.getEnumConstants()));
+    }
+  }
+
+  /**
+   * Commons Lang is not bundled with the plugin
+   */
+  private static boolean isBlank(@Nullable String value) {
+    return value == null || value.trim().isEmpty();
+  }
+
+  private static boolean isNotBlank(@Nullable String value) {
+    return !isBlank(value);
   }
 
 }
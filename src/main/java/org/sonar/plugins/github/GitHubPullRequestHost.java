@@ -0,0 +1,1016 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.plugins.github.GitHubPluginConfiguration.PublishMode;
+import org.sonar.plugins.github.PublicationDeadline.Phase;
+import org.sonar.plugins.github.PublicationPlan.Action;
+import org.sonar.plugins.github.PublicationPlan.Operation;
+import org.sonar.plugins.github.PublicationPlan.Target;
+
+/**
+ * All WS interaction with GitHub.
+ */
+class GitHubPullRequestHost implements PullRequestHost {
+
+  private static final Logger LOG = Loggers.get(GitHubPullRequestHost.class);
+
+  static final String COMMIT_CONTEXT = "sonarqube";
+  private static final String PROJECT_TAG_PREFIX = "sonarqube project: ";
+  private static final Pattern PROJECT_TAG_PATTERN = Pattern.compile("<!-- " + PROJECT_TAG_PREFIX + "(\\S+) -->\\s*$");
+
+  // Checks of the pull request head between the phases of the publication
+  private static final int STALE_CHECKS_DURING_EXECUTION = 2;
+  // Added to the summary when the rate limit only allows to publish the summary and the status
+  static final String SUMMARY_ONLY_NOTE = "\n\n:warning: The GitHub rate limit was too low to publish the inline comments of this analysis: "
+    + "the inline comments of the pull request may be outdated.";
+
+  private final GitHubPluginConfiguration config;
+  // Connection kept by the publisher daemon across publications, null for an analysis
+  private final GitHubClient sharedGitHub;
+  private Map<Long, GitHubClient.Comment> existingReviewCommentsById = new LinkedHashMap<>();
+  private Map<Long, GitHubClient.Comment> existingGlobalCommentsById = new LinkedHashMap<>();
+  private GitHubClient github;
+  private String token;
+  private GitHubClient.PullRequest pr;
+  private String myself;
+  private int pullRequestNumber;
+  private String analyzedSha;
+  private PullRequestLease lease;
+  private PublicationJournal journal;
+  private GitHubClient.Comment summaryComment;
+  private HostRateLimiter hostRateLimiter;
+  // Set when the token pinned to the pull request is exhausted, since comments written by another account would be orphaned
+  private boolean statusOnly = false;
+
+  GitHubPullRequestHost(GitHubPluginConfiguration config) {
+    this(config, null);
+  }
+
+  /**
+   * @param sharedGitHub connection authenticated with the token of the configuration, used instead of a new one unless
+   * the configuration authenticates with a GitHub App or a pool of tokens
+   */
+  GitHubPullRequestHost(GitHubPluginConfiguration config, @Nullable GitHubClient sharedGitHub) {
+    this.config = config;
+    this.sharedGitHub = sharedGitHub;
+  }
+
+  @Override
+  @CheckForNull
+  public PatchPositionIndex load(int pullRequestNumber, @Nullable String checkedOutSha) throws IOException {
+    // The lease is taken by the analysis publishing the results, which would otherwise never release it
+    connect(pullRequestNumber, checkedOutSha, !config.resultsPublishedElsewhere());
+    if (config.publishMode() == PublishMode.STATUS_ONLY) {
+      // Neither the comments nor the files of the pull request are needed to publish the status
+      return null;
+    }
+    if (!config.resultsPublishedElsewhere()) {
+      // Existing comments are only compared with the results by the analysis publishing them
+      loadExistingReviewComments();
+    }
+    return mapPatchPositionsToLines();
+  }
+
+  /**
+   * Read the pull request before publishing results of an earlier analysis, see {@link PublisherDaemon}. Files of the pull request
+   * are only needed to analyze it, not to publish results computed earlier.
+   */
+  public void loadForPublication(int pullRequestNumber) throws IOException {
+    connect(pullRequestNumber, null, true);
+    if (config.publishMode() != PublishMode.STATUS_ONLY) {
+      loadExistingReviewComments();
+    }
+  }
+
+  private void connect(int pullRequestNumber, @Nullable String checkedOutSha, boolean acquireLease) throws IOException {
+    if (config.isGitHubApp()) {
+      GitHubAppAuthentication.InstallationToken installationToken = GitHubAppAuthentication.of(config).installationToken();
+      token = installationToken.token();
+      github = newClient(token);
+      // Installation tokens can't read the authenticated user, comments are written by the bot account of the App
+      myself = installationToken.login();
+    } else if (sharedGitHub != null && config.oauthTokens().size() <= 1) {
+      token = config.singleOauthToken();
+      github = sharedGitHub;
+      if (config.hostCallsPerMinute() > 0) {
+        hostRateLimiter = HostRateLimiter.forEndpoint(config.endpoint(), config.hostCallsPerMinute());
+      }
+      // Login of the authenticated user is cached by the client
+      myself = github.myLogin();
+    } else {
+      token = selectToken(pullRequestNumber);
+      github = newClient(token);
+      myself = github.myLogin();
+    }
+    logRateLimit();
+    setPr(github.pullRequest(config.repository(), pullRequestNumber));
+    LOG.info("Starting analysis of pull request: " + pr.htmlUrl());
+    setAnalyzedSha(pullRequestNumber, analyzedSha(checkedOutSha));
+    if (!analyzedSha.equals(pr.headSha())) {
+      // Taking the lease would stop the analysis of the head from publishing
+      LOG.info("Analyzed commit " + analyzedSha + " is not the head " + pr.headSha() + " of the pull request, results will not be published");
+    } else if (acquireLease) {
+      lease = PullRequestLease.forPullRequest(config.endpoint(), config.repository(), pullRequestNumber, projectTag());
+      lease.acquire(analyzedSha);
+    }
+    journal = PublicationJournal.forPullRequest(config.endpoint(), config.repository(), pullRequestNumber, projectTag(), analyzedSha);
+  }
+
+  /**
+   * The checkout of the test merge of the pull request, done by some CIs, is an analysis of its head
+   */
+  private String analyzedSha(@Nullable String checkedOutSha) {
+    if (checkedOutSha == null || checkedOutSha.equals(pr.mergeCommitSha())) {
+      return pr.headSha();
+    }
+    return checkedOutSha;
+  }
+
+  @CheckForNull
+  private String selectToken(int pullRequestNumber) throws IOException {
+    List<String> tokens = config.oauthTokens();
+    if (tokens.size() <= 1) {
+      return config.singleOauthToken();
+    }
+    GitHubTokenPool pool = GitHubTokenPool.of(config, this::newClient);
+    String selected = pool.select(config.repository(), pullRequestNumber);
+    if (!selected.equals(pool.pinned(config.repository(), pullRequestNumber))) {
+      LOG.warn("Only the commit status is published, comments of the pull request can only be written by the account of its pinned GitHub token");
+      statusOnly = true;
+    }
+    return selected;
+  }
+
+  private GitHubClient newClient(@Nullable String token) {
+    HttpConnector connector = HttpConnector.DEFAULT;
+    if (config.hostCallsPerMinute() > 0) {
+      hostRateLimiter = HostRateLimiter.forEndpoint(config.endpoint(), config.hostCallsPerMinute());
+      connector = hostRateLimiter;
+    }
+    return new GitHubClient(config.endpoint(), token, connector);
+  }
+
+  void setGitHub(GitHubClient github) {
+    this.github = github;
+  }
+
+  void setPr(GitHubClient.PullRequest pr) {
+    this.pr = pr;
+  }
+
+  void setMyself(String myself) {
+    this.myself = myself;
+  }
+
+  void setAnalyzedSha(int pullRequestNumber, String analyzedSha) {
+    this.pullRequestNumber = pullRequestNumber;
+    this.analyzedSha = analyzedSha;
+  }
+
+  @Override
+  @CheckForNull
+  public String analyzedSha() {
+    return analyzedSha;
+  }
+
+  void setLease(PullRequestLease lease) {
+    this.lease = lease;
+  }
+
+  void setJournal(PublicationJournal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Load all previous comments made by provided github account.
+   */
+  void loadExistingReviewComments() throws IOException {
+    for (GitHubClient.Comment comment : github.listReviewComments(pr.repository(), pr.number())) {
+      if (!isOwned(comment.login(), comment.body())) {
+        // Ignore comments from other users, or of other projects
+        continue;
+      }
+      existingReviewCommentsById.put(comment.id(), comment);
+    }
+  }
+
+  /**
+   * GitHub expect review comments to be added on "patch lines" (aka position) but not on file lines.
+   * So we have to iterate over each patch and compute corresponding file line in order to later map issues to the correct position.
+   * Files are fetched page by page, and each patch is indexed and then discarded, so that only the compact index is kept.
+   * @return Index File path -> Line -> Position
+   */
+  private PatchPositionIndex mapPatchPositionsToLines() throws IOException {
+    PatchPositionIndex index = new PatchPositionIndex();
+    github.listFiles(pr.repository(), pr.number(), (path, patch) -> {
+      index.addFile(path);
+      if (config.tryReportIssuesInline() && patch != null) {
+        PullRequestFacade.processPatch(PullRequestFacade.indexer(index), patch);
+      }
+    });
+    return index;
+  }
+
+  /**
+   * @return key of the project when comments and status are scoped by project, so that analyses of several projects can publish
+   * on the same pull request, or null
+   */
+  @CheckForNull
+  private String projectTag() {
+    return projectTag(config);
+  }
+
+  @CheckForNull
+  private static String projectTag(GitHubPluginConfiguration config) {
+    return config.scopeByProject() ? config.projectKey() : null;
+  }
+
+  private static String projectTagComment(@Nullable String projectTag) {
+    return projectTag == null ? "" : ("\n\n<!-- " + PROJECT_TAG_PREFIX + projectTag + " -->");
+  }
+
+  /**
+   * @return room to keep at the end of a review comment for the project tag
+   */
+  static int reservedCommentSize(GitHubPluginConfiguration config) {
+    return MarkdownWriter.utf8Size(projectTagComment(projectTag(config)));
+  }
+
+  /**
+   * @return room to keep at the end of the summary for the project tag, and the largest note that may be added to it
+   */
+  static int reservedSummarySize(GitHubPluginConfiguration config) {
+    int noteSize = MarkdownWriter.utf8Size(SUMMARY_ONLY_NOTE);
+    if (config.publishTimeoutMs() > 0) {
+      noteSize = Math.max(noteSize, MarkdownWriter.utf8Size(partialPublicationNote(config.publishTimeoutMs())));
+    }
+    return reservedCommentSize(config) + noteSize;
+  }
+
+  String commitContext() {
+    String projectTag = projectTag();
+    return projectTag == null ? COMMIT_CONTEXT : (COMMIT_CONTEXT + "/" + projectTag);
+  }
+
+  /**
+   * Comments are owned by an analysis when they were written by the same account, for the same project
+   */
+  private boolean isOwned(@Nullable String login, @Nullable String body) {
+    return myself.equals(login) && Objects.equals(projectTag(), projectTagOf(body));
+  }
+
+  @CheckForNull
+  static String projectTagOf(@Nullable String body) {
+    if (body == null) {
+      return null;
+    }
+    Matcher matcher = PROJECT_TAG_PATTERN.matcher(body);
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
+  /**
+   * Project is written in a hidden HTML comment at the end of each comment body, after the note added to the summary if any
+   */
+  private PullRequestState tagged(PullRequestState desired, @Nullable String summaryNote) {
+    String projectTag = projectTag();
+    if (projectTag == null && summaryNote == null) {
+      return desired;
+    }
+    String tag = projectTagComment(projectTag);
+    PullRequestState tagged = new PullRequestState();
+    for (PullRequestState.Comment comment : desired.reviewComments()) {
+      tagged.addReviewComment(comment.id(), comment.path(), comment.position(), comment.body() + tag, comment.severe());
+    }
+    String note = summaryNote;
+    for (PullRequestState.Comment comment : desired.globalComments()) {
+      tagged.addGlobalComment(comment.id(), comment.body() + (note != null ? note : "") + tag);
+      note = null;
+    }
+    PullRequestState.Status status = desired.status();
+    if (status != null) {
+      tagged.setStatus(status.state(), status.description(), status.targetUrl());
+    }
+    return tagged;
+  }
+
+  /**
+   * In dry run mode, the operations are only logged.
+   */
+  @Override
+  public void publish(PullRequestState desired) {
+    publishDifferences(desired, null);
+  }
+
+  /**
+   * Review comments are planned and published file by file as they are rendered, once the status and the summary are published.
+   * When the rate limit might not allow to publish all of them, and in dry run mode, they are all rendered first to plan the
+   * publication as a whole.
+   */
+  @Override
+  public void publish(PullRequestState desired, ReviewCommentQueue reviewComments) {
+    reviewComments.start();
+    try {
+      publishDifferences(desired, reviewComments);
+    } finally {
+      reviewComments.abort();
+    }
+  }
+
+  private void publishDifferences(PullRequestState desired, @Nullable ReviewCommentQueue reviewComments) {
+    PublicationDeadline deadline = PublicationDeadline.of(config.publishTimeoutMs());
+    // No call outlasts the publication, even the ones made to read the state of the pull request
+    github.setDeadline(deadline.endOfNote());
+    try {
+      PullRequestState remote;
+      int remainingCalls;
+      int readCalls;
+      try {
+        int callsBefore = github.calls();
+        remainingCalls = runInOrder(Phase.STATUS, deadline.endOf(Phase.STATUS), this::remainingCalls);
+        remote = runInOrder(Phase.STATUS, deadline.endOf(Phase.STATUS), this::readRemoteState);
+        readCalls = github.calls() - callsBefore;
+      } catch (DeadlineReachedException e) {
+        LOG.warn("State of the pull request could not be read from GitHub within the deadline of " + (deadline.budgetMs() / 1000)
+          + "s, results are not published");
+        return;
+      } catch (IllegalStateException e) {
+        // Like a failure to publish, a failure to read what is published never fails the analysis
+        String cause = e.getCause() != null ? (": " + e.getCause().getMessage()) : "";
+        LOG.warn("State of the pull request could not be read from GitHub, results are not published. " + e.getMessage() + cause);
+        LOG.debug("Failure to read the state of the pull request", e);
+        return;
+      }
+      if (remote == null) {
+        return;
+      }
+      // Remaining calls were read before the state of the pull request, whose pages are counted with the checks of its head
+      int overheadCalls = readCalls + (analyzedSha != null ? STALE_CHECKS_DURING_EXECUTION : 0);
+      PublicationPlan fullPlan = plan(desired, remote, null);
+      // Without review comments, the plan deletes all the remote ones: each rendered comment adds at most one call
+      boolean asRendered = reviewComments != null && !config.dryRun() && !isStatusOnly()
+        && fullPlan.requiredCalls() + reviewComments.size() + overheadCalls <= remainingCalls;
+      PublicationPlan plan;
+      if (asRendered) {
+        LOG.debug("GitHub rate limit: " + remainingCalls + " calls remaining, at most " + (fullPlan.requiredCalls() + reviewComments.size() + overheadCalls)
+          + " needed");
+        plan = fullPlan.restrictTo(EnumSet.of(Target.GLOBAL_COMMENT, Target.STATUS));
+      } else {
+        if (reviewComments != null) {
+          desired = reviewComments.drainInto(desired);
+          fullPlan = plan(desired, remote, null);
+        }
+        plan = PublicationPlanner.fitRateLimit(fullPlan, remainingCalls, overheadCalls);
+        if (plan.requiredCalls(Target.REVIEW_COMMENT) == 0 && fullPlan.requiredCalls(Target.REVIEW_COMMENT) > 0 && plan.requiredCalls(Target.GLOBAL_COMMENT) > 0) {
+          // Review comments are left as they are, the summary must not tell that they are up to date
+          plan = PublicationPlanner.fitRateLimit(plan(desired, remote, SUMMARY_ONLY_NOTE).restrictTo(EnumSet.of(Target.GLOBAL_COMMENT, Target.STATUS)),
+            remainingCalls, overheadCalls);
+        }
+      }
+      if (config.dryRun()) {
+        LOG.info("Dry run, nothing is published on GitHub. Publication plan: " + plan);
+        return;
+      }
+      LOG.info("Publishing on GitHub: " + plan.summary() + (asRendered ? (", and " + reviewComments.size() + " review comments as they are rendered") : ""));
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Publication plan: " + plan);
+      }
+      boolean complete;
+      try {
+        complete = asRendered ? execute(plan, deadline, reviewComments, remote) : execute(plan, deadline);
+      } catch (IllegalStateException e) {
+        // Operations done so far are journaled, the next analysis of the commit publishes the others
+        LOG.warn("Results are partially published on GitHub: " + e.getMessage());
+        LOG.debug("Publication failure", e);
+        complete = false;
+      }
+      if (complete && (asRendered || plan == fullPlan) && journal != null) {
+        journal.delete();
+      }
+    } finally {
+      github.setDeadline(Long.MAX_VALUE);
+      if (journal != null) {
+        journal.close();
+      }
+      if (lease != null) {
+        lease.release();
+      }
+    }
+  }
+
+  private boolean isStatusOnly() {
+    return config.publishMode() == PublishMode.STATUS_ONLY || statusOnly;
+  }
+
+  /**
+   * @return state of the pull request on GitHub, null when results of this analysis are stale
+   */
+  @CheckForNull
+  private PullRequestState readRemoteState() {
+    if (isStale()) {
+      return null;
+    }
+    return isStatusOnly() ? remoteStatus() : remoteState();
+  }
+
+  private PublicationPlan plan(PullRequestState desired, PullRequestState remote, @Nullable String summaryNote) {
+    return isStatusOnly()
+      ? PublicationPlanner.plan(desired, remote).restrictTo(EnumSet.of(Target.STATUS))
+      : PublicationPlanner.plan(tagged(PublicationPlanner.mergeReviewComments(desired, reservedCommentSize(config)), summaryNote), remote);
+  }
+
+  /**
+   * Upload the SARIF report of the analysis to GitHub code scanning, for the head of the pull request. In dry run mode, it is only logged.
+   */
+  public void uploadCodeScanning(Path sarif) {
+    if (config.dryRun()) {
+      LOG.info("Dry run, SARIF report " + sarif + " is not uploaded to GitHub code scanning");
+      return;
+    }
+    if (isStale()) {
+      return;
+    }
+    try {
+      CodeScanningUpload.upload(hostRateLimiter != null ? hostRateLimiter : HttpConnector.DEFAULT, config.endpoint(), config.repository(), token, analyzedSha,
+        "refs/pull/" + pullRequestNumber + "/head", sarif);
+      LOG.info("SARIF report uploaded to GitHub code scanning");
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to upload SARIF report to GitHub code scanning", e);
+    }
+  }
+
+  private void logRateLimit() {
+    int remaining = remainingCalls();
+    if (remaining == Integer.MAX_VALUE) {
+      return;
+    }
+    if (remaining == 0) {
+      LOG.warn("GitHub rate limit is exhausted, calls to GitHub will fail until it is reset");
+    } else {
+      LOG.info("GitHub rate limit: " + remaining + " calls remaining");
+    }
+  }
+
+  /**
+   * Querying the rate limit does not count against it.
+   * @return remaining WS calls, {@link Integer#MAX_VALUE} when unknown (for example when rate limiting is disabled on GitHub Enterprise)
+   */
+  int remainingCalls() {
+    if (github == null) {
+      return Integer.MAX_VALUE;
+    }
+    try {
+      return github.rateLimit().remaining();
+    } catch (IOException e) {
+      LOG.debug("Unable to get GitHub rate limit", e);
+      return Integer.MAX_VALUE;
+    }
+  }
+
+  /**
+   * Results of this analysis are stale when a newer commit was pushed to the pull request, or when a newer analysis
+   * of the pull request started on this machine. They should not be published, so that they don't overwrite newer ones.
+   */
+  boolean isStale() {
+    String headSha = null;
+    if (analyzedSha != null) {
+      try {
+        headSha = github.pullRequest(pr.repository(), pullRequestNumber).headSha();
+      } catch (IOException e) {
+        LOG.warn("Unable to check the head of the pull request: " + e.getMessage());
+      }
+    }
+    if (headSha != null && !headSha.equals(analyzedSha)) {
+      LOG.info("Head of the pull request moved from " + analyzedSha + " to " + headSha + ", results of this analysis are not published");
+      return true;
+    }
+    return lease != null && lease.isTakenOver(headSha);
+  }
+
+  /**
+   * State of the pull request on GitHub, as far as the plugin is concerned: review and global comments of the GitHub account, and
+   * commit status with the SonarQube context. Operations journaled by a previous analysis of the same commit are applied, since
+   * GitHub may not list them yet.
+   */
+  PullRequestState remoteState() {
+    PullRequestState remote = new PullRequestState();
+    for (GitHubClient.Comment comment : existingReviewCommentsById.values()) {
+      if (isJournaledDeleted(Target.REVIEW_COMMENT, comment.id())) {
+        continue;
+      }
+      Integer position = comment.position();
+      String body = journal != null ? journal.body(comment.id(), comment.body()) : comment.body();
+      remote.addReviewComment(comment.id(), comment.path(), position == null ? -1 : position, body);
+    }
+    existingGlobalCommentsById.clear();
+    try {
+      for (GitHubClient.Comment comment : github.listIssueComments(pr.repository(), pr.number())) {
+        if (isOwned(comment.login(), comment.body()) && !isJournaledDeleted(Target.GLOBAL_COMMENT, comment.id())) {
+          existingGlobalCommentsById.put(comment.id(), comment);
+          remote.addGlobalComment(comment.id(), journal != null ? journal.body(comment.id(), comment.body()) : comment.body());
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read the pull request comments", e);
+    }
+    if (journal != null) {
+      for (PullRequestState.Comment comment : journal.created(Target.REVIEW_COMMENT)) {
+        if (!existingReviewCommentsById.containsKey(comment.id()) && !journal.isDeleted(Target.REVIEW_COMMENT, comment.id())) {
+          remote.addReviewComment(comment.id(), comment.path(), comment.position(), journal.body(comment.id(), comment.body()));
+        }
+      }
+      for (PullRequestState.Comment comment : journal.created(Target.GLOBAL_COMMENT)) {
+        if (!existingGlobalCommentsById.containsKey(comment.id()) && !journal.isDeleted(Target.GLOBAL_COMMENT, comment.id())) {
+          remote.addGlobalComment(comment.id(), journal.body(comment.id(), comment.body()));
+        }
+      }
+    }
+    addRemoteStatus(remote);
+    return remote;
+  }
+
+  private boolean isJournaledDeleted(Target target, long id) {
+    return journal != null && journal.isDeleted(target, id);
+  }
+
+  /**
+   * State of the pull request on GitHub limited to the commit status, comments being left untouched
+   */
+  private PullRequestState remoteStatus() {
+    PullRequestState remote = new PullRequestState();
+    addRemoteStatus(remote);
+    return remote;
+  }
+
+  private void addRemoteStatus(PullRequestState remote) {
+    GitHubClient.CommitStatus lastStatus = getCommitStatusForContext(commitContext());
+    if (lastStatus != null) {
+      remote.setStatus(lastStatus.state(), lastStatus.description(), lastStatus.targetUrl());
+    }
+  }
+
+  @Override
+  public void publishStatus(CommitState status, String statusDescription) {
+    PublicationPlan plan = PublicationPlanner.plan(new PullRequestState().setStatus(status, statusDescription, null), remoteStatus());
+    if (config.dryRun()) {
+      LOG.info("Dry run, nothing is published on GitHub. Publication plan: " + plan);
+      return;
+    }
+    executeStatus(plan);
+  }
+
+  /**
+   * Execute the plan phase by phase, the most valuable first: status, summary, review comments of blocker and critical issues, other
+   * review comments, and deletion of outdated review comments. Execution stops between two phases when results of this analysis
+   * become stale, and when a phase does not end within its share of the deadline.
+   * @return true when all operations of the plan were executed
+   */
+  boolean execute(PublicationPlan plan, PublicationDeadline deadline) {
+    return execute(plan, deadline, null, null);
+  }
+
+  /**
+   * @param reviewComments review comments still being rendered, null when they are part of the plan
+   * @param remote state of the pull request the rendered review comments are compared with
+   */
+  private boolean execute(PublicationPlan plan, PublicationDeadline deadline, @Nullable ReviewCommentQueue reviewComments, @Nullable PullRequestState remote) {
+    summaryComment = null;
+    try {
+      runInOrder(Phase.STATUS, deadline.endOf(Phase.STATUS), () -> {
+        executeStatus(plan);
+        return true;
+      });
+      boolean complete = runInOrder(Phase.SUMMARY, deadline.endOf(Phase.SUMMARY), () -> executeGlobalComments(plan));
+      if (runInOrder(Phase.SEVERE_COMMENTS, deadline.endOf(Phase.SEVERE_COMMENTS), this::isStale)) {
+        return false;
+      }
+
+      PublicationPlan deletions = plan;
+      if (reviewComments == null) {
+        complete &= runAll(Phase.SEVERE_COMMENTS, deadline.endOf(Phase.SEVERE_COMMENTS), "create or update", "review comments of severe issues",
+          reviewCommentPublications(plan, true));
+        complete &= runAll(Phase.OTHER_COMMENTS, deadline.endOf(Phase.OTHER_COMMENTS), "create or update", "review comments",
+          reviewCommentPublications(plan, false));
+      } else {
+        deletions = new PublicationPlan();
+        complete &= publishAsRendered(reviewComments, Objects.requireNonNull(remote), deletions, deadline);
+      }
+      if (runInOrder(Phase.CLEANUP, deadline.endOf(Phase.CLEANUP), this::isStale)) {
+        return false;
+      }
+
+      // Outdated comments are deleted once new ones are published, so that the pull request always displays the issues
+      complete &= runAll(Phase.CLEANUP, deadline.endOf(Phase.CLEANUP), "delete", "outdated review comments", reviewCommentDeletions(deletions));
+      return complete;
+    } catch (DeadlineReachedException e) {
+      LOG.warn("Publication on GitHub did not end within " + (deadline.budgetMs() / 1000) + "s, it was stopped during phase " + e.phase
+        + ": results are partially published");
+      addPartialPublicationNote(deadline);
+      return false;
+    }
+  }
+
+  /**
+   * Thrown when a phase of the publication does not end within its share of the deadline
+   */
+  private static class DeadlineReachedException extends Exception {
+    private final Phase phase;
+
+    DeadlineReachedException(Phase phase) {
+      super("Deadline reached during phase " + phase);
+      this.phase = phase;
+    }
+  }
+
+  /**
+   * Plan and publish the review comments file by file, as they are rendered, the ones of severe issues first. Remote review comments
+   * matching none of them are outdated: they are added to the deletions, which wait for all the comments to be published.
+   * @return true when all operations were executed
+   */
+  private boolean publishAsRendered(ReviewCommentQueue reviewComments, PullRequestState remote, PublicationPlan deletions, PublicationDeadline deadline)
+    throws DeadlineReachedException {
+    Map<String, PullRequestState> remoteByPath = new HashMap<>();
+    for (PullRequestState.Comment comment : remote.reviewComments()) {
+      remoteByPath.computeIfAbsent(comment.path(), path -> new PullRequestState()).addReviewComment(comment.id(), comment.path(), comment.position(), comment.body());
+    }
+    Set<Long> kept = new HashSet<>();
+    boolean complete = true;
+    Phase phase = Phase.SEVERE_COMMENTS;
+    try (ParallelCalls calls = new ParallelCalls(Math.max(1, config.publishThreads()))) {
+      List<PullRequestState.Comment> commentsOfFile;
+      while ((commentsOfFile = nextRenderedFile(reviewComments, phase, deadline)) != null) {
+        boolean severe = commentsOfFile.get(0).severe();
+        if (phase == Phase.SEVERE_COMMENTS && !severe) {
+          complete &= calls.awaitAll(phase, deadline.endOf(phase), "create or update", "review comments of severe issues");
+          phase = Phase.OTHER_COMMENTS;
+        }
+        PullRequestState desiredOfFile = new PullRequestState();
+        for (PullRequestState.Comment comment : commentsOfFile) {
+          desiredOfFile.addReviewComment(null, comment.path(), comment.position(), comment.body(), comment.severe());
+        }
+        PullRequestState remoteOfFile = remoteByPath.get(commentsOfFile.get(0).path());
+        PublicationPlan planOfFile = plan(desiredOfFile, remoteOfFile != null ? remoteOfFile : new PullRequestState(), null);
+        for (Operation operation : planOfFile.operations()) {
+          if (operation.action() == Action.NOOP || operation.action() == Action.UPDATE) {
+            kept.add(operation.remoteId());
+          }
+        }
+        reviewCommentPublications(planOfFile, severe).forEach(calls::submit);
+      }
+      complete &= calls.awaitAll(phase, deadline.endOf(phase), "create or update",
+        phase == Phase.SEVERE_COMMENTS ? "review comments of severe issues" : "review comments");
+    }
+    for (PullRequestState.Comment comment : remote.reviewComments()) {
+      if (!kept.contains(comment.id())) {
+        deletions.add(Operation.reviewComment(Action.DELETE, comment.id(), comment.path(), comment.position(), null));
+      }
+    }
+    return complete;
+  }
+
+  @CheckForNull
+  private static List<PullRequestState.Comment> nextRenderedFile(ReviewCommentQueue reviewComments, Phase phase, PublicationDeadline deadline)
+    throws DeadlineReachedException {
+    try {
+      return reviewComments.take(deadline.endOf(phase));
+    } catch (TimeoutException e) {
+      throw new DeadlineReachedException(phase);
+    }
+  }
+
+  private Map<String, Callable<Void>> reviewCommentPublications(PublicationPlan plan, boolean severe) {
+    Map<String, Callable<Void>> publications = new LinkedHashMap<>();
+    for (Operation operation : plan.operations(Target.REVIEW_COMMENT, Action.CREATE)) {
+      if (operation.severe() != severe) {
+        continue;
+      }
+      publications.put(operation.path() + " at position " + operation.position(), () -> {
+        GitHubClient.Comment created = github.createReviewComment(pr.repository(), pr.number(), operation.body(), pr.headSha(), operation.path(),
+          operation.position());
+        if (journal != null) {
+          journal.created(Target.REVIEW_COMMENT, created.id(), operation.path(), operation.position(), operation.body());
+        }
+        return null;
+      });
+    }
+    for (Operation operation : plan.operations(Target.REVIEW_COMMENT, Action.UPDATE)) {
+      if (operation.severe() != severe) {
+        continue;
+      }
+      GitHubClient.Comment comment = existingReviewCommentsById.get(operation.remoteId());
+      if (comment == null) {
+        publications.put(operation.path() + " at position " + operation.position(), () -> notListedYet(operation));
+        continue;
+      }
+      publications.put(operation.path() + " at position " + operation.position(), () -> {
+        github.updateReviewComment(pr.repository(), comment.id(), operation.body());
+        if (journal != null) {
+          journal.updated(operation.remoteId(), operation.body());
+        }
+        return null;
+      });
+    }
+    return publications;
+  }
+
+  private Map<String, Callable<Void>> reviewCommentDeletions(PublicationPlan plan) {
+    Map<String, Callable<Void>> deletions = new LinkedHashMap<>();
+    for (Operation operation : plan.operations(Target.REVIEW_COMMENT, Action.DELETE)) {
+      GitHubClient.Comment comment = existingReviewCommentsById.get(operation.remoteId());
+      if (comment == null) {
+        deletions.put(String.valueOf(operation.remoteId()), () -> notListedYet(operation));
+        continue;
+      }
+      deletions.put(String.valueOf(operation.remoteId()), () -> {
+        github.deleteReviewComment(pr.repository(), comment.id());
+        if (journal != null) {
+          journal.deleted(Target.REVIEW_COMMENT, operation.remoteId());
+        }
+        return null;
+      });
+    }
+    return deletions;
+  }
+
+  /**
+   * Comments known only from the journal can't be updated or deleted until GitHub lists them, which is left to the next analysis.
+   */
+  private static Void notListedYet(Operation operation) throws NotListedYetException {
+    throw new NotListedYetException(operation);
+  }
+
+  private static class NotListedYetException extends Exception {
+    NotListedYetException(Operation operation) {
+      super("Comment " + operation.remoteId() + " created by a previous analysis is not listed by GitHub yet, it is left unchanged");
+    }
+  }
+
+  /**
+   * Run the WS calls of a phase in parallel. All of them are attempted even if some fail, unless the phase does not end in time.
+   * @return false when some calls were left to the next analysis
+   */
+  private boolean runAll(Phase phase, long endMs, String action, String items, Map<String, Callable<Void>> callsByItem) throws DeadlineReachedException {
+    if (callsByItem.isEmpty()) {
+      return true;
+    }
+    try (ParallelCalls calls = new ParallelCalls(Math.max(1, Math.min(config.publishThreads(), callsByItem.size())))) {
+      callsByItem.forEach(calls::submit);
+      return calls.awaitAll(phase, endMs, action, items);
+    }
+  }
+
+  /**
+   * WS calls run in parallel as soon as they are submitted
+   */
+  private static class ParallelCalls implements AutoCloseable {
+    private final ExecutorService executor;
+    private final Map<String, Future<Void>> futureByItem = new LinkedHashMap<>();
+
+    ParallelCalls(int threads) {
+      this.executor = newExecutor(threads);
+    }
+
+    void submit(String item, Callable<Void> call) {
+      futureByItem.put(item, executor.submit(call));
+    }
+
+    /**
+     * Wait for the calls submitted so far, see {@link #runAll}
+     */
+    boolean awaitAll(Phase phase, long endMs, String action, String items) throws DeadlineReachedException {
+      boolean complete = true;
+      Map<String, Throwable> failureByItem = new LinkedHashMap<>();
+      for (Map.Entry<String, Future<Void>> future : futureByItem.entrySet()) {
+        try {
+          await(future.getValue(), phase, endMs);
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof NotListedYetException) {
+            LOG.info(e.getCause().getMessage());
+            complete = false;
+            continue;
+          }
+          failureByItem.put(future.getKey(), e.getCause());
+        }
+      }
+      int count = futureByItem.size();
+      futureByItem.clear();
+      if (!failureByItem.isEmpty()) {
+        throw publicationFailure(action, items, failureByItem, count);
+      }
+      return complete;
+    }
+
+    @Override
+    public void close() {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Run the WS calls of a phase that must be done one after the other. They are run by another thread, so that the phase can be
+   * abandoned when it does not end in time.
+   * @return result of the calls
+   */
+  private <T> T runInOrder(Phase phase, long endMs, Callable<T> calls) throws DeadlineReachedException {
+    ExecutorService executor = newExecutor(1);
+    try {
+      return await(executor.submit(calls), phase, endMs);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Calls still running at the end of the phase are interrupted. Their threads are daemons, so they never hold the analysis.
+   */
+  private static <T> T await(Future<T> future, Phase phase, long endMs) throws ExecutionException, DeadlineReachedException {
+    try {
+      if (endMs == Long.MAX_VALUE) {
+        return future.get();
+      }
+      return future.get(Math.max(0L, endMs - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while publishing on GitHub", e);
+    } catch (TimeoutException e) {
+      throw new DeadlineReachedException(phase);
+    }
+  }
+
+  private static IllegalStateException publicationFailure(String action, String items, Map<String, Throwable> failureByItem, int count) {
+    List<String> failures = new ArrayList<>(failureByItem.size());
+    for (Map.Entry<String, Throwable> failure : failureByItem.entrySet()) {
+      LOG.debug("Unable to " + action + " " + failure.getKey(), failure.getValue());
+      failures.add(failure.getKey() + " (" + failure.getValue().getMessage() + ")");
+    }
+    return new IllegalStateException("Unable to " + action + " " + failureByItem.size() + " of " + count + " " + items + ": "
+      + String.join(", ", failures), failureByItem.values().iterator().next());
+  }
+
+  static ExecutorService newExecutor(int threads) {
+    AtomicInteger count = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, r -> {
+      Thread thread = new Thread(r, "github-publisher-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Global comments are published one after the other, since their order matters. The first one, which starts the summary, is kept
+   * to tell when results are partially published.
+   * @return true when all operations were executed
+   */
+  private boolean executeGlobalComments(PublicationPlan plan) {
+    boolean complete = true;
+    try {
+      for (Operation operation : plan.operations(Target.GLOBAL_COMMENT, Action.NOOP)) {
+        if (summaryComment == null) {
+          summaryComment = existingGlobalCommentsById.get(operation.remoteId());
+        }
+      }
+      for (Operation operation : plan.operations(Target.GLOBAL_COMMENT, Action.DELETE)) {
+        GitHubClient.Comment comment = existingGlobalCommentsById.get(operation.remoteId());
+        if (comment == null) {
+          LOG.info(new NotListedYetException(operation).getMessage());
+          complete = false;
+          continue;
+        }
+        github.deleteIssueComment(pr.repository(), comment.id());
+        if (journal != null) {
+          journal.deleted(Target.GLOBAL_COMMENT, operation.remoteId());
+        }
+      }
+      for (Operation operation : plan.operations(Target.GLOBAL_COMMENT, Action.CREATE)) {
+        GitHubClient.Comment created = github.createIssueComment(pr.repository(), pr.number(), operation.body());
+        if (journal != null) {
+          journal.created(Target.GLOBAL_COMMENT, created.id(), null, -1, operation.body());
+        }
+        if (summaryComment == null) {
+          summaryComment = created;
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to update the pull request comments", e);
+    }
+    return complete;
+  }
+
+  static String partialPublicationNote(long budgetMs) {
+    return "\n\n:warning: Results are partially published: the publication on GitHub did not end within " + (budgetMs / 1000) + "s.";
+  }
+
+  /**
+   * The note is written in the summary, before the project tag which must stay at the end of the comment
+   */
+  private void addPartialPublicationNote(PublicationDeadline deadline) {
+    GitHubClient.Comment summary = summaryComment;
+    if (summary == null) {
+      return;
+    }
+    String note = partialPublicationNote(deadline.budgetMs());
+    String body = summary.body() != null ? summary.body() : "";
+    int tag = body.lastIndexOf("\n\n<!-- " + PROJECT_TAG_PREFIX);
+    String bodyWithNote = tag < 0 ? (body + note) : (body.substring(0, tag) + note + body.substring(tag));
+    try {
+      runInOrder(Phase.CLEANUP, deadline.endOfNote(), () -> {
+        github.updateIssueComment(pr.repository(), summary.id(), bodyWithNote);
+        if (journal != null) {
+          journal.updated(summary.id(), bodyWithNote);
+        }
+        return true;
+      });
+    } catch (DeadlineReachedException e) {
+      LOG.warn("Unable to tell in the summary that results are partially published, the deadline is reached");
+    } catch (IllegalStateException e) {
+      LOG.warn("Unable to tell in the summary that results are partially published: " + e.getMessage());
+    }
+  }
+
+  private void executeStatus(PublicationPlan plan) {
+    for (Operation operation : plan.operations(Target.STATUS, Action.CREATE)) {
+      PullRequestState.Status status = operation.status();
+      try {
+        github.createCommitStatus(pr.repository(), pr.headSha(), status.state(), status.targetUrl(), status.description(), commitContext());
+      } catch (FileNotFoundException e) {
+        String msg = "Unable to set pull request status. GitHub account probably miss push permission on the repository.";
+        if (LOG.isDebugEnabled()) {
+          LOG.warn(msg, e);
+        } else {
+          LOG.warn(msg);
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to update commit status", e);
+      }
+    }
+  }
+
+  @Override
+  public String fileUrl(String path, @Nullable Integer line) {
+    return pr.repositoryHtmlUrl() + "/blob/" + pr.headSha() + "/" + path + (line != null ? ("#L" + line) : "");
+  }
+
+  @CheckForNull
+  GitHubClient.CommitStatus getCommitStatusForContext(String context) {
+    List<GitHubClient.CommitStatus> statuses;
+    try {
+      statuses = github.listCommitStatuses(pr.repository(), pr.headSha());
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to retrieve commit statuses.", e);
+    }
+    for (GitHubClient.CommitStatus status : statuses) {
+      if (context.equals(status.context())) {
+        return status;
+      }
+    }
+    return null;
+  }
+}
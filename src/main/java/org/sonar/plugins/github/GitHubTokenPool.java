@@ -0,0 +1,166 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Pool of OAuth tokens used to spread the GitHub WS calls of many analyses over several accounts.
+ * All the comments of a pull request must be written by the same account, so that a new analysis can update or delete
+ * the comments of the previous ones. So each pull request is pinned to a token of the pool, which doesn't change when other
+ * tokens are added to or removed from the pool, and another token is only used when the pinned one is exhausted, in which
+ * case the token with the most remaining calls is selected, and only the commit status should be published with it.
+ */
+class GitHubTokenPool {
+
+  private static final Logger LOG = Loggers.get(GitHubTokenPool.class);
+
+  /**
+   * Shared by the analyses running in the same process, so that exhausted tokens are not queried again until they are reset.
+   */
+  private static final Map<String, Long> EXHAUSTED_UNTIL = new ConcurrentHashMap<>();
+
+  interface Connector {
+    GitHubClient connect(String token) throws IOException;
+  }
+
+  private final List<String> tokens;
+  private final Connector connector;
+  private final Map<String, Long> exhaustedUntil;
+  private final System2 system;
+
+  GitHubTokenPool(List<String> tokens, Connector connector, Map<String, Long> exhaustedUntil, System2 system) {
+    if (tokens.isEmpty()) {
+      throw new IllegalArgumentException("Pool of GitHub tokens is empty");
+    }
+    this.tokens = new ArrayList<>(tokens);
+    this.connector = connector;
+    this.exhaustedUntil = exhaustedUntil;
+    this.system = system;
+  }
+
+  static GitHubTokenPool of(GitHubPluginConfiguration config, Connector connector) {
+    return new GitHubTokenPool(config.oauthTokens(), connector, EXHAUSTED_UNTIL, System2.INSTANCE);
+  }
+
+  /**
+   * The pull request is pinned to the token with the highest weight for it, so that adding a token to the pool only moves
+   * the pull requests pinned to the new token, and removing a token only moves the ones pinned to it.
+   */
+  int pinnedIndex(String repository, int pullRequestNumber) {
+    String pullRequest = repository + "#" + pullRequestNumber;
+    int pinned = 0;
+    long pinnedWeight = Long.MIN_VALUE;
+    for (int i = 0; i < tokens.size(); i++) {
+      long weight = weight(pullRequest, tokens.get(i));
+      if (weight > pinnedWeight) {
+        pinned = i;
+        pinnedWeight = weight;
+      }
+    }
+    return pinned;
+  }
+
+  private static long weight(String pullRequest, String token) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest((pullRequest + "\n" + token).getBytes(StandardCharsets.UTF_8));
+      return ByteBuffer.wrap(digest).getLong();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  String pinned(String repository, int pullRequestNumber) {
+    return tokens.get(pinnedIndex(repository, pullRequestNumber));
+  }
+
+  /**
+   * @return token pinned to the pull request, or the token having the most remaining calls when the pinned one is exhausted
+   */
+  String select(String repository, int pullRequestNumber) throws IOException {
+    String pinned = pinned(repository, pullRequestNumber);
+    if (tokens.size() == 1) {
+      return pinned;
+    }
+    if (!isExhausted(pinned) && remainingCalls(pinned, connector.connect(pinned)) > 0) {
+      return pinned;
+    }
+    String best = null;
+    int bestRemaining = 0;
+    for (String token : tokens) {
+      if (token.equals(pinned) || isExhausted(token)) {
+        continue;
+      }
+      GitHubClient client = connector.connect(token);
+      int remaining = remainingCalls(token, client);
+      if (remaining > bestRemaining) {
+        best = token;
+        bestRemaining = remaining;
+      }
+    }
+    if (best == null) {
+      LOG.warn("All the GitHub tokens of the pool are exhausted, calls to GitHub will fail until they are reset");
+      return pinned;
+    }
+    LOG.warn("GitHub token used for this pull request is exhausted, using another token of the pool");
+    return best;
+  }
+
+  private boolean isExhausted(String token) {
+    Long until = exhaustedUntil.get(token);
+    if (until == null) {
+      return false;
+    }
+    if (until <= system.now()) {
+      exhaustedUntil.remove(token);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Querying the rate limit does not count against it.
+   */
+  private int remainingCalls(String token, GitHubClient client) {
+    GitHubClient.RateLimit rateLimit;
+    try {
+      rateLimit = client.rateLimit();
+    } catch (IOException e) {
+      LOG.debug("Unable to get GitHub rate limit", e);
+      return Integer.MAX_VALUE;
+    }
+    if (rateLimit.remaining() <= 0 && rateLimit.resetAt() > 0) {
+      exhaustedUntil.put(token, rateLimit.resetAt());
+    }
+    return rateLimit.remaining();
+  }
+
+}
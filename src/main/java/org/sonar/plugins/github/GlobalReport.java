@@ -19,9 +19,10 @@
  */
 package org.sonar.plugins.github;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import javax.annotation.Nullable;
-import org.kohsuke.github.GHCommitState;
 import org.sonar.api.batch.postjob.issue.PostJobIssue;
 import org.sonar.api.batch.rule.Severity;
 
@@ -29,8 +30,13 @@ public class GlobalReport {
   private final MarkDownUtils markDownUtils;
   private final boolean tryReportIssuesInline;
   private int[] newIssuesBySeverity = new int[Severity.values().length];
-  private StringBuilder notReportedOnDiff = new StringBuilder();
+  private List<String> notReportedOnDiff = new ArrayList<>();
+  private int notReportedOnDiffSize = 0;
   private int extraIssueCount = 0;
+  private List<String> overInlineCommentLimit = new ArrayList<>();
+  private int overInlineCommentLimitSize = 0;
+  private int overInlineCommentLimitCount = 0;
+  private int maxInlineComments = 0;
   private int maxGlobalReportedIssues;
 
   public GlobalReport(MarkDownUtils markDownUtils, boolean tryReportIssuesInline) {
@@ -47,46 +53,88 @@ public class GlobalReport {
     this.newIssuesBySeverity[severity.ordinal()]++;
   }
 
+  /**
+   * @return the summary in a single comment body, whatever its size
+   */
   public String formatForMarkdown() {
+    return writeMarkdown(new MarkdownWriter(Integer.MAX_VALUE, expectedMarkdownSize(), false, "")).body();
+  }
+
+  /**
+   * @param reservedSize room kept at the end of each body for the text added at publication
+   * @return the summary split in as many comment bodies as needed to not exceed the maximum size of a GitHub comment
+   */
+  public List<String> formatForMarkdownComments(int reservedSize) {
+    return writeMarkdown(MarkdownWriter.splitting(expectedMarkdownSize(), "SonarQube analysis report (continued)\n\n", reservedSize)).bodies();
+  }
+
+  private int expectedMarkdownSize() {
+    // Headers and summary by severity take less than 2 KB
+    return 2048 + notReportedOnDiffSize + overInlineCommentLimitSize;
+  }
+
+  private MarkdownWriter writeMarkdown(MarkdownWriter writer) {
     int newIssues = newIssues(Severity.BLOCKER) + newIssues(Severity.CRITICAL) + newIssues(Severity.MAJOR) + newIssues(Severity.MINOR) + newIssues(Severity.INFO);
     if (newIssues == 0) {
-      return "SonarQube analysis reported no issues.";
+      return writer.append("SonarQube analysis reported no issues.");
     }
-    StringBuilder sb = new StringBuilder();
-    boolean hasInlineIssues = newIssues > extraIssueCount;
+    boolean hasInlineIssues = newIssues > extraIssueCount + overInlineCommentLimitCount;
+    boolean hasOverInlineCommentLimitIssues = overInlineCommentLimitCount > 0;
     boolean extraIssuesTruncated = extraIssueCount > maxGlobalReportedIssues;
-    sb.append("SonarQube analysis reported ").append(newIssues).append(" issue").append(newIssues > 1 ? "s" : "").append("\n");
-    if (hasInlineIssues || extraIssuesTruncated) {
-      printSummaryBySeverityMarkdown(sb);
+    writer.append("SonarQube analysis reported ").append(String.valueOf(newIssues)).append(" issue").append(newIssues > 1 ? "s" : "").append("\n");
+    if (hasInlineIssues || hasOverInlineCommentLimitIssues || extraIssuesTruncated) {
+      printSummaryBySeverityMarkdown(writer);
     }
     if (tryReportIssuesInline && hasInlineIssues) {
-      sb.append("\nWatch the comments in this conversation to review them.\n");
+      writer.append("\nWatch the comments in this conversation to review them.\n");
+    }
+    if (hasOverInlineCommentLimitIssues) {
+      writeOverInlineCommentLimit(writer);
     }
 
     if (extraIssueCount > 0) {
       if (tryReportIssuesInline) {
-        if (hasInlineIssues || extraIssuesTruncated) {
+        if (hasInlineIssues || hasOverInlineCommentLimitIssues || extraIssuesTruncated) {
           int extraCount;
-          sb.append("\n#### ");
+          writer.append("\n#### ");
           if (extraIssueCount <= maxGlobalReportedIssues) {
             extraCount = extraIssueCount;
           } else {
             extraCount = maxGlobalReportedIssues;
-            sb.append("Top ");
+            writer.append("Top ");
           }
-          sb.append(extraCount).append(" extra issue").append(extraCount > 1 ? "s" : "").append("\n");
+          writer.append(String.valueOf(extraCount)).append(" extra issue").append(extraCount > 1 ? "s" : "").append("\n");
         }
-        sb.append(
+        writer.append(
           "\nNote: The following issues were found on lines that were not modified in the pull request. "
             + "Because these issues can't be reported as line comments, they are summarized here:\n");
       } else if (extraIssuesTruncated) {
-        sb.append("\n#### Top ").append(maxGlobalReportedIssues).append(" issues\n");
+        writer.append("\n#### Top ").append(String.valueOf(maxGlobalReportedIssues)).append(" issues\n");
       }
       // Need to add an extra line break for ordered list to be displayed properly
-      sb.append('\n')
-        .append(notReportedOnDiff.toString());
+      writer.append('\n').endEntry();
+      for (String issueEntry : notReportedOnDiff) {
+        writer.append(issueEntry).endEntry();
+      }
+    }
+    return writer;
+  }
+
+  /**
+   * Issues on the diff are listed apart from the ones on lines that were not modified, since they could have been commented inline
+   */
+  private void writeOverInlineCommentLimit(MarkdownWriter writer) {
+    writer.append("\n#### ");
+    if (overInlineCommentLimitCount > maxGlobalReportedIssues) {
+      writer.append("Top ").append(String.valueOf(maxGlobalReportedIssues)).append(" of ");
+    }
+    writer.append(String.valueOf(overInlineCommentLimitCount)).append(" issue").append(overInlineCommentLimitCount > 1 ? "s" : "")
+      .append(" not commented inline, over the limit of ").append(String.valueOf(maxInlineComments)).append(" inline comment")
+      .append(maxInlineComments > 1 ? "s" : "").append("\n");
+    writer.append('\n').endEntry();
+    for (String issueEntry : overInlineCommentLimit) {
+      writer.append(issueEntry).endEntry();
     }
-    return sb.toString();
   }
 
   public String getStatusDescription() {
@@ -95,20 +143,20 @@ public class GlobalReport {
     return sb.toString();
   }
 
-  public GHCommitState getStatus() {
-    return (newIssues(Severity.BLOCKER) > 0 || newIssues(Severity.CRITICAL) > 0) ? GHCommitState.ERROR : GHCommitState.SUCCESS;
+  public CommitState getStatus() {
+    return (newIssues(Severity.BLOCKER) > 0 || newIssues(Severity.CRITICAL) > 0) ? CommitState.ERROR : CommitState.SUCCESS;
   }
 
   private int newIssues(Severity s) {
     return newIssuesBySeverity[s.ordinal()];
   }
 
-  private void printSummaryBySeverityMarkdown(StringBuilder sb) {
-    printNewIssuesForMarkdown(sb, Severity.BLOCKER);
-    printNewIssuesForMarkdown(sb, Severity.CRITICAL);
-    printNewIssuesForMarkdown(sb, Severity.MAJOR);
-    printNewIssuesForMarkdown(sb, Severity.MINOR);
-    printNewIssuesForMarkdown(sb, Severity.INFO);
+  private void printSummaryBySeverityMarkdown(MarkdownWriter writer) {
+    printNewIssuesForMarkdown(writer, Severity.BLOCKER);
+    printNewIssuesForMarkdown(writer, Severity.CRITICAL);
+    printNewIssuesForMarkdown(writer, Severity.MAJOR);
+    printNewIssuesForMarkdown(writer, Severity.MINOR);
+    printNewIssuesForMarkdown(writer, Severity.INFO);
   }
 
   private void printNewIssuesInline(StringBuilder sb) {
@@ -140,10 +188,11 @@ public class GlobalReport {
     }
   }
 
-  private void printNewIssuesForMarkdown(StringBuilder sb, Severity severity) {
+  private void printNewIssuesForMarkdown(MarkdownWriter writer, Severity severity) {
     int issueCount = newIssues(severity);
     if (issueCount > 0) {
-      sb.append("* ").append(MarkDownUtils.getImageMarkdownForSeverity(severity)).append(" ").append(issueCount).append(" ").append(severity.name().toLowerCase(Locale.ENGLISH))
+      writer.append("* ").append(MarkDownUtils.getImageMarkdownForSeverity(severity)).append(" ").append(String.valueOf(issueCount)).append(" ")
+        .append(severity.name().toLowerCase(Locale.ENGLISH))
         .append("\n");
     }
   }
@@ -152,15 +201,35 @@ public class GlobalReport {
     increment(issue.severity());
     if (!reportedOnDiff) {
       if (extraIssueCount < maxGlobalReportedIssues) {
-        notReportedOnDiff
-          .append("1. ")
-          .append(markDownUtils.globalIssue(issue.severity(), issue.message(), issue.ruleKey().toString(), githubUrl, issue.componentKey()))
-          .append("\n");
+        String issueEntry = issueEntry(issue, githubUrl);
+        notReportedOnDiff.add(issueEntry);
+        notReportedOnDiffSize += issueEntry.length();
       }
       extraIssueCount++;
     }
   }
 
+  /**
+   * Report an issue that is on the diff of the pull request, but could not be commented inline because the maximum number
+   * of inline comments was reached.
+   */
+  public void processOverInlineCommentLimit(PostJobIssue issue, @Nullable String githubUrl, int maxInlineComments) {
+    increment(issue.severity());
+    this.maxInlineComments = maxInlineComments;
+    if (overInlineCommentLimitCount < maxGlobalReportedIssues) {
+      String issueEntry = issueEntry(issue, githubUrl);
+      overInlineCommentLimit.add(issueEntry);
+      overInlineCommentLimitSize += issueEntry.length();
+    }
+    overInlineCommentLimitCount++;
+  }
+
+  private String issueEntry(PostJobIssue issue, @Nullable String githubUrl) {
+    StringBuilder sb = new StringBuilder("1. ");
+    markDownUtils.appendGlobalIssue(sb, issue.severity(), issue.message(), issue.ruleKey().toString(), githubUrl, issue.componentKey());
+    return sb.append("\n").toString();
+  }
+
   public boolean hasNewIssue() {
     return newIssues(Severity.BLOCKER) + newIssues(Severity.CRITICAL) + newIssues(Severity.MAJOR) + newIssues(Severity.MINOR) + newIssues(Severity.INFO) > 0;
   }
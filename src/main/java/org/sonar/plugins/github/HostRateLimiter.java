@@ -0,0 +1,205 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Token bucket shared by all the analyses running on the same machine, so that together they don't exceed a number of
+ * GitHub WS calls per minute. The state of the bucket is kept in a small file, read and updated under an exclusive file lock
+ * before each call. Analyses also share a pause, set when one of them hits the secondary rate limit of GitHub, so that
+ * they back off together. A file lock is held by the whole JVM, so threads of the same JVM take turns before locking the file.
+ */
+class HostRateLimiter implements HttpConnector {
+
+  private static final Logger LOG = Loggers.get(HostRateLimiter.class);
+
+  static final long SECONDARY_RATE_LIMIT_PAUSE_MS = 60_000L;
+
+  // Available permits (double), time of last refill (long) and end of the shared pause (long)
+  private static final int STATE_SIZE = 24;
+
+  private static final ConcurrentMap<Path, Object> IN_PROCESS_LOCKS = new ConcurrentHashMap<>();
+
+  private final Path file;
+  private final double permitsPerMs;
+  private final double capacity;
+  private final HttpConnector delegate;
+  private final System2 system;
+
+  HostRateLimiter(Path file, int callsPerMinute, HttpConnector delegate, System2 system) {
+    this.file = file;
+    this.permitsPerMs = callsPerMinute / 60_000.0;
+    // Allow bursts of 10 seconds worth of calls
+    this.capacity = Math.max(1.0, callsPerMinute / 6.0);
+    this.delegate = delegate;
+    this.system = system;
+  }
+
+  static HostRateLimiter forEndpoint(String endpoint, int callsPerMinute) {
+    String fileName = "sonar-github-" + UUID.nameUUIDFromBytes(endpoint.getBytes(StandardCharsets.UTF_8)) + ".ratelimit";
+    return new HostRateLimiter(Paths.get(System.getProperty("java.io.tmpdir"), fileName), callsPerMinute, HttpConnector.DEFAULT, System2.INSTANCE);
+  }
+
+  @Override
+  public HttpURLConnection connect(URL url) throws IOException {
+    acquire();
+    return delegate.connect(url);
+  }
+
+  /**
+   * Wait until a call is allowed by the shared bucket.
+   */
+  void acquire() throws IOException {
+    long waitMs;
+    while ((waitMs = tryAcquire()) > 0) {
+      LOG.debug("Waiting " + waitMs + "ms for the GitHub rate limit shared by the analyses on this machine");
+      try {
+        Thread.sleep(waitMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the GitHub rate limit", e);
+      }
+    }
+  }
+
+  /**
+   * @return 0 when a permit was taken, otherwise the time to wait in milliseconds before trying again
+   */
+  long tryAcquire() throws IOException {
+    synchronized (inProcessLock()) {
+      return tryAcquireLocked();
+    }
+  }
+
+  private long tryAcquireLocked() throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      FileLock lock = channel.lock()) {
+      long now = system.now();
+      ByteBuffer state = read(channel);
+      double permits;
+      long lastRefill;
+      long pausedUntil;
+      if (state == null) {
+        permits = capacity;
+        lastRefill = now;
+        pausedUntil = 0L;
+      } else {
+        permits = state.getDouble(0);
+        lastRefill = state.getLong(8);
+        pausedUntil = state.getLong(16);
+      }
+      if (pausedUntil > now) {
+        return pausedUntil - now;
+      }
+      permits = Math.min(capacity, permits + Math.max(0L, now - lastRefill) * permitsPerMs);
+      long waitMs = 0L;
+      if (permits >= 1.0) {
+        permits -= 1.0;
+      } else {
+        waitMs = Math.max(1L, (long) Math.ceil((1.0 - permits) / permitsPerMs));
+      }
+      write(channel, permits, now, pausedUntil);
+      return waitMs;
+    }
+  }
+
+  /**
+   * Pause the calls of all the analyses on this machine, for example after GitHub rejected a call because of its secondary rate limit.
+   */
+  void pause(long durationMs) {
+    synchronized (inProcessLock()) {
+      pauseLocked(durationMs);
+    }
+  }
+
+  private void pauseLocked(long durationMs) {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      FileLock lock = channel.lock()) {
+      long now = system.now();
+      ByteBuffer state = read(channel);
+      double permits = state == null ? 0.0 : state.getDouble(0);
+      long pausedUntil = Math.max(now + durationMs, state == null ? 0L : state.getLong(16));
+      write(channel, permits, now, pausedUntil);
+      LOG.warn("GitHub secondary rate limit was hit, pausing GitHub calls of all analyses on this machine for " + (durationMs / 1000) + "s");
+    } catch (IOException e) {
+      LOG.debug("Unable to update GitHub rate limit file " + file, e);
+    }
+  }
+
+  /**
+   * A second lock of the file by the same JVM would fail instead of waiting
+   */
+  private Object inProcessLock() {
+    return IN_PROCESS_LOCKS.computeIfAbsent(file.toAbsolutePath().normalize(), f -> new Object());
+  }
+
+  /**
+   * The failed call is retried once the shared pause is over, since {@link #connect(URL)} waits for it.
+   */
+  @Override
+  public boolean backOff(IOException failure) {
+    if (!isSecondaryRateLimit(failure)) {
+      return false;
+    }
+    pause(SECONDARY_RATE_LIMIT_PAUSE_MS);
+    return true;
+  }
+
+  /**
+   * GitHub answers with a 403 and a message about abuse detection or secondary rate limit when too many calls are done concurrently.
+   */
+  static boolean isSecondaryRateLimit(Throwable failure) {
+    String message = failure.getMessage();
+    return message != null && (message.contains("abuse detection") || message.contains("secondary rate limit"));
+  }
+
+  private static ByteBuffer read(FileChannel channel) throws IOException {
+    ByteBuffer state = ByteBuffer.allocate(STATE_SIZE);
+    while (state.hasRemaining() && channel.read(state, state.position()) > 0) {
+      // Keep reading
+    }
+    return state.hasRemaining() ? null : state;
+  }
+
+  private static void write(FileChannel channel, double permits, long lastRefill, long pausedUntil) throws IOException {
+    ByteBuffer state = ByteBuffer.allocate(STATE_SIZE);
+    state.putDouble(0, permits).putLong(8, lastRefill).putLong(16, pausedUntil);
+    while (state.hasRemaining()) {
+      channel.write(state, state.position());
+    }
+  }
+
+}
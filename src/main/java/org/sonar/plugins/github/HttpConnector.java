@@ -0,0 +1,62 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+
+/**
+ * Opens the connections of the WS calls to GitHub or Bitbucket Server, so that they can be throttled, see {@link HostRateLimiter}.
+ */
+@FunctionalInterface
+interface HttpConnector {
+
+  // Timeouts of each call, so that an unresponsive server can't hold the analysis
+  int CONNECT_TIMEOUT_MS = 30_000;
+  int READ_TIMEOUT_MS = 60_000;
+
+  HttpConnector DEFAULT = url -> withTimeouts((HttpURLConnection) url.openConnection(), Long.MAX_VALUE);
+
+  HttpURLConnection connect(URL url) throws IOException;
+
+  /**
+   * Called when GitHub rejected a call.
+   * @return true when the connector waited for the cause of the failure to go away, so that the call can be retried once
+   */
+  default boolean backOff(IOException failure) {
+    return false;
+  }
+
+  /**
+   * @param endMs time at which the call must end, {@link Long#MAX_VALUE} for the default timeouts only
+   */
+  static HttpURLConnection withTimeouts(HttpURLConnection connection, long endMs) throws SocketTimeoutException {
+    long leftMs = endMs == Long.MAX_VALUE ? Long.MAX_VALUE : (endMs - System.currentTimeMillis());
+    if (leftMs <= 0) {
+      throw new SocketTimeoutException("Deadline of the call to " + connection.getURL() + " is reached");
+    }
+    connection.setConnectTimeout((int) Math.min(CONNECT_TIMEOUT_MS, leftMs));
+    connection.setReadTimeout((int) Math.min(READ_TIMEOUT_MS, leftMs));
+    return connection;
+  }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.sonar.api.batch.postjob.issue.PostJobIssue;
+import org.sonar.api.batch.rule.Severity;
+
+/**
+ * Sort issues in the same order than {@link IssueComparator} but without calling the issue accessors
+ * on every comparison. The sort key of each issue (severity, rank of the component key, line) is extracted
+ * once and packed together with the original index in a single long, so that a primitive sort can be used.
+ * When the packed key does not fit in 63 bits, sorting falls back to {@link IssueComparator}.
+ */
+public final class IssueSorter {
+
+  static final int PARALLEL_THRESHOLD = 1 << 13;
+
+  private static final int SEVERITY_BITS = 3;
+  private static final int MAX_SEVERITY_ORDINAL = Severity.values().length - 1;
+
+  private IssueSorter() {
+    // only static methods
+  }
+
+  public static List<PostJobIssue> sort(List<PostJobIssue> issues) {
+    int size = issues.size();
+    if (size < 2) {
+      return new ArrayList<>(issues);
+    }
+    PostJobIssue[] input = issues.toArray(new PostJobIssue[size]);
+    int nonNullCount = 0;
+    for (PostJobIssue issue : input) {
+      if (issue != null) {
+        nonNullCount++;
+      }
+    }
+    // Null issues are displayed last, like with IssueComparator
+    int[] nonNullIndexes = new int[nonNullCount];
+    int[] severityKeys = new int[nonNullCount];
+    String[] componentKeys = new String[nonNullCount];
+    long[] lineKeys = new long[nonNullCount];
+    long minLine = Long.MAX_VALUE;
+    long maxLine = Long.MIN_VALUE;
+    int j = 0;
+    for (int i = 0; i < size; i++) {
+      PostJobIssue issue = input[i];
+      if (issue == null) {
+        continue;
+      }
+      nonNullIndexes[j] = i;
+      // Display higher severity first
+      severityKeys[j] = MAX_SEVERITY_ORDINAL - issue.severity().ordinal();
+      componentKeys[j] = issue.componentKey();
+      Integer line = issue.line();
+      if (line != null) {
+        lineKeys[j] = line;
+        minLine = Math.min(minLine, line);
+        maxLine = Math.max(maxLine, line);
+      } else {
+        lineKeys[j] = Long.MIN_VALUE;
+      }
+      j++;
+    }
+    int[] componentRanks = rankComponentKeys(componentKeys);
+    int distinctComponents = 0;
+    for (int rank : componentRanks) {
+      distinctComponents = Math.max(distinctComponents, rank + 1);
+    }
+    // Line key 0 is reserved for issues without line, so that they are displayed first
+    long lineRange = minLine <= maxLine ? (maxLine - minLine + 2) : 1;
+
+    int componentBits = bitsFor(distinctComponents);
+    int lineBits = bitsFor(lineRange);
+    int indexBits = bitsFor(nonNullCount);
+    if (SEVERITY_BITS + componentBits + lineBits + indexBits > Long.SIZE - 1) {
+      List<PostJobIssue> result = new ArrayList<>(issues);
+      result.sort(new IssueComparator());
+      return result;
+    }
+
+    long[] packed = new long[nonNullCount];
+    for (int k = 0; k < nonNullCount; k++) {
+      long lineKey = lineKeys[k] == Long.MIN_VALUE ? 0 : (lineKeys[k] - minLine + 1);
+      long key = severityKeys[k];
+      key = (key << componentBits) | componentRanks[k];
+      key = (key << lineBits) | lineKey;
+      // Original index is the last criteria, so that the sort is stable
+      key = (key << indexBits) | k;
+      packed[k] = key;
+    }
+    if (nonNullCount >= PARALLEL_THRESHOLD) {
+      Arrays.parallelSort(packed);
+    } else {
+      Arrays.sort(packed);
+    }
+
+    long indexMask = (1L << indexBits) - 1;
+    List<PostJobIssue> result = new ArrayList<>(size);
+    for (long key : packed) {
+      result.add(input[nonNullIndexes[(int) (key & indexMask)]]);
+    }
+    for (int n = nonNullCount; n < size; n++) {
+      result.add(null);
+    }
+    return result;
+  }
+
+  /**
+   * @return for each component key, its rank in the natural order of distinct component keys
+   */
+  private static int[] rankComponentKeys(String[] componentKeys) {
+    Map<String, Integer> rankByKey = new HashMap<>();
+    for (String componentKey : componentKeys) {
+      rankByKey.put(componentKey, 0);
+    }
+    String[] distinct = rankByKey.keySet().toArray(new String[rankByKey.size()]);
+    Arrays.sort(distinct);
+    for (int rank = 0; rank < distinct.length; rank++) {
+      rankByKey.put(distinct[rank], rank);
+    }
+    int[] ranks = new int[componentKeys.length];
+    for (int i = 0; i < componentKeys.length; i++) {
+      ranks[i] = rankByKey.get(componentKeys[i]);
+    }
+    return ranks;
+  }
+
+  private static int bitsFor(long distinctValues) {
+    return distinctValues <= 1 ? 0 : (Long.SIZE - Long.numberOfLeadingZeros(distinctValues - 1));
+  }
+
+}
@@ -0,0 +1,328 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import javax.annotation.CheckForNull;
+
+/**
+ * Streaming reader of the JSON responses of GitHub, so that pages of comments or files are read value by value, without
+ * building a tree of the whole response. It expects well-formed JSON: separators are not checked.
+ */
+class JsonReader implements Closeable {
+
+  enum Token {
+    BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+  }
+
+  private static final int EXPECTING_NAME = 1;
+  private static final int EXPECTING_VALUE = 2;
+  private static final int IN_ARRAY = 3;
+
+  private final Reader in;
+  private final char[] buffer = new char[8192];
+  private int pos = 0;
+  private int limit = 0;
+  private int[] stack = new int[16];
+  private int depth = 0;
+  private Token peeked;
+  private String peekedValue;
+
+  JsonReader(Reader in) {
+    this.in = in;
+  }
+
+  Token peek() throws IOException {
+    if (peeked != null) {
+      return peeked;
+    }
+    int c = nextNonSeparator();
+    switch (c) {
+      case -1:
+        peeked = Token.END_DOCUMENT;
+        break;
+      case '{':
+        peeked = Token.BEGIN_OBJECT;
+        break;
+      case '}':
+        peeked = Token.END_OBJECT;
+        break;
+      case '[':
+        peeked = Token.BEGIN_ARRAY;
+        break;
+      case ']':
+        peeked = Token.END_ARRAY;
+        break;
+      case '"':
+        peekedValue = readString();
+        peeked = depth > 0 && stack[depth - 1] == EXPECTING_NAME ? Token.NAME : Token.STRING;
+        break;
+      case 't':
+        readLiteral("rue");
+        peekedValue = "true";
+        peeked = Token.BOOLEAN;
+        break;
+      case 'f':
+        readLiteral("alse");
+        peekedValue = "false";
+        peeked = Token.BOOLEAN;
+        break;
+      case 'n':
+        readLiteral("ull");
+        peeked = Token.NULL;
+        break;
+      default:
+        peekedValue = readNumber((char) c);
+        peeked = Token.NUMBER;
+    }
+    return peeked;
+  }
+
+  boolean hasNext() throws IOException {
+    Token token = peek();
+    return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+  }
+
+  void beginObject() throws IOException {
+    consume(Token.BEGIN_OBJECT);
+    push(EXPECTING_NAME);
+  }
+
+  void endObject() throws IOException {
+    consume(Token.END_OBJECT);
+    depth--;
+  }
+
+  void beginArray() throws IOException {
+    consume(Token.BEGIN_ARRAY);
+    push(IN_ARRAY);
+  }
+
+  void endArray() throws IOException {
+    consume(Token.END_ARRAY);
+    depth--;
+  }
+
+  String nextName() throws IOException {
+    String name = consume(Token.NAME);
+    stack[depth - 1] = EXPECTING_VALUE;
+    return name;
+  }
+
+  String nextString() throws IOException {
+    if (peek() == Token.NUMBER || peek() == Token.BOOLEAN) {
+      return consume(peeked);
+    }
+    return consume(Token.STRING);
+  }
+
+  /**
+   * @return the string, or null when the value is null
+   */
+  @CheckForNull
+  String nextStringOrNull() throws IOException {
+    if (peek() == Token.NULL) {
+      nextNull();
+      return null;
+    }
+    return nextString();
+  }
+
+  int nextInt() throws IOException {
+    return Integer.parseInt(consume(Token.NUMBER));
+  }
+
+  long nextLong() throws IOException {
+    return Long.parseLong(consume(Token.NUMBER));
+  }
+
+  boolean nextBoolean() throws IOException {
+    return Boolean.parseBoolean(consume(Token.BOOLEAN));
+  }
+
+  void nextNull() throws IOException {
+    consume(Token.NULL);
+  }
+
+  /**
+   * Skip the next value, with all its nested values when it is an object or an array
+   */
+  void skipValue() throws IOException {
+    int nested = 0;
+    do {
+      switch (peek()) {
+        case BEGIN_OBJECT:
+          beginObject();
+          nested++;
+          break;
+        case BEGIN_ARRAY:
+          beginArray();
+          nested++;
+          break;
+        case END_OBJECT:
+          endObject();
+          nested--;
+          break;
+        case END_ARRAY:
+          endArray();
+          nested--;
+          break;
+        case NAME:
+          nextName();
+          break;
+        case END_DOCUMENT:
+          throw new IOException("Unexpected end of JSON document");
+        default:
+          consume(peeked);
+      }
+    } while (nested > 0);
+  }
+
+  private String consume(Token expected) throws IOException {
+    Token token = peek();
+    if (token != expected) {
+      throw new IOException("Expected " + expected + " but was " + token + " in JSON document");
+    }
+    String value = peekedValue;
+    peeked = null;
+    peekedValue = null;
+    if (token != Token.NAME && token != Token.END_OBJECT && token != Token.END_ARRAY && depth > 0 && stack[depth - 1] == EXPECTING_VALUE) {
+      // Value of the current field is read, or at least started for an object or array
+      stack[depth - 1] = EXPECTING_NAME;
+    }
+    return value;
+  }
+
+  private void push(int context) {
+    if (depth == stack.length) {
+      stack = Arrays.copyOf(stack, depth * 2);
+    }
+    stack[depth++] = context;
+  }
+
+  private int read() throws IOException {
+    if (pos == limit) {
+      limit = in.read(buffer, 0, buffer.length);
+      pos = 0;
+      if (limit <= 0) {
+        limit = 0;
+        return -1;
+      }
+    }
+    return buffer[pos++];
+  }
+
+  private int nextNonSeparator() throws IOException {
+    int c;
+    do {
+      c = read();
+    } while (c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == ',' || c == ':');
+    return c;
+  }
+
+  private String readString() throws IOException {
+    StringBuilder value = new StringBuilder();
+    while (true) {
+      int c = read();
+      if (c == -1) {
+        throw new IOException("Unterminated string in JSON document");
+      }
+      if (c == '"') {
+        return value.toString();
+      }
+      if (c == '\\') {
+        value.append(readEscaped());
+      } else {
+        value.append((char) c);
+      }
+    }
+  }
+
+  private char readEscaped() throws IOException {
+    int c = read();
+    switch (c) {
+      case 'b':
+        return '\b';
+      case 'f':
+        return '\f';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      case 'u':
+        char[] hex = new char[4];
+        for (int i = 0; i < hex.length; i++) {
+          int h = read();
+          if (h == -1) {
+            throw new IOException("Unterminated escape sequence in JSON document");
+          }
+          hex[i] = (char) h;
+        }
+        return (char) Integer.parseInt(new String(hex), 16);
+      case -1:
+        throw new IOException("Unterminated escape sequence in JSON document");
+      default:
+        // \" \\ and \/
+        return (char) c;
+    }
+  }
+
+  private void readLiteral(String rest) throws IOException {
+    for (int i = 0; i < rest.length(); i++) {
+      if (read() != rest.charAt(i)) {
+        throw new IOException("Unexpected literal in JSON document");
+      }
+    }
+  }
+
+  private String readNumber(char first) throws IOException {
+    if (first != '-' && (first < '0' || first > '9')) {
+      throw new IOException("Unexpected character '" + first + "' in JSON document");
+    }
+    StringBuilder number = new StringBuilder().append(first);
+    while (true) {
+      if (pos == limit && read() != -1) {
+        // Buffer refilled, the character is read again below
+        pos--;
+      }
+      if (pos == limit) {
+        return number.toString();
+      }
+      char c = buffer[pos];
+      if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+        number.append(c);
+        pos++;
+      } else {
+        return number.toString();
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+}
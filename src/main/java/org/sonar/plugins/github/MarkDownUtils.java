@@ -19,12 +19,15 @@
  */
 package org.sonar.plugins.github;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.EnumMap;
 import java.util.Locale;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.annotation.Nullable;
-import org.apache.commons.lang.StringUtils;
 import org.sonar.api.CoreProperties;
 import org.sonar.api.batch.BatchSide;
 import org.sonar.api.batch.InstantiationStrategy;
@@ -36,7 +39,20 @@ import org.sonar.api.config.Settings;
 public class MarkDownUtils {
 
   private static final String IMAGES_ROOT_URL = "https://raw.githubusercontent.com/SonarCommunity/sonar-github/master/images/";
+  private static final Map<Severity, String> IMAGE_MARKDOWN_BY_SEVERITY = new EnumMap<>(Severity.class);
+
+  static {
+    for (Severity severity : Severity.values()) {
+      IMAGE_MARKDOWN_BY_SEVERITY.put(severity, "![" + severity.name() + "](" + IMAGES_ROOT_URL + "severity-" + severity.name().toLowerCase(Locale.ENGLISH) + ".png)");
+    }
+  }
+
   private final String ruleUrlPrefix;
+  /**
+   * There are usually only a few dozens of distinct rules, so markdown surrounding the message of an issue
+   * is rendered once per severity and rule.
+   */
+  private final Map<Severity, ConcurrentMap<String, Fragments>> fragmentsBySeverityAndRule = new EnumMap<>(Severity.class);
 
   public MarkDownUtils(Settings settings) {
     // If server base URL was not configured in SQ server then is is better to take URL configured on batch side
@@ -45,43 +61,79 @@ public class MarkDownUtils {
       baseUrl += "/";
     }
     this.ruleUrlPrefix = baseUrl;
+    for (Severity severity : Severity.values()) {
+      fragmentsBySeverityAndRule.put(severity, new ConcurrentHashMap<String, Fragments>());
+    }
   }
 
   public String inlineIssue(Severity severity, String message, String ruleKey) {
-    String ruleLink = getRuleLink(ruleKey);
     StringBuilder sb = new StringBuilder();
-    sb.append(getImageMarkdownForSeverity(severity))
-      .append(" ")
-      .append(message)
-      .append(" ")
-      .append(ruleLink);
+    appendInlineIssue(sb, severity, message, ruleKey);
     return sb.toString();
   }
 
-  private static String getLocation(String url) {
-    String filename = Pattern.compile(".*/", Pattern.DOTALL).matcher(url).replaceAll(StringUtils.EMPTY);
-    if (filename.length() <= 0) {
-      filename = "Project";
+  public void appendInlineIssue(Appendable appendable, Severity severity, String message, String ruleKey) {
+    Fragments fragments = fragments(severity, ruleKey);
+    try {
+      appendable.append(fragments.prefix)
+        .append(message)
+        .append(fragments.suffix);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to write markdown", e);
     }
+  }
 
-    return filename;
+  /**
+   * Same as removing everything up to the last slash, but without regular expression.
+   */
+  private static void appendLocation(Appendable appendable, String url) throws IOException {
+    int start = url.lastIndexOf('/') + 1;
+    if (start >= url.length()) {
+      appendable.append("Project");
+    } else {
+      appendable.append(url, start, url.length());
+    }
   }
 
   public String globalIssue(Severity severity, String message, String ruleKey, @Nullable String url, String componentKey) {
-    String ruleLink = getRuleLink(ruleKey);
     StringBuilder sb = new StringBuilder();
-    sb.append(getImageMarkdownForSeverity(severity)).append(" ");
-    if (url != null) {
-      sb.append("[").append(getLocation(url)).append("]").append("(").append(url).append(")");
-    } else {
-      sb.append(componentKey);
-    }
-    sb.append(": ").append(message).append(" ").append(ruleLink);
+    appendGlobalIssue(sb, severity, message, ruleKey, url, componentKey);
     return sb.toString();
   }
 
+  public void appendGlobalIssue(Appendable appendable, Severity severity, String message, String ruleKey, @Nullable String url, String componentKey) {
+    Fragments fragments = fragments(severity, ruleKey);
+    try {
+      appendable.append(fragments.prefix);
+      if (url != null) {
+        appendable.append("[");
+        appendLocation(appendable, url);
+        appendable.append("](").append(url).append(")");
+      } else {
+        appendable.append(componentKey);
+      }
+      appendable.append(": ").append(message).append(fragments.suffix);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to write markdown", e);
+    }
+  }
+
+  private Fragments fragments(Severity severity, String ruleKey) {
+    ConcurrentMap<String, Fragments> fragmentsByRule = fragmentsBySeverityAndRule.get(severity);
+    Fragments fragments = fragmentsByRule.get(ruleKey);
+    if (fragments == null) {
+      fragments = new Fragments(getImageMarkdownForSeverity(severity) + " ", " " + getRuleLink(ruleKey));
+      fragmentsByRule.putIfAbsent(ruleKey, fragments);
+    }
+    return fragments;
+  }
+
   String getRuleLink(String ruleKey) {
-    return "[![rule](" + IMAGES_ROOT_URL + "rule.png)](" + ruleUrlPrefix + "coding_rules#rule_key=" + encodeForUrl(ruleKey) + ")";
+    return "[![rule](" + IMAGES_ROOT_URL + "rule.png)](" + getRuleUrl(ruleKey) + ")";
+  }
+
+  String getRuleUrl(String ruleKey) {
+    return ruleUrlPrefix + "coding_rules#rule_key=" + encodeForUrl(ruleKey);
   }
 
   static String encodeForUrl(String url) {
@@ -94,7 +146,17 @@ public class MarkDownUtils {
   }
 
   public static String getImageMarkdownForSeverity(Severity severity) {
-    return "![" + severity.name() + "](" + IMAGES_ROOT_URL + "severity-" + severity.name().toLowerCase(Locale.ENGLISH) + ".png)";
+    return IMAGE_MARKDOWN_BY_SEVERITY.get(severity);
+  }
+
+  private static class Fragments {
+    private final String prefix;
+    private final String suffix;
+
+    Fragments(String prefix, String suffix) {
+      this.prefix = prefix;
+      this.suffix = suffix;
+    }
   }
 
 }
@@ -0,0 +1,207 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write markdown to one or more comment bodies, without exceeding the maximum body size accepted by GitHub.
+ * Fragments are appended to the current entry, and an entry is only added to a body when it is complete, so
+ * that an entry (usually an issue) is never split between two comments.
+ * When a body is full, following entries either go to a continuation comment or are dropped and counted.
+ * The budget is tracked in UTF-8 encoded bytes, which is never less than the number of characters counted by GitHub.
+ */
+public class MarkdownWriter implements Appendable {
+
+  public static final int GITHUB_MAX_BODY_SIZE = 65536;
+
+  private static final int DEFAULT_ENTRY_CAPACITY = 256;
+  // Room kept at the end of a truncated body for the note about omitted entries
+  private static final int TRUNCATION_NOTE_RESERVED_SIZE = 128;
+
+  private final int maxBodySize;
+  private final boolean splitOverflow;
+  private final String continuationHeader;
+  private final int expectedSize;
+  private final List<StringBuilder> bodies = new ArrayList<>();
+  private final StringBuilder entry = new StringBuilder(DEFAULT_ENTRY_CAPACITY);
+  private StringBuilder currentBody;
+  private int currentBodySize;
+  private int writtenSize;
+  private int omittedEntries;
+
+  MarkdownWriter(int maxBodySize, int expectedSize, boolean splitOverflow, String continuationHeader) {
+    this.maxBodySize = maxBodySize;
+    this.expectedSize = expectedSize;
+    this.splitOverflow = splitOverflow;
+    this.continuationHeader = continuationHeader;
+    newBody(false);
+  }
+
+  /**
+   * Entries that would not fit in a single GitHub comment are omitted, and a note gives the count of omitted entries.
+   * @param reservedSize room kept at the end of the body for the text added at publication
+   */
+  public static MarkdownWriter truncating(int expectedSize, int reservedSize) {
+    return new MarkdownWriter(GITHUB_MAX_BODY_SIZE - reservedSize, expectedSize, false, "");
+  }
+
+  /**
+   * Entries that would not fit in a single GitHub comment are written in continuation comments, each one starting with the provided header.
+   * @param reservedSize room kept at the end of each body for the text added at publication
+   */
+  public static MarkdownWriter splitting(int expectedSize, String continuationHeader, int reservedSize) {
+    return new MarkdownWriter(GITHUB_MAX_BODY_SIZE - reservedSize, expectedSize, true, continuationHeader);
+  }
+
+  @Override
+  public MarkdownWriter append(CharSequence csq) {
+    entry.append(csq);
+    return this;
+  }
+
+  @Override
+  public MarkdownWriter append(CharSequence csq, int start, int end) {
+    entry.append(csq, start, end);
+    return this;
+  }
+
+  @Override
+  public MarkdownWriter append(char c) {
+    entry.append(c);
+    return this;
+  }
+
+  /**
+   * Add the fragments appended since the previous entry to the current comment body.
+   */
+  public MarkdownWriter endEntry() {
+    if (entry.length() == 0) {
+      return this;
+    }
+    int entrySize = utf8Size(entry);
+    if (omittedEntries == 0 && currentBodySize + entrySize <= budget()) {
+      addEntryToCurrentBody(entrySize);
+    } else if (splitOverflow) {
+      if (currentBody.length() > 0) {
+        newBody(true);
+      }
+      if (currentBodySize + entrySize > budget()) {
+        truncateEntry(budget() - currentBodySize);
+        entrySize = utf8Size(entry);
+      }
+      addEntryToCurrentBody(entrySize);
+    } else {
+      omittedEntries++;
+    }
+    entry.setLength(0);
+    return this;
+  }
+
+  public boolean isEmpty() {
+    return bodies.size() == 1 && currentBody.length() == 0 && entry.length() == 0;
+  }
+
+  public int omittedEntries() {
+    return omittedEntries;
+  }
+
+  /**
+   * First (and only, when truncating) comment body.
+   */
+  public String body() {
+    return bodies().get(0);
+  }
+
+  public List<String> bodies() {
+    endEntry();
+    List<String> result = new ArrayList<>(bodies.size());
+    for (StringBuilder body : bodies) {
+      result.add(body.toString());
+    }
+    if (omittedEntries > 0) {
+      int last = result.size() - 1;
+      result.set(last, result.get(last) + "\n_" + omittedEntries + " more issue" + (omittedEntries > 1 ? "s were" : " was")
+        + " omitted because the comment size limit was reached._\n");
+    }
+    return result;
+  }
+
+  private int budget() {
+    return splitOverflow ? maxBodySize : (maxBodySize - TRUNCATION_NOTE_RESERVED_SIZE);
+  }
+
+  private void addEntryToCurrentBody(int entrySize) {
+    currentBody.append(entry);
+    currentBodySize += entrySize;
+    writtenSize += entrySize;
+  }
+
+  private void newBody(boolean continuation) {
+    // Size the buffer ahead of time to avoid copies when it grows
+    int capacity = Math.max(DEFAULT_ENTRY_CAPACITY, Math.min(expectedSize - writtenSize, maxBodySize));
+    currentBody = new StringBuilder(capacity);
+    currentBodySize = 0;
+    bodies.add(currentBody);
+    if (continuation) {
+      currentBody.append(continuationHeader);
+      currentBodySize = utf8Size(continuationHeader);
+    }
+  }
+
+  private void truncateEntry(int maxSize) {
+    int size = 0;
+    int i = 0;
+    while (i < entry.length()) {
+      int codePoint = Character.codePointAt(entry, i);
+      int codePointSize = utf8Size(codePoint);
+      if (size + codePointSize > maxSize) {
+        break;
+      }
+      size += codePointSize;
+      i += Character.charCount(codePoint);
+    }
+    entry.setLength(i);
+  }
+
+  static int utf8Size(CharSequence text) {
+    int size = 0;
+    int i = 0;
+    while (i < text.length()) {
+      int codePoint = Character.codePointAt(text, i);
+      size += utf8Size(codePoint);
+      i += Character.charCount(codePoint);
+    }
+    return size;
+  }
+
+  private static int utf8Size(int codePoint) {
+    if (codePoint < 0x80) {
+      return 1;
+    } else if (codePoint < 0x800) {
+      return 2;
+    } else if (codePoint < 0x10000) {
+      return 3;
+    }
+    return 4;
+  }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+
+/**
+ * Compact index of the patch position of each line visible in the diff of the pull request, as expected by GitHub
+ * for review comments. Lines and positions are stored as pairs of primitive ints, one contiguous range per file.
+ * When the index grows past a threshold, it is moved to a memory-mapped temporary file so that heap usage stays bounded
+ * whatever the size of the pull request.
+ */
+public class PatchPositionIndex implements Closeable {
+
+  static final int DEFAULT_SPILL_THRESHOLD = 1 << 21;
+
+  private static final int INTS_PER_ENTRY = 2;
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final int spillThreshold;
+  private final Map<String, int[]> rangeByFile = new HashMap<>();
+  private final Map<String, int[]> hunkStartsByFile = new HashMap<>();
+  private int[] heapStore = new int[INITIAL_CAPACITY];
+  private File spillFile;
+  private FileChannel spillChannel;
+  private IntBuffer spillStore;
+  private int size = 0;
+  private int[] currentRange;
+  private String currentFile;
+
+  public PatchPositionIndex() {
+    this(DEFAULT_SPILL_THRESHOLD);
+  }
+
+  /**
+   * @param spillThreshold number of ints kept on heap before spilling to a memory-mapped file
+   */
+  PatchPositionIndex(int spillThreshold) {
+    this.spillThreshold = spillThreshold;
+  }
+
+  /**
+   * Start indexing a new file. Following calls to {@link #add(int, int)} are for this file, with increasing lines.
+   */
+  public void addFile(String path) {
+    currentRange = new int[] {size, 0};
+    currentFile = path;
+    rangeByFile.put(path, currentRange);
+  }
+
+  /**
+   * Record the position of the header of a new hunk of the current file. Hunks are few compared to lines, so they are kept on heap.
+   */
+  public void addHunk(int position) {
+    int[] hunkStarts = hunkStartsByFile.get(currentFile);
+    if (hunkStarts == null) {
+      hunkStarts = new int[] {position};
+    } else {
+      hunkStarts = Arrays.copyOf(hunkStarts, hunkStarts.length + 1);
+      hunkStarts[hunkStarts.length - 1] = position;
+    }
+    hunkStartsByFile.put(currentFile, hunkStarts);
+  }
+
+  public void add(int line, int position) {
+    ensureCapacity(size + INTS_PER_ENTRY);
+    set(size, line);
+    set(size + 1, position);
+    size += INTS_PER_ENTRY;
+    currentRange[1]++;
+  }
+
+  public boolean hasFile(String path) {
+    return rangeByFile.containsKey(path);
+  }
+
+  public Set<String> files() {
+    return Collections.unmodifiableSet(rangeByFile.keySet());
+  }
+
+  /**
+   * @return position of the line in the patch of the file, or -1 if the line is not visible in the diff
+   */
+  public int position(String path, int line) {
+    int[] range = rangeByFile.get(path);
+    if (range == null) {
+      return -1;
+    }
+    int low = 0;
+    int high = range[1] - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int offset = range[0] + mid * INTS_PER_ENTRY;
+      int midLine = get(offset);
+      if (midLine < line) {
+        low = mid + 1;
+      } else if (midLine > line) {
+        high = mid - 1;
+      } else {
+        return get(offset + 1);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return index, in the patch of the file, of the hunk containing the line, or -1 if the line is not visible in the diff
+   */
+  public int hunk(String path, int line) {
+    int position = position(path, line);
+    if (position < 0) {
+      return -1;
+    }
+    int[] hunkStarts = hunkStartsByFile.get(path);
+    if (hunkStarts == null) {
+      return 0;
+    }
+    int index = Arrays.binarySearch(hunkStarts, position);
+    // Position of a line is never the one of a hunk header, so this is the insertion point
+    return Math.max(0, -index - 2);
+  }
+
+  /**
+   * @return lines of the file that are visible in the diff, or null if the file is not part of the pull request
+   */
+  @CheckForNull
+  public BitSet lines(String path) {
+    int[] range = rangeByFile.get(path);
+    if (range == null) {
+      return null;
+    }
+    BitSet lines = new BitSet();
+    for (int i = 0; i < range[1]; i++) {
+      lines.set(get(range[0] + i * INTS_PER_ENTRY));
+    }
+    return lines;
+  }
+
+  boolean isSpilled() {
+    return spillStore != null;
+  }
+
+  @CheckForNull
+  File spillFile() {
+    return spillFile;
+  }
+
+  private int get(int index) {
+    return spillStore != null ? spillStore.get(index) : heapStore[index];
+  }
+
+  private void set(int index, int value) {
+    if (spillStore != null) {
+      spillStore.put(index, value);
+    } else {
+      heapStore[index] = value;
+    }
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (spillStore != null) {
+      if (capacity > spillStore.capacity()) {
+        mapSpillFile(grow(spillStore.capacity(), capacity));
+      }
+    } else if (capacity > heapStore.length) {
+      if (capacity > spillThreshold) {
+        spill(capacity);
+      } else {
+        heapStore = Arrays.copyOf(heapStore, Math.min(grow(heapStore.length, capacity), spillThreshold));
+      }
+    }
+  }
+
+  private static int grow(int currentCapacity, int minCapacity) {
+    long newCapacity = Math.max((long) currentCapacity * 2, minCapacity);
+    // A single mapping is limited to Integer.MAX_VALUE bytes
+    if (newCapacity > Integer.MAX_VALUE / Integer.BYTES) {
+      throw new IllegalStateException("Pull request diff is too large to be indexed");
+    }
+    return (int) newCapacity;
+  }
+
+  private void spill(int minCapacity) {
+    try {
+      spillFile = File.createTempFile("sonar-github-patch-index", ".bin");
+      // In case the index is not closed, or the file can't be deleted while it is mapped
+      spillFile.deleteOnExit();
+      spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+      mapSpillFile(grow(heapStore.length, minCapacity));
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to create the pull request diff index file", e);
+    }
+    spillStore.put(heapStore, 0, size);
+    heapStore = null;
+  }
+
+  private void mapSpillFile(int capacity) {
+    try {
+      spillStore = spillChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * Integer.BYTES).asIntBuffer();
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to map the pull request diff index file", e);
+    }
+  }
+
+  /**
+   * Release the temporary file of the index, if any. The index can't be used anymore.
+   */
+  @Override
+  public void close() throws IOException {
+    if (spillChannel != null) {
+      spillChannel.close();
+      spillChannel = null;
+      spillStore = null;
+      Files.deleteIfExists(spillFile.toPath());
+    }
+  }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import org.sonar.api.utils.System2;
+
+/**
+ * Time budget of a publication, so that a slow GitHub can't hold the analysis indefinitely. The budget is split between the
+ * phases of the publication, from the most to the least valuable: each phase may use its share of the time left, and the
+ * time it does not use is left to the next phases. A small part of the budget is kept to tell that the publication is partial.
+ */
+class PublicationDeadline {
+
+  enum Phase {
+    STATUS(1), SUMMARY(1), SEVERE_COMMENTS(3), OTHER_COMMENTS(3), CLEANUP(2);
+
+    private final int weight;
+
+    Phase(int weight) {
+      this.weight = weight;
+    }
+  }
+
+  // Share of the budget kept to add the "partially published" note to the summary
+  private static final int NOTE_RESERVE_PERCENT = 10;
+
+  private final long budgetMs;
+  private final long endMs;
+  private final long reserveMs;
+  private final System2 system;
+
+  PublicationDeadline(long budgetMs, System2 system) {
+    this.budgetMs = budgetMs;
+    this.system = system;
+    this.reserveMs = budgetMs * NOTE_RESERVE_PERCENT / 100;
+    this.endMs = budgetMs > 0 ? (system.now() + budgetMs) : Long.MAX_VALUE;
+  }
+
+  /**
+   * @param budgetMs 0 for no deadline
+   */
+  static PublicationDeadline of(long budgetMs) {
+    return new PublicationDeadline(budgetMs, System2.INSTANCE);
+  }
+
+  boolean isUnlimited() {
+    return budgetMs <= 0;
+  }
+
+  long budgetMs() {
+    return budgetMs;
+  }
+
+  /**
+   * @return time at which the phase must end, {@link Long#MAX_VALUE} when there is no deadline
+   */
+  long endOf(Phase phase) {
+    if (isUnlimited()) {
+      return Long.MAX_VALUE;
+    }
+    long now = system.now();
+    long left = Math.max(0L, endMs - reserveMs - now);
+    int weights = 0;
+    for (Phase p : Phase.values()) {
+      if (p.ordinal() >= phase.ordinal()) {
+        weights += p.weight;
+      }
+    }
+    return now + left * phase.weight / weights;
+  }
+
+  /**
+   * @return time at which the note telling that the publication is partial must be published
+   */
+  long endOfNote() {
+    return endMs;
+  }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.plugins.github.PublicationPlan.Target;
+
+/**
+ * Journal of the comments published on a pull request for a commit. Each operation is appended as soon as GitHub confirms it,
+ * so that when the publication fails, the next analysis of the same commit only publishes what was not published yet: comments
+ * created by the failed analysis are known even before GitHub lists them, and the comments it deleted are not deleted twice.
+ * The journal of another commit is discarded.
+ */
+class PublicationJournal {
+
+  private static final Logger LOG = Loggers.get(PublicationJournal.class);
+
+  private static final int MAGIC = 0x53474a4e;
+  private static final int VERSION = 2;
+
+  private static final byte CREATED = 1;
+  private static final byte UPDATED = 2;
+  private static final byte DELETED = 3;
+
+  private final Path file;
+  private final String headSha;
+  private final Map<Target, List<PullRequestState.Comment>> createdByTarget = new EnumMap<>(Target.class);
+  private final Map<Long, String> updatedBodyById = new HashMap<>();
+  private final Map<Target, Set<Long>> deletedByTarget = new EnumMap<>(Target.class);
+  private boolean resumed = false;
+  private boolean closed = false;
+  private DataOutputStream out;
+
+  PublicationJournal(Path file, String headSha) {
+    this.file = file;
+    this.headSha = headSha;
+    for (Target target : Target.values()) {
+      createdByTarget.put(target, new ArrayList<>());
+      deletedByTarget.put(target, new HashSet<>());
+    }
+    if (Files.exists(file)) {
+      read();
+    }
+  }
+
+  /**
+   * @param scope project of the analysis when results are scoped by project, since each project publishes its own comments, otherwise null
+   */
+  static PublicationJournal forPullRequest(String endpoint, String repository, int pullRequestNumber, @Nullable String scope, String headSha) {
+    String fileName = "sonar-github-" + PullRequestLease.pullRequestKey(endpoint, repository, pullRequestNumber, scope) + ".journal";
+    return new PublicationJournal(Paths.get(System.getProperty("java.io.tmpdir"), fileName), headSha);
+  }
+
+  private void read() {
+    try {
+      byte[] bytes = Files.readAllBytes(file);
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      if (in.readInt() != MAGIC || in.readByte() != VERSION || !headSha.equals(in.readUTF())) {
+        LOG.debug("Ignoring publication journal " + file + " of another commit");
+        return;
+      }
+      int count = 0;
+      int length = bytes.length - in.available();
+      while (readOperation(in)) {
+        count++;
+        length = bytes.length - in.available();
+      }
+      // Last operation may have been partially written when the previous analysis stopped
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+        channel.truncate(length);
+      }
+      resumed = true;
+      LOG.info("Resuming publication: " + count + " operation(s) already done by a previous analysis of the same commit");
+    } catch (IOException e) {
+      LOG.warn("Ignoring unreadable publication journal " + file + ": " + e.getMessage());
+      for (Target target : Target.values()) {
+        createdByTarget.get(target).clear();
+        deletedByTarget.get(target).clear();
+      }
+      updatedBodyById.clear();
+    }
+  }
+
+  /**
+   * @return false at the end of the journal, including when its last operation was partially written
+   */
+  private boolean readOperation(DataInputStream in) throws IOException {
+    try {
+      byte type = in.readByte();
+      if (type == CREATED) {
+        Target target = Target.values()[in.readByte()];
+        long id = in.readLong();
+        String path = in.readBoolean() ? readString(in) : null;
+        int position = in.readInt();
+        createdByTarget.get(target).add(new PullRequestState.Comment(id, path, position, readString(in)));
+      } else if (type == UPDATED) {
+        long id = in.readLong();
+        updatedBodyById.put(id, readString(in));
+      } else if (type == DELETED) {
+        Target target = Target.values()[in.readByte()];
+        deletedByTarget.get(target).add(in.readLong());
+      } else {
+        throw new IOException("Unknown operation " + type);
+      }
+      return true;
+    } catch (EOFException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Comments created by previous analyses of the commit, in the order of their creation
+   */
+  List<PullRequestState.Comment> created(Target target) {
+    return Collections.unmodifiableList(createdByTarget.get(target));
+  }
+
+  boolean isDeleted(Target target, long id) {
+    return deletedByTarget.get(target).contains(id);
+  }
+
+  /**
+   * @return body of the comment after its last update by previous analyses of the commit, or the provided body
+   */
+  String body(long commentId, String body) {
+    String updated = updatedBodyById.get(commentId);
+    return updated != null ? updated : body;
+  }
+
+  synchronized void created(Target target, long id, @Nullable String path, int position, String body) {
+    createdByTarget.get(target).add(new PullRequestState.Comment(id, path, position, body));
+    append(o -> {
+      o.writeByte(CREATED);
+      o.writeByte(target.ordinal());
+      o.writeLong(id);
+      o.writeBoolean(path != null);
+      if (path != null) {
+        writeString(o, path);
+      }
+      o.writeInt(position);
+      writeString(o, body);
+    });
+  }
+
+  synchronized void updated(long commentId, String body) {
+    updatedBodyById.put(commentId, body);
+    append(o -> {
+      o.writeByte(UPDATED);
+      o.writeLong(commentId);
+      writeString(o, body);
+    });
+  }
+
+  synchronized void deleted(Target target, long id) {
+    deletedByTarget.get(target).add(id);
+    append(o -> {
+      o.writeByte(DELETED);
+      o.writeByte(target.ordinal());
+      o.writeLong(id);
+    });
+  }
+
+  @FunctionalInterface
+  private interface Operation {
+    void writeTo(DataOutputStream out) throws IOException;
+  }
+
+  /**
+   * The journal only saves WS calls of a later analysis, so the publication goes on when it can't be written
+   */
+  private void append(Operation operation) {
+    if (closed) {
+      // Call abandoned at the end of its phase, and completed once the publication is over
+      LOG.debug("Ignoring operation completed after the end of the publication");
+      return;
+    }
+    try {
+      if (out == null && resumed) {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.APPEND)));
+      } else if (out == null) {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeUTF(headSha);
+        resumed = true;
+      }
+      operation.writeTo(out);
+      out.flush();
+    } catch (IOException e) {
+      LOG.warn("Unable to write publication journal " + file + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Everything is published, the journal is not needed anymore
+   */
+  synchronized void delete() {
+    close();
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      LOG.debug("Unable to delete publication journal " + file, e);
+    }
+  }
+
+  synchronized void close() {
+    closed = true;
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOG.debug("Unable to close publication journal " + file, e);
+      }
+      out = null;
+    }
+  }
+
+  /**
+   * Comments can be longer than the 64KB supported by {@link DataOutputStream#writeUTF(String)}
+   */
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+}
@@ -0,0 +1,223 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+/**
+ * Operations needed to move a pull request from its current state on GitHub to the state expected at the end of the analysis.
+ * A plan is computed without any WS call by {@link PublicationPlanner}, so that it can be logged, tested and executed separately.
+ */
+public class PublicationPlan {
+
+  public enum Action {
+    CREATE, UPDATE, DELETE, NOOP
+  }
+
+  public enum Target {
+    REVIEW_COMMENT, GLOBAL_COMMENT, STATUS
+  }
+
+  private final List<Operation> operations = new ArrayList<>();
+
+  void add(Operation operation) {
+    operations.add(operation);
+  }
+
+  public List<Operation> operations() {
+    return Collections.unmodifiableList(operations);
+  }
+
+  /**
+   * @return operations of the given target and action, in the order they should be executed
+   */
+  public List<Operation> operations(Target target, Action action) {
+    List<Operation> result = new ArrayList<>();
+    for (Operation operation : operations) {
+      if (operation.target == target && operation.action == action) {
+        result.add(operation);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return number of WS calls needed to execute the plan
+   */
+  public int requiredCalls() {
+    return operations.size() - count(Action.NOOP);
+  }
+
+  /**
+   * @return number of WS calls needed to execute the operations of the given target
+   */
+  public int requiredCalls(Target target) {
+    int calls = 0;
+    for (Operation operation : operations) {
+      if (operation.target == target && operation.action != Action.NOOP) {
+        calls++;
+      }
+    }
+    return calls;
+  }
+
+  /**
+   * @return a plan with only the operations of the given targets
+   */
+  public PublicationPlan restrictTo(Set<Target> targets) {
+    PublicationPlan restricted = new PublicationPlan();
+    for (Operation operation : operations) {
+      if (targets.contains(operation.target)) {
+        restricted.add(operation);
+      }
+    }
+    return restricted;
+  }
+
+  public int count(Action action) {
+    int count = 0;
+    for (Operation operation : operations) {
+      if (operation.action == action) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  public String summary() {
+    return count(Action.CREATE) + " to create, " + count(Action.UPDATE) + " to update, " + count(Action.DELETE) + " to delete, " + count(Action.NOOP) + " unchanged";
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(summary());
+    for (Operation operation : operations) {
+      sb.append("\n  ").append(operation);
+    }
+    return sb.toString();
+  }
+
+  public static class Operation {
+    private final Action action;
+    private final Target target;
+    private final Long remoteId;
+    private final String path;
+    private final int position;
+    private final String body;
+    private final PullRequestState.Status status;
+    private final boolean severe;
+
+    private Operation(Action action, Target target, @Nullable Long remoteId, @Nullable String path, int position, @Nullable String body,
+      @Nullable PullRequestState.Status status, boolean severe) {
+      this.action = action;
+      this.target = target;
+      this.remoteId = remoteId;
+      this.path = path;
+      this.position = position;
+      this.body = body;
+      this.status = status;
+      this.severe = severe;
+    }
+
+    static Operation reviewComment(Action action, @Nullable Long remoteId, String path, int position, @Nullable String body) {
+      return reviewComment(action, remoteId, path, position, body, false);
+    }
+
+    static Operation reviewComment(Action action, @Nullable Long remoteId, String path, int position, @Nullable String body, boolean severe) {
+      return new Operation(action, Target.REVIEW_COMMENT, remoteId, path, position, body, null, severe);
+    }
+
+    static Operation globalComment(Action action, @Nullable Long remoteId, @Nullable String body) {
+      return new Operation(action, Target.GLOBAL_COMMENT, remoteId, null, -1, body, null, false);
+    }
+
+    static Operation status(Action action, PullRequestState.Status status) {
+      return new Operation(action, Target.STATUS, null, null, -1, null, status, false);
+    }
+
+    public Action action() {
+      return action;
+    }
+
+    public Target target() {
+      return target;
+    }
+
+    /**
+     * @return identifier of the comment on GitHub, null when the comment is to be created
+     */
+    @CheckForNull
+    public Long remoteId() {
+      return remoteId;
+    }
+
+    @CheckForNull
+    public String path() {
+      return path;
+    }
+
+    public int position() {
+      return position;
+    }
+
+    /**
+     * @return body to be published, null for deletions
+     */
+    @CheckForNull
+    public String body() {
+      return body;
+    }
+
+    @CheckForNull
+    public PullRequestState.Status status() {
+      return status;
+    }
+
+    /**
+     * @return true when the review comment to publish reports a blocker or critical issue
+     */
+    public boolean severe() {
+      return severe;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(action).append(' ').append(target.name().toLowerCase(Locale.ENGLISH).replace('_', ' '));
+      if (remoteId != null) {
+        sb.append(" #").append(remoteId);
+      }
+      if (path != null) {
+        sb.append(' ').append(path).append(" at position ").append(position);
+      }
+      if (status != null) {
+        sb.append(' ').append(status.state()).append(": ").append(status.description());
+      }
+      return sb.toString();
+    }
+  }
+
+}
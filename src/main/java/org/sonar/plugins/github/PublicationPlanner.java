@@ -0,0 +1,215 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.plugins.github.PublicationPlan.Action;
+import org.sonar.plugins.github.PublicationPlan.Operation;
+import org.sonar.plugins.github.PublicationPlan.Target;
+
+/**
+ * Compare the state expected at the end of the analysis with the state currently on GitHub, and compute the operations to go from one to the other.
+ * Operations of each target are listed in the order they should be executed. The order of the targets is decided when the plan
+ * is executed, by value: status, summary, review comments of severe issues, other review comments, and deletion of outdated ones.
+ */
+final class PublicationPlanner {
+
+  private static final Logger LOG = Loggers.get(PublicationPlanner.class);
+
+  // Between the bodies of review comments merged at the same position
+  static final String MERGED_COMMENTS_SEPARATOR = "\n---\n\n";
+
+  /**
+   * What is published when the rate limit is too low to publish everything, from the most to the least complete
+   */
+  private enum Degradation {
+    ALL("all results are published", EnumSet.allOf(Target.class)),
+    SUMMARY_ONLY("only the summary comment and the status are published", EnumSet.of(Target.GLOBAL_COMMENT, Target.STATUS)),
+    STATUS_ONLY("only the status is published", EnumSet.of(Target.STATUS));
+
+    private final String description;
+    private final Set<Target> targets;
+
+    Degradation(String description, Set<Target> targets) {
+      this.description = description;
+      this.targets = targets;
+    }
+  }
+
+  private PublicationPlanner() {
+    // only static methods
+  }
+
+  static PublicationPlan plan(PullRequestState desired, PullRequestState remote) {
+    PublicationPlan plan = new PublicationPlan();
+    planReviewComments(plan, desired, remote);
+    planGlobalComments(plan, desired, remote);
+    planStatus(plan, desired, remote);
+    return plan;
+  }
+
+  /**
+   * Degrade the plan when the remaining GitHub rate limit is too low to execute it fully, so that publishing never stops halfway
+   * because the limit is reached.
+   * @param overheadCalls WS calls done during the execution in addition to the operations of the plan
+   */
+  static PublicationPlan fitRateLimit(PublicationPlan plan, int remainingCalls, int overheadCalls) {
+    int neededCalls = plan.requiredCalls() + overheadCalls;
+    for (Degradation degradation : Degradation.values()) {
+      PublicationPlan candidate = degradation == Degradation.ALL ? plan : plan.restrictTo(degradation.targets);
+      int candidateCalls = candidate.requiredCalls() + overheadCalls;
+      if (candidateCalls <= remainingCalls) {
+        if (degradation == Degradation.ALL) {
+          LOG.debug("GitHub rate limit: " + remainingCalls + " calls remaining, " + neededCalls + " needed");
+        } else {
+          LOG.warn("GitHub rate limit: " + remainingCalls + " calls remaining, " + neededCalls + " needed to publish all results, "
+            + degradation.description + " (" + candidateCalls + " calls)");
+        }
+        return candidate;
+      }
+    }
+    LOG.warn("GitHub rate limit: " + remainingCalls + " calls remaining, " + neededCalls + " needed to publish all results, nothing is published");
+    return new PublicationPlan();
+  }
+
+  /**
+   * Merge the review comments expected at the same position, since GitHub would display them as two threads on the same line.
+   * Bodies are merged before they are tagged with the project, so that the merged body has a single tag. Bodies that would exceed
+   * the maximum size of a comment are omitted, and counted in a note.
+   * @param reservedSize room kept at the end of the merged bodies for the project tag
+   */
+  static PullRequestState mergeReviewComments(PullRequestState desired, int reservedSize) {
+    Map<String, List<PullRequestState.Comment>> desiredByLocation = new LinkedHashMap<>();
+    for (PullRequestState.Comment comment : desired.reviewComments()) {
+      desiredByLocation.computeIfAbsent(location(comment), l -> new ArrayList<>()).add(comment);
+    }
+    if (desiredByLocation.size() == desired.reviewComments().size()) {
+      return desired;
+    }
+    PullRequestState merged = new PullRequestState();
+    for (List<PullRequestState.Comment> comments : desiredByLocation.values()) {
+      PullRequestState.Comment first = comments.get(0);
+      if (comments.size() == 1) {
+        merged.addReviewComment(null, first.path(), first.position(), first.body(), first.severe());
+        continue;
+      }
+      MarkdownWriter writer = MarkdownWriter.truncating(comments.stream().mapToInt(c -> c.body().length() + MERGED_COMMENTS_SEPARATOR.length()).sum(), reservedSize);
+      boolean severe = false;
+      for (PullRequestState.Comment comment : comments) {
+        if (comment != first) {
+          writer.append(MERGED_COMMENTS_SEPARATOR);
+        }
+        writer.append(comment.body()).endEntry();
+        severe |= comment.severe();
+      }
+      merged.addReviewComment(null, first.path(), first.position(), writer.body(), severe);
+    }
+    for (PullRequestState.Comment comment : desired.globalComments()) {
+      merged.addGlobalComment(comment.id(), comment.body());
+    }
+    for (PullRequestState.Annotation annotation : desired.annotations()) {
+      merged.addAnnotation(annotation.path(), annotation.line(), annotation.severity(), annotation.message(), annotation.link());
+    }
+    PullRequestState.Status status = desired.status();
+    if (status != null) {
+      merged.setStatus(status.state(), status.description(), status.targetUrl());
+    }
+    return merged;
+  }
+
+  /**
+   * Review comments are expected at distinct positions, see {@link #mergeReviewComments(PullRequestState, int)}
+   */
+  private static void planReviewComments(PublicationPlan plan, PullRequestState desired, PullRequestState remote) {
+    Map<String, PullRequestState.Comment> remoteByLocation = new HashMap<>();
+    List<PullRequestState.Comment> outdated = new ArrayList<>();
+    for (PullRequestState.Comment comment : remote.reviewComments()) {
+      // Comments no longer visible in the diff, or duplicated at the same position, are outdated
+      if (comment.position() < 0 || remoteByLocation.putIfAbsent(location(comment), comment) != null) {
+        outdated.add(comment);
+      }
+    }
+    for (PullRequestState.Comment comment : desired.reviewComments()) {
+      PullRequestState.Comment existing = remoteByLocation.remove(location(comment));
+      if (existing == null) {
+        plan.add(Operation.reviewComment(Action.CREATE, null, comment.path(), comment.position(), comment.body(), comment.severe()));
+      } else if (existing.body().equals(comment.body())) {
+        plan.add(Operation.reviewComment(Action.NOOP, existing.id(), existing.path(), existing.position(), existing.body()));
+      } else {
+        plan.add(Operation.reviewComment(Action.UPDATE, existing.id(), existing.path(), existing.position(), comment.body(), comment.severe()));
+      }
+    }
+    outdated.addAll(remoteByLocation.values());
+    for (PullRequestState.Comment comment : outdated) {
+      plan.add(Operation.reviewComment(Action.DELETE, comment.id(), comment.path(), comment.position(), null));
+    }
+  }
+
+  private static String location(PullRequestState.Comment comment) {
+    return comment.path() + ":" + comment.position();
+  }
+
+  /**
+   * Existing comments are kept when they match the expected ones in the same order, others are deleted, and the missing ones are created
+   * after them.
+   */
+  private static void planGlobalComments(PublicationPlan plan, PullRequestState desired, PullRequestState remote) {
+    List<PullRequestState.Comment> expected = desired.globalComments();
+    int found = 0;
+    for (PullRequestState.Comment comment : remote.globalComments()) {
+      if (found < expected.size() && expected.get(found).body().equals(comment.body())) {
+        plan.add(Operation.globalComment(Action.NOOP, comment.id(), comment.body()));
+        found++;
+      } else {
+        plan.add(Operation.globalComment(Action.DELETE, comment.id(), null));
+      }
+    }
+    for (PullRequestState.Comment comment : expected.subList(found, expected.size())) {
+      plan.add(Operation.globalComment(Action.CREATE, null, comment.body()));
+    }
+  }
+
+  private static void planStatus(PublicationPlan plan, PullRequestState desired, PullRequestState remote) {
+    PullRequestState.Status expected = desired.status();
+    if (expected == null) {
+      return;
+    }
+    PullRequestState.Status existing = remote.status();
+    if (existing == null) {
+      plan.add(Operation.status(Action.CREATE, expected));
+    } else if (existing.state() == expected.state() && Objects.equals(existing.description(), expected.description())) {
+      plan.add(Operation.status(Action.NOOP, existing));
+    } else {
+      // Copy previous targetUrl in case it was set by an external system (like the CI job)
+      String targetUrl = expected.targetUrl() != null ? expected.targetUrl() : existing.targetUrl();
+      plan.add(Operation.status(Action.CREATE, new PullRequestState.Status(expected.state(), expected.description(), targetUrl)));
+    }
+  }
+
+}
@@ -0,0 +1,454 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.batch.rule.Severity;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Directory where analyses leave the results to publish on their pull request, for the {@link PublisherDaemon} running on the
+ * same machine. Each file holds the desired state of the pull request for a commit, with the properties of the analysis needed
+ * to publish it. Results waiting for the same pull request are coalesced: only the most recent results of each commit are kept, and
+ * the daemon publishes the ones of the commit at the head of the pull request.
+ */
+class PublicationSpool {
+
+  private static final Logger LOG = Loggers.get(PublicationSpool.class);
+
+  static final String EXTENSION = ".publication";
+  static final String FAILED_EXTENSION = ".failed";
+
+  private static final int MAGIC = 0x53475350;
+  private static final int VERSION = 1;
+
+  private final Path dir;
+
+  PublicationSpool(Path dir) {
+    this.dir = dir;
+  }
+
+  Path dir() {
+    return dir;
+  }
+
+  /**
+   * Results of an analysis waiting to be published
+   */
+  static class Publication {
+    private final String repository;
+    private final int pullRequestNumber;
+    private final String scope;
+    private final String headSha;
+    private final long createdAt;
+    private final Map<String, String> properties;
+    private final PullRequestState state;
+
+    /**
+     * @param scope project of the results when results are scoped by project, so that results of different projects are not coalesced, otherwise empty
+     * @param properties of the analysis, without credentials
+     */
+    Publication(String repository, int pullRequestNumber, String scope, String headSha, long createdAt, Map<String, String> properties,
+      @Nullable PullRequestState state) {
+      this.repository = repository;
+      this.pullRequestNumber = pullRequestNumber;
+      this.scope = scope;
+      this.headSha = headSha;
+      this.createdAt = createdAt;
+      this.properties = properties;
+      this.state = state;
+    }
+
+    String repository() {
+      return repository;
+    }
+
+    int pullRequestNumber() {
+      return pullRequestNumber;
+    }
+
+    String scope() {
+      return scope;
+    }
+
+    String headSha() {
+      return headSha;
+    }
+
+    long createdAt() {
+      return createdAt;
+    }
+
+    Map<String, String> properties() {
+      return Collections.unmodifiableMap(properties);
+    }
+
+    /**
+     * @return desired state of the pull request, null when only the header of the file was read
+     */
+    @CheckForNull
+    PullRequestState state() {
+      return state;
+    }
+
+    private String coalescingKey() {
+      return repository + "#" + pullRequestNumber + "#" + scope;
+    }
+
+    String commitKey() {
+      return coalescingKey() + "#" + headSha;
+    }
+
+    @Override
+    public String toString() {
+      return repository + "#" + pullRequestNumber + (scope.isEmpty() ? "" : (" (" + scope + ")")) + " at " + headSha;
+    }
+  }
+
+  /**
+   * Write the results atomically, the daemon never reads a partially written file.
+   * @return the written file
+   */
+  Path write(Publication publication) throws IOException {
+    Files.createDirectories(dir);
+    String name = publication.createdAt() + "-" + publication.repository().replaceAll("[^A-Za-z0-9._-]", "_") + "-" + publication.pullRequestNumber();
+    Path tmp = Files.createTempFile(dir, name, ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+      writeHeader(out, publication);
+      writeState(out, publication.state());
+    }
+    // Name of the temporary file is unique, so concurrent analyses of the same pull request never overwrite each other
+    String tmpName = tmp.getFileName().toString();
+    Path file = dir.resolve(tmpName.substring(0, tmpName.length() - ".tmp".length()) + EXTENSION);
+    Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+    return file;
+  }
+
+  private static void writeHeader(DataOutputStream out, Publication publication) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeByte(VERSION);
+    out.writeUTF(publication.repository());
+    out.writeInt(publication.pullRequestNumber());
+    out.writeUTF(publication.scope());
+    out.writeUTF(publication.headSha());
+    out.writeLong(publication.createdAt());
+    out.writeInt(publication.properties().size());
+    for (Map.Entry<String, String> property : publication.properties().entrySet()) {
+      out.writeUTF(property.getKey());
+      writeString(out, property.getValue());
+    }
+  }
+
+  private static void writeState(DataOutputStream out, @Nullable PullRequestState state) throws IOException {
+    if (state == null) {
+      throw new IllegalArgumentException("Only results with a state can be spooled");
+    }
+    out.writeInt(state.reviewComments().size());
+    for (PullRequestState.Comment comment : state.reviewComments()) {
+      out.writeUTF(comment.path());
+      out.writeInt(comment.position());
+      writeString(out, comment.body());
+      out.writeBoolean(comment.severe());
+    }
+    out.writeInt(state.globalComments().size());
+    for (PullRequestState.Comment comment : state.globalComments()) {
+      writeString(out, comment.body());
+    }
+    out.writeInt(state.annotations().size());
+    for (PullRequestState.Annotation annotation : state.annotations()) {
+      out.writeUTF(annotation.path());
+      out.writeInt(annotation.line());
+      out.writeByte(annotation.severity().ordinal());
+      writeString(out, annotation.message());
+      writeNullable(out, annotation.link());
+    }
+    PullRequestState.Status status = state.status();
+    out.writeBoolean(status != null);
+    if (status != null) {
+      out.writeByte(status.state().ordinal());
+      writeNullable(out, status.description());
+      writeNullable(out, status.targetUrl());
+    }
+  }
+
+  /**
+   * Results waiting for the same pull request, at most one per commit. The time an analysis ends does not tell which commit is
+   * the most recent one, so only the head of the pull request tells which results to publish.
+   */
+  static class PendingPullRequest {
+    private final Map<Path, Publication> publicationByFile = new LinkedHashMap<>();
+
+    private PendingPullRequest(List<Map.Entry<Path, Publication>> latestOfEachCommit) {
+      latestOfEachCommit.sort((a, b) -> Long.compare(b.getValue().createdAt(), a.getValue().createdAt()));
+      for (Map.Entry<Path, Publication> entry : latestOfEachCommit) {
+        publicationByFile.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    /**
+     * @return header of the results written last, to connect to the pull request with the properties of its analysis
+     */
+    Publication latest() {
+      return publicationByFile.values().iterator().next();
+    }
+
+    /**
+     * @return file of the results of the commit, or null when it was not analyzed
+     */
+    @CheckForNull
+    Path fileOf(String headSha) {
+      for (Map.Entry<Path, Publication> entry : publicationByFile.entrySet()) {
+        if (entry.getValue().headSha().equals(headSha)) {
+          return entry.getKey();
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return files of the results, the most recently written first
+     */
+    Collection<Path> files() {
+      return Collections.unmodifiableSet(publicationByFile.keySet());
+    }
+
+    private long createdAt() {
+      return latest().createdAt();
+    }
+  }
+
+  /**
+   * Results to publish, grouped by pull request. Older results of the same commit are deleted, as they would be overwritten anyway.
+   * Repositories take turns, so that a repository with many busy pull requests does not delay the others, and within a repository
+   * the oldest results come first.
+   */
+  List<PendingPullRequest> pending() throws IOException {
+    Map<String, Path> latestFiles = new HashMap<>();
+    Map<String, Publication> latest = new HashMap<>();
+    if (!Files.isDirectory(dir)) {
+      return Collections.emptyList();
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + EXTENSION)) {
+      for (Path file : files) {
+        Publication publication = readHeader(file);
+        if (publication == null) {
+          continue;
+        }
+        String key = publication.commitKey();
+        Publication previous = latest.get(key);
+        if (previous == null || isMoreRecent(publication, file, previous, latestFiles.get(key))) {
+          if (previous != null) {
+            coalesce(latestFiles.get(key), previous, publication);
+          }
+          latest.put(key, publication);
+          latestFiles.put(key, file);
+        } else {
+          coalesce(file, publication, previous);
+        }
+      }
+    }
+    Map<String, List<Map.Entry<Path, Publication>>> commitsByPullRequest = new HashMap<>();
+    for (Map.Entry<String, Publication> commit : latest.entrySet()) {
+      commitsByPullRequest.computeIfAbsent(commit.getValue().coalescingKey(), k -> new ArrayList<>())
+        .add(new AbstractMap.SimpleImmutableEntry<>(latestFiles.get(commit.getKey()), commit.getValue()));
+    }
+    List<PendingPullRequest> pullRequests = new ArrayList<>();
+    for (List<Map.Entry<Path, Publication>> commits : commitsByPullRequest.values()) {
+      pullRequests.add(new PendingPullRequest(commits));
+    }
+    return fairOrder(pullRequests);
+  }
+
+  private static boolean isMoreRecent(Publication publication, Path file, Publication other, Path otherFile) {
+    if (publication.createdAt() != other.createdAt()) {
+      return publication.createdAt() > other.createdAt();
+    }
+    return file.getFileName().toString().compareTo(otherFile.getFileName().toString()) > 0;
+  }
+
+  private static void coalesce(Path file, Publication older, Publication newer) throws IOException {
+    LOG.info("Results of " + older + " are superseded by the results of " + newer + ", they are not published");
+    Files.deleteIfExists(file);
+  }
+
+  private static List<PendingPullRequest> fairOrder(List<PendingPullRequest> pullRequests) {
+    pullRequests.sort(Comparator.comparingLong(PendingPullRequest::createdAt));
+    // Repositories in the order of their oldest results
+    Map<String, Deque<PendingPullRequest>> byRepository = new LinkedHashMap<>();
+    for (PendingPullRequest pullRequest : pullRequests) {
+      byRepository.computeIfAbsent(pullRequest.latest().repository(), r -> new ArrayDeque<>()).add(pullRequest);
+    }
+    List<PendingPullRequest> ordered = new ArrayList<>(pullRequests.size());
+    while (!byRepository.isEmpty()) {
+      byRepository.values().removeIf(queue -> {
+        ordered.add(queue.poll());
+        return queue.isEmpty();
+      });
+    }
+    return ordered;
+  }
+
+  /**
+   * @return null when the file is not readable, it is then renamed so that it is not read again
+   */
+  @CheckForNull
+  private Publication readHeader(Path file) {
+    try (DataInputStream in = open(file)) {
+      return readHeader(in, file);
+    } catch (NoSuchFileException e) {
+      // Published meanwhile
+      return null;
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Unable to read results to publish " + file + ": " + e.getMessage());
+      fail(file);
+      return null;
+    }
+  }
+
+  /**
+   * @return results with the desired state of the pull request
+   */
+  Publication read(Path file) throws IOException {
+    try (DataInputStream in = open(file)) {
+      Publication header = readHeader(in, file);
+      return new Publication(header.repository(), header.pullRequestNumber(), header.scope(), header.headSha(), header.createdAt(), header.properties,
+        readState(in));
+    }
+  }
+
+  private static DataInputStream open(Path file) throws IOException {
+    return new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))));
+  }
+
+  private static Publication readHeader(DataInputStream in, Path file) throws IOException {
+    if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+      throw new IllegalStateException("Unsupported format of results to publish " + file);
+    }
+    String repository = in.readUTF();
+    int pullRequestNumber = in.readInt();
+    String scope = in.readUTF();
+    String headSha = in.readUTF();
+    long createdAt = in.readLong();
+    int count = in.readInt();
+    Map<String, String> properties = new LinkedHashMap<>();
+    for (int i = 0; i < count; i++) {
+      properties.put(in.readUTF(), readString(in));
+    }
+    return new Publication(repository, pullRequestNumber, scope, headSha, createdAt, properties, null);
+  }
+
+  private static PullRequestState readState(DataInputStream in) throws IOException {
+    PullRequestState state = new PullRequestState();
+    int reviewComments = in.readInt();
+    for (int i = 0; i < reviewComments; i++) {
+      String path = in.readUTF();
+      int position = in.readInt();
+      state.addReviewComment(null, path, position, readString(in), in.readBoolean());
+    }
+    int globalComments = in.readInt();
+    for (int i = 0; i < globalComments; i++) {
+      state.addGlobalComment(null, readString(in));
+    }
+    int annotations = in.readInt();
+    for (int i = 0; i < annotations; i++) {
+      String path = in.readUTF();
+      int line = in.readInt();
+      Severity severity = Severity.values()[in.readByte()];
+      state.addAnnotation(path, line, severity, readString(in), readNullable(in));
+    }
+    if (in.readBoolean()) {
+      CommitState commitState = CommitState.values()[in.readByte()];
+      state.setStatus(commitState, readNullable(in), readNullable(in));
+    }
+    return state;
+  }
+
+  /**
+   * The results are published, or not needed anymore
+   */
+  void delete(Path file) throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  /**
+   * Keep the results that could not be published for investigation, without trying again to publish them
+   */
+  void fail(Path file) {
+    try {
+      Files.move(file, file.resolveSibling(file.getFileName() + FAILED_EXTENSION), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      LOG.warn("Unable to rename results that could not be published " + file + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Comments can be longer than the 64KB supported by {@link DataOutputStream#writeUTF(String)}
+   */
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeNullable(DataOutputStream out, @Nullable String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      writeString(out, value);
+    }
+  }
+
+  @CheckForNull
+  private static String readNullable(DataInputStream in) throws IOException {
+    return in.readBoolean() ? readString(in) : null;
+  }
+
+}
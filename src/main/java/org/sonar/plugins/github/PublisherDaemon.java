@@ -0,0 +1,218 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Publishes on GitHub the results left in a spool directory by the analyses running on the same machine, see
+ * {@link GitHubPlugin#GITHUB_SPOOL_DIR}. Analyses end as soon as their results are written, and the daemon keeps from one
+ * publication to the next the connection to GitHub and the login of its user. Results waiting for the same pull request are
+ * coalesced, and results of a commit that is not the head of the pull request anymore are discarded. Results that could not be
+ * published are retried with an exponential back-off, and given up after {@link #MAX_ATTEMPTS} attempts.
+ * <p>
+ * Started with the plugin and the SonarQube plugin API on the classpath:
+ * <pre>java -cp sonar-github-plugin.jar:sonar-plugin-api.jar org.sonar.plugins.github.PublisherDaemon &lt;spool directory&gt; &lt;properties file&gt;</pre>
+ * The properties file holds the same GitHub properties as an analysis, credentials included. Properties of each analysis,
+ * like the repository and the publish mode, are written with its results.
+ */
+public class PublisherDaemon {
+
+  private static final Logger LOG = Loggers.get(PublisherDaemon.class);
+
+  static final long POLL_INTERVAL_MS = 1000L;
+  static final int MAX_ATTEMPTS = 5;
+  // Doubled after each failed attempt
+  static final long FIRST_RETRY_DELAY_MS = 10_000L;
+
+  private final Map<String, String> properties;
+  private final PublicationSpool spool;
+  private final Function<GitHubPluginConfiguration, GitHubPullRequestHost> hosts;
+  private final LongSupplier clock;
+  // Failed attempts by commit of a pull request, kept until the results are published, given up, or replaced by the ones of another commit
+  private final Map<String, FailedAttempts> failedAttemptsByCommit = new HashMap<>();
+
+  /**
+   * @param properties of the daemon, like the credentials and the endpoint of GitHub
+   * @param hosts creates the host of the pull request of each publication
+   */
+  PublisherDaemon(Map<String, String> properties, PublicationSpool spool, Function<GitHubPluginConfiguration, GitHubPullRequestHost> hosts) {
+    this(properties, spool, hosts, System::currentTimeMillis);
+  }
+
+  PublisherDaemon(Map<String, String> properties, PublicationSpool spool, Function<GitHubPluginConfiguration, GitHubPullRequestHost> hosts,
+    LongSupplier clock) {
+    this.properties = properties;
+    this.spool = spool;
+    this.hosts = hosts;
+    this.clock = clock;
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length != 2) {
+      throw new IllegalArgumentException("Usage: PublisherDaemon <spool directory> <properties file>");
+    }
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(Paths.get(args[1]))) {
+      properties.load(in);
+    }
+    Map<String, String> daemonProperties = new LinkedHashMap<>();
+    for (String key : properties.stringPropertyNames()) {
+      daemonProperties.put(key, properties.getProperty(key));
+    }
+    PublisherDaemon daemon = new PublisherDaemon(daemonProperties, new PublicationSpool(Paths.get(args[0])), new GitHubHosts());
+    LOG.info("Publishing results left in " + args[0]);
+    while (!Thread.currentThread().isInterrupted()) {
+      if (daemon.runOnce() == 0) {
+        Thread.sleep(POLL_INTERVAL_MS);
+      }
+    }
+  }
+
+  /**
+   * Publish all the results waiting in the spool directory, in the fair order of {@link PublicationSpool#pending()}. Results whose
+   * last attempt failed are skipped until their next attempt is due.
+   * @return number of pull requests whose results were attempted
+   */
+  int runOnce() throws IOException {
+    List<PublicationSpool.PendingPullRequest> pullRequests = spool.pending();
+    Set<String> pendingCommits = new HashSet<>();
+    int attempted = 0;
+    for (PublicationSpool.PendingPullRequest pullRequest : pullRequests) {
+      String commit = pullRequest.latest().commitKey();
+      pendingCommits.add(commit);
+      FailedAttempts failedAttempts = failedAttemptsByCommit.get(commit);
+      if (failedAttempts == null || failedAttempts.nextAttemptMs <= clock.getAsLong()) {
+        publish(pullRequest);
+        attempted++;
+      }
+    }
+    failedAttemptsByCommit.keySet().retainAll(pendingCommits);
+    return attempted;
+  }
+
+  /**
+   * Publish the results of the commit at the head of the pull request, results of other commits are discarded
+   */
+  private void publish(PublicationSpool.PendingPullRequest pullRequest) {
+    try {
+      PublicationSpool.Publication latest = pullRequest.latest();
+      GitHubPullRequestHost host = hosts.apply(new GitHubPluginConfiguration(settingsOf(latest)));
+      host.loadForPublication(latest.pullRequestNumber());
+      String headSha = host.analyzedSha();
+      Path published = headSha != null ? pullRequest.fileOf(headSha) : null;
+      if (published != null) {
+        PublicationSpool.Publication publication = spool.read(published);
+        LOG.info("Publishing results of " + publication);
+        host.publish(publication.state());
+      }
+      for (Path file : pullRequest.files()) {
+        if (!file.equals(published)) {
+          LOG.info("Results " + file + " are not published, the head of the pull request is now " + headSha);
+        }
+        spool.delete(file);
+      }
+      failedAttemptsByCommit.remove(pullRequest.latest().commitKey());
+    } catch (IOException | RuntimeException e) {
+      failed(pullRequest, e);
+    }
+  }
+
+  /**
+   * Failures are usually transient, like an unavailable or rate limited GitHub: files are kept for a later attempt, until the last one
+   */
+  private void failed(PublicationSpool.PendingPullRequest pullRequest, Exception e) {
+    String commit = pullRequest.latest().commitKey();
+    FailedAttempts failedAttempts = failedAttemptsByCommit.computeIfAbsent(commit, c -> new FailedAttempts());
+    failedAttempts.count++;
+    if (failedAttempts.count >= MAX_ATTEMPTS) {
+      LOG.error("Unable to publish results of " + pullRequest.latest() + ", given up after " + failedAttempts.count + " attempts", e);
+      failedAttemptsByCommit.remove(commit);
+      for (Path file : pullRequest.files()) {
+        spool.fail(file);
+      }
+      return;
+    }
+    long delayMs = FIRST_RETRY_DELAY_MS << (failedAttempts.count - 1);
+    failedAttempts.nextAttemptMs = clock.getAsLong() + delayMs;
+    LOG.warn("Unable to publish results of " + pullRequest.latest() + ", next attempt in " + (delayMs / 1000) + "s: " + e.getMessage());
+    LOG.debug("Publication failure", e);
+  }
+
+  private static class FailedAttempts {
+    private int count;
+    private long nextAttemptMs;
+  }
+
+  /**
+   * Properties of the analysis override the ones of the daemon, except the credentials that are never written with the results
+   */
+  private Settings settingsOf(PublicationSpool.Publication publication) {
+    Settings settings = new Settings(new PropertyDefinitions(GitHubPlugin.class));
+    settings.addProperties(properties);
+    settings.addProperties(publication.properties());
+    return settings;
+  }
+
+  /**
+   * Hosts sharing a single connection to GitHub. Connections authenticated with a GitHub App or a pool of tokens are not shared,
+   * as their token depends on the publication: installation tokens are cached on disk, and the pool selects a token per pull request.
+   */
+  private static class GitHubHosts implements Function<GitHubPluginConfiguration, GitHubPullRequestHost> {
+    private GitHubClient github;
+
+    @Override
+    public GitHubPullRequestHost apply(GitHubPluginConfiguration config) {
+      if (config.isGitHubApp() || config.oauthTokens().size() > 1) {
+        return new GitHubPullRequestHost(config);
+      }
+      if (github == null) {
+        github = connect(config);
+      }
+      return new GitHubPullRequestHost(config, github);
+    }
+
+    private static GitHubClient connect(GitHubPluginConfiguration config) {
+      HttpConnector connector = HttpConnector.DEFAULT;
+      if (config.hostCallsPerMinute() > 0) {
+        connector = HostRateLimiter.forEndpoint(config.endpoint(), config.hostCallsPerMinute());
+      }
+      return new GitHubClient(config.endpoint(), config.singleOauthToken(), connector);
+    }
+  }
+
+}
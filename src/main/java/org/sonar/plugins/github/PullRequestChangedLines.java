@@ -0,0 +1,93 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.CheckForNull;
+import org.sonar.api.batch.BatchSide;
+import org.sonar.api.batch.InstantiationStrategy;
+import org.sonar.api.batch.fs.InputFile;
+
+/**
+ * Tell which lines of a file are part of the diff of the analyzed pull request, so that sensors of other plugins can skip
+ * expensive work on code that is not in the pull request. The plugin itself doesn't use it.
+ * Lines are the ones "visible" in the diff, that is added lines and the context lines around them: this is where
+ * review comments can be posted, not only the lines modified by the pull request.
+ * When no pull request is analyzed, or when lines of the diff are not loaded because issues are not reported
+ * inline, every line of every file is considered as part of the diff.
+ */
+@BatchSide
+@InstantiationStrategy(InstantiationStrategy.PER_BATCH)
+public class PullRequestChangedLines {
+
+  private static final BitSet NOT_CHANGED = new BitSet(0);
+
+  private final GitHubPluginConfiguration config;
+  private final PullRequestFacade pullRequestFacade;
+  private final Map<InputFile, BitSet> linesByFile = new ConcurrentHashMap<>();
+
+  public PullRequestChangedLines(GitHubPluginConfiguration config, PullRequestFacade pullRequestFacade) {
+    this.config = config;
+    this.pullRequestFacade = pullRequestFacade;
+  }
+
+  private boolean isRestricted() {
+    return config.isEnabled() && config.tryReportIssuesInline();
+  }
+
+  /**
+   * Test if the file is added/modified by the pull request
+   */
+  public boolean isChanged(InputFile inputFile) {
+    return !config.isEnabled() || pullRequestFacade.hasFile(inputFile);
+  }
+
+  /**
+   * Test if the line of the file is visible in the diff of the pull request (added or context line)
+   */
+  public boolean isInDiff(InputFile inputFile, int line) {
+    if (!isRestricted()) {
+      return isChanged(inputFile);
+    }
+    return lines(inputFile).get(line);
+  }
+
+  /**
+   * @return a copy of the lines of the file that are visible in the diff (added and context lines), or null if all lines
+   * have to be considered as part of the diff
+   */
+  @CheckForNull
+  public BitSet diffLines(InputFile inputFile) {
+    if (!isRestricted()) {
+      return isChanged(inputFile) ? null : new BitSet(0);
+    }
+    return (BitSet) lines(inputFile).clone();
+  }
+
+  private BitSet lines(InputFile inputFile) {
+    return linesByFile.computeIfAbsent(inputFile, f -> {
+      BitSet lines = pullRequestFacade.diffLines(f);
+      return lines != null ? lines : NOT_CHANGED;
+    });
+  }
+
+}
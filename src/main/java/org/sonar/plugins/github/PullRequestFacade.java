@@ -21,28 +21,20 @@ package org.sonar.plugins.github;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.StringReader;
-import java.util.HashMap;
-import java.util.List;
+import java.nio.file.Path;
+import java.util.BitSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
-import org.kohsuke.github.GHCommitState;
-import org.kohsuke.github.GHCommitStatus;
-import org.kohsuke.github.GHIssueComment;
-import org.kohsuke.github.GHPullRequest;
-import org.kohsuke.github.GHPullRequestFileDetail;
-import org.kohsuke.github.GHPullRequestReviewComment;
-import org.kohsuke.github.GHRepository;
-import org.kohsuke.github.GitHub;
-import org.kohsuke.github.GitHubBuilder;
 import org.sonar.api.batch.BatchSide;
 import org.sonar.api.batch.InstantiationStrategy;
 import org.sonar.api.batch.fs.InputComponent;
+import org.sonar.api.batch.fs.FileSystem;
 import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.batch.fs.InputPath;
 import org.sonar.api.scan.filesystem.PathResolver;
@@ -51,7 +43,7 @@ import org.sonar.api.utils.log.Logger;
 import org.sonar.api.utils.log.Loggers;
 
 /**
- * Facade for all WS interaction with GitHub.
+ * Facade for all WS interaction with the service hosting the pull request, GitHub or Bitbucket Server.
  */
 @BatchSide
 @InstantiationStrategy(InstantiationStrategy.PER_BATCH)
@@ -59,16 +51,16 @@ public class PullRequestFacade {
 
   private static final Logger LOG = Loggers.get(PullRequestFacade.class);
 
-  static final String COMMIT_CONTEXT = "sonarqube";
+  private static final Pattern HUNK_HEADER_PATTERN = Pattern
+    .compile("@@\\p{IsWhite_Space}-[0-9]+(?:,[0-9]+)?\\p{IsWhite_Space}\\+([0-9]+)(?:,[0-9]+)?\\p{IsWhite_Space}@@.*");
 
   private final GitHubPluginConfiguration config;
-  private Map<String, Map<Integer, Integer>> patchPositionMappingByFile;
-  private Map<String, Map<Integer, GHPullRequestReviewComment>> existingReviewCommentsByLocationByFile = new HashMap<>();
-  private GHRepository ghRepo;
-  private GHPullRequest pr;
-  private Map<Integer, GHPullRequestReviewComment> reviewCommentToBeDeletedById = new HashMap<>();
+  private PullRequestHost host;
+  // Same as the host on GitHub, for the operations only GitHub supports. Null on Bitbucket Server
+  private GitHubPullRequestHost gitHubHost;
+  // Null when the files of the pull request are not read, in publish mode STATUS_ONLY
+  private PatchPositionIndex patchPositionIndex;
   private File gitBaseDir;
-  private String myself;
 
   public PullRequestFacade(GitHubPluginConfiguration config) {
     this.config = config;
@@ -76,20 +68,51 @@ public class PullRequestFacade {
 
   public void init(int pullRequestNumber, File projectBaseDir) {
     initGitBaseDir(projectBaseDir);
+    if (config.spoolDir() != null && config.isBitbucket()) {
+      throw MessageException.of("Results can only be left for the publisher daemon when the pull request is on GitHub. Please remove property "
+        + GitHubPlugin.GITHUB_SPOOL_DIR + ".");
+    }
+    if (config.codeScanningUpload() && config.isBitbucket()) {
+      throw MessageException.of("GitHub code scanning is not available on Bitbucket Server. Please remove property " + GitHubPlugin.GITHUB_CODE_SCANNING_UPLOAD + ".");
+    }
+    if (host == null) {
+      if (config.isBitbucket()) {
+        host = new BitbucketPullRequestHost(config);
+      } else {
+        setHost(new GitHubPullRequestHost(config));
+      }
+    }
     try {
-      GitHub github = new GitHubBuilder().withEndpoint(config.endpoint()).withOAuthToken(config.oauth()).build();
-      setGhRepo(github.getRepository(config.repository()));
-      setPr(ghRepo.getPullRequest(pullRequestNumber));
-      LOG.info("Starting analysis of pull request: " + pr.getHtmlUrl());
-      myself = github.getMyself().getLogin();
-      loadExistingReviewComments();
-      patchPositionMappingByFile = mapPatchPositionsToLines(pr);
+      patchPositionIndex = host.load(pullRequestNumber, checkedOutSha());
     } catch (IOException e) {
-      LOG.debug("Unable to perform GitHub WS operation", e);
-      throw MessageException.of("Unable to perform GitHub WS operation: " + e.getMessage());
+      LOG.debug("Unable to perform WS operation", e);
+      throw MessageException.of("Unable to perform WS operation: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Release the index of the diff, once the issues are published
+   */
+  public void close() {
+    if (patchPositionIndex != null) {
+      try {
+        patchPositionIndex.close();
+      } catch (IOException e) {
+        LOG.debug("Unable to release the index of the pull request diff", e);
+      }
+      patchPositionIndex = null;
     }
   }
 
+  void setHost(PullRequestHost host) {
+    this.host = host;
+  }
+
+  void setHost(GitHubPullRequestHost host) {
+    this.host = host;
+    this.gitHubHost = host;
+  }
+
   void initGitBaseDir(File projectBaseDir) {
     File detectedGitBaseDir = findGitBaseDir(projectBaseDir);
     if (detectedGitBaseDir == null) {
@@ -100,12 +123,18 @@ public class PullRequestFacade {
     }
   }
 
-  void setGhRepo(GHRepository ghRepo) {
-    this.ghRepo = ghRepo;
+  /**
+   * A CI job that waited in a queue may check out a commit older than the head of the pull request
+   */
+  @CheckForNull
+  private String checkedOutSha() {
+    String revision = config.revision();
+    return revision != null ? revision : GitHead.read(gitBaseDir);
   }
 
-  void setPr(GHPullRequest pr) {
-    this.pr = pr;
+  @CheckForNull
+  String analyzedSha() {
+    return host.analyzedSha();
   }
 
   public File findGitBaseDir(@Nullable File baseDir) {
@@ -122,46 +151,34 @@ public class PullRequestFacade {
     this.gitBaseDir = gitBaseDir;
   }
 
-  /**
-   * Load all previous comments made by provided github account.
-   */
-  private void loadExistingReviewComments() throws IOException {
-    for (GHPullRequestReviewComment comment : pr.listReviewComments()) {
-      if (!myself.equals(comment.getUser().getLogin())) {
-        // Ignore comments from other users
-        continue;
-      }
-      if (!existingReviewCommentsByLocationByFile.containsKey(comment.getPath())) {
-        existingReviewCommentsByLocationByFile.put(comment.getPath(), new HashMap<Integer, GHPullRequestReviewComment>());
-      }
-      // By default all previous comments will be marked for deletion
-      reviewCommentToBeDeletedById.put(comment.getId(), comment);
-      existingReviewCommentsByLocationByFile.get(comment.getPath()).put(comment.getPosition(), comment);
+  @FunctionalInterface
+  interface PatchPositionConsumer {
+    void accept(int line, int position);
+
+    default void startHunk(int position) {
+      // hunk boundaries are not needed by default
     }
   }
 
-  /**
-   * GitHub expect review comments to be added on "patch lines" (aka position) but not on file lines.
-   * So we have to iterate over each patch and compute corresponding file line in order to later map issues to the correct position.
-   * @return Map File path -> Line -> Position
-   */
-  private Map<String, Map<Integer, Integer>> mapPatchPositionsToLines(GHPullRequest pr) throws IOException {
-    Map<String, Map<Integer, Integer>> result = new HashMap<>();
-    for (GHPullRequestFileDetail file : pr.listFiles()) {
-      Map<Integer, Integer> patchLocationMapping = new HashMap<>();
-      result.put(file.getFilename(), patchLocationMapping);
-      if (config.tryReportIssuesInline()) {
-        String patch = file.getPatch();
-        if (patch == null) {
-          continue;
-        }
-        processPatch(patchLocationMapping, patch);
+  static PatchPositionConsumer indexer(PatchPositionIndex index) {
+    return new PatchPositionConsumer() {
+      @Override
+      public void accept(int line, int position) {
+        index.add(line, position);
       }
-    }
-    return result;
+
+      @Override
+      public void startHunk(int position) {
+        index.addHunk(position);
+      }
+    };
   }
 
   static void processPatch(Map<Integer, Integer> patchLocationMapping, String patch) throws IOException {
+    processPatch(patchLocationMapping::put, patch);
+  }
+
+  static void processPatch(PatchPositionConsumer patchLocationMapping, String patch) throws IOException {
     int currentLine = -1;
     int patchLocation = 0;
     BufferedReader reader = new BufferedReader(new StringReader(patch));
@@ -169,16 +186,17 @@ public class PullRequestFacade {
     while ((line = reader.readLine()) != null) {
       if (line.startsWith("@")) {
         // http://en.wikipedia.org/wiki/Diff_utility#Unified_format
-        Matcher matcher = Pattern.compile("@@\\p{IsWhite_Space}-[0-9]+(?:,[0-9]+)?\\p{IsWhite_Space}\\+([0-9]+)(?:,[0-9]+)?\\p{IsWhite_Space}@@.*").matcher(line);
+        Matcher matcher = HUNK_HEADER_PATTERN.matcher(line);
         if (!matcher.matches()) {
           throw new IllegalStateException("Unable to parse patch line " + line + "\nFull patch: \n" + patch);
         }
         currentLine = Integer.parseInt(matcher.group(1));
+        patchLocationMapping.startHunk(patchLocation);
       } else if (line.startsWith("-")) {
         // Skip removed lines
       } else if (line.startsWith("+") || line.startsWith(" ")) {
         // Count added and unmodified lines
-        patchLocationMapping.put(currentLine, patchLocation);
+        patchLocationMapping.accept(currentLine, patchLocation);
         currentLine++;
       } else if (line.startsWith("\\")) {
         // I'm only aware of \ No newline at end of file
@@ -189,121 +207,139 @@ public class PullRequestFacade {
   }
 
   String getPath(InputPath inputPath) {
-    return new PathResolver().relativePath(gitBaseDir, inputPath.file());
+    return getPath(inputPath.file());
+  }
+
+  /**
+   * @return path relative to the Git root directory, or null if the file is not inside it
+   */
+  @CheckForNull
+  String getPath(File file) {
+    return new PathResolver().relativePath(gitBaseDir, file);
+  }
+
+  /**
+   * @return file at the path relative to the Git root directory, for the issues of files analyzed by another shard of the pull request.
+   * Null when the file is not indexed by this analysis, its issues being then reported in the global comment.
+   */
+  @CheckForNull
+  InputFile inputFile(FileSystem fileSystem, String path) {
+    InputFile inputFile = fileSystem.inputFile(fileSystem.predicates().hasAbsolutePath(new File(gitBaseDir, path).getAbsolutePath()));
+    if (inputFile == null) {
+      LOG.debug("File " + path + " of a pull request shard is not indexed by this analysis, its issues are reported in the global comment");
+    }
+    return inputFile;
+  }
+
+  /**
+   * Paths, relative to the Git root directory, of all files added/modified/removed by the P/R
+   */
+  public Set<String> changedFiles() {
+    if (patchPositionIndex == null) {
+      throw new IllegalStateException("Files of the pull request are not read in publish mode " + config.publishMode());
+    }
+    return patchPositionIndex.files();
   }
 
   /**
-   * Test if the P/R contains the provided file path (ie this file was added/modified/updated)
+   * Test if the P/R contains the provided file path (ie this file was added/modified/updated). All files are considered
+   * as contained when the files of the P/R are not read.
    */
   public boolean hasFile(InputFile inputFile) {
-    return patchPositionMappingByFile.containsKey(getPath(inputFile));
+    return patchPositionIndex == null || patchPositionIndex.hasFile(getPath(inputFile));
   }
 
   /**
    * Test if the P/R contains the provided line for the file path (ie this line is "visible" in diff)
    */
   public boolean hasFileLine(InputFile inputFile, int line) {
-    return patchPositionMappingByFile.get(getPath(inputFile)).containsKey(line);
+    return position(inputFile, line) >= 0;
   }
 
-  public void createOrUpdateReviewComment(InputFile inputFile, Integer line, String body) {
-    String fullpath = getPath(inputFile);
-    Integer lineInPatch = patchPositionMappingByFile.get(fullpath).get(line);
-    try {
-      if (existingReviewCommentsByLocationByFile.containsKey(fullpath) && existingReviewCommentsByLocationByFile.get(fullpath).containsKey(lineInPatch)) {
-        GHPullRequestReviewComment existingReview = existingReviewCommentsByLocationByFile.get(fullpath).get(lineInPatch);
-        if (!existingReview.getBody().equals(body)) {
-          existingReview.update(body);
-        }
-        reviewCommentToBeDeletedById.remove(existingReview.getId());
-      } else {
-        pr.createReviewComment(body, pr.getHead().getSha(), fullpath, lineInPatch);
-      }
-    } catch (IOException e) {
-      throw new IllegalStateException("Unable to create or update review comment in file " + fullpath + " at line " + line, e);
-    }
+  /**
+   * @return lines of the file that are "visible" in diff, or null if the P/R does not contain the file
+   */
+  @CheckForNull
+  public BitSet diffLines(InputFile inputFile) {
+    return patchPositionIndex == null ? null : patchPositionIndex.lines(getPath(inputFile));
+  }
 
+  /**
+   * @return index of the diff hunk containing the line of the file, or -1 if the line is not "visible" in diff
+   */
+  public int hunk(InputFile inputFile, int line) {
+    return patchPositionIndex == null ? -1 : patchPositionIndex.hunk(getPath(inputFile), line);
   }
 
-  public void deleteOutdatedComments() {
-    for (GHPullRequestReviewComment reviewToDelete : reviewCommentToBeDeletedById.values()) {
-      try {
-        reviewToDelete.delete();
-      } catch (IOException e) {
-        throw new IllegalStateException("Unable to delete review comment with id " + reviewToDelete.getId(), e);
-      }
-    }
+  /**
+   * @return position of the line in the patch of the file, as expected by GitHub for review comments, or -1 if the line is not "visible" in diff
+   */
+  public int position(InputFile inputFile, int line) {
+    return patchPositionIndex == null ? -1 : patchPositionIndex.position(getPath(inputFile), line);
   }
 
-  public void createOrUpdateGlobalComments(@Nullable String markup) {
-    try {
-      boolean found = findAndDeleteOthers(markup);
-      if (markup != null && !found) {
-        pr.comment(markup);
-      }
-    } catch (IOException e) {
-      throw new IllegalStateException("Unable to read the pull request comments", e);
+  /**
+   * Compare the expected state of the pull request with the current one, and publish the differences. In dry run mode,
+   * nothing is published. When a spool directory is configured, the expected state is left there for the publisher daemon instead.
+   */
+  public void publish(PullRequestState desired) {
+    File spoolDir = config.spoolDir();
+    if (spoolDir != null) {
+      spool(spoolDir, desired);
+    } else {
+      host.publish(desired);
     }
   }
 
-  private boolean findAndDeleteOthers(String markup) throws IOException {
-    boolean found = false;
-    for (GHIssueComment comment : pr.listComments()) {
-      if (myself.equals(comment.getUser().getLogin())) {
-        if (markup == null || found || !markup.equals(comment.getBody())) {
-          comment.delete();
-          continue;
-        }
-        if (markup.equals(comment.getBody())) {
-          found = true;
-        }
-      }
+  /**
+   * Like {@link #publish(PullRequestState)}, with review comments published as they are rendered when the host allows it
+   */
+  public void publish(PullRequestState desired, ReviewCommentQueue reviewComments) {
+    File spoolDir = config.spoolDir();
+    if (spoolDir != null) {
+      spool(spoolDir, reviewComments.drainInto(desired));
+    } else {
+      host.publish(desired, reviewComments);
     }
-    return found;
   }
 
-  public void createOrUpdateSonarQubeStatus(GHCommitState status, String statusDescription) {
+  private void spool(File spoolDir, PullRequestState desired) {
+    String scope = config.scopeByProject() ? config.projectKey() : "";
+    PublicationSpool.Publication publication = new PublicationSpool.Publication(config.repository(), config.pullRequestNumber(), scope, host.analyzedSha(),
+      System.currentTimeMillis(), config.publicationProperties(), desired);
     try {
-      // Copy previous targetUrl in case it was set by an external system (like the CI job).
-      String targetUrl = null;
-      GHCommitStatus lastStatus = getCommitStatusForContext(pr, COMMIT_CONTEXT);
-      if (lastStatus != null) {
-        targetUrl = lastStatus.getTargetUrl();
-      }
-      ghRepo.createCommitStatus(pr.getHead().getSha(), status, targetUrl, statusDescription, COMMIT_CONTEXT);
-    } catch (FileNotFoundException e) {
-      String msg = "Unable to set pull request status. GitHub account probably miss push permission on the repository.";
-      if (LOG.isDebugEnabled()) {
-        LOG.warn(msg, e);
-      } else {
-        LOG.warn(msg);
-      }
+      Path file = new PublicationSpool(spoolDir.toPath()).write(publication);
+      LOG.info("Results of pull request left for the publisher daemon: " + file);
     } catch (IOException e) {
-      throw new IllegalStateException("Unable to update commit status", e);
+      throw new IllegalStateException("Unable to write results of pull request to " + spoolDir, e);
     }
   }
 
-  @CheckForNull
-  public String getGithubUrl(@Nullable InputComponent inputComponent, @Nullable Integer issueLine) {
-    if (inputComponent instanceof InputPath) {
-      String path = getPath((InputPath) inputComponent);
-      return ghRepo.getHtmlUrl().toString() + "/blob/" + pr.getHead().getSha() + "/" + path + (issueLine != null ? ("#L" + issueLine) : "");
+  /**
+   * Upload the SARIF report of the analysis to GitHub code scanning, for the head of the pull request. In dry run mode, it is only logged.
+   */
+  public void uploadCodeScanning(Path sarif) {
+    // Only enabled on GitHub, see init
+    if (gitHubHost == null) {
+      throw new IllegalStateException("GitHub code scanning is not available on Bitbucket Server");
     }
-    return null;
+    gitHubHost.uploadCodeScanning(sarif);
+  }
+
+  /**
+   * Publish only the commit status, leaving comments untouched.
+   */
+  public void createOrUpdateSonarQubeStatus(CommitState status, String statusDescription) {
+    host.publishStatus(status, statusDescription);
   }
 
+  /**
+   * @return URL of the file of the component at the head of the pull request, or null if the component is not a file
+   */
   @CheckForNull
-  GHCommitStatus getCommitStatusForContext(GHPullRequest pr, String context) {
-    List<GHCommitStatus> statuses;
-    try {
-      statuses = pr.getRepository().listCommitStatuses(pr.getHead().getSha()).asList();
-    } catch (IOException e) {
-      throw new IllegalStateException("Unable to retrieve commit statuses.", e);
-    }
-    for (GHCommitStatus status : statuses) {
-      if (context.equals(status.getContext())) {
-        return status;
-      }
+  public String getFileUrl(@Nullable InputComponent inputComponent, @Nullable Integer issueLine) {
+    if (inputComponent instanceof InputPath) {
+      return host.fileUrl(getPath((InputPath) inputComponent), issueLine);
     }
     return null;
   }
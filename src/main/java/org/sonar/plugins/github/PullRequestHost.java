@@ -0,0 +1,71 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.IOException;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+/**
+ * Service hosting the pull request, which {@link PullRequestFacade} delegates all its WS calls to. The facade keeps what
+ * does not depend on the service: the Git root directory and the lines of the diff.
+ */
+interface PullRequestHost {
+
+  /**
+   * Read the pull request and index the lines of its diff.
+   * @param checkedOutSha commit analyzed, null when unknown to consider the head of the pull request is analyzed
+   * @return null when the files of the pull request are not read, in publish mode STATUS_ONLY
+   */
+  @CheckForNull
+  PatchPositionIndex load(int pullRequestNumber, @Nullable String checkedOutSha) throws IOException;
+
+  /**
+   * @return commit analyzed, which is the head of the pull request unless a commit was pushed after the one checked out
+   */
+  @CheckForNull
+  String analyzedSha();
+
+  /**
+   * @param path of the file relative to the Git root directory
+   * @return URL of the file at the head of the pull request
+   */
+  String fileUrl(String path, @Nullable Integer line);
+
+  /**
+   * Compare the expected state of the pull request with the current one, and publish the differences. In dry run mode,
+   * nothing is published.
+   */
+  void publish(PullRequestState desired);
+
+  /**
+   * Like {@link #publish(PullRequestState)}, with review comments still being rendered. By default, all of them are rendered before
+   * publishing.
+   */
+  default void publish(PullRequestState desired, ReviewCommentQueue reviewComments) {
+    publish(reviewComments.drainInto(desired));
+  }
+
+  /**
+   * Publish only the commit status, leaving comments untouched.
+   */
+  void publishStatus(CommitState status, String description);
+
+}
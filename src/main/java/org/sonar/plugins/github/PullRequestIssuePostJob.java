@@ -19,31 +19,52 @@
  */
 package org.sonar.plugins.github;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
+import javax.annotation.CheckForNull;
+import org.sonar.api.batch.fs.FileSystem;
 import org.sonar.api.batch.fs.InputComponent;
 import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.InputPath;
 import org.sonar.api.batch.postjob.PostJob;
 import org.sonar.api.batch.postjob.PostJobContext;
 import org.sonar.api.batch.postjob.PostJobDescriptor;
 import org.sonar.api.batch.postjob.issue.PostJobIssue;
+import org.sonar.api.batch.rule.Severity;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.plugins.github.GitHubPluginConfiguration.PublishMode;
 
 /**
  * Compute comments to be added on the pull request.
  */
 public class PullRequestIssuePostJob implements PostJob {
-  private static final Comparator<PostJobIssue> ISSUE_COMPARATOR = new IssueComparator();
+  private static final Logger LOG = Loggers.get(PullRequestIssuePostJob.class);
+  private static final int INLINE_COMMENT_EXPECTED_SIZE = 512;
+  static final String SARIF_FILE_NAME = "sonar-github.sarif";
 
   private final PullRequestFacade pullRequestFacade;
   private final GitHubPluginConfiguration gitHubPluginConfiguration;
   private final MarkDownUtils markDownUtils;
+  private final FileSystem fileSystem;
 
-  public PullRequestIssuePostJob(GitHubPluginConfiguration gitHubPluginConfiguration, PullRequestFacade pullRequestFacade, MarkDownUtils markDownUtils) {
+  public PullRequestIssuePostJob(GitHubPluginConfiguration gitHubPluginConfiguration, PullRequestFacade pullRequestFacade, MarkDownUtils markDownUtils,
+    FileSystem fileSystem) {
     this.gitHubPluginConfiguration = gitHubPluginConfiguration;
     this.pullRequestFacade = pullRequestFacade;
     this.markDownUtils = markDownUtils;
+    this.fileSystem = fileSystem;
   }
 
   @Override
@@ -55,22 +76,51 @@ public class PullRequestIssuePostJob implements PostJob {
 
   @Override
   public void execute(PostJobContext context) {
-    GlobalReport report = new GlobalReport(markDownUtils, gitHubPluginConfiguration.tryReportIssuesInline());
-    Map<InputFile, Map<Integer, StringBuilder>> commentsToBeAddedByLine = processIssues(report, context.issues());
-
-    updateReviewComments(commentsToBeAddedByLine);
+    try {
+      publish(newIssuesOfPullRequest(context.issues()));
+    } finally {
+      pullRequestFacade.close();
+    }
+  }
 
-    pullRequestFacade.deleteOutdatedComments();
+  private void publish(List<PostJobIssue> newIssues) {
+    if (gitHubPluginConfiguration.shard() != null) {
+      writeShard(newIssues);
+      return;
+    }
+    int staleShards = 0;
+    if (gitHubPluginConfiguration.mergeShards()) {
+      PullRequestShard.Merge merge = readShards();
+      newIssues.addAll(merge.issues());
+      staleShards = merge.staleShards().size();
+    }
+    if (gitHubPluginConfiguration.sarifExport()) {
+      Path sarif = writeSarif(newIssues);
+      if (gitHubPluginConfiguration.codeScanningUpload()) {
+        uploadCodeScanning(sarif);
+      }
+    }
+    GlobalReport report = new GlobalReport(markDownUtils, gitHubPluginConfiguration.tryReportIssuesInline());
+    PullRequestState desired = new PullRequestState();
+    Map<InputFile, Map<Long, List<PostJobIssue>>> inlineIssuesByFileAndGroup = processIssues(report, desired, newIssues);
 
-    pullRequestFacade.createOrUpdateGlobalComments(report.hasNewIssue() ? report.formatForMarkdown() : null);
+    if (report.hasNewIssue() && gitHubPluginConfiguration.publishMode() != PublishMode.STATUS_ONLY) {
+      for (String markup : report.formatForMarkdownComments(GitHubPullRequestHost.reservedSummarySize(gitHubPluginConfiguration))) {
+        desired.addGlobalComment(null, markup);
+      }
+    }
+    if (staleShards > 0) {
+      // Issues of the parts of the pull request analyzed at another commit are missing, the status must not look complete
+      desired.setStatus(CommitState.ERROR, report.getStatusDescription() + ", " + staleShards + " shard(s) of another commit ignored", null);
+    } else {
+      desired.setStatus(report.getStatus(), report.getStatusDescription(), null);
+    }
 
-    pullRequestFacade.createOrUpdateSonarQubeStatus(report.getStatus(), report.getStatusDescription());
+    pullRequestFacade.publish(desired, reviewComments(inlineIssuesByFileAndGroup));
   }
 
-  private Map<InputFile, Map<Integer, StringBuilder>> processIssues(GlobalReport report, Iterable<PostJobIssue> issues) {
-    Map<InputFile, Map<Integer, StringBuilder>> commentToBeAddedByFileAndByLine = new HashMap<>();
-
-    StreamSupport.stream(issues.spliterator(), false)
+  private List<PostJobIssue> newIssuesOfPullRequest(Iterable<PostJobIssue> issues) {
+    return StreamSupport.stream(issues.spliterator(), false)
       .filter(i -> i.isNew())
       // SONARGITUB-13 Ignore issues on files not modified by the P/R
       .filter(i -> {
@@ -79,48 +129,214 @@ public class PullRequestIssuePostJob implements PostJob {
           !inputComponent.isFile() ||
           pullRequestFacade.hasFile((InputFile) inputComponent);
       })
-      .sorted(ISSUE_COMPARATOR)
-      .forEach(i -> processIssue(report, commentToBeAddedByFileAndByLine, i));
-    return commentToBeAddedByFileAndByLine;
+      .collect(Collectors.toCollection(ArrayList::new));
+  }
 
+  private void writeShard(List<PostJobIssue> newIssues) {
+    Path file = gitHubPluginConfiguration.shardDir().toPath().resolve(gitHubPluginConfiguration.shard() + PullRequestShard.EXTENSION);
+    try {
+      PullRequestShard.write(file, gitHubPluginConfiguration.pullRequestNumber(), pullRequestFacade.analyzedSha(), newIssues, this::pathOf);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to write pull request shard " + file, e);
+    }
+    LOG.info("Issues of this analysis were written to pull request shard " + file + ", they will be published by the analysis merging the shards");
   }
 
-  private void processIssue(GlobalReport report, Map<InputFile, Map<Integer, StringBuilder>> commentToBeAddedByFileAndByLine, PostJobIssue issue) {
-    boolean reportedInline = false;
+  /**
+   * @return path of the file of the issue relative to the Git root directory, or null if the issue is not on a file
+   */
+  @CheckForNull
+  private String pathOf(PostJobIssue issue) {
     InputComponent inputComponent = issue.inputComponent();
-    if (gitHubPluginConfiguration.tryReportIssuesInline() && inputComponent != null && inputComponent.isFile()) {
-      reportedInline = tryReportInline(commentToBeAddedByFileAndByLine, issue, (InputFile) inputComponent);
+    return inputComponent instanceof InputPath ? pullRequestFacade.getPath((InputPath) inputComponent) : null;
+  }
+
+  private Path writeSarif(List<PostJobIssue> newIssues) {
+    Path file = fileSystem.workDir().toPath().resolve(SARIF_FILE_NAME);
+    int leftOut = 0;
+    try (SarifWriter writer = new SarifWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8), markDownUtils)) {
+      for (PostJobIssue issue : newIssues) {
+        if (!writer.addResult(issue.ruleKey().toString(), issue.severity(), issue.message(), pathOf(issue), issue.line())) {
+          leftOut++;
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to write SARIF report " + file, e);
     }
-    report.process(issue, pullRequestFacade.getGithubUrl(inputComponent, issue.line()), reportedInline);
+    LOG.info("New issues written to SARIF report " + file + (leftOut > 0 ? (", except " + leftOut + " not on a file") : ""));
+    return file;
   }
 
-  private boolean tryReportInline(Map<InputFile, Map<Integer, StringBuilder>> commentToBeAddedByFileAndByLine, PostJobIssue issue, InputFile inputFile) {
-    Integer lineOrNull = issue.line();
-    if (inputFile != null && lineOrNull != null) {
-      int line = lineOrNull.intValue();
-      if (pullRequestFacade.hasFileLine(inputFile, line)) {
-        String message = issue.message();
-        String ruleKey = issue.ruleKey().toString();
-        if (!commentToBeAddedByFileAndByLine.containsKey(inputFile)) {
-          commentToBeAddedByFileAndByLine.put(inputFile, new HashMap<Integer, StringBuilder>());
+  /**
+   * Issues are still published in the comments when the upload fails
+   */
+  private void uploadCodeScanning(Path sarif) {
+    try {
+      pullRequestFacade.uploadCodeScanning(sarif);
+    } catch (IllegalStateException e) {
+      String cause = e.getCause() != null ? (": " + e.getCause().getMessage()) : "";
+      LOG.warn(e.getMessage() + cause + ". Issues are still published in the comments of the pull request.");
+      LOG.debug("Code scanning upload failure", e);
+    }
+  }
+
+  private PullRequestShard.Merge readShards() {
+    Path dir = gitHubPluginConfiguration.shardDir().toPath();
+    try {
+      return PullRequestShard.readAll(dir, gitHubPluginConfiguration.pullRequestNumber(), pullRequestFacade.analyzedSha(), path -> pullRequestFacade.inputFile(fileSystem, path));
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read pull request shards of " + dir, e);
+    }
+  }
+
+  /**
+   * Feed the global report and select the issues to be reported inline, grouped by file and by comment.
+   * Issues are processed by decreasing severity, so that the most severe ones get the inline comments when their number is limited.
+   * On Bitbucket Server, the issues of files are also annotations of the pull request.
+   */
+  private Map<InputFile, Map<Long, List<PostJobIssue>>> processIssues(GlobalReport report, PullRequestState desired, List<PostJobIssue> newIssues) {
+    // Files are kept in the order of their most severe issue, so that the most important comments are published first
+    Map<InputFile, Map<Long, List<PostJobIssue>>> inlineIssuesByFileAndGroup = new LinkedHashMap<>();
+    InlineCommentBudget inlineCommentBudget = new InlineCommentBudget(gitHubPluginConfiguration.maxInlineComments());
+
+    boolean annotate = gitHubPluginConfiguration.isBitbucket() && gitHubPluginConfiguration.publishMode() == PublishMode.FULL;
+    IssueSorter.sort(newIssues)
+      .forEach(i -> {
+        processIssue(report, inlineIssuesByFileAndGroup, inlineCommentBudget, i);
+        if (annotate) {
+          addAnnotation(desired, i);
         }
-        Map<Integer, StringBuilder> commentsByLine = commentToBeAddedByFileAndByLine.get(inputFile);
-        if (!commentsByLine.containsKey(line)) {
-          commentsByLine.put(line, new StringBuilder());
+      });
+    return inlineIssuesByFileAndGroup;
+  }
+
+  private void addAnnotation(PullRequestState desired, PostJobIssue issue) {
+    String path = pathOf(issue);
+    Integer line = issue.line();
+    if (path != null && line != null) {
+      String ruleKey = issue.ruleKey().toString();
+      String message = issue.message();
+      desired.addAnnotation(path, line, issue.severity(), message != null ? message : ruleKey, markDownUtils.getRuleUrl(ruleKey));
+    }
+  }
+
+  private void processIssue(GlobalReport report, Map<InputFile, Map<Long, List<PostJobIssue>>> inlineIssuesByFileAndGroup, InlineCommentBudget inlineCommentBudget,
+    PostJobIssue issue) {
+    InputComponent inputComponent = issue.inputComponent();
+    String githubUrl = pullRequestFacade.getFileUrl(inputComponent, issue.line());
+    if (!gitHubPluginConfiguration.tryReportIssuesInline() || inputComponent == null || !inputComponent.isFile() || !isOnDiff(issue, (InputFile) inputComponent)) {
+      report.process(issue, githubUrl, false);
+      return;
+    }
+    InputFile inputFile = (InputFile) inputComponent;
+    Map<Long, List<PostJobIssue>> issuesByGroup = inlineIssuesByFileAndGroup.computeIfAbsent(inputFile, f -> new TreeMap<>());
+    long group = commentGroup(inputFile, issue.line());
+    List<PostJobIssue> issuesOfGroup = issuesByGroup.get(group);
+    if (issuesOfGroup == null) {
+      // Issues sharing an existing comment don't consume the budget
+      if (!inlineCommentBudget.consume()) {
+        report.processOverInlineCommentLimit(issue, githubUrl, inlineCommentBudget.max);
+        return;
+      }
+      issuesOfGroup = new ArrayList<>();
+      issuesByGroup.put(group, issuesOfGroup);
+    }
+    issuesOfGroup.add(issue);
+    report.process(issue, githubUrl, true);
+  }
+
+  /**
+   * @return key shared by the issues of a file to be reported in the same inline comment
+   */
+  private long commentGroup(InputFile inputFile, int line) {
+    switch (gitHubPluginConfiguration.inlineCommentGrouping()) {
+      case HUNK:
+        return pullRequestFacade.hunk(inputFile, line);
+      case WINDOW:
+        // Windows never span two hunks, since a comment is displayed in a single hunk
+        return ((long) pullRequestFacade.hunk(inputFile, line) << Integer.SIZE) | ((line - 1) / gitHubPluginConfiguration.inlineCommentWindow());
+      case LINE:
+      default:
+        return line;
+    }
+  }
+
+  private boolean isOnDiff(PostJobIssue issue, InputFile inputFile) {
+    Integer lineOrNull = issue.line();
+    return lineOrNull != null && pullRequestFacade.hasFileLine(inputFile, lineOrNull);
+  }
+
+  /**
+   * Review comments are rendered file by file while they are published: the ones of blocker and critical issues of all files first,
+   * then the other ones.
+   */
+  private ReviewCommentQueue reviewComments(Map<InputFile, Map<Long, List<PostJobIssue>>> inlineIssuesByFileAndGroup) {
+    List<Supplier<List<PullRequestState.Comment>>> renderers = new ArrayList<>();
+    int size = 0;
+    for (boolean severe : new boolean[] {true, false}) {
+      for (Map.Entry<InputFile, Map<Long, List<PostJobIssue>>> entry : inlineIssuesByFileAndGroup.entrySet()) {
+        List<List<PostJobIssue>> groups = entry.getValue().values().stream()
+          .filter(issuesOfGroup -> issuesOfGroup.stream().anyMatch(PullRequestIssuePostJob::isSevere) == severe)
+          .collect(Collectors.toList());
+        if (!groups.isEmpty()) {
+          size += groups.size();
+          renderers.add(() -> renderReviewComments(entry.getKey(), groups, severe));
         }
-        commentsByLine.get(line).append(markDownUtils.inlineIssue(issue.severity(), message, ruleKey)).append("\n");
-        return true;
       }
     }
-    return false;
+    return new ReviewCommentQueue(size, renderers);
+  }
+
+  private List<PullRequestState.Comment> renderReviewComments(InputFile inputFile, List<List<PostJobIssue>> groups, boolean severe) {
+    String path = pullRequestFacade.getPath(inputFile);
+    List<PullRequestState.Comment> comments = new ArrayList<>(groups.size());
+    for (List<PostJobIssue> issuesOfGroup : groups) {
+      // Issues are displayed by line, then by decreasing severity, and the comment is added on the first line
+      List<PostJobIssue> issuesByLine = new ArrayList<>(issuesOfGroup);
+      issuesByLine.sort(Comparator.comparing(PostJobIssue::line));
+      int position = pullRequestFacade.position(inputFile, issuesByLine.get(0).line());
+      comments.add(new PullRequestState.Comment(null, path, position, renderComment(issuesByLine), severe));
+    }
+    return comments;
+  }
+
+  private static boolean isSevere(PostJobIssue issue) {
+    return issue.severity() == Severity.BLOCKER || issue.severity() == Severity.CRITICAL;
+  }
+
+  private String renderComment(List<PostJobIssue> issues) {
+    MarkdownWriter writer = MarkdownWriter.truncating(INLINE_COMMENT_EXPECTED_SIZE * issues.size(), GitHubPullRequestHost.reservedCommentSize(gitHubPluginConfiguration));
+    boolean severalLines = !issues.get(0).line().equals(issues.get(issues.size() - 1).line());
+    for (PostJobIssue issue : issues) {
+      if (severalLines) {
+        writer.append("Line ").append(String.valueOf(issue.line())).append(": ");
+      }
+      markDownUtils.appendInlineIssue(writer, issue.severity(), issue.message(), issue.ruleKey().toString());
+      writer.append("\n").endEntry();
+    }
+    return writer.body();
   }
 
-  private void updateReviewComments(Map<InputFile, Map<Integer, StringBuilder>> commentsToBeAddedByLine) {
-    for (Map.Entry<InputFile, Map<Integer, StringBuilder>> entry : commentsToBeAddedByLine.entrySet()) {
-      for (Map.Entry<Integer, StringBuilder> entryPerLine : entry.getValue().entrySet()) {
-        String body = entryPerLine.getValue().toString();
-        pullRequestFacade.createOrUpdateReviewComment(entry.getKey(), entryPerLine.getKey(), body);
+  /**
+   * Number of inline comments that can still be added by the analysis
+   */
+  private static class InlineCommentBudget {
+    private final int max;
+    private int used = 0;
+
+    InlineCommentBudget(int max) {
+      this.max = max;
+    }
+
+    /**
+     * @return false when the maximum number of inline comments is reached
+     */
+    boolean consume() {
+      if (used >= max) {
+        return false;
       }
+      used++;
+      return true;
     }
   }
 
@@ -0,0 +1,164 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Lease on the publication of the results for a pull request, shared by the analyses running on the same machine.
+ * Each analysis takes over the lease when it starts, so that an older analysis still running can notice that a newer one
+ * started, and stop publishing its results. The lease records the analyzed commit, since an analysis of an older commit may
+ * start last, and must not prevent the analysis of the head of the pull request from publishing.
+ */
+class PullRequestLease {
+
+  private static final Logger LOG = Loggers.get(PullRequestLease.class);
+
+  private final Path file;
+  private final String token;
+  private boolean acquired = false;
+
+  PullRequestLease(Path file) {
+    this.file = file;
+    this.token = UUID.randomUUID().toString();
+  }
+
+  /**
+   * @param endpoint URL of the server hosting the repository, since repositories of different servers may have the same name
+   * @param scope project of the analysis when results are scoped by project, so that analyses of different projects don't take over
+   * the lease of each other, otherwise null
+   */
+  static PullRequestLease forPullRequest(String endpoint, String repository, int pullRequestNumber, @Nullable String scope) {
+    String fileName = "sonar-github-" + pullRequestKey(endpoint, repository, pullRequestNumber, scope) + ".lease";
+    return new PullRequestLease(Paths.get(System.getProperty("java.io.tmpdir"), fileName));
+  }
+
+  /**
+   * Names may contain any character, so they are hashed rather than sanitized to build distinct file names
+   */
+  static String pullRequestKey(String endpoint, String repository, int pullRequestNumber, @Nullable String scope) {
+    String key = endpoint + "\n" + repository + "\n" + pullRequestNumber + (scope == null ? "" : ("\n" + scope));
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hash = new StringBuilder();
+      for (int i = 0; i < 16; i++) {
+        hash.append(String.format("%02x", digest[i]));
+      }
+      return hash.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Take over the lease, whoever holds it.
+   *
+   * @param sha commit of the analysis
+   */
+  void acquire(String sha) {
+    try {
+      Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+      Files.write(tmp, (token + "\n" + sha).getBytes(StandardCharsets.UTF_8));
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      acquired = true;
+    } catch (IOException e) {
+      // Concurrent analyses are not detected, but this analysis can go on
+      LOG.warn("Unable to write pull request lease file " + file + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return false when a newer analysis took over the lease. Always true when the lease could not be acquired.
+   */
+  boolean isHeld() {
+    if (!acquired) {
+      return true;
+    }
+    try {
+      return token.equals(readLease()[0]);
+    } catch (NoSuchFileException e) {
+      // Released by a newer analysis
+      return false;
+    } catch (IOException e) {
+      LOG.warn("Unable to read pull request lease file " + file + ": " + e.getMessage());
+      return true;
+    }
+  }
+
+  /**
+   * @param headSha head of the pull request, null when it could not be checked
+   * @return true when a newer analysis of the head of the pull request took over the lease. An analysis of an older commit
+   * that took over the lease is ignored, it doesn't publish its results anyway since they are stale.
+   */
+  boolean isTakenOver(@Nullable String headSha) {
+    if (isHeld()) {
+      return false;
+    }
+    String holderSha = holderSha();
+    if (headSha != null && holderSha != null && !headSha.equals(holderSha)) {
+      LOG.debug("Pull request lease taken over by an analysis of commit " + holderSha + ", which is not the head of the pull request");
+      return false;
+    }
+    LOG.info("A newer analysis of the pull request started on this machine, results of this analysis are not published");
+    return true;
+  }
+
+  /**
+   * @return commit of the analysis holding the lease, null when unknown
+   */
+  @CheckForNull
+  String holderSha() {
+    try {
+      String[] lease = readLease();
+      return lease.length > 1 ? lease[1] : null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private String[] readLease() throws IOException {
+    return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).split("\n", 2);
+  }
+
+  void release() {
+    if (acquired && isHeld()) {
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        LOG.debug("Unable to delete pull request lease file " + file, e);
+      }
+    }
+    acquired = false;
+  }
+
+}
@@ -19,19 +19,37 @@
  */
 package org.sonar.plugins.github;
 
-import org.kohsuke.github.GHCommitState;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 import org.sonar.api.CoreProperties;
 import org.sonar.api.batch.AnalysisMode;
 import org.sonar.api.batch.bootstrap.ProjectBuilder;
+import org.sonar.api.batch.bootstrap.ProjectDefinition;
 import org.sonar.api.utils.MessageException;
+import org.sonar.api.utils.WildcardPattern;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.plugins.github.GitHubPluginConfiguration.AnalysisScope;
+import org.sonar.plugins.github.GitHubPluginConfiguration.PublishMode;
 
 /**
  * Trigger load of pull request metadata at the very beginning of SQ analysis. Also
  * set "in progress" status on the pull request. 
+ * Optionally restrict the analysis to the files of the pull request, before sensors are executed.
  *
  */
 public class PullRequestProjectBuilder extends ProjectBuilder {
 
+  private static final Logger LOG = Loggers.get(PullRequestProjectBuilder.class);
+  private static final String EXCLUDE_ALL = "**/*";
+  private static final String ABSOLUTE_PATTERN_PREFIX = "file:";
+  // Characters that are either wildcards, separators of patterns, or trimmed around them
+  private static final String PATTERN_CHARS = "*?,[]{}\\";
+
   private final GitHubPluginConfiguration gitHubPluginConfiguration;
   private final PullRequestFacade pullRequestFacade;
   private final AnalysisMode mode;
@@ -48,10 +66,148 @@ public class PullRequestProjectBuilder extends ProjectBuilder {
       return;
     }
     checkMode();
+    checkPublishMode();
     int pullRequestNumber = gitHubPluginConfiguration.pullRequestNumber();
     pullRequestFacade.init(pullRequestNumber, context.projectReactor().getRoot().getBaseDir());
 
-    pullRequestFacade.createOrUpdateSonarQubeStatus(GHCommitState.PENDING, "SonarQube analysis in progress");
+    AnalysisScope scope = gitHubPluginConfiguration.analysisScope();
+    if (scope != AnalysisScope.ALL) {
+      LOG.info("Restricting analysis scope to " + scope);
+      restrictAnalysisScope(context.projectReactor().getRoot(), pullRequestFacade.changedFiles(), scope, OriginalScope.NONE);
+    }
+
+    pullRequestFacade.createOrUpdateSonarQubeStatus(CommitState.PENDING, "SonarQube analysis in progress");
+  }
+
+  /**
+   * Module properties are inherited by sub-modules, so inclusions and exclusions set on a module are reset to their
+   * original value on the sub-modules whose scope is not restricted the same way.
+   */
+  private void restrictAnalysisScope(ProjectDefinition module, Set<String> changedFiles, AnalysisScope scope, OriginalScope inherited) {
+    OriginalScope original = new OriginalScope(module, inherited);
+    String modulePath = pullRequestFacade.getPath(module.getBaseDir());
+    List<String> changedModuleFiles = modulePath != null ? changedFilesOfModule(module, modulePath, changedFiles) : Collections.<String>emptyList();
+    if (modulePath != null && changedModuleFiles.isEmpty()) {
+      LOG.debug("No file of module " + module.getKey() + " is modified by the pull request, none of its files will be analyzed");
+      module.setProperty(CoreProperties.PROJECT_EXCLUSIONS_PROPERTY, EXCLUDE_ALL);
+      module.setProperty(CoreProperties.PROJECT_TEST_EXCLUSIONS_PROPERTY, EXCLUDE_ALL);
+    } else if (modulePath != null && scope == AnalysisScope.CHANGED_FILES) {
+      restrictToFiles(module, CoreProperties.PROJECT_INCLUSIONS_PROPERTY, original.inclusions, CoreProperties.PROJECT_EXCLUSIONS_PROPERTY, original.exclusions,
+        changedModuleFiles);
+      restrictToFiles(module, CoreProperties.PROJECT_TEST_INCLUSIONS_PROPERTY, original.testInclusions, CoreProperties.PROJECT_TEST_EXCLUSIONS_PROPERTY,
+        original.testExclusions, changedModuleFiles);
+    } else {
+      if (modulePath == null) {
+        LOG.debug("Module " + module.getKey() + " is not inside the Git repository, its analysis scope is not restricted");
+      }
+      if (scope == AnalysisScope.CHANGED_FILES) {
+        module.setProperty(CoreProperties.PROJECT_INCLUSIONS_PROPERTY, original.inclusions);
+        module.setProperty(CoreProperties.PROJECT_TEST_INCLUSIONS_PROPERTY, original.testInclusions);
+      }
+      module.setProperty(CoreProperties.PROJECT_EXCLUSIONS_PROPERTY, original.exclusions);
+      module.setProperty(CoreProperties.PROJECT_TEST_EXCLUSIONS_PROPERTY, original.testExclusions);
+    }
+    for (ProjectDefinition subModule : module.getSubProjects()) {
+      restrictAnalysisScope(subModule, changedFiles, scope, original);
+    }
+  }
+
+  /**
+   * Include only the changed files that are matched by the original inclusions of the module. When none is, all files are excluded,
+   * as empty inclusions would include everything.
+   */
+  private static void restrictToFiles(ProjectDefinition module, String inclusionsKey, String inclusions, String exclusionsKey, String exclusions,
+    List<String> changedModuleFiles) {
+    List<String> files = included(module.getBaseDir(), inclusions, changedModuleFiles);
+    if (files.isEmpty()) {
+      module.setProperty(inclusionsKey, inclusions);
+      module.setProperty(exclusionsKey, EXCLUDE_ALL);
+    } else {
+      module.setProperty(inclusionsKey, files.stream().map(PullRequestProjectBuilder::toPattern).collect(Collectors.joining(",")));
+      module.setProperty(exclusionsKey, exclusions);
+    }
+  }
+
+  private static List<String> included(File baseDir, String inclusions, List<String> files) {
+    List<String> patterns = new ArrayList<>();
+    for (String pattern : inclusions.split(",")) {
+      if (!pattern.trim().isEmpty()) {
+        patterns.add(pattern.trim());
+      }
+    }
+    if (patterns.isEmpty()) {
+      return files;
+    }
+    List<String> result = new ArrayList<>();
+    for (String file : files) {
+      if (matchesAny(baseDir, file, patterns)) {
+        result.add(file);
+      }
+    }
+    return result;
+  }
+
+  private static boolean matchesAny(File baseDir, String file, List<String> patterns) {
+    for (String pattern : patterns) {
+      if (pattern.regionMatches(true, 0, ABSOLUTE_PATTERN_PREFIX, 0, ABSOLUTE_PATTERN_PREFIX.length())) {
+        String absolutePath = new File(baseDir, file).getAbsolutePath().replace('\\', '/');
+        if (WildcardPattern.create(pattern.substring(ABSOLUTE_PATTERN_PREFIX.length())).match(absolutePath)) {
+          return true;
+        }
+      } else if (WildcardPattern.create(pattern).match(file)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Patterns have no escape character, so characters of the path that would be read as wildcards or separators, or trimmed,
+   * are matched by the single character wildcard. At worst a sibling file whose name differs only by these characters is analyzed too.
+   */
+  static String toPattern(String path) {
+    StringBuilder pattern = new StringBuilder(path.length());
+    for (int i = 0; i < path.length(); i++) {
+      char c = path.charAt(i);
+      boolean trimmed = Character.isWhitespace(c) && (i == 0 || i == path.length() - 1);
+      pattern.append(trimmed || PATTERN_CHARS.indexOf(c) >= 0 ? '?' : c);
+    }
+    return pattern.toString();
+  }
+
+  /**
+   * @return paths relative to the module base directory of the changed files that are inside this module, but not inside one of its sub-modules
+   */
+  private List<String> changedFilesOfModule(ProjectDefinition module, String modulePath, Set<String> changedFiles) {
+    List<String> subModulePrefixes = new ArrayList<>();
+    for (ProjectDefinition subModule : module.getSubProjects()) {
+      String subModulePath = pullRequestFacade.getPath(subModule.getBaseDir());
+      if (subModulePath != null) {
+        subModulePrefixes.add(prefix(subModulePath));
+      }
+    }
+    List<String> result = new ArrayList<>();
+    String prefix = prefix(modulePath);
+    for (String changedFile : changedFiles) {
+      if (changedFile.startsWith(prefix) && !startsWithAny(changedFile, subModulePrefixes)) {
+        result.add(changedFile.substring(prefix.length()));
+      }
+    }
+    Collections.sort(result);
+    return result;
+  }
+
+  private static String prefix(String path) {
+    return path.isEmpty() ? "" : (path + "/");
+  }
+
+  private static boolean startsWithAny(String path, List<String> prefixes) {
+    for (String prefix : prefixes) {
+      if (path.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
   }
 
   private void checkMode() {
@@ -61,4 +217,45 @@ public class PullRequestProjectBuilder extends ProjectBuilder {
 
   }
 
+  /**
+   * Files of the pull request, needed to restrict the analysis scope, are not read when only the status is published
+   */
+  private void checkPublishMode() {
+    if (gitHubPluginConfiguration.publishMode() == PublishMode.STATUS_ONLY && gitHubPluginConfiguration.analysisScope() != AnalysisScope.ALL) {
+      throw MessageException.of("Analysis scope " + gitHubPluginConfiguration.analysisScope() + " can't be used with publish mode STATUS_ONLY. Please set '"
+        + GitHubPlugin.GITHUB_ANALYSIS_SCOPE + "' to ALL or '" + GitHubPlugin.GITHUB_PUBLISH_MODE + "' to SUMMARY_ONLY.");
+    }
+  }
+
+  /**
+   * Inclusions and exclusions of a module before the analysis scope is restricted
+   */
+  private static class OriginalScope {
+    private static final OriginalScope NONE = new OriginalScope("", "", "", "");
+
+    private final String inclusions;
+    private final String testInclusions;
+    private final String exclusions;
+    private final String testExclusions;
+
+    private OriginalScope(String inclusions, String testInclusions, String exclusions, String testExclusions) {
+      this.inclusions = inclusions;
+      this.testInclusions = testInclusions;
+      this.exclusions = exclusions;
+      this.testExclusions = testExclusions;
+    }
+
+    private OriginalScope(ProjectDefinition module, OriginalScope inherited) {
+      this(ownOrInherited(module, CoreProperties.PROJECT_INCLUSIONS_PROPERTY, inherited.inclusions),
+        ownOrInherited(module, CoreProperties.PROJECT_TEST_INCLUSIONS_PROPERTY, inherited.testInclusions),
+        ownOrInherited(module, CoreProperties.PROJECT_EXCLUSIONS_PROPERTY, inherited.exclusions),
+        ownOrInherited(module, CoreProperties.PROJECT_TEST_EXCLUSIONS_PROPERTY, inherited.testExclusions));
+    }
+
+    private static String ownOrInherited(ProjectDefinition module, String key, String inheritedValue) {
+      String value = module.properties().get(key);
+      return value != null ? value : inheritedValue;
+    }
+  }
+
 }
@@ -0,0 +1,269 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.batch.fs.InputComponent;
+import org.sonar.api.batch.postjob.issue.PostJobIssue;
+import org.sonar.api.batch.rule.Severity;
+import org.sonar.api.rule.RuleKey;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Results of an analysis of a part of the pull request, to be published later together with the results of the other parts
+ * by a single merging analysis. Only new issues are stored, with what is needed to report them inline or in the global comment.
+ */
+class PullRequestShard {
+
+  private static final Logger LOG = Loggers.get(PullRequestShard.class);
+
+  static final String EXTENSION = ".shard";
+
+  private static final int MAGIC = 0x53474853;
+  private static final int VERSION = 2;
+
+  private PullRequestShard() {
+    // only static methods
+  }
+
+  /**
+   * @param pathResolver path of the file of an issue relative to the Git root directory, or null if the issue is not on a file
+   */
+  static void write(Path file, int pullRequestNumber, String headSha, Iterable<PostJobIssue> issues, Function<PostJobIssue, String> pathResolver) throws IOException {
+    Files.createDirectories(file.getParent());
+    Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeInt(pullRequestNumber);
+      out.writeUTF(headSha);
+      for (PostJobIssue issue : issues) {
+        out.writeBoolean(true);
+        writeString(out, issue.key());
+        writeString(out, issue.ruleKey().toString());
+        writeString(out, issue.componentKey());
+        writeNullable(out, pathResolver.apply(issue));
+        out.writeInt(issue.line() != null ? issue.line() : 0);
+        writeNullable(out, issue.message());
+        out.writeByte(issue.severity().ordinal());
+      }
+      out.writeBoolean(false);
+    }
+    // Merging analysis never reads a partially written shard
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Issues read from the shards, and the shards of the pull request that were ignored because they are of another commit
+   */
+  static class Merge {
+    private final List<PostJobIssue> issues = new ArrayList<>();
+    private final List<Path> staleShards = new ArrayList<>();
+
+    List<PostJobIssue> issues() {
+      return issues;
+    }
+
+    /**
+     * Issues of these shards are missing, since the part of the pull request they cover was analyzed at another commit
+     */
+    List<Path> staleShards() {
+      return staleShards;
+    }
+  }
+
+  /**
+   * Read the issues of all the shards of the directory. Shards of another pull request are ignored, and shards of another commit
+   * of the pull request are ignored and returned as stale.
+   * @param fileResolver component of the file at the given path relative to the Git root directory, or null when it is not indexed
+   */
+  static Merge readAll(Path dir, int pullRequestNumber, String headSha, Function<String, InputComponent> fileResolver) throws IOException {
+    Merge merge = new Merge();
+    if (!Files.isDirectory(dir)) {
+      LOG.warn("Directory of pull request shards " + dir + " does not exist");
+      return merge;
+    }
+    try (DirectoryStream<Path> shards = Files.newDirectoryStream(dir, "*" + EXTENSION)) {
+      for (Path shard : shards) {
+        read(shard, pullRequestNumber, headSha, fileResolver, merge);
+      }
+    }
+    return merge;
+  }
+
+  private static void read(Path shard, int pullRequestNumber, String headSha, Function<String, InputComponent> fileResolver, Merge merge)
+    throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(shard))))) {
+      if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+        throw new IllegalStateException("Unsupported format of pull request shard " + shard);
+      }
+      int shardPullRequestNumber = in.readInt();
+      String shardHeadSha = in.readUTF();
+      if (shardPullRequestNumber != pullRequestNumber) {
+        LOG.debug("Ignoring pull request shard " + shard + " of pull request #" + shardPullRequestNumber);
+        return;
+      }
+      if (!shardHeadSha.equals(headSha)) {
+        LOG.warn("Ignoring pull request shard " + shard + " of commit " + shardHeadSha + ", the results of this pull request are incomplete");
+        merge.staleShards.add(shard);
+        return;
+      }
+      int count = 0;
+      int unresolved = 0;
+      String unresolvedPath = null;
+      while (in.readBoolean()) {
+        String key = readString(in);
+        RuleKey ruleKey = RuleKey.parse(readString(in));
+        String componentKey = readString(in);
+        String path = readNullable(in);
+        int line = in.readInt();
+        String message = readNullable(in);
+        Severity severity = Severity.values()[in.readByte()];
+        InputComponent inputComponent = path != null ? fileResolver.apply(path) : null;
+        if (path != null && inputComponent == null) {
+          unresolved++;
+          unresolvedPath = path;
+        }
+        merge.issues.add(new ShardIssue(key, ruleKey, componentKey, inputComponent, line > 0 ? line : null, message, severity));
+        count++;
+      }
+      LOG.info("Merging " + count + " issue(s) of pull request shard " + shard.getFileName());
+      if (unresolved > 0) {
+        LOG.warn(unresolved + " issue(s) of pull request shard " + shard.getFileName() + " are on files not indexed by this analysis, such as " + unresolvedPath
+          + ". They are reported in the global comment.");
+      }
+    }
+  }
+
+  private static void writeNullable(DataOutputStream out, @Nullable String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      writeString(out, value);
+    }
+  }
+
+  @CheckForNull
+  private static String readNullable(DataInputStream in) throws IOException {
+    return in.readBoolean() ? readString(in) : null;
+  }
+
+  /**
+   * Messages can be longer than the 64KB supported by {@link DataOutputStream#writeUTF(String)}
+   */
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static class ShardIssue implements PostJobIssue {
+    private final String key;
+    private final RuleKey ruleKey;
+    private final String componentKey;
+    private final InputComponent inputComponent;
+    private final Integer line;
+    private final String message;
+    private final Severity severity;
+
+    ShardIssue(String key, RuleKey ruleKey, String componentKey, @Nullable InputComponent inputComponent, @Nullable Integer line, @Nullable String message,
+      Severity severity) {
+      this.key = key;
+      this.ruleKey = ruleKey;
+      this.componentKey = componentKey;
+      this.inputComponent = inputComponent;
+      this.line = line;
+      this.message = message;
+      this.severity = severity;
+    }
+
+    @Override
+    public String key() {
+      return key;
+    }
+
+    @Override
+    public RuleKey ruleKey() {
+      return ruleKey;
+    }
+
+    @Override
+    public String componentKey() {
+      return componentKey;
+    }
+
+    @CheckForNull
+    @Override
+    public InputComponent inputComponent() {
+      return inputComponent;
+    }
+
+    @CheckForNull
+    @Override
+    public Integer line() {
+      return line;
+    }
+
+    @CheckForNull
+    @Override
+    public Double effortToFix() {
+      return null;
+    }
+
+    @CheckForNull
+    @Override
+    public String message() {
+      return message;
+    }
+
+    @Override
+    public Severity severity() {
+      return severity;
+    }
+
+    @Override
+    public boolean isNew() {
+      return true;
+    }
+  }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.batch.rule.Severity;
+
+/**
+ * What the plugin publishes on a pull request: review comments, global comments and commit status. It is used both for
+ * the state expected at the end of the analysis and for the state currently on GitHub, so that they can be compared
+ * without any WS call. Services that don't support review comments, like Bitbucket Server, publish annotations instead.
+ */
+public class PullRequestState {
+
+  private final List<Comment> reviewComments = new ArrayList<>();
+  private final List<Comment> globalComments = new ArrayList<>();
+  private final List<Annotation> annotations = new ArrayList<>();
+  private Status status;
+
+  /**
+   * @param id identifier on GitHub, null when the comment is not published yet
+   * @param position position in the patch of the file, -1 when the comment is outdated
+   */
+  public PullRequestState addReviewComment(@Nullable Long id, String path, int position, String body) {
+    return addReviewComment(id, path, position, body, false);
+  }
+
+  /**
+   * @param severe true when the comment reports a blocker or critical issue, so that it is published before the others
+   */
+  public PullRequestState addReviewComment(@Nullable Long id, String path, int position, String body, boolean severe) {
+    reviewComments.add(new Comment(id, path, position, body, severe));
+    return this;
+  }
+
+  /**
+   * @param id identifier on GitHub, null when the comment is not published yet
+   */
+  public PullRequestState addGlobalComment(@Nullable Long id, String body) {
+    globalComments.add(new Comment(id, null, -1, body));
+    return this;
+  }
+
+  /**
+   * @param path of the file relative to the Git root directory
+   */
+  public PullRequestState addAnnotation(String path, int line, Severity severity, String message, @Nullable String link) {
+    annotations.add(new Annotation(path, line, severity, message, link));
+    return this;
+  }
+
+  public PullRequestState setStatus(CommitState state, @Nullable String description, @Nullable String targetUrl) {
+    this.status = new Status(state, description, targetUrl);
+    return this;
+  }
+
+  public List<Comment> reviewComments() {
+    return Collections.unmodifiableList(reviewComments);
+  }
+
+  /**
+   * Global comments, in the order they are displayed
+   */
+  public List<Comment> globalComments() {
+    return Collections.unmodifiableList(globalComments);
+  }
+
+  /**
+   * Annotations, the most severe first
+   */
+  public List<Annotation> annotations() {
+    return Collections.unmodifiableList(annotations);
+  }
+
+  @CheckForNull
+  public Status status() {
+    return status;
+  }
+
+  public static class Comment {
+    private final Long id;
+    private final String path;
+    private final int position;
+    private final String body;
+    private final boolean severe;
+
+    Comment(@Nullable Long id, @Nullable String path, int position, String body) {
+      this(id, path, position, body, false);
+    }
+
+    Comment(@Nullable Long id, @Nullable String path, int position, String body, boolean severe) {
+      this.id = id;
+      this.path = path;
+      this.position = position;
+      this.body = body;
+      this.severe = severe;
+    }
+
+    @CheckForNull
+    public Long id() {
+      return id;
+    }
+
+    /**
+     * @return path of the file relative to the Git root directory, null for global comments
+     */
+    @CheckForNull
+    public String path() {
+      return path;
+    }
+
+    public int position() {
+      return position;
+    }
+
+    public String body() {
+      return body;
+    }
+
+    /**
+     * @return true when the comment reports a blocker or critical issue
+     */
+    public boolean severe() {
+      return severe;
+    }
+  }
+
+  public static class Annotation {
+    private final String path;
+    private final int line;
+    private final Severity severity;
+    private final String message;
+    private final String link;
+
+    Annotation(String path, int line, Severity severity, String message, @Nullable String link) {
+      this.path = path;
+      this.line = line;
+      this.severity = severity;
+      this.message = message;
+      this.link = link;
+    }
+
+    public String path() {
+      return path;
+    }
+
+    public int line() {
+      return line;
+    }
+
+    public Severity severity() {
+      return severity;
+    }
+
+    public String message() {
+      return message;
+    }
+
+    @CheckForNull
+    public String link() {
+      return link;
+    }
+  }
+
+  public static class Status {
+    private final CommitState state;
+    private final String description;
+    private final String targetUrl;
+
+    Status(CommitState state, @Nullable String description, @Nullable String targetUrl) {
+      this.state = state;
+      this.description = description;
+      this.targetUrl = targetUrl;
+    }
+
+    public CommitState state() {
+      return state;
+    }
+
+    @CheckForNull
+    public String description() {
+      return description;
+    }
+
+    @CheckForNull
+    public String targetUrl() {
+      return targetUrl;
+    }
+  }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import javax.annotation.CheckForNull;
+
+/**
+ * Review comments rendered file by file by a dedicated thread while they are published, so that network calls overlap with the
+ * rendering of the next comments. The queue is bounded: when publishing falls behind, rendering blocks until there is room again,
+ * which keeps memory usage bounded. Files are taken in the order of their renderers.
+ * The first rendering failure stops rendering, and is rethrown to the consumer.
+ */
+class ReviewCommentQueue {
+
+  static final int DEFAULT_CAPACITY = 64;
+
+  private static final List<PullRequestState.Comment> END = Collections.emptyList();
+
+  private final int size;
+  private final List<Supplier<List<PullRequestState.Comment>>> renderers;
+  private final BlockingQueue<List<PullRequestState.Comment>> queue;
+  private final Thread thread;
+  private volatile RuntimeException failure;
+  private boolean started;
+  private boolean ended;
+
+  /**
+   * @param size number of review comments, known before they are rendered
+   * @param renderers one per file, each rendering the review comments of its file
+   */
+  ReviewCommentQueue(int size, List<Supplier<List<PullRequestState.Comment>>> renderers) {
+    this(size, renderers, DEFAULT_CAPACITY);
+  }
+
+  ReviewCommentQueue(int size, List<Supplier<List<PullRequestState.Comment>>> renderers, int capacity) {
+    this.size = size;
+    this.renderers = renderers;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.thread = new Thread(this::run, "github-review-comment-renderer");
+    this.thread.setDaemon(true);
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Start rendering, if not started yet
+   */
+  synchronized void start() {
+    if (!started) {
+      started = true;
+      thread.start();
+    }
+  }
+
+  /**
+   * Wait for the review comments of the next file. Rendering is started if needed.
+   * @param endMs time to wait until, Long.MAX_VALUE to wait as long as needed
+   * @return review comments of the next file, never empty, or null once the comments of all files were taken
+   * @throws TimeoutException when the next file is not rendered before endMs
+   */
+  @CheckForNull
+  List<PullRequestState.Comment> take(long endMs) throws TimeoutException {
+    start();
+    if (ended) {
+      return null;
+    }
+    List<PullRequestState.Comment> comments;
+    try {
+      comments = endMs == Long.MAX_VALUE ? queue.take() : queue.poll(Math.max(0L, endMs - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while rendering review comments", e);
+    }
+    if (comments == null) {
+      throw new TimeoutException("Review comments not rendered in time");
+    }
+    if (comments == END) {
+      ended = true;
+      RuntimeException e = failure;
+      if (e != null) {
+        throw e;
+      }
+      return null;
+    }
+    return comments;
+  }
+
+  /**
+   * Wait for all the review comments not taken yet, and add them to the desired state of the pull request
+   * @return the desired state
+   */
+  PullRequestState drainInto(PullRequestState desired) {
+    try {
+      List<PullRequestState.Comment> comments;
+      while ((comments = take(Long.MAX_VALUE)) != null) {
+        for (PullRequestState.Comment comment : comments) {
+          desired.addReviewComment(null, comment.path(), comment.position(), comment.body(), comment.severe());
+        }
+      }
+      return desired;
+    } catch (TimeoutException e) {
+      throw new IllegalStateException("Rendering of review comments never times out", e);
+    }
+  }
+
+  /**
+   * Stop rendering without waiting for the comments not taken yet. Used when publication ends early.
+   */
+  void abort() {
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    try {
+      try {
+        for (Supplier<List<PullRequestState.Comment>> renderer : renderers) {
+          List<PullRequestState.Comment> comments = renderer.get();
+          if (!comments.isEmpty()) {
+            queue.put(comments);
+          }
+        }
+      } catch (RuntimeException e) {
+        failure = e;
+      }
+      queue.put(END);
+    } catch (InterruptedException e) {
+      // Aborted, the remaining comments are not needed anymore
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
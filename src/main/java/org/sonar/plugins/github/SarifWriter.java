@@ -0,0 +1,160 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import javax.annotation.Nullable;
+import org.sonar.api.batch.rule.Severity;
+
+/**
+ * Write issues to a SARIF 2.1.0 log, as expected by GitHub code scanning. Results are streamed as they are added, and the
+ * rules are written after them, so that only the distinct rule keys are kept in memory whatever the number of issues.
+ */
+class SarifWriter implements Closeable {
+
+  static final String SARIF_VERSION = "2.1.0";
+  private static final String SARIF_SCHEMA = "https://json.schemastore.org/sarif-2.1.0.json";
+
+  private final Writer writer;
+  private final MarkDownUtils markDownUtils;
+  private final Set<String> ruleKeys = new LinkedHashSet<>();
+  private int resultCount = 0;
+
+  SarifWriter(Writer writer, MarkDownUtils markDownUtils) throws IOException {
+    this.writer = writer;
+    this.markDownUtils = markDownUtils;
+    writer.write("{\"version\":\"" + SARIF_VERSION + "\",\"$schema\":\"" + SARIF_SCHEMA + "\",\"runs\":[{\"results\":[");
+  }
+
+  /**
+   * Code scanning requires a location for each result: issues not on a file are left out, they are only reported in the summary comment.
+   * @param path of the file relative to the Git root directory, null when the issue is not on a file
+   * @return false when the result was left out
+   */
+  boolean addResult(String ruleKey, Severity severity, @Nullable String message, @Nullable String path, @Nullable Integer line) throws IOException {
+    if (path == null) {
+      return false;
+    }
+    ruleKeys.add(ruleKey);
+    if (resultCount > 0) {
+      writer.write(',');
+    }
+    writer.write("{\"ruleId\":");
+    writeString(ruleKey);
+    writer.write(",\"level\":\"");
+    writer.write(level(severity));
+    writer.write("\",\"message\":{\"text\":");
+    writeString(message != null ? message : ruleKey);
+    writer.write("},\"locations\":[{\"physicalLocation\":{\"artifactLocation\":{\"uri\":");
+    writeString(path);
+    writer.write('}');
+    if (line != null) {
+      writer.write(",\"region\":{\"startLine\":");
+      writer.write(Integer.toString(line));
+      writer.write('}');
+    }
+    writer.write("}}]}");
+    resultCount++;
+    return true;
+  }
+
+  int resultCount() {
+    return resultCount;
+  }
+
+  /**
+   * Blocker and critical issues fail the commit status, so they are errors
+   */
+  static String level(Severity severity) {
+    switch (severity) {
+      case BLOCKER:
+      case CRITICAL:
+        return "error";
+      case MAJOR:
+        return "warning";
+      default:
+        return "note";
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    writer.write("],\"tool\":{\"driver\":{\"name\":\"SonarQube\",\"informationUri\":\"https://www.sonarqube.org\",\"rules\":[");
+    boolean first = true;
+    for (String ruleKey : ruleKeys) {
+      if (!first) {
+        writer.write(',');
+      }
+      first = false;
+      writer.write("{\"id\":");
+      writeString(ruleKey);
+      writer.write(",\"shortDescription\":{\"text\":");
+      writeString(ruleKey);
+      writer.write("},\"helpUri\":");
+      writeString(markDownUtils.getRuleUrl(ruleKey));
+      writer.write('}');
+    }
+    writer.write("]}}}]}");
+    writer.close();
+  }
+
+  private void writeString(String value) throws IOException {
+    writeString(writer, value);
+  }
+
+  /**
+   * Write the value as a JSON string
+   */
+  static void writeString(Writer writer, String value) throws IOException {
+    writer.write('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          writer.write("\\\"");
+          break;
+        case '\\':
+          writer.write("\\\\");
+          break;
+        case '\n':
+          writer.write("\\n");
+          break;
+        case '\r':
+          writer.write("\\r");
+          break;
+        case '\t':
+          writer.write("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            writer.write(String.format("\\u%04x", (int) c));
+          } else {
+            writer.write(c);
+          }
+      }
+    }
+    writer.write('"');
+  }
+
+}
@@ -0,0 +1,265 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.batch.rule.Severity;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BitbucketPullRequestHostTest {
+
+  private static final String PULL_REQUEST_PATH = "/rest/api/1.0/projects/PROJ/repos/repo/pull-requests/1";
+  private static final String REPORT_PATH = "/rest/insights/1.0/projects/PROJ/repos/repo/commits/abc123/reports/sonarqube";
+  private static final String DIFF = "diff --git src://src/Foo.java dst://src/Foo.java\n"
+    + "index 1b2c3d4..5e6f7a8 100644\n"
+    + "--- src://src/Foo.java\n"
+    + "+++ dst://src/Foo.java\n"
+    + "@@ -1,3 +1,4 @@\n"
+    + " class Foo {\n"
+    + "-  int a;\n"
+    + "+  int b;\n"
+    + "+  int c;\n"
+    + " }\n"
+    + "diff --git src://src/Removed.java dst://src/Removed.java\n"
+    + "--- src://src/Removed.java\n"
+    + "+++ /dev/null\n"
+    + "@@ -1 +0,0 @@\n"
+    + "--- removed line\n"
+    + "diff --git src://src/Added.java dst://src/Added.java\n"
+    + "--- /dev/null\n"
+    + "+++ dst://src/Added.java\n"
+    + "@@ -0,0 +1 @@\n"
+    + "+class Added {}\n";
+
+  private HttpServer server;
+  private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+  private final List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+  private volatile String headSha = "abc123";
+  private volatile int insightsResponseCode = 200;
+  private GitHubPluginConfiguration config = mock(GitHubPluginConfiguration.class);
+
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/rest", exchange -> {
+      String request = exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath();
+      if (!"Bearer token".equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+        respond(exchange, 401, "{\"errors\":[{\"message\":\"Authentication required\"}]}");
+      } else if (("GET " + PULL_REQUEST_PATH).equals(request)) {
+        respond(exchange, 200, "{\"id\":1,\"fromRef\":{\"id\":\"refs/heads/feature\",\"repository\":{\"slug\":\"repo\"},\"latestCommit\":\"" + headSha
+          + "\"},\"toRef\":{\"id\":\"refs/heads/master\",\"latestCommit\":\"def456\"}}");
+      } else if (("GET " + PULL_REQUEST_PATH + ".diff").equals(request)) {
+        respond(exchange, 200, DIFF);
+      } else if (request.contains(" /rest/insights/")) {
+        requests.add(request);
+        bodies.add(read(exchange.getRequestBody()));
+        respond(exchange, insightsResponseCode, "{}");
+      } else {
+        respond(exchange, 404, "{\"errors\":[{\"message\":\"Not Found\"}]}");
+      }
+    });
+    server.start();
+
+    when(config.bitbucketEndpoint()).thenReturn("http://localhost:" + server.getAddress().getPort());
+    when(config.bitbucketToken()).thenReturn("token");
+    when(config.bitbucketRepository()).thenReturn(new String[] {"PROJ", "repo"});
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(code, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      body.write(buffer, 0, read);
+    }
+    return new String(body.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void loadPullRequestAndIndexItsDiff() throws IOException {
+    BitbucketPullRequestHost host = new BitbucketPullRequestHost(config);
+
+    PatchPositionIndex index = host.load(1, null);
+
+    assertThat(host.analyzedSha()).isEqualTo("abc123");
+    assertThat(index.files()).containsOnly("src/Foo.java", "src/Removed.java", "src/Added.java");
+    assertThat(index.position("src/Foo.java", 2)).isEqualTo(3);
+    assertThat(index.position("src/Foo.java", 4)).isEqualTo(5);
+    assertThat(index.position("src/Added.java", 1)).isEqualTo(1);
+    assertThat(host.fileUrl("src/Foo.java", 2)).isEqualTo(config.bitbucketEndpoint() + "/projects/PROJ/repos/repo/browse/src/Foo.java?at=abc123#2");
+  }
+
+  @Test
+  public void publishReportAndAnnotations() throws IOException {
+    BitbucketPullRequestHost host = new BitbucketPullRequestHost(config);
+    host.load(1, null);
+
+    host.publish(new PullRequestState()
+      .addGlobalComment(null, "summary")
+      .addAnnotation("src/Foo.java", 2, Severity.CRITICAL, "Remove this \"field\"", "http://sonarqube/coding_rules#rule_key=squid%3AS1068")
+      .addAnnotation("src/Foo.java", 3, Severity.INFO, "Rename this field", null)
+      .setStatus(CommitState.ERROR, "SonarQube reported 2 issues, with 1 critical", null));
+
+    assertThat(requests).containsExactly("PUT " + REPORT_PATH, "DELETE " + REPORT_PATH + "/annotations", "POST " + REPORT_PATH + "/annotations");
+    assertThat(bodies.get(0)).isEqualTo("{\"title\":\"SonarQube\",\"reporter\":\"SonarQube\",\"result\":\"FAIL\",\"details\":\"SonarQube reported 2 issues, with 1 critical\"}");
+    assertThat(bodies.get(2)).isEqualTo("{\"annotations\":["
+      + "{\"path\":\"src/Foo.java\",\"line\":2,\"severity\":\"HIGH\",\"message\":\"Remove this \\\"field\\\"\",\"link\":\"http://sonarqube/coding_rules#rule_key=squid%3AS1068\"},"
+      + "{\"path\":\"src/Foo.java\",\"line\":3,\"severity\":\"LOW\",\"message\":\"Rename this field\"}]}");
+  }
+
+  @Test
+  public void annotateOnlyTheMostSevereIssues() throws IOException {
+    BitbucketPullRequestHost host = new BitbucketPullRequestHost(config);
+    host.load(1, null);
+    PullRequestState desired = new PullRequestState();
+    for (int i = 0; i <= BitbucketPullRequestHost.MAX_ANNOTATIONS; i++) {
+      desired.addAnnotation("src/Foo.java", 2, i < BitbucketPullRequestHost.MAX_ANNOTATIONS ? Severity.MAJOR : Severity.MINOR, "Issue " + i, null);
+    }
+
+    host.publish(desired.setStatus(CommitState.SUCCESS, "SonarQube reported 1001 issues, no criticals or blockers", null));
+
+    String annotations = bodies.get(2);
+    assertThat(annotations.split("\"path\"", -1)).hasSize(BitbucketPullRequestHost.MAX_ANNOTATIONS + 1);
+    assertThat(annotations).doesNotContain("LOW");
+    assertThat(bodies.get(0)).contains("\"result\":\"PASS\"");
+  }
+
+  @Test
+  public void scopeReportByProject() throws IOException {
+    when(config.scopeByProject()).thenReturn(true);
+    when(config.projectKey()).thenReturn("org.foo:backend");
+    BitbucketPullRequestHost host = new BitbucketPullRequestHost(config);
+    host.load(1, null);
+
+    host.publish(new PullRequestState().setStatus(CommitState.SUCCESS, "SonarQube reported no issues", null));
+
+    assertThat(requests).containsExactly("PUT " + REPORT_PATH + "-org.foo:backend", "DELETE " + REPORT_PATH + "-org.foo:backend/annotations");
+    assertThat(bodies.get(0)).startsWith("{\"title\":\"SonarQube org.foo:backend\"");
+  }
+
+  @Test
+  public void publishPendingStatusWithoutResult() throws IOException {
+    BitbucketPullRequestHost host = new BitbucketPullRequestHost(config);
+    host.load(1, null);
+
+    host.publishStatus(CommitState.PENDING, "SonarQube analysis in progress");
+    host.publish(new PullRequestState());
+
+    assertThat(requests.get(0)).isEqualTo("PUT " + REPORT_PATH);
+    assertThat(bodies.get(0)).isEqualTo("{\"title\":\"SonarQube\",\"reporter\":\"SonarQube\",\"details\":\"SonarQube analysis in progress\"}");
+  }
+
+  @Test
+  public void publishOnlyReportInStatusOnlyMode() throws IOException {
+    when(config.publishMode()).thenReturn(GitHubPluginConfiguration.PublishMode.STATUS_ONLY);
+    BitbucketPullRequestHost host = new BitbucketPullRequestHost(config);
+
+    assertThat(host.load(1, null)).isNull();
+    host.publish(new PullRequestState().setStatus(CommitState.SUCCESS, "SonarQube reported no issues", null));
+
+    assertThat(requests).containsExactly("PUT " + REPORT_PATH);
+  }
+
+  @Test
+  public void doNotPublishWhenPullRequestHeadMoved() throws IOException {
+    BitbucketPullRequestHost host = new BitbucketPullRequestHost(config);
+    host.load(1, null);
+    headSha = "def456";
+
+    host.publish(new PullRequestState().setStatus(CommitState.SUCCESS, "SonarQube reported no issues", null));
+
+    assertThat(requests).isEmpty();
+  }
+
+  @Test
+  public void doNotPublishInDryRunMode() throws IOException {
+    when(config.dryRun()).thenReturn(true);
+    BitbucketPullRequestHost host = new BitbucketPullRequestHost(config);
+    host.load(1, null);
+
+    host.publishStatus(CommitState.PENDING, "SonarQube analysis in progress");
+    host.publish(new PullRequestState().addAnnotation("src/Foo.java", 2, Severity.MAJOR, "Issue", null));
+
+    assertThat(requests).isEmpty();
+  }
+
+  @Test
+  public void carryOnWhenPublicationFails() throws IOException {
+    BitbucketPullRequestHost host = new BitbucketPullRequestHost(config);
+    host.load(1, null);
+    insightsResponseCode = 500;
+
+    host.publishStatus(CommitState.PENDING, "SonarQube analysis in progress");
+    host.publish(new PullRequestState().addAnnotation("src/Foo.java", 2, Severity.MAJOR, "Issue", null));
+
+    assertThat(requests).containsExactly("PUT " + REPORT_PATH, "PUT " + REPORT_PATH);
+  }
+
+  @Test
+  public void failOnUnauthorizedAccess() {
+    when(config.bitbucketToken()).thenReturn("invalid");
+    BitbucketPullRequestHost host = new BitbucketPullRequestHost(config);
+
+    try {
+      host.load(1, null);
+      fail("Expected exception");
+    } catch (IOException e) {
+      assertThat(e.getMessage()).startsWith("Server returned HTTP response code: 401").contains("Authentication required");
+    }
+  }
+
+  @Test
+  public void pathOfDiffHeader() {
+    assertThat(BitbucketPullRequestHost.pathOfDiffHeader("+++ dst://src/Foo.java")).isEqualTo("src/Foo.java");
+    assertThat(BitbucketPullRequestHost.pathOfDiffHeader("--- a/src/Foo.java")).isEqualTo("src/Foo.java");
+    assertThat(BitbucketPullRequestHost.pathOfDiffHeader("+++ /dev/null")).isNull();
+  }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class CodeScanningUploadTest {
+
+  private static final HttpConnector CONNECTOR = url -> (HttpURLConnection) url.openConnection();
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private HttpServer server;
+  private AtomicReference<String> authorization = new AtomicReference<>();
+  private AtomicReference<String> body = new AtomicReference<>();
+  private String endpoint;
+
+  @Before
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/repos/SonarSource/sonar-github/code-scanning/sarifs", exchange -> {
+      authorization.set(exchange.getRequestHeaders().getFirst("Authorization"));
+      body.set(new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8));
+      byte[] response = "{\"id\":\"47177e22\"}".getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(202, response.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(response);
+      }
+    });
+    server.start();
+    endpoint = "http://localhost:" + server.getAddress().getPort();
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  public void uploadGzippedAndEncodedReport() throws IOException {
+    Path sarif = temp.newFile("report.sarif").toPath();
+    Files.write(sarif, "{\"version\":\"2.1.0\",\"runs\":[]}".getBytes(StandardCharsets.UTF_8));
+
+    CodeScanningUpload.upload(CONNECTOR, endpoint, "SonarSource/sonar-github", "secret", "abc123", "refs/pull/42/head", sarif);
+
+    assertThat(authorization.get()).isEqualTo("token secret");
+    Matcher matcher = Pattern.compile("\\{\"commit_sha\":\"abc123\",\"ref\":\"refs/pull/42/head\",\"sarif\":\"([A-Za-z0-9+/=]+)\"\\}").matcher(body.get());
+    assertThat(matcher.matches()).isTrue();
+    byte[] report = readAll(new GZIPInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(matcher.group(1)))));
+    assertThat(new String(report, StandardCharsets.UTF_8)).isEqualTo("{\"version\":\"2.1.0\",\"runs\":[]}");
+  }
+
+  @Test
+  public void failWhenUploadIsRejected() throws IOException {
+    Path sarif = temp.newFile("report.sarif").toPath();
+
+    try {
+      CodeScanningUpload.upload(CONNECTOR, endpoint, "SonarSource/other", "secret", "abc123", "refs/pull/42/head", sarif);
+      fail("Expected exception");
+    } catch (IOException e) {
+      assertThat(e.getMessage()).startsWith("Server returned HTTP response code: 404");
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+}
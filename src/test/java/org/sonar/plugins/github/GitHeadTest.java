@@ -0,0 +1,94 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GitHeadTest {
+
+  private static final String SHA = "0123456789abcdef0123456789abcdef01234567";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void readDetachedHead() throws IOException {
+    File workTree = temp.newFolder();
+    write(new File(workTree, ".git/HEAD"), SHA + "\n");
+
+    assertThat(GitHead.read(workTree)).isEqualTo(SHA);
+  }
+
+  @Test
+  public void readBranchRef() throws IOException {
+    File workTree = temp.newFolder();
+    write(new File(workTree, ".git/HEAD"), "ref: refs/heads/feature\n");
+    write(new File(workTree, ".git/refs/heads/feature"), SHA + "\n");
+
+    assertThat(GitHead.read(workTree)).isEqualTo(SHA);
+  }
+
+  @Test
+  public void readPackedBranchRef() throws IOException {
+    File workTree = temp.newFolder();
+    write(new File(workTree, ".git/HEAD"), "ref: refs/heads/feature\n");
+    write(new File(workTree, ".git/packed-refs"), "# pack-refs with: peeled fully-peeled sorted\n"
+      + "fedcba9876543210fedcba9876543210fedcba98 refs/heads/master\n"
+      + SHA + " refs/heads/feature\n");
+
+    assertThat(GitHead.read(workTree)).isEqualTo(SHA);
+  }
+
+  @Test
+  public void readLinkedWorkTree() throws IOException {
+    File repository = temp.newFolder();
+    write(new File(repository, ".git/refs/heads/feature"), SHA + "\n");
+    File gitDir = new File(repository, ".git/worktrees/feature");
+    write(new File(gitDir, "HEAD"), "ref: refs/heads/feature\n");
+    write(new File(gitDir, "commondir"), "../..\n");
+    File workTree = temp.newFolder();
+    write(new File(workTree, ".git"), "gitdir: " + gitDir.getAbsolutePath() + "\n");
+
+    assertThat(GitHead.read(workTree)).isEqualTo(SHA);
+  }
+
+  @Test
+  public void nullWhenHeadCanNotBeRead() throws IOException {
+    File workTree = temp.newFolder();
+    assertThat(GitHead.read(workTree)).isNull();
+
+    write(new File(workTree, ".git/HEAD"), "ref: refs/heads/unborn\n");
+    assertThat(GitHead.read(workTree)).isNull();
+  }
+
+  private static void write(File file, String content) throws IOException {
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+}
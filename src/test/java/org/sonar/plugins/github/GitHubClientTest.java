@@ -0,0 +1,290 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class GitHubClientTest {
+
+  private static final String REPO = "SonarSource/sonar-github";
+
+  private HttpServer server;
+  private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+  private final List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+  private GitHubClient client;
+
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      String query = exchange.getRequestURI().getQuery();
+      String method = exchange.getRequestHeaders().getFirst("X-HTTP-Method-Override");
+      String request = (method != null ? method : exchange.getRequestMethod()) + " " + exchange.getRequestURI().getPath() + (query != null ? "?" + query : "");
+      requests.add(request);
+      bodies.add(read(exchange.getRequestBody()));
+      if (!"token secret".equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+        respond(exchange, 401, "{\"message\":\"Bad credentials\"}");
+      } else if (request.equals("GET /repos/" + REPO + "/pulls/2") && requests.size() == 1) {
+        respond(exchange, 403, "{\"message\":\"You have exceeded a secondary rate limit. Please wait a few minutes before you try again.\"}");
+      } else if (request.equals("GET /user")) {
+        respond(exchange, 200, "{\"login\":\"sonarqubebot\",\"id\":1,\"site_admin\":false}");
+      } else if (request.equals("GET /rate_limit")) {
+        respond(exchange, 200, "{\"resources\":{\"core\":{\"remaining\":10}},\"rate\":{\"limit\":5000,\"remaining\":4999,\"reset\":1372700873}}");
+      } else if (request.equals("GET /repos/" + REPO + "/pulls/1")) {
+        respond(exchange, 200, "{\"number\":1,\"html_url\":\"https://github.com/" + REPO + "/pull/1\",\"labels\":[{\"name\":\"bug\",\"default\":true}],"
+          + "\"merge_commit_sha\":\"e5bd391\",\"head\":{\"sha\":\"abc123\",\"repo\":{\"html_url\":\"https://github.com/fork/sonar-github\"}},"
+          + "\"base\":{\"sha\":\"def456\",\"repo\":{\"html_url\":\"https://github.com/" + REPO + "\"}}}");
+      } else if (request.equals("GET /repos/" + REPO + "/pulls/1/comments?per_page=100")) {
+        exchange.getResponseHeaders().add("Link", "<" + endpoint() + "/repos/" + REPO + "/pulls/1/comments?per_page=100&page=2>; rel=\"next\", "
+          + "<" + endpoint() + "/repos/" + REPO + "/pulls/1/comments?per_page=100&page=2>; rel=\"last\"");
+        respond(exchange, 200, "[{\"id\":1,\"user\":{\"login\":\"sonarqubebot\"},\"body\":\"Remove this \\\"field\\\"\",\"path\":\"src/Foo.java\",\"position\":3}]");
+      } else if (request.equals("GET /repos/" + REPO + "/pulls/1/comments?per_page=100&page=2")) {
+        respond(exchange, 200, "[{\"id\":2147483648,\"user\":null,\"body\":\"Outdated\",\"path\":\"src/Foo.java\",\"position\":null}]");
+      } else if (request.equals("GET /repos/" + REPO + "/pulls/1/files?per_page=100")) {
+        respond(exchange, 200, "[{\"filename\":\"src/Foo.java\",\"status\":\"modified\",\"patch\":\"@@ -1 +1 @@\\n-a\\n+b\"},{\"filename\":\"logo.png\",\"status\":\"added\"}]");
+      } else if (request.equals("GET /repos/" + REPO + "/commits/abc123/statuses?per_page=100")) {
+        respond(exchange, 200, "[{\"state\":\"failure\",\"description\":\"SonarQube reported 1 issue\",\"target_url\":null,\"context\":\"sonarqube\"}]");
+      } else if (request.equals("POST /repos/" + REPO + "/issues/1/comments")) {
+        respond(exchange, 201, "{\"id\":3,\"user\":{\"login\":\"sonarqubebot\"},\"body\":\"summary\"}");
+      } else if (request.startsWith("PATCH ") || request.startsWith("POST ")) {
+        respond(exchange, 200, "{}");
+      } else {
+        respond(exchange, 404, "{\"message\":\"Not Found\"}");
+      }
+    });
+    server.start();
+    client = new GitHubClient(endpoint(), "secret", HttpConnector.DEFAULT);
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  private String endpoint() {
+    return "http://localhost:" + server.getAddress().getPort();
+  }
+
+  private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(code, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      body.write(buffer, 0, read);
+    }
+    return new String(body.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void readLoginOnlyOnce() throws IOException {
+    assertThat(client.myLogin()).isEqualTo("sonarqubebot");
+    assertThat(client.myLogin()).isEqualTo("sonarqubebot");
+
+    assertThat(requests).containsExactly("GET /user");
+  }
+
+  @Test
+  public void readRateLimit() throws IOException {
+    GitHubClient.RateLimit rateLimit = client.rateLimit();
+
+    assertThat(rateLimit.remaining()).isEqualTo(4999);
+    assertThat(rateLimit.resetAt()).isEqualTo(1372700873000L);
+  }
+
+  @Test
+  public void readPullRequest() throws IOException {
+    GitHubClient.PullRequest pr = client.pullRequest(REPO, 1);
+
+    assertThat(pr.repository()).isEqualTo(REPO);
+    assertThat(pr.number()).isEqualTo(1);
+    assertThat(pr.htmlUrl()).isEqualTo("https://github.com/" + REPO + "/pull/1");
+    assertThat(pr.headSha()).isEqualTo("abc123");
+    assertThat(pr.repositoryHtmlUrl()).isEqualTo("https://github.com/" + REPO);
+    assertThat(pr.mergeCommitSha()).isEqualTo("e5bd391");
+  }
+
+  @Test
+  public void readAllPagesOfReviewComments() throws IOException {
+    List<GitHubClient.Comment> comments = client.listReviewComments(REPO, 1);
+
+    assertThat(comments).hasSize(2);
+    assertThat(comments.get(0).id()).isEqualTo(1L);
+    assertThat(comments.get(0).login()).isEqualTo("sonarqubebot");
+    assertThat(comments.get(0).body()).isEqualTo("Remove this \"field\"");
+    assertThat(comments.get(0).position()).isEqualTo(3);
+    // Ids of comments on GitHub are above the range of int
+    assertThat(comments.get(1).id()).isEqualTo(2147483648L);
+    assertThat(comments.get(1).login()).isNull();
+    assertThat(comments.get(1).position()).isNull();
+    assertThat(requests).hasSize(2);
+  }
+
+  @Test
+  public void readFilesWithTheirPatch() throws IOException {
+    List<String> files = new ArrayList<>();
+    client.listFiles(REPO, 1, (path, patch) -> files.add(path + ":" + patch));
+
+    assertThat(files).containsExactly("src/Foo.java:@@ -1 +1 @@\n-a\n+b", "logo.png:null");
+  }
+
+  @Test
+  public void readCommitStatuses() throws IOException {
+    List<GitHubClient.CommitStatus> statuses = client.listCommitStatuses(REPO, "abc123");
+
+    assertThat(statuses).hasSize(1);
+    assertThat(statuses.get(0).state()).isEqualTo(CommitState.FAILURE);
+    assertThat(statuses.get(0).description()).isEqualTo("SonarQube reported 1 issue");
+    assertThat(statuses.get(0).targetUrl()).isNull();
+    assertThat(statuses.get(0).context()).isEqualTo("sonarqube");
+  }
+
+  @Test
+  public void sendComments() throws IOException {
+    GitHubClient.Comment created = client.createIssueComment(REPO, 1, "summary");
+    client.updateIssueComment(REPO, 3, "summary\nwith \"quotes\"");
+    client.createReviewComment(REPO, 1, "Remove this field", "abc123", "src/Foo.java", 3);
+
+    assertThat(created.id()).isEqualTo(3L);
+    assertThat(requests).containsExactly("POST /repos/" + REPO + "/issues/1/comments", "PATCH /repos/" + REPO + "/issues/comments/3",
+      "POST /repos/" + REPO + "/pulls/1/comments");
+    assertThat(bodies).containsExactly("{\"body\":\"summary\"}", "{\"body\":\"summary\\nwith \\\"quotes\\\"\"}",
+      "{\"body\":\"Remove this field\",\"commit_id\":\"abc123\",\"path\":\"src/Foo.java\",\"position\":3}");
+  }
+
+  @Test
+  public void sendCommitStatus() throws IOException {
+    client.createCommitStatus(REPO, "abc123", CommitState.SUCCESS, null, "SonarQube reported no issues", "sonarqube");
+
+    assertThat(requests).containsExactly("POST /repos/" + REPO + "/statuses/abc123");
+    assertThat(bodies).containsExactly("{\"state\":\"success\",\"description\":\"SonarQube reported no issues\",\"context\":\"sonarqube\"}");
+  }
+
+  @Test
+  public void retryCallOnceConnectorBackedOff() throws IOException {
+    List<String> backOffs = new ArrayList<>();
+    GitHubClient throttled = new GitHubClient(endpoint(), "secret", new HttpConnector() {
+      @Override
+      public HttpURLConnection connect(URL url) throws IOException {
+        return HttpConnector.DEFAULT.connect(url);
+      }
+
+      @Override
+      public boolean backOff(IOException failure) {
+        backOffs.add(failure.getMessage());
+        return HostRateLimiter.isSecondaryRateLimit(failure);
+      }
+    });
+
+    try {
+      throttled.pullRequest(REPO, 2);
+      fail("Expected exception");
+    } catch (FileNotFoundException e) {
+      // Retried call failed, and is not retried again
+      assertThat(backOffs).hasSize(1);
+    }
+    assertThat(requests).containsExactly("GET /repos/" + REPO + "/pulls/2", "GET /repos/" + REPO + "/pulls/2");
+    assertThat(backOffs.get(0)).startsWith("Server returned HTTP response code: 403");
+  }
+
+  @Test
+  public void failWithoutCallingOnceDeadlineIsReached() throws IOException {
+    client.setDeadline(System.currentTimeMillis() - 1);
+
+    try {
+      client.myLogin();
+      fail("Expected exception");
+    } catch (IOException e) {
+      assertThat(e).isInstanceOf(SocketTimeoutException.class);
+    }
+    assertThat(requests).isEmpty();
+
+    client.setDeadline(Long.MAX_VALUE);
+    assertThat(client.myLogin()).isNotNull();
+  }
+
+  @Test
+  public void limitTimeoutsToTheDeadline() throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(endpoint() + "/user").openConnection();
+
+    HttpConnector.withTimeouts(connection, System.currentTimeMillis() + 5_000L);
+
+    assertThat(connection.getConnectTimeout()).isPositive().isLessThanOrEqualTo(5_000);
+    assertThat(connection.getReadTimeout()).isPositive().isLessThanOrEqualTo(5_000);
+    assertThat(HttpConnector.DEFAULT.connect(new URL(endpoint() + "/user")).getReadTimeout()).isEqualTo(HttpConnector.READ_TIMEOUT_MS);
+  }
+
+  @Test
+  public void failOnMissingResource() throws IOException {
+    try {
+      client.deleteIssueComment(REPO, 42);
+      fail("Expected exception");
+    } catch (FileNotFoundException e) {
+      assertThat(e.getMessage()).contains("/repos/" + REPO + "/issues/comments/42").contains("Not Found");
+    }
+  }
+
+  @Test
+  public void failOnUnauthorizedAccess() {
+    GitHubClient anonymous = new GitHubClient(endpoint(), null, HttpConnector.DEFAULT);
+
+    try {
+      anonymous.myLogin();
+      fail("Expected exception");
+    } catch (IOException e) {
+      assertThat(e.getMessage()).startsWith("Server returned HTTP response code: 401").contains("Bad credentials");
+    }
+  }
+
+  @Test
+  public void nextPageOfLinkHeader() {
+    assertThat(GitHubClient.nextPage("<https://api.github.com/x?page=2>; rel=\"next\", <https://api.github.com/x?page=5>; rel=\"last\"")).isEqualTo("https://api.github.com/x?page=2");
+    assertThat(GitHubClient.nextPage("<https://api.github.com/x?page=1>; rel=\"prev\"")).isNull();
+    assertThat(GitHubClient.nextPage(null)).isNull();
+  }
+
+}
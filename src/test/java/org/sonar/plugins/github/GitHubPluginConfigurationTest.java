@@ -19,17 +19,27 @@
  */
 package org.sonar.plugins.github;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.sonar.api.CoreProperties;
 import org.sonar.api.config.PropertyDefinitions;
 import org.sonar.api.config.Settings;
 import org.sonar.api.utils.MessageException;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
 
 public class GitHubPluginConfigurationTest {
 
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
   private Settings settings;
   private GitHubPluginConfiguration config;
 
@@ -92,6 +102,7 @@ public class GitHubPluginConfigurationTest {
   public void other() {
     settings.setProperty(GitHubPlugin.GITHUB_OAUTH, "oauth");
     assertThat(config.oauth()).isEqualTo("oauth");
+    assertThat(config.oauthTokens()).containsExactly("oauth");
 
     assertThat(config.isEnabled()).isFalse();
     settings.setProperty(GitHubPlugin.GITHUB_PULL_REQUEST, "3");
@@ -105,6 +116,117 @@ public class GitHubPluginConfigurationTest {
     assertThat(config.tryReportIssuesInline()).isTrue();
     settings.setProperty(GitHubPlugin.GITHUB_DISABLE_INLINE_COMMENTS, "true");
     assertThat(config.tryReportIssuesInline()).isFalse();
+
+    assertThat(config.dryRun()).isFalse();
+    settings.setProperty(GitHubPlugin.GITHUB_DRY_RUN, "true");
+    assertThat(config.dryRun()).isTrue();
+
+    assertThat(config.publishThreads()).isEqualTo(4);
+    settings.setProperty(GitHubPlugin.GITHUB_PUBLISH_THREADS, "0");
+    assertThat(config.publishThreads()).isEqualTo(1);
+
+    assertThat(config.hostCallsPerMinute()).isEqualTo(0);
+    settings.setProperty(GitHubPlugin.GITHUB_HOST_CALLS_PER_MINUTE, "300");
+    assertThat(config.hostCallsPerMinute()).isEqualTo(300);
+
+    assertThat(config.analysisScope()).isEqualTo(GitHubPluginConfiguration.AnalysisScope.ALL);
+    settings.setProperty(GitHubPlugin.GITHUB_ANALYSIS_SCOPE, "changed_files");
+    assertThat(config.analysisScope()).isEqualTo(GitHubPluginConfiguration.AnalysisScope.CHANGED_FILES);
+
+    assertThat(config.maxInlineComments()).isEqualTo(Integer.MAX_VALUE);
+    settings.setProperty(GitHubPlugin.GITHUB_MAX_INLINE_COMMENTS, "20");
+    assertThat(config.maxInlineComments()).isEqualTo(20);
+
+    assertThat(config.inlineCommentGrouping()).isEqualTo(GitHubPluginConfiguration.InlineCommentGrouping.LINE);
+    settings.setProperty(GitHubPlugin.GITHUB_INLINE_COMMENT_GROUPING, "window");
+    assertThat(config.inlineCommentGrouping()).isEqualTo(GitHubPluginConfiguration.InlineCommentGrouping.WINDOW);
+    assertThat(config.inlineCommentWindow()).isEqualTo(10);
+  }
+
+  @Test
+  public void publishMode() {
+    assertThat(config.publishMode()).isEqualTo(GitHubPluginConfiguration.PublishMode.FULL);
+    assertThat(config.tryReportIssuesInline()).isTrue();
+
+    settings.setProperty(GitHubPlugin.GITHUB_PUBLISH_MODE, "summary_only");
+    assertThat(config.publishMode()).isEqualTo(GitHubPluginConfiguration.PublishMode.SUMMARY_ONLY);
+    // Patches are not read when inline comments are not published
+    assertThat(config.tryReportIssuesInline()).isFalse();
+  }
+
+  @Test
+  public void publicationPropertiesDoNotContainCredentials() throws Exception {
+    assertThat(config.spoolDir()).isNull();
+    settings.setProperty(GitHubPlugin.GITHUB_SPOOL_DIR, "/var/spool/sonar-github");
+    settings.setProperty(GitHubPlugin.GITHUB_REPO, "SonarSource/sonar-github");
+    settings.setProperty(GitHubPlugin.GITHUB_PULL_REQUEST, "42");
+    settings.setProperty(GitHubPlugin.GITHUB_PUBLISH_MODE, "summary_only");
+    settings.setProperty(GitHubPlugin.GITHUB_OAUTH, "token");
+
+    assertThat(config.spoolDir()).isEqualTo(new File("/var/spool/sonar-github"));
+    assertThat(config.publicationProperties()).containsKey(GitHubPlugin.GITHUB_REPO).containsKey(GitHubPlugin.GITHUB_PUBLISH_MODE)
+      .doesNotContainKey(GitHubPlugin.GITHUB_OAUTH);
+    assertThat(config.publicationProperties().get(GitHubPlugin.GITHUB_PULL_REQUEST)).isEqualTo("42");
+  }
+
+  @Test
+  public void poolOfOAuthTokens() throws Exception {
+    settings.setProperty(GitHubPlugin.GITHUB_OAUTH, "token1, token2");
+    File file = temp.newFile();
+    Files.write(file.toPath(), Arrays.asList("# Bots", "token3", "", "token4 "), StandardCharsets.UTF_8);
+    settings.setProperty(GitHubPlugin.GITHUB_OAUTH_FILE, file.getAbsolutePath());
+
+    assertThat(config.oauthTokens()).containsExactly("token1", "token2", "token3", "token4");
+  }
+
+  @Test
+  public void singleOAuthTokenOfFile() throws Exception {
+    File file = temp.newFile();
+    Files.write(file.toPath(), Arrays.asList("# Bot", "token1"), StandardCharsets.UTF_8);
+    settings.setProperty(GitHubPlugin.GITHUB_OAUTH_FILE, file.getAbsolutePath());
+
+    assertThat(config.oauth()).isNull();
+    assertThat(config.singleOauthToken()).isEqualTo("token1");
+
+    settings.setProperty(GitHubPlugin.GITHUB_OAUTH, "token2");
+    assertThat(config.singleOauthToken()).isNull();
+  }
+
+  @Test
+  public void bitbucket() {
+    assertThat(config.isBitbucket()).isFalse();
+    settings.setProperty(GitHubPlugin.BITBUCKET_ENDPOINT, "https://bitbucket.mycompany.com/");
+    assertThat(config.isBitbucket()).isTrue();
+    assertThat(config.bitbucketEndpoint()).isEqualTo("https://bitbucket.mycompany.com");
+    settings.setProperty(GitHubPlugin.BITBUCKET_TOKEN, "token");
+    assertThat(config.bitbucketToken()).isEqualTo("token");
+    try {
+      config.bitbucketRepository();
+      fail("Expected exception");
+    } catch (MessageException e) {
+      assertThat(e).hasMessage("Property 'sonar.bitbucket.repository' is required on Bitbucket Server, as the key of the project and the slug of the repository "
+        + "separated by a slash, for example PROJ/my-repo");
+    }
+    settings.setProperty(GitHubPlugin.BITBUCKET_REPOSITORY, "PROJ/my-repo");
+    assertThat(config.bitbucketRepository()).containsExactly("PROJ", "my-repo");
+  }
+
+  @Test
+  public void gitHubApp() {
+    assertThat(config.isGitHubApp()).isFalse();
+    settings.setProperty(GitHubPlugin.GITHUB_APP_ID, "12");
+    assertThat(config.isGitHubApp()).isTrue();
+    assertThat(config.appId()).isEqualTo("12");
+    try {
+      config.appInstallationId();
+      fail("Expected exception");
+    } catch (MessageException e) {
+      assertThat(e).hasMessage("Property 'sonar.github.app.installationId' is required when authenticating as a GitHub App with 'sonar.github.app.id'");
+    }
+    settings.setProperty(GitHubPlugin.GITHUB_APP_INSTALLATION_ID, "42");
+    settings.setProperty(GitHubPlugin.GITHUB_APP_PRIVATE_KEY_FILE, "/path/to/app.pem");
+    assertThat(config.appInstallationId()).isEqualTo("42");
+    assertThat(config.appPrivateKeyFile()).isEqualTo(new File("/path/to/app.pem"));
   }
 
 }
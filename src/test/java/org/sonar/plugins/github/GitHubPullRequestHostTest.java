@@ -0,0 +1,458 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InOrder;
+import org.sonar.plugins.github.PublicationPlan.Target;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class GitHubPullRequestHostTest {
+
+  private static final String REPO = "SonarSource/sonar-java";
+  private static final GitHubClient.PullRequest PR = pullRequest("abc123");
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private static GitHubClient.PullRequest pullRequest(String headSha) {
+    return new GitHubClient.PullRequest(REPO, 1, "https://github.com/SonarSource/sonar-java/pull/1", headSha, "https://github.com/SonarSource/sonar-java");
+  }
+
+  @Test
+  public void testFileUrl() throws Exception {
+    GitHubPullRequestHost host = new GitHubPullRequestHost(mock(GitHubPluginConfiguration.class));
+    host.setPr(PR);
+    assertThat(host.fileUrl("src/main/Foo.java", 10)).isEqualTo("https://github.com/SonarSource/sonar-java/blob/abc123/src/main/Foo.java#L10");
+  }
+
+  @Test
+  public void testEmptyGetCommitStatusForContext() throws IOException {
+    GitHubPullRequestHost host = new GitHubPullRequestHost(mock(GitHubPluginConfiguration.class));
+    mockPullRequest(host);
+    assertThat(host.getCommitStatusForContext(GitHubPullRequestHost.COMMIT_CONTEXT)).isNull();
+  }
+
+  @Test
+  public void testGetCommitStatusForContextWithOneCorrectStatus() throws IOException {
+    GitHubPullRequestHost host = new GitHubPullRequestHost(mock(GitHubPluginConfiguration.class));
+    GitHubClient github = mockPullRequest(host);
+    when(github.listCommitStatuses(REPO, "abc123")).thenReturn(Arrays.asList(
+      new GitHubClient.CommitStatus(CommitState.SUCCESS, "Build passed", null, "ci"),
+      new GitHubClient.CommitStatus(CommitState.ERROR, "SonarQube reported 1 issue", null, GitHubPullRequestHost.COMMIT_CONTEXT)));
+    GitHubClient.CommitStatus status = host.getCommitStatusForContext(GitHubPullRequestHost.COMMIT_CONTEXT);
+    assertThat(status.context()).isEqualTo(GitHubPullRequestHost.COMMIT_CONTEXT);
+    assertThat(status.state()).isEqualTo(CommitState.ERROR);
+  }
+
+  private static GitHubClient mockPullRequest(GitHubPullRequestHost host) throws IOException {
+    host.setMyself("me");
+    GitHubClient github = mock(GitHubClient.class);
+    when(github.rateLimit()).thenReturn(new GitHubClient.RateLimit(5000, 0L));
+    when(github.createIssueComment(eq(REPO), eq(1), anyString()))
+      .thenAnswer(invocation -> new GitHubClient.Comment(100, "me", (String) invocation.getArguments()[2], null, null));
+    host.setGitHub(github);
+    host.setPr(PR);
+    return github;
+  }
+
+  private static void mockGlobalComments(GitHubClient github, GitHubClient.Comment... comments) throws IOException {
+    when(github.listIssueComments(REPO, 1)).thenReturn(Arrays.asList(comments));
+  }
+
+  private static void mockReviewComments(GitHubPullRequestHost host, GitHubClient github, GitHubClient.Comment... comments) throws IOException {
+    when(github.listReviewComments(REPO, 1)).thenReturn(Arrays.asList(comments));
+    host.loadExistingReviewComments();
+  }
+
+  @Test
+  public void testPublishKeepsMatchingGlobalCommentsInOrder() throws IOException {
+    GitHubPullRequestHost host = new GitHubPullRequestHost(mock(GitHubPluginConfiguration.class));
+    GitHubClient github = mockPullRequest(host);
+    mockGlobalComments(github, comment(1, "me", "part 1"), comment(2, "me", "old part 2"), comment(3, "other", "part 2"));
+
+    host.publish(new PullRequestState().addGlobalComment(null, "part 1").addGlobalComment(null, "part 2").addGlobalComment(null, "part 3"));
+
+    verify(github, never()).deleteIssueComment(REPO, 1);
+    verify(github).deleteIssueComment(REPO, 2);
+    verify(github, never()).deleteIssueComment(REPO, 3);
+    InOrder inOrder = inOrder(github);
+    inOrder.verify(github).createIssueComment(REPO, 1, "part 2");
+    inOrder.verify(github).createIssueComment(REPO, 1, "part 3");
+    verify(github, never()).createIssueComment(REPO, 1, "part 1");
+  }
+
+  @Test
+  public void testPublishInDryRunMode() throws IOException {
+    GitHubPluginConfiguration config = mock(GitHubPluginConfiguration.class);
+    when(config.dryRun()).thenReturn(true);
+    GitHubPullRequestHost host = new GitHubPullRequestHost(config);
+    GitHubClient github = mockPullRequest(host);
+    mockGlobalComments(github, comment(1, "me", "old"));
+
+    host.publish(new PullRequestState().addGlobalComment(null, "new").setStatus(CommitState.SUCCESS, "SonarQube reported no issues", null));
+
+    verify(github, never()).deleteIssueComment(REPO, 1);
+    verify(github, never()).createIssueComment(REPO, 1, "new");
+    verify(github, never()).createCommitStatus(REPO, "abc123", CommitState.SUCCESS, null, "SonarQube reported no issues", GitHubPullRequestHost.COMMIT_CONTEXT);
+  }
+
+  @Test
+  public void testDoNotPublishWhenPullRequestHeadMoved() throws IOException {
+    GitHubPullRequestHost host = new GitHubPullRequestHost(mock(GitHubPluginConfiguration.class));
+    GitHubClient github = mockPullRequest(host);
+    mockGlobalComments(github, comment(1, "me", "old"));
+    when(github.pullRequest(REPO, 1)).thenReturn(pullRequest("def456"));
+    host.setAnalyzedSha(1, "abc123");
+
+    host.publish(new PullRequestState().addGlobalComment(null, "new"));
+
+    verify(github, never()).deleteIssueComment(REPO, 1);
+    verify(github, never()).createIssueComment(REPO, 1, "new");
+  }
+
+  @Test
+  public void testDoNotPublishWhenNewerAnalysisStarted() throws IOException {
+    GitHubPullRequestHost host = new GitHubPullRequestHost(mock(GitHubPluginConfiguration.class));
+    GitHubClient github = mockPullRequest(host);
+    mockGlobalComments(github);
+    File leaseFile = new File(temp.newFolder(), "pr.lease");
+    PullRequestLease lease = new PullRequestLease(leaseFile.toPath());
+    lease.acquire("abc123");
+    host.setLease(lease);
+    new PullRequestLease(leaseFile.toPath()).acquire("abc123");
+
+    host.publish(new PullRequestState().addGlobalComment(null, "new"));
+
+    verify(github, never()).createIssueComment(REPO, 1, "new");
+    // Lease of the newer analysis is kept
+    assertThat(leaseFile).exists();
+  }
+
+  @Test
+  public void testPublishWhenAnalysisOfOlderCommitStartedLater() throws IOException {
+    GitHubPullRequestHost host = new GitHubPullRequestHost(mock(GitHubPluginConfiguration.class));
+    GitHubClient github = mockPullRequest(host);
+    mockGlobalComments(github);
+    when(github.pullRequest(REPO, 1)).thenReturn(pullRequest("abc123"));
+    host.setAnalyzedSha(1, "abc123");
+    File leaseFile = new File(temp.newFolder(), "pr.lease");
+    PullRequestLease lease = new PullRequestLease(leaseFile.toPath());
+    lease.acquire("abc123");
+    host.setLease(lease);
+    new PullRequestLease(leaseFile.toPath()).acquire("old000");
+
+    host.publish(new PullRequestState().addGlobalComment(null, "new"));
+
+    verify(github).createIssueComment(REPO, 1, "new");
+  }
+
+  @Test
+  public void testDoNotFailWhenStateCannotBeReadOnceRateLimitIsExhausted() throws IOException {
+    GitHubPullRequestHost host = new GitHubPullRequestHost(mock(GitHubPluginConfiguration.class));
+    GitHubClient github = mockPullRequest(host);
+    mockGlobalComments(github);
+    when(github.rateLimit()).thenReturn(new GitHubClient.RateLimit(0, 0L));
+    when(github.listCommitStatuses(REPO, "abc123")).thenThrow(new IOException("Server returned HTTP response code: 403"));
+
+    host.publish(new PullRequestState().addGlobalComment(null, "new").setStatus(CommitState.SUCCESS, "SonarQube reported no issues", null));
+
+    verify(github, never()).createIssueComment(REPO, 1, "new");
+    verify(github, never()).createCommitStatus(REPO, "abc123", CommitState.SUCCESS, null, "SonarQube reported no issues", GitHubPullRequestHost.COMMIT_CONTEXT);
+  }
+
+  @Test
+  public void testAnalysisOfOlderCommitDoesNotTakeTheLease() throws IOException {
+    GitHubPluginConfiguration config = mock(GitHubPluginConfiguration.class);
+    when(config.repository()).thenReturn(REPO);
+    when(config.endpoint()).thenReturn("https://api.github.com");
+    GitHubClient github = mock(GitHubClient.class);
+    when(github.rateLimit()).thenReturn(new GitHubClient.RateLimit(5000, 0L));
+    when(github.pullRequest(REPO, 1)).thenReturn(pullRequest("abc123"));
+    PullRequestLease lease = PullRequestLease.forPullRequest(config.endpoint(), REPO, 1, null);
+    lease.acquire("abc123");
+    try {
+      GitHubPullRequestHost host = new GitHubPullRequestHost(config, github);
+      host.load(1, "old000");
+
+      assertThat(host.analyzedSha()).isEqualTo("old000");
+      assertThat(lease.holderSha()).isEqualTo("abc123");
+      assertThat(host.isStale()).isTrue();
+    } finally {
+      lease.release();
+    }
+  }
+
+  @Test
+  public void testCheckoutOfTestMergeIsAnAnalysisOfTheHead() throws IOException {
+    GitHubPluginConfiguration config = mock(GitHubPluginConfiguration.class);
+    when(config.repository()).thenReturn(REPO);
+    when(config.resultsPublishedElsewhere()).thenReturn(true);
+    GitHubClient github = mock(GitHubClient.class);
+    when(github.rateLimit()).thenReturn(new GitHubClient.RateLimit(5000, 0L));
+    when(github.pullRequest(REPO, 1)).thenReturn(new GitHubClient.PullRequest(REPO, 1, "https://github.com/SonarSource/sonar-java/pull/1", "abc123",
+      "https://github.com/SonarSource/sonar-java", "merge1"));
+    GitHubPullRequestHost host = new GitHubPullRequestHost(config, github);
+
+    host.load(1, "merge1");
+
+    assertThat(host.analyzedSha()).isEqualTo("abc123");
+    assertThat(host.isStale()).isFalse();
+    // Comments are compared with the results by the analysis publishing them
+    verify(github, never()).listReviewComments(REPO, 1);
+  }
+
+  @Test
+  public void testScopeCommentsAndStatusByProject() throws IOException {
+    GitHubPluginConfiguration config = mock(GitHubPluginConfiguration.class);
+    when(config.scopeByProject()).thenReturn(true);
+    when(config.projectKey()).thenReturn("backend");
+    GitHubPullRequestHost host = new GitHubPullRequestHost(config);
+    GitHubClient github = mockPullRequest(host);
+    mockGlobalComments(github,
+      comment(1, "me", "old\n\n<!-- sonarqube project: backend -->"),
+      comment(2, "me", "part 1\n\n<!-- sonarqube project: backend -->"),
+      comment(3, "me", "old\n\n<!-- sonarqube project: frontend -->"),
+      comment(4, "me", "old"));
+
+    host.publish(new PullRequestState().addGlobalComment(null, "part 1").addGlobalComment(null, "part 2")
+      .setStatus(CommitState.SUCCESS, "SonarQube reported no issues", null));
+
+    verify(github).deleteIssueComment(REPO, 1);
+    verify(github, never()).deleteIssueComment(REPO, 2);
+    verify(github, never()).deleteIssueComment(REPO, 3);
+    verify(github, never()).deleteIssueComment(REPO, 4);
+    verify(github).createIssueComment(REPO, 1, "part 2\n\n<!-- sonarqube project: backend -->");
+    verify(github).createCommitStatus(REPO, "abc123", CommitState.SUCCESS, null, "SonarQube reported no issues", "sonarqube/backend");
+  }
+
+  @Test
+  public void testProjectTagOfComment() {
+    assertThat(GitHubPullRequestHost.projectTagOf("summary\n\n<!-- sonarqube project: org.foo:bar -->")).isEqualTo("org.foo:bar");
+    assertThat(GitHubPullRequestHost.projectTagOf("summary")).isNull();
+    assertThat(GitHubPullRequestHost.projectTagOf(null)).isNull();
+  }
+
+  private static GitHubClient.Comment comment(int id, String login, String body) {
+    return new GitHubClient.Comment(id, login, body, null, null);
+  }
+
+  @Test
+  public void testPublishAttemptsAllDeletions() throws IOException {
+    GitHubPluginConfiguration config = mock(GitHubPluginConfiguration.class);
+    when(config.publishThreads()).thenReturn(2);
+    GitHubPullRequestHost host = new GitHubPullRequestHost(config);
+    GitHubClient github = mockPullRequest(host);
+    mockGlobalComments(github);
+    doThrow(new IOException("boom")).when(github).deleteReviewComment(REPO, 2);
+    mockReviewComments(host, github, reviewComment(1), reviewComment(2), reviewComment(3));
+
+    File journalFile = new File(temp.newFolder(), "pr.journal");
+    host.setJournal(new PublicationJournal(journalFile.toPath(), "abc123"));
+
+    // Failure does not stop the analysis, the next one deletes the remaining comment
+    host.publish(new PullRequestState());
+
+    verify(github).deleteReviewComment(REPO, 1);
+    verify(github).deleteReviewComment(REPO, 3);
+    assertThat(journalFile).exists();
+  }
+
+  @Test
+  public void testTellInSummaryThatReviewCommentsAreNotPublished() throws IOException {
+    GitHubPullRequestHost host = new GitHubPullRequestHost(mock(GitHubPluginConfiguration.class));
+    GitHubClient github = mockPullRequest(host);
+    mockGlobalComments(github);
+    when(github.rateLimit()).thenReturn(new GitHubClient.RateLimit(2, 0L));
+
+    host.publish(new PullRequestState()
+      .addReviewComment(null, "src/Foo.java", 3, "blocker", true)
+      .addGlobalComment(null, "summary")
+      .setStatus(CommitState.ERROR, "SonarQube reported 1 issue, with 1 blocker", null));
+
+    verify(github).createIssueComment(REPO, 1, "summary" + GitHubPullRequestHost.SUMMARY_ONLY_NOTE);
+    verify(github, never()).createReviewComment(anyString(), anyInt(), anyString(), anyString(), anyString(), anyInt());
+    verify(github).createCommitStatus(REPO, "abc123", CommitState.ERROR, null, "SonarQube reported 1 issue, with 1 blocker", GitHubPullRequestHost.COMMIT_CONTEXT);
+  }
+
+  @Test
+  public void testResumePublicationOfTheSameCommit() throws IOException {
+    GitHubPullRequestHost host = new GitHubPullRequestHost(mock(GitHubPluginConfiguration.class));
+    GitHubClient github = mockPullRequest(host);
+    // Previous analysis created the second global comment, not listed yet by GitHub, and deleted an outdated review comment
+    File journalFile = new File(temp.newFolder(), "pr.journal");
+    PublicationJournal previous = new PublicationJournal(journalFile.toPath(), "abc123");
+    previous.created(Target.GLOBAL_COMMENT, 2, null, -1, "part 2");
+    previous.deleted(Target.REVIEW_COMMENT, 3);
+    previous.close();
+    host.setJournal(new PublicationJournal(journalFile.toPath(), "abc123"));
+    mockGlobalComments(github, comment(1, "me", "part 1"));
+    mockReviewComments(host, github, reviewComment(3));
+
+    host.publish(new PullRequestState().addGlobalComment(null, "part 1").addGlobalComment(null, "part 2"));
+
+    verify(github, never()).createIssueComment(anyString(), anyInt(), anyString());
+    verify(github, never()).deleteReviewComment(REPO, 3);
+    assertThat(journalFile).doesNotExist();
+  }
+
+  @Test
+  public void testPublishOnlyStatus() throws IOException {
+    GitHubPluginConfiguration config = mock(GitHubPluginConfiguration.class);
+    when(config.publishMode()).thenReturn(GitHubPluginConfiguration.PublishMode.STATUS_ONLY);
+    GitHubPullRequestHost host = new GitHubPullRequestHost(config);
+    GitHubClient github = mockPullRequest(host);
+
+    host.publish(new PullRequestState().addGlobalComment(null, "summary").setStatus(CommitState.SUCCESS, "SonarQube reported no issues", null));
+
+    verify(github, never()).listIssueComments(REPO, 1);
+    verify(github, never()).createIssueComment(REPO, 1, "summary");
+    verify(github).createCommitStatus(REPO, "abc123", CommitState.SUCCESS, null, "SonarQube reported no issues", GitHubPullRequestHost.COMMIT_CONTEXT);
+  }
+
+  @Test
+  public void testPublishMostValuableResultsFirst() throws IOException {
+    GitHubPullRequestHost host = new GitHubPullRequestHost(mock(GitHubPluginConfiguration.class));
+    GitHubClient github = mockPullRequest(host);
+    mockGlobalComments(github);
+    mockReviewComments(host, github, reviewComment(1));
+
+    host.publish(new PullRequestState()
+      .addReviewComment(null, "src/Foo.java", 2, "minor", false)
+      .addReviewComment(null, "src/Foo.java", 3, "blocker", true)
+      .addGlobalComment(null, "summary")
+      .setStatus(CommitState.ERROR, "SonarQube reported 2 issues, with 1 blocker", null));
+
+    InOrder inOrder = inOrder(github);
+    inOrder.verify(github).createCommitStatus(REPO, "abc123", CommitState.ERROR, null, "SonarQube reported 2 issues, with 1 blocker", GitHubPullRequestHost.COMMIT_CONTEXT);
+    inOrder.verify(github).createIssueComment(REPO, 1, "summary");
+    inOrder.verify(github).createReviewComment(REPO, 1, "blocker", "abc123", "src/Foo.java", 3);
+    inOrder.verify(github).createReviewComment(REPO, 1, "minor", "abc123", "src/Foo.java", 2);
+    inOrder.verify(github).deleteReviewComment(REPO, 1);
+  }
+
+  @Test
+  public void testPublishReviewCommentsAsTheyAreRendered() throws IOException {
+    GitHubPullRequestHost host = new GitHubPullRequestHost(mock(GitHubPluginConfiguration.class));
+    GitHubClient github = mockPullRequest(host);
+    mockGlobalComments(github);
+    mockReviewComments(host, github, reviewComment(1), reviewComment(2), reviewComment(3));
+    List<Supplier<List<PullRequestState.Comment>>> renderers = Arrays.asList(
+      () -> Collections.singletonList(new PullRequestState.Comment(null, "src/Foo.java", 3, "blocker", true)),
+      () -> Arrays.asList(new PullRequestState.Comment(null, "src/Foo.java", 1, "comment 1", false), new PullRequestState.Comment(null, "src/Foo.java", 4, "minor", false)));
+
+    host.publish(new PullRequestState()
+      .addGlobalComment(null, "summary")
+      .setStatus(CommitState.ERROR, "SonarQube reported 2 issues, with 1 blocker", null), new ReviewCommentQueue(3, renderers));
+
+    InOrder inOrder = inOrder(github);
+    inOrder.verify(github).createCommitStatus(REPO, "abc123", CommitState.ERROR, null, "SonarQube reported 2 issues, with 1 blocker", GitHubPullRequestHost.COMMIT_CONTEXT);
+    inOrder.verify(github).createIssueComment(REPO, 1, "summary");
+    inOrder.verify(github).updateReviewComment(REPO, 3, "blocker");
+    inOrder.verify(github).createReviewComment(REPO, 1, "minor", "abc123", "src/Foo.java", 4);
+    inOrder.verify(github).deleteReviewComment(REPO, 2);
+    verify(github, never()).updateReviewComment(REPO, 1, "comment 1");
+    verify(github, never()).deleteReviewComment(REPO, 1);
+    verify(github, never()).deleteReviewComment(REPO, 3);
+  }
+
+  @Test
+  public void testRenderAllReviewCommentsFirstWhenRateLimitIsLow() throws IOException {
+    GitHubPullRequestHost host = new GitHubPullRequestHost(mock(GitHubPluginConfiguration.class));
+    GitHubClient github = mockPullRequest(host);
+    mockGlobalComments(github);
+    when(github.rateLimit()).thenReturn(new GitHubClient.RateLimit(2, 0L));
+
+    host.publish(new PullRequestState()
+      .addGlobalComment(null, "summary")
+      .setStatus(CommitState.ERROR, "SonarQube reported 1 issue, with 1 blocker", null),
+      new ReviewCommentQueue(1, Collections.singletonList(() -> Collections.singletonList(new PullRequestState.Comment(null, "src/Foo.java", 3, "blocker", true)))));
+
+    verify(github).createIssueComment(REPO, 1, "summary" + GitHubPullRequestHost.SUMMARY_ONLY_NOTE);
+    verify(github, never()).createReviewComment(anyString(), anyInt(), anyString(), anyString(), anyString(), anyInt());
+  }
+
+  @Test
+  public void testStopPublicationAtDeadline() throws IOException {
+    GitHubPluginConfiguration config = mock(GitHubPluginConfiguration.class);
+    when(config.publishTimeoutMs()).thenReturn(1000L);
+    GitHubPullRequestHost host = new GitHubPullRequestHost(config);
+    GitHubClient github = mockPullRequest(host);
+    mockGlobalComments(github);
+    mockReviewComments(host, github, reviewComment(1));
+    when(github.createIssueComment(REPO, 1, "summary")).thenReturn(comment(2, "me", "summary"));
+    // GitHub hangs while publishing the comments of minor issues
+    when(github.createReviewComment(REPO, 1, "minor", "abc123", "src/Foo.java", 2)).thenAnswer(invocation -> {
+      Thread.sleep(10_000L);
+      return null;
+    });
+
+    long start = System.currentTimeMillis();
+    host.publish(new PullRequestState()
+      .addReviewComment(null, "src/Foo.java", 2, "minor", false)
+      .addReviewComment(null, "src/Foo.java", 3, "blocker", true)
+      .addGlobalComment(null, "summary")
+      .setStatus(CommitState.ERROR, "SonarQube reported 2 issues, with 1 blocker", null));
+
+    assertThat(System.currentTimeMillis() - start).isLessThan(5_000L);
+    verify(github).createReviewComment(REPO, 1, "blocker", "abc123", "src/Foo.java", 3);
+    verify(github, never()).deleteReviewComment(REPO, 1);
+    verify(github).updateIssueComment(REPO, 2, "summary\n\n:warning: Results are partially published: the publication on GitHub did not end within 1s.");
+  }
+
+  @Test
+  public void testRoomIsKeptForTheProjectTagAndTheNotesOfTheSummary() {
+    GitHubPluginConfiguration config = mock(GitHubPluginConfiguration.class);
+    assertThat(GitHubPullRequestHost.reservedCommentSize(config)).isEqualTo(0);
+    assertThat(GitHubPullRequestHost.reservedSummarySize(config)).isEqualTo(GitHubPullRequestHost.SUMMARY_ONLY_NOTE.length());
+
+    String projectKey = new String(new char[1000]).replace('\0', 'x');
+    when(config.scopeByProject()).thenReturn(true);
+    when(config.projectKey()).thenReturn(projectKey);
+    when(config.publishTimeoutMs()).thenReturn(Long.MAX_VALUE);
+    String tag = "\n\n<!-- sonarqube project: " + projectKey + " -->";
+    assertThat(GitHubPullRequestHost.reservedCommentSize(config)).isEqualTo(tag.length());
+    assertThat(GitHubPullRequestHost.reservedSummarySize(config))
+      .isEqualTo(tag.length() + Math.max(GitHubPullRequestHost.SUMMARY_ONLY_NOTE.length(), GitHubPullRequestHost.partialPublicationNote(Long.MAX_VALUE).length()));
+  }
+
+  private static GitHubClient.Comment reviewComment(int id) {
+    return new GitHubClient.Comment(id, "me", "comment " + id, "src/Foo.java", id);
+  }
+
+}
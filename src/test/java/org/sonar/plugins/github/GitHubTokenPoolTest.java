@@ -0,0 +1,118 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class GitHubTokenPoolTest {
+
+  private static final long NOW = 1_000_000L;
+
+  private Map<String, GitHubClient> clientByToken = new HashMap<>();
+  private Map<String, Long> exhaustedUntil = new HashMap<>();
+  private System2 system = mock(System2.class);
+  private GitHubTokenPool pool;
+
+  @Before
+  public void prepare() throws IOException {
+    when(system.now()).thenReturn(NOW);
+    for (String token : Arrays.asList("a", "b", "c")) {
+      GitHubClient client = mock(GitHubClient.class);
+      clientByToken.put(token, client);
+      mockRemainingCalls(client, 5000);
+    }
+    pool = new GitHubTokenPool(Arrays.asList("a", "b", "c"), clientByToken::get, exhaustedUntil, system);
+  }
+
+  @Test
+  public void pullRequestIsPinnedToOneToken() throws IOException {
+    int pinned = pool.pinnedIndex("SonarSource/sonar-github", 42);
+    assertThat(pool.pinnedIndex("SonarSource/sonar-github", 42)).isEqualTo(pinned);
+
+    assertThat(pool.select("SonarSource/sonar-github", 42)).isEqualTo(Arrays.asList("a", "b", "c").get(pinned));
+    assertThat(pool.pinned("SonarSource/sonar-github", 42)).isEqualTo(Arrays.asList("a", "b", "c").get(pinned));
+  }
+
+  @Test
+  public void pinnedTokenDoesNotChangeWhenOtherTokensAreAddedOrRemoved() {
+    for (int number = 1; number <= 50; number++) {
+      String pinned = pool.pinned("SonarSource/sonar-github", number);
+      GitHubTokenPool grown = new GitHubTokenPool(Arrays.asList("a", "b", "c", "d"), clientByToken::get, exhaustedUntil, system);
+      assertThat(Arrays.asList(pinned, "d")).contains(grown.pinned("SonarSource/sonar-github", number));
+      List<String> others = new ArrayList<>(Arrays.asList("a", "b", "c"));
+      others.remove(pinned.equals("a") ? "b" : "a");
+      GitHubTokenPool shrunk = new GitHubTokenPool(others, clientByToken::get, exhaustedUntil, system);
+      assertThat(shrunk.pinned("SonarSource/sonar-github", number)).isEqualTo(pinned);
+    }
+  }
+
+  @Test
+  public void useTokenWithMostRemainingCallsWhenPinnedOneIsExhausted() throws IOException {
+    String pinnedToken = Arrays.asList("a", "b", "c").get(pool.pinnedIndex("SonarSource/sonar-github", 42));
+    when(clientByToken.get(pinnedToken).rateLimit()).thenReturn(new GitHubClient.RateLimit(0, NOW + 60_000L));
+    String other = pinnedToken.equals("a") ? "b" : "a";
+    mockRemainingCalls(clientByToken.get(other), 10);
+
+    String selected = pool.select("SonarSource/sonar-github", 42);
+    assertThat(selected).isNotEqualTo(pinnedToken).isNotEqualTo(other);
+    assertThat(exhaustedUntil).containsEntry(pinnedToken, NOW + 60_000L);
+
+    // Exhausted token is not queried again until it is reset
+    GitHubClient pinnedClient = clientByToken.get(pinnedToken);
+    clientByToken.put(pinnedToken, mock(GitHubClient.class));
+    pool.select("SonarSource/sonar-github", 42);
+    verify(clientByToken.get(pinnedToken), never()).rateLimit();
+
+    when(system.now()).thenReturn(NOW + 60_000L);
+    clientByToken.put(pinnedToken, pinnedClient);
+    mockRemainingCalls(pinnedClient, 5000);
+    assertThat(pool.select("SonarSource/sonar-github", 42)).isEqualTo(pinnedToken);
+    assertThat(exhaustedUntil).isEmpty();
+  }
+
+  @Test
+  public void usePinnedTokenWhenAllAreExhausted() throws IOException {
+    for (GitHubClient client : clientByToken.values()) {
+      mockRemainingCalls(client, 0);
+    }
+    String pinnedToken = Arrays.asList("a", "b", "c").get(pool.pinnedIndex("SonarSource/sonar-github", 42));
+
+    assertThat(pool.select("SonarSource/sonar-github", 42)).isEqualTo(pinnedToken);
+  }
+
+  private static void mockRemainingCalls(GitHubClient client, int remaining) throws IOException {
+    when(client.rateLimit()).thenReturn(new GitHubClient.RateLimit(remaining, 0L));
+  }
+
+}
@@ -19,6 +19,7 @@
  */
 package org.sonar.plugins.github;
 
+import java.util.List;
 import javax.annotation.CheckForNull;
 import org.junit.Before;
 import org.junit.Test;
@@ -159,6 +160,26 @@ public class GlobalReportTest {
     assertThat(formattedGlobalReport).isEqualTo(desiredMarkdown);
   }
 
+  @Test
+  public void shouldReportIssuesOverInlineCommentLimit() {
+    GlobalReport globalReport = new GlobalReport(new MarkDownUtils(settings), true);
+    globalReport.process(newMockedIssue("component", null, null, Severity.BLOCKER, true, "Issue 0", "rule0"), GITHUB_URL, true);
+    globalReport.processOverInlineCommentLimit(newMockedIssue("component", null, null, Severity.MINOR, true, "Issue 1", "rule1"), GITHUB_URL, 1);
+    globalReport.process(newMockedIssue("component", null, null, Severity.MAJOR, true, "Issue 2", "rule2"), GITHUB_URL, false);
+
+    String formattedGlobalReport = globalReport.formatForMarkdown();
+
+    assertThat(formattedGlobalReport)
+      .contains("\nWatch the comments in this conversation to review them.\n"
+        + "\n#### 1 issue not commented inline, over the limit of 1 inline comment\n\n1. ")
+      .contains("Issue 1")
+      .contains("\n#### 1 extra issue\n"
+        + "\nNote: The following issues were found on lines that were not modified in the pull request. "
+        + "Because these issues can't be reported as line comments, they are summarized here:\n\n1. ");
+    assertThat(formattedGlobalReport.indexOf("Issue 1")).isLessThan(formattedGlobalReport.indexOf("#### 1 extra issue"));
+    assertThat(formattedGlobalReport.indexOf("Issue 2")).isGreaterThan(formattedGlobalReport.indexOf("#### 1 extra issue"));
+  }
+
   @Test
   public void shouldFormatIssuesForMarkdownWhenInlineCommentsDisabled() {
     GlobalReport globalReport = new GlobalReport(new MarkDownUtils(settings), false);
@@ -284,4 +305,27 @@ public class GlobalReportTest {
 
     assertThat(formattedGlobalReport).isEqualTo(desiredMarkdown);
   }
+
+  @Test
+  public void splitSummaryExceedingGitHubCommentSize() {
+    int maxGlobalReportedIssues = 200;
+    GlobalReport globalReport = new GlobalReport(new MarkDownUtils(settings), false, maxGlobalReportedIssues);
+    StringBuilder longMessage = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      longMessage.append('x');
+    }
+    for (int i = 0; i < maxGlobalReportedIssues; i++) {
+      globalReport.process(newMockedIssue("component", null, null, Severity.MAJOR, true, "Issue number:" + i + " " + longMessage, "rule" + i), GITHUB_URL + "/File.java#L" + i, false);
+    }
+
+    List<String> comments = globalReport.formatForMarkdownComments(0);
+
+    assertThat(comments.size()).isGreaterThan(1);
+    for (String comment : comments) {
+      assertThat(comment.length()).isLessThanOrEqualTo(MarkdownWriter.GITHUB_MAX_BODY_SIZE);
+    }
+    assertThat(comments.get(0)).startsWith("SonarQube analysis reported 200 issues\n");
+    assertThat(comments.get(1)).startsWith("SonarQube analysis report (continued)\n\n1. ");
+    assertThat(String.join("", comments)).contains("Issue number:199 ");
+  }
 }
@@ -0,0 +1,124 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HostRateLimiterTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private System2 system = mock(System2.class);
+  private File file;
+
+  @Before
+  public void prepare() throws IOException {
+    file = new File(temp.newFolder(), "github.ratelimit");
+    when(system.now()).thenReturn(1_000_000L);
+  }
+
+  @Test
+  public void analysesShareTheBucket() throws IOException {
+    // 60 calls per minute, bursts of 10 calls
+    HostRateLimiter first = new HostRateLimiter(file.toPath(), 60, mock(HttpConnector.class), system);
+    HostRateLimiter second = new HostRateLimiter(file.toPath(), 60, mock(HttpConnector.class), system);
+
+    for (int i = 0; i < 5; i++) {
+      assertThat(first.tryAcquire()).isEqualTo(0L);
+      assertThat(second.tryAcquire()).isEqualTo(0L);
+    }
+    assertThat(first.tryAcquire()).isEqualTo(1000L);
+    assertThat(second.tryAcquire()).isEqualTo(1000L);
+
+    when(system.now()).thenReturn(1_001_500L);
+    assertThat(second.tryAcquire()).isEqualTo(0L);
+    assertThat(first.tryAcquire()).isEqualTo(500L);
+  }
+
+  @Test
+  public void analysesBackOffTogether() throws IOException {
+    HostRateLimiter first = new HostRateLimiter(file.toPath(), 60, mock(HttpConnector.class), system);
+    HostRateLimiter second = new HostRateLimiter(file.toPath(), 60, mock(HttpConnector.class), system);
+
+    first.pause(30_000L);
+    assertThat(second.tryAcquire()).isEqualTo(30_000L);
+
+    when(system.now()).thenReturn(1_030_000L);
+    assertThat(second.tryAcquire()).isEqualTo(0L);
+  }
+
+  @Test
+  public void threadsOfTheSameProcessTakeTurns() throws Exception {
+    // 6000 calls per minute, bursts of 1000 calls
+    HostRateLimiter limiter = new HostRateLimiter(file.toPath(), 6000, mock(HttpConnector.class), system);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Long>> waits = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        waits.add(executor.submit(i % 10 == 0 ? () -> {
+          limiter.pause(0L);
+          return 0L;
+        } : limiter::tryAcquire));
+      }
+      for (Future<Long> wait : waits) {
+        assertThat(wait.get()).isEqualTo(0L);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void backOffAfterSecondaryRateLimit() throws IOException {
+    HostRateLimiter first = new HostRateLimiter(file.toPath(), 60, mock(HttpConnector.class), system);
+    HostRateLimiter second = new HostRateLimiter(file.toPath(), 60, mock(HttpConnector.class), system);
+
+    assertThat(first.backOff(new IOException("Not Found"))).isFalse();
+    assertThat(second.tryAcquire()).isEqualTo(0L);
+
+    assertThat(first.backOff(new IOException("You have exceeded a secondary rate limit."))).isTrue();
+    assertThat(second.tryAcquire()).isEqualTo(HostRateLimiter.SECONDARY_RATE_LIMIT_PAUSE_MS);
+  }
+
+  @Test
+  public void detectSecondaryRateLimit() {
+    assertThat(HostRateLimiter.isSecondaryRateLimit(new IOException("You have triggered an abuse detection mechanism."))).isTrue();
+    assertThat(HostRateLimiter.isSecondaryRateLimit(new IOException("You have exceeded a secondary rate limit."))).isTrue();
+    assertThat(HostRateLimiter.isSecondaryRateLimit(new IOException("Not Found"))).isFalse();
+    assertThat(HostRateLimiter.isSecondaryRateLimit(new IOException())).isFalse();
+  }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import javax.annotation.CheckForNull;
+import org.junit.Test;
+import org.sonar.api.batch.postjob.issue.PostJobIssue;
+import org.sonar.api.batch.rule.Severity;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class IssueSorterTest {
+
+  private static PostJobIssue newMockedIssue(String componentKey, @CheckForNull Integer line, Severity severity) {
+    PostJobIssue issue = mock(PostJobIssue.class);
+    when(issue.componentKey()).thenReturn(componentKey);
+    when(issue.line()).thenReturn(line);
+    when(issue.severity()).thenReturn(severity);
+    return issue;
+  }
+
+  private static List<PostJobIssue> randomIssues(int count) {
+    Random random = new Random(42);
+    List<PostJobIssue> issues = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      Integer line = random.nextInt(10) == 0 ? null : random.nextInt(500) + 1;
+      issues.add(newMockedIssue("foo:src/File" + random.nextInt(30) + ".java", line, Severity.values()[random.nextInt(Severity.values().length)]));
+    }
+    return issues;
+  }
+
+  private static void assertSameOrderThanComparator(List<PostJobIssue> issues) {
+    List<PostJobIssue> expected = new ArrayList<>(issues);
+    expected.sort(new IssueComparator());
+    assertThat(IssueSorter.sort(issues)).isEqualTo(expected);
+  }
+
+  @Test
+  public void sortBySeverityThenComponentThenLine() {
+    PostJobIssue minor = newMockedIssue("foo:src/Foo.php", 1, Severity.MINOR);
+    PostJobIssue blockerOnLine8 = newMockedIssue("foo:src/Foo.php", 8, Severity.BLOCKER);
+    PostJobIssue blockerOnLine2 = newMockedIssue("foo:src/Foo.php", 2, Severity.BLOCKER);
+    PostJobIssue blockerWithoutLine = newMockedIssue("foo:src/Foo.php", null, Severity.BLOCKER);
+    PostJobIssue blockerOnOtherFile = newMockedIssue("foo:src/Bar.php", 10, Severity.BLOCKER);
+
+    assertThat(IssueSorter.sort(Arrays.asList(minor, blockerOnLine8, blockerOnLine2, blockerWithoutLine, blockerOnOtherFile)))
+      .containsExactly(blockerOnOtherFile, blockerWithoutLine, blockerOnLine2, blockerOnLine8, minor);
+  }
+
+  @Test
+  public void sortIsStable() {
+    PostJobIssue first = newMockedIssue("foo:src/Foo.php", 3, Severity.MAJOR);
+    PostJobIssue second = newMockedIssue("foo:src/Foo.php", 3, Severity.MAJOR);
+    PostJobIssue third = newMockedIssue("foo:src/Foo.php", 3, Severity.MAJOR);
+
+    assertThat(IssueSorter.sort(Arrays.asList(first, second, third))).containsExactly(first, second, third);
+  }
+
+  @Test
+  public void nullIssuesAreLast() {
+    PostJobIssue issue = newMockedIssue("foo:src/Foo.php", 3, Severity.MAJOR);
+
+    assertThat(IssueSorter.sort(Arrays.asList(null, issue))).containsExactly(issue, null);
+  }
+
+  @Test
+  public void sameOrderThanComparator() {
+    assertSameOrderThanComparator(randomIssues(500));
+  }
+
+  @Test
+  public void sameOrderThanComparatorWithParallelSort() {
+    assertSameOrderThanComparator(randomIssues(IssueSorter.PARALLEL_THRESHOLD + 1));
+  }
+
+}
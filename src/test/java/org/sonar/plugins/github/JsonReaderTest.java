@@ -0,0 +1,120 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.IOException;
+import java.io.StringReader;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class JsonReaderTest {
+
+  @Test
+  public void readObjectsAndArrays() throws IOException {
+    JsonReader json = new JsonReader(new StringReader(" { \"id\" : 12, \"name\":\"foo\", \"draft\":false, \"merged_at\":null, \"ids\":[1, 2] }"));
+
+    json.beginObject();
+    assertThat(json.nextName()).isEqualTo("id");
+    assertThat(json.nextInt()).isEqualTo(12);
+    assertThat(json.nextName()).isEqualTo("name");
+    assertThat(json.nextString()).isEqualTo("foo");
+    assertThat(json.nextName()).isEqualTo("draft");
+    assertThat(json.nextBoolean()).isFalse();
+    assertThat(json.nextName()).isEqualTo("merged_at");
+    assertThat(json.nextStringOrNull()).isNull();
+    assertThat(json.nextName()).isEqualTo("ids");
+    json.beginArray();
+    assertThat(json.nextLong()).isEqualTo(1L);
+    assertThat(json.nextLong()).isEqualTo(2L);
+    assertThat(json.hasNext()).isFalse();
+    json.endArray();
+    assertThat(json.hasNext()).isFalse();
+    json.endObject();
+    assertThat(json.peek()).isEqualTo(JsonReader.Token.END_DOCUMENT);
+  }
+
+  @Test
+  public void skipNestedValues() throws IOException {
+    JsonReader json = new JsonReader(new StringReader("{\"user\":{\"login\":\"bot\",\"plan\":{\"name\":\"free\"}},\"labels\":[{\"name\":\"a\"},[],-1.5e3],\"body\":\"b\"}"));
+
+    json.beginObject();
+    json.nextName();
+    json.skipValue();
+    json.nextName();
+    json.skipValue();
+    assertThat(json.nextName()).isEqualTo("body");
+    assertThat(json.nextString()).isEqualTo("b");
+    json.endObject();
+  }
+
+  @Test
+  public void unescapeStrings() throws IOException {
+    JsonReader json = new JsonReader(new StringReader("[\"a\\\"b\\\\c\\/d\\n\\t\\u00e9\\u2705\"]"));
+
+    json.beginArray();
+    assertThat(json.nextString()).isEqualTo("a\"b\\c/d\n\té✅");
+    json.endArray();
+  }
+
+  @Test
+  public void readValuesAcrossBuffers() throws IOException {
+    StringBuilder value = new StringBuilder();
+    for (int i = 0; i < 10_000; i++) {
+      value.append('x');
+    }
+    JsonReader json = new JsonReader(new StringReader("[\"" + value + "\", 1234567890123]"));
+
+    json.beginArray();
+    assertThat(json.nextString()).isEqualTo(value.toString());
+    assertThat(json.nextLong()).isEqualTo(1234567890123L);
+    json.endArray();
+  }
+
+  @Test
+  public void failOnUnexpectedToken() throws IOException {
+    JsonReader json = new JsonReader(new StringReader("{\"id\":\"12\"}"));
+    json.beginObject();
+    json.nextName();
+
+    try {
+      json.nextInt();
+      fail("Expected exception");
+    } catch (IOException e) {
+      assertThat(e).hasMessage("Expected NUMBER but was STRING in JSON document");
+    }
+  }
+
+  @Test
+  public void failOnTruncatedDocument() throws IOException {
+    JsonReader json = new JsonReader(new StringReader("{\"body\":\"trunc"));
+    json.beginObject();
+    json.nextName();
+
+    try {
+      json.nextString();
+      fail("Expected exception");
+    } catch (IOException e) {
+      assertThat(e).hasMessage("Unterminated string in JSON document");
+    }
+  }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.CoreProperties;
+import org.sonar.api.batch.rule.Severity;
+import org.sonar.api.config.Settings;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MarkDownUtilsTest {
+
+  private static final String RULE_LINK = "[![rule](https://raw.githubusercontent.com/SonarCommunity/sonar-github/master/images/rule.png)](http://myserver/coding_rules#rule_key=repo%3Arule)";
+
+  private MarkDownUtils markDownUtils;
+
+  @Before
+  public void prepare() {
+    Settings settings = new Settings();
+    settings.setProperty(CoreProperties.SERVER_BASE_URL, "http://myserver");
+    markDownUtils = new MarkDownUtils(settings);
+  }
+
+  @Test
+  public void inlineIssue() {
+    assertThat(markDownUtils.inlineIssue(Severity.MAJOR, "msg", "repo:rule"))
+      .isEqualTo("![MAJOR](https://raw.githubusercontent.com/SonarCommunity/sonar-github/master/images/severity-major.png) msg " + RULE_LINK);
+    // Rendered fragments are cached per severity and rule
+    assertThat(markDownUtils.inlineIssue(Severity.MAJOR, "other msg", "repo:rule"))
+      .isEqualTo("![MAJOR](https://raw.githubusercontent.com/SonarCommunity/sonar-github/master/images/severity-major.png) other msg " + RULE_LINK);
+    assertThat(markDownUtils.inlineIssue(Severity.INFO, "msg", "repo:rule"))
+      .isEqualTo("![INFO](https://raw.githubusercontent.com/SonarCommunity/sonar-github/master/images/severity-info.png) msg " + RULE_LINK);
+  }
+
+  @Test
+  public void appendToProvidedAppendable() {
+    StringBuilder sb = new StringBuilder("1. ");
+    markDownUtils.appendGlobalIssue(sb, Severity.MAJOR, "msg", "repo:rule", "http://github/blob/abc123/src/Foo.php#L2", "foo:src/Foo.php");
+
+    assertThat(sb.toString())
+      .isEqualTo("1. ![MAJOR](https://raw.githubusercontent.com/SonarCommunity/sonar-github/master/images/severity-major.png) [Foo.php#L2](http://github/blob/abc123/src/Foo.php#L2): msg "
+        + RULE_LINK);
+  }
+
+  @Test
+  public void globalIssueLocation() {
+    assertThat(markDownUtils.globalIssue(Severity.MAJOR, "msg", "repo:rule", "http://github/blob/abc123/", "foo")).contains(" [Project](http://github/blob/abc123/): msg ");
+    assertThat(markDownUtils.globalIssue(Severity.MAJOR, "msg", "repo:rule", "Foo.php", "foo")).contains(" [Foo.php](Foo.php): msg ");
+    assertThat(markDownUtils.globalIssue(Severity.MAJOR, "msg", "repo:rule", null, "foo:src")).contains(" foo:src: msg ");
+  }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MarkdownWriterTest {
+
+  @Test
+  public void writeEntriesInSingleBody() {
+    MarkdownWriter writer = MarkdownWriter.truncating(100, 0);
+    writer.append("Header\n").endEntry();
+    writer.append("1. ").append("issue").append('\n').endEntry();
+
+    assertThat(writer.bodies()).containsExactly("Header\n1. issue\n");
+    assertThat(writer.omittedEntries()).isEqualTo(0);
+  }
+
+  @Test
+  public void truncateWhenBodyIsFull() {
+    MarkdownWriter writer = new MarkdownWriter(200, 200, false, "");
+    writer.append(repeat('a', 60)).endEntry();
+    writer.append(repeat('b', 60)).endEntry();
+    writer.append(repeat('c', 5)).endEntry();
+
+    assertThat(writer.bodies()).hasSize(1);
+    assertThat(writer.body()).startsWith(repeat('a', 60) + "\n_2 more issues were omitted because the comment size limit was reached._\n");
+    assertThat(writer.omittedEntries()).isEqualTo(2);
+  }
+
+  @Test
+  public void splitInContinuationComments() {
+    MarkdownWriter writer = new MarkdownWriter(100, 10, true, "(continued)\n");
+    writer.append(repeat('a', 60)).endEntry();
+    writer.append(repeat('b', 60)).endEntry();
+    writer.append(repeat('c', 20)).endEntry();
+
+    assertThat(writer.bodies()).containsExactly(repeat('a', 60), "(continued)\n" + repeat('b', 60) + repeat('c', 20));
+    assertThat(writer.omittedEntries()).isEqualTo(0);
+  }
+
+  @Test
+  public void cutEntryLargerThanBody() {
+    MarkdownWriter writer = new MarkdownWriter(20, 10, true, "(c)\n");
+    writer.append(repeat('a', 10)).endEntry();
+    writer.append(repeat('b', 30)).endEntry();
+
+    assertThat(writer.bodies()).containsExactly(repeat('a', 10), "(c)\n" + repeat('b', 16));
+  }
+
+  @Test
+  public void budgetIsInUtf8Bytes() {
+    assertThat(MarkdownWriter.utf8Size("abc")).isEqualTo(3);
+    assertThat(MarkdownWriter.utf8Size("é")).isEqualTo(2);
+    assertThat(MarkdownWriter.utf8Size("€")).isEqualTo(3);
+    assertThat(MarkdownWriter.utf8Size(new String(Character.toChars(0x1F600)))).isEqualTo(4);
+
+    MarkdownWriter writer = new MarkdownWriter(10, 10, true, "");
+    writer.append(repeat('€', 3)).endEntry();
+    writer.append(repeat('€', 3)).endEntry();
+    assertThat(writer.bodies()).hasSize(2);
+  }
+
+  private static String repeat(char c, int count) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PatchPositionIndexTest {
+
+  @Test
+  public void indexPositionsByFileAndLine() throws IOException {
+    try (PatchPositionIndex index = new PatchPositionIndex()) {
+      index.addFile("src/Foo.java");
+      PullRequestFacade.processPatch(index::add, "@@ -1,2 +1,3 @@\n line1\n+line2\n line3\n@@ -10,1 +11,1 @@\n-old\n+new");
+      index.addFile("binary.png");
+
+      assertThat(index.files()).containsOnly("src/Foo.java", "binary.png");
+      assertThat(index.hasFile("src/Foo.java")).isTrue();
+      assertThat(index.hasFile("src/Bar.java")).isFalse();
+      assertThat(index.position("src/Foo.java", 1)).isEqualTo(1);
+      assertThat(index.position("src/Foo.java", 3)).isEqualTo(3);
+      assertThat(index.position("src/Foo.java", 11)).isEqualTo(6);
+      assertThat(index.position("src/Foo.java", 4)).isEqualTo(-1);
+      assertThat(index.position("binary.png", 1)).isEqualTo(-1);
+      assertThat(index.position("src/Bar.java", 1)).isEqualTo(-1);
+      assertThat(index.isSpilled()).isFalse();
+    }
+  }
+
+  @Test
+  public void indexHunks() throws IOException {
+    try (PatchPositionIndex index = new PatchPositionIndex()) {
+      index.addFile("src/Foo.java");
+      PullRequestFacade.processPatch(PullRequestFacade.indexer(index), "@@ -1,2 +1,3 @@\n line1\n+line2\n line3\n@@ -10,1 +11,1 @@\n-old\n+new");
+      index.addFile("src/Bar.java");
+      index.add(1, 1);
+
+      assertThat(index.hunk("src/Foo.java", 1)).isEqualTo(0);
+      assertThat(index.hunk("src/Foo.java", 3)).isEqualTo(0);
+      assertThat(index.hunk("src/Foo.java", 11)).isEqualTo(1);
+      assertThat(index.hunk("src/Foo.java", 5)).isEqualTo(-1);
+      // Hunks were not recorded
+      assertThat(index.hunk("src/Bar.java", 1)).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void spillToMappedFileWhenLarge() throws IOException {
+    try (PatchPositionIndex index = new PatchPositionIndex(100)) {
+      for (int file = 0; file < 20; file++) {
+        index.addFile("File" + file + ".java");
+        for (int line = 1; line <= 100; line++) {
+          index.add(line, line + file);
+        }
+      }
+
+      assertThat(index.isSpilled()).isTrue();
+      assertThat(index.position("File0.java", 1)).isEqualTo(1);
+      assertThat(index.position("File7.java", 50)).isEqualTo(57);
+      assertThat(index.position("File19.java", 100)).isEqualTo(119);
+      assertThat(index.position("File19.java", 101)).isEqualTo(-1);
+    }
+  }
+
+  @Test
+  public void deleteMappedFileOnClose() throws IOException {
+    PatchPositionIndex index = new PatchPositionIndex(100);
+    index.addFile("src/Foo.java");
+    for (int line = 1; line <= 2000; line++) {
+      index.add(line, line);
+    }
+    File file = index.spillFile();
+    assertThat(file).exists();
+
+    index.close();
+
+    assertThat(file).doesNotExist();
+    assertThat(index.isSpilled()).isFalse();
+  }
+
+}
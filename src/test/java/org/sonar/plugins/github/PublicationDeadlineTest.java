@@ -0,0 +1,63 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import org.junit.Test;
+import org.sonar.api.utils.System2;
+import org.sonar.plugins.github.PublicationDeadline.Phase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PublicationDeadlineTest {
+
+  private System2 system = mock(System2.class);
+
+  @Test
+  public void splitBudgetBetweenPhases() {
+    when(system.now()).thenReturn(0L);
+    PublicationDeadline deadline = new PublicationDeadline(10_000L, system);
+
+    // 1 s is kept for the note, the 9 s left are shared by weight
+    assertThat(deadline.endOf(Phase.STATUS)).isEqualTo(900L);
+    assertThat(deadline.endOf(Phase.SEVERE_COMMENTS)).isEqualTo(3_375L);
+    assertThat(deadline.endOfNote()).isEqualTo(10_000L);
+
+    // Time not used by a phase is left to the next ones
+    when(system.now()).thenReturn(500L);
+    assertThat(deadline.endOf(Phase.SUMMARY)).isEqualTo(500L + 8_500L / 9);
+    when(system.now()).thenReturn(6_000L);
+    assertThat(deadline.endOf(Phase.CLEANUP)).isEqualTo(9_000L);
+
+    when(system.now()).thenReturn(12_000L);
+    assertThat(deadline.endOf(Phase.CLEANUP)).isEqualTo(12_000L);
+  }
+
+  @Test
+  public void noDeadline() {
+    PublicationDeadline deadline = new PublicationDeadline(0L, system);
+
+    assertThat(deadline.isUnlimited()).isTrue();
+    assertThat(deadline.endOf(Phase.STATUS)).isEqualTo(Long.MAX_VALUE);
+    assertThat(deadline.endOfNote()).isEqualTo(Long.MAX_VALUE);
+  }
+
+}
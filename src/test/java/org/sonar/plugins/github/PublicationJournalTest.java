@@ -0,0 +1,140 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.plugins.github.PublicationPlan.Target;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PublicationJournalTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void resumeOperationsOfTheSameCommit() throws Exception {
+    Path file = new File(temp.newFolder(), "pr.journal").toPath();
+    PublicationJournal journal = new PublicationJournal(file, "abc123");
+    journal.created(Target.REVIEW_COMMENT, 10, "src/Foo.java", 3, "Issue");
+    journal.updated(4, "Updated issue");
+    journal.deleted(Target.REVIEW_COMMENT, 5);
+    journal.deleted(Target.REVIEW_COMMENT, 2147483648L);
+    journal.created(Target.GLOBAL_COMMENT, 20, null, -1, "part 1");
+    journal.close();
+
+    PublicationJournal resumed = new PublicationJournal(file, "abc123");
+    resumed.created(Target.GLOBAL_COMMENT, 21, null, -1, "part 2");
+    resumed.close();
+    resumed = new PublicationJournal(file, "abc123");
+
+    assertThat(resumed.created(Target.REVIEW_COMMENT)).hasSize(1);
+    PullRequestState.Comment created = resumed.created(Target.REVIEW_COMMENT).get(0);
+    assertThat(created.id()).isEqualTo(10L);
+    assertThat(created.path()).isEqualTo("src/Foo.java");
+    assertThat(created.position()).isEqualTo(3);
+    assertThat(created.body()).isEqualTo("Issue");
+    assertThat(bodies(resumed.created(Target.GLOBAL_COMMENT))).containsExactly("part 1", "part 2");
+    assertThat(resumed.body(4, "Issue")).isEqualTo("Updated issue");
+    assertThat(resumed.body(10, "Issue")).isEqualTo("Issue");
+    assertThat(resumed.isDeleted(Target.REVIEW_COMMENT, 5)).isTrue();
+    assertThat(resumed.isDeleted(Target.REVIEW_COMMENT, 2147483648L)).isTrue();
+    assertThat(resumed.isDeleted(Target.GLOBAL_COMMENT, 5)).isFalse();
+  }
+
+  @Test
+  public void ignoreJournalOfAnotherCommit() throws Exception {
+    Path file = new File(temp.newFolder(), "pr.journal").toPath();
+    PublicationJournal journal = new PublicationJournal(file, "abc123");
+    journal.deleted(Target.GLOBAL_COMMENT, 5);
+    journal.close();
+
+    PublicationJournal newCommit = new PublicationJournal(file, "def456");
+    assertThat(newCommit.isDeleted(Target.GLOBAL_COMMENT, 5)).isFalse();
+    newCommit.created(Target.GLOBAL_COMMENT, 6, null, -1, "summary");
+    newCommit.close();
+
+    // Journal of the previous commit was overwritten
+    assertThat(new PublicationJournal(file, "abc123").created(Target.GLOBAL_COMMENT)).isEmpty();
+    assertThat(new PublicationJournal(file, "def456").created(Target.GLOBAL_COMMENT)).hasSize(1);
+  }
+
+  @Test
+  public void ignorePartiallyWrittenOperation() throws Exception {
+    Path file = new File(temp.newFolder(), "pr.journal").toPath();
+    PublicationJournal journal = new PublicationJournal(file, "abc123");
+    journal.created(Target.GLOBAL_COMMENT, 20, null, -1, "part 1");
+    journal.created(Target.GLOBAL_COMMENT, 21, null, -1, "part 2");
+    journal.close();
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      raf.setLength(raf.length() - 3);
+    }
+
+    PublicationJournal resumed = new PublicationJournal(file, "abc123");
+    assertThat(bodies(resumed.created(Target.GLOBAL_COMMENT))).containsExactly("part 1");
+    resumed.created(Target.GLOBAL_COMMENT, 22, null, -1, "part 3");
+    resumed.close();
+
+    assertThat(bodies(new PublicationJournal(file, "abc123").created(Target.GLOBAL_COMMENT))).containsExactly("part 1", "part 3");
+  }
+
+  @Test
+  public void deleteJournalOncePublished() throws Exception {
+    Path file = new File(temp.newFolder(), "pr.journal").toPath();
+    PublicationJournal journal = new PublicationJournal(file, "abc123");
+    journal.created(Target.GLOBAL_COMMENT, 20, null, -1, "summary");
+
+    journal.delete();
+
+    assertThat(file.toFile()).doesNotExist();
+  }
+
+  @Test
+  public void ignoreOperationsCompletedAfterClose() throws Exception {
+    Path file = new File(temp.newFolder(), "pr.journal").toPath();
+    PublicationJournal journal = new PublicationJournal(file, "abc123");
+    journal.created(Target.GLOBAL_COMMENT, 20, null, -1, "summary");
+    journal.close();
+
+    journal.created(Target.REVIEW_COMMENT, 10, "src/Foo.java", 3, "Issue");
+    journal.updated(20, "Updated summary");
+
+    PublicationJournal resumed = new PublicationJournal(file, "abc123");
+    assertThat(bodies(resumed.created(Target.GLOBAL_COMMENT))).containsExactly("summary");
+    assertThat(resumed.created(Target.REVIEW_COMMENT)).isEmpty();
+    assertThat(resumed.body(20, "summary")).isEqualTo("summary");
+  }
+
+  private static List<String> bodies(List<PullRequestState.Comment> comments) {
+    List<String> bodies = new ArrayList<>();
+    for (PullRequestState.Comment comment : comments) {
+      bodies.add(comment.body());
+    }
+    return bodies;
+  }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.util.List;
+import org.junit.Test;
+import org.sonar.plugins.github.PublicationPlan.Action;
+import org.sonar.plugins.github.PublicationPlan.Operation;
+import org.sonar.plugins.github.PublicationPlan.Target;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PublicationPlannerTest {
+
+  @Test
+  public void planReviewComments() {
+    PullRequestState desired = new PullRequestState()
+      .addReviewComment(null, "src/Foo.java", 1, "unchanged")
+      .addReviewComment(null, "src/Foo.java", 2, "updated")
+      .addReviewComment(null, "src/Foo.java", 3, "created");
+    PullRequestState remote = new PullRequestState()
+      .addReviewComment(10L, "src/Foo.java", 1, "unchanged")
+      .addReviewComment(11L, "src/Foo.java", 2, "previous")
+      .addReviewComment(12L, "src/Foo.java", 4, "outdated")
+      .addReviewComment(13L, "src/Bar.java", -1, "no longer in diff");
+
+    PublicationPlan plan = PublicationPlanner.plan(desired, remote);
+
+    assertThat(plan.operations(Target.REVIEW_COMMENT, Action.NOOP)).hasSize(1);
+    List<Operation> updates = plan.operations(Target.REVIEW_COMMENT, Action.UPDATE);
+    assertThat(updates).hasSize(1);
+    assertThat(updates.get(0).remoteId()).isEqualTo(11L);
+    assertThat(updates.get(0).body()).isEqualTo("updated");
+    List<Operation> creations = plan.operations(Target.REVIEW_COMMENT, Action.CREATE);
+    assertThat(creations).hasSize(1);
+    assertThat(creations.get(0).path()).isEqualTo("src/Foo.java");
+    assertThat(creations.get(0).position()).isEqualTo(3);
+    List<Operation> deletions = plan.operations(Target.REVIEW_COMMENT, Action.DELETE);
+    assertThat(deletions).hasSize(2);
+    assertThat(deletions.get(0).remoteId()).isEqualTo(13L);
+    assertThat(deletions.get(1).remoteId()).isEqualTo(12L);
+    assertThat(plan.summary()).isEqualTo("1 to create, 1 to update, 2 to delete, 1 unchanged");
+  }
+
+  @Test
+  public void mergeReviewCommentsAtSamePositionAndDeleteDuplicates() {
+    PullRequestState desired = new PullRequestState()
+      .addReviewComment(null, "src/Foo.java", 1, "first\n")
+      .addReviewComment(null, "src/Foo.java", 1, "second\n");
+    PullRequestState remote = new PullRequestState()
+      .addReviewComment(10L, "src/Foo.java", 1, "first\n" + PublicationPlanner.MERGED_COMMENTS_SEPARATOR + "second\n")
+      .addReviewComment(11L, "src/Foo.java", 1, "duplicate");
+
+    PublicationPlan plan = PublicationPlanner.plan(PublicationPlanner.mergeReviewComments(desired, 0), remote);
+
+    assertThat(plan.operations(Target.REVIEW_COMMENT, Action.NOOP)).hasSize(1);
+    assertThat(plan.operations(Target.REVIEW_COMMENT, Action.DELETE).get(0).remoteId()).isEqualTo(11L);
+    assertThat(plan.operations()).hasSize(2);
+  }
+
+  @Test
+  public void mergedReviewCommentsDontExceedMaximumBodySize() {
+    String large = new String(new char[40_000]).replace('\0', 'x');
+    PullRequestState desired = new PullRequestState()
+      .addReviewComment(null, "src/Foo.java", 1, large)
+      .addReviewComment(null, "src/Foo.java", 1, large)
+      .addGlobalComment(null, "summary")
+      .setStatus(CommitState.SUCCESS, "SonarQube reported no issues", null);
+
+    PullRequestState merged = PublicationPlanner.mergeReviewComments(desired, 0);
+
+    assertThat(merged.reviewComments()).hasSize(1);
+    String body = merged.reviewComments().get(0).body();
+    assertThat(MarkdownWriter.utf8Size(body)).isLessThan(MarkdownWriter.GITHUB_MAX_BODY_SIZE);
+    assertThat(body).startsWith(large).endsWith("1 more issue was omitted because the comment size limit was reached._\n");
+    assertThat(merged.globalComments().get(0).body()).isEqualTo("summary");
+    assertThat(merged.status().state()).isEqualTo(CommitState.SUCCESS);
+  }
+
+  @Test
+  public void keepSeverityOfReviewComments() {
+    PullRequestState desired = new PullRequestState()
+      .addReviewComment(null, "src/Foo.java", 1, "minor\n", false)
+      .addReviewComment(null, "src/Foo.java", 1, "blocker\n", true)
+      .addReviewComment(null, "src/Foo.java", 2, "updated", true)
+      .addReviewComment(null, "src/Foo.java", 3, "created", false);
+    PullRequestState remote = new PullRequestState()
+      .addReviewComment(10L, "src/Foo.java", 2, "previous");
+
+    PublicationPlan plan = PublicationPlanner.plan(PublicationPlanner.mergeReviewComments(desired, 0), remote);
+
+    List<Operation> creations = plan.operations(Target.REVIEW_COMMENT, Action.CREATE);
+    assertThat(creations.get(0).body()).isEqualTo("minor\n" + PublicationPlanner.MERGED_COMMENTS_SEPARATOR + "blocker\n");
+    assertThat(creations.get(0).severe()).isTrue();
+    assertThat(creations.get(1).severe()).isFalse();
+    assertThat(plan.operations(Target.REVIEW_COMMENT, Action.UPDATE).get(0).severe()).isTrue();
+  }
+
+  @Test
+  public void planGlobalCommentsInOrder() {
+    PullRequestState desired = new PullRequestState()
+      .addGlobalComment(null, "part 1")
+      .addGlobalComment(null, "part 2")
+      .addGlobalComment(null, "part 3");
+    PullRequestState remote = new PullRequestState()
+      .addGlobalComment(1L, "part 1")
+      .addGlobalComment(2L, "old part 2")
+      .addGlobalComment(3L, "part 3");
+
+    PublicationPlan plan = PublicationPlanner.plan(desired, remote);
+
+    assertThat(plan.operations(Target.GLOBAL_COMMENT, Action.NOOP).get(0).remoteId()).isEqualTo(1L);
+    List<Operation> deletions = plan.operations(Target.GLOBAL_COMMENT, Action.DELETE);
+    assertThat(deletions).hasSize(2);
+    assertThat(deletions.get(0).remoteId()).isEqualTo(2L);
+    assertThat(deletions.get(1).remoteId()).isEqualTo(3L);
+    List<Operation> creations = plan.operations(Target.GLOBAL_COMMENT, Action.CREATE);
+    assertThat(creations).hasSize(2);
+    assertThat(creations.get(0).body()).isEqualTo("part 2");
+    assertThat(creations.get(1).body()).isEqualTo("part 3");
+  }
+
+  @Test
+  public void planStatus() {
+    PullRequestState desired = new PullRequestState().setStatus(CommitState.ERROR, "SonarQube reported 1 issue, with 1 blocker", null);
+
+    PublicationPlan noStatusYet = PublicationPlanner.plan(desired, new PullRequestState());
+    assertThat(noStatusYet.operations(Target.STATUS, Action.CREATE)).hasSize(1);
+
+    PublicationPlan sameStatus = PublicationPlanner.plan(desired,
+      new PullRequestState().setStatus(CommitState.ERROR, "SonarQube reported 1 issue, with 1 blocker", "http://ci"));
+    assertThat(sameStatus.operations(Target.STATUS, Action.NOOP)).hasSize(1);
+
+    PublicationPlan otherStatus = PublicationPlanner.plan(desired,
+      new PullRequestState().setStatus(CommitState.PENDING, "SonarQube analysis in progress", "http://ci"));
+    Operation creation = otherStatus.operations(Target.STATUS, Action.CREATE).get(0);
+    assertThat(creation.status().state()).isEqualTo(CommitState.ERROR);
+    // Target URL set by an external system is kept
+    assertThat(creation.status().targetUrl()).isEqualTo("http://ci");
+    assertThat(otherStatus.toString()).isEqualTo("1 to create, 0 to update, 0 to delete, 0 unchanged\n"
+      + "  CREATE status ERROR: SonarQube reported 1 issue, with 1 blocker");
+  }
+
+  @Test
+  public void degradePlanWhenRateLimitIsLow() {
+    PullRequestState desired = new PullRequestState()
+      .addReviewComment(null, "src/Foo.java", 1, "first")
+      .addReviewComment(null, "src/Foo.java", 2, "second")
+      .addGlobalComment(null, "summary")
+      .setStatus(CommitState.SUCCESS, "SonarQube reported 2 issues, no criticals or blockers", null);
+    PublicationPlan plan = PublicationPlanner.plan(desired, new PullRequestState());
+    assertThat(plan.requiredCalls()).isEqualTo(4);
+    assertThat(plan.requiredCalls(Target.REVIEW_COMMENT)).isEqualTo(2);
+
+    assertThat(PublicationPlanner.fitRateLimit(plan, 100, 2).requiredCalls()).isEqualTo(4);
+
+    PublicationPlan summaryOnly = PublicationPlanner.fitRateLimit(plan, 5, 2);
+    assertThat(summaryOnly.operations(Target.REVIEW_COMMENT, Action.CREATE)).isEmpty();
+    assertThat(summaryOnly.operations(Target.GLOBAL_COMMENT, Action.CREATE)).hasSize(1);
+    assertThat(summaryOnly.operations(Target.STATUS, Action.CREATE)).hasSize(1);
+
+    PublicationPlan statusOnly = PublicationPlanner.fitRateLimit(plan, 3, 2);
+    assertThat(statusOnly.operations()).hasSize(1);
+    assertThat(statusOnly.operations(Target.STATUS, Action.CREATE)).hasSize(1);
+
+    assertThat(PublicationPlanner.fitRateLimit(plan, 2, 2).operations()).isEmpty();
+  }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.rule.Severity;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PublicationSpoolTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private PublicationSpool spool;
+
+  @Before
+  public void prepare() throws Exception {
+    spool = new PublicationSpool(temp.newFolder().toPath());
+  }
+
+  @Test
+  public void readWrittenResults() throws Exception {
+    PullRequestState state = new PullRequestState()
+      .addReviewComment(null, "src/Foo.java", 3, "Remove this field", true)
+      .addGlobalComment(null, "summary")
+      .addAnnotation("src/Foo.java", 2, Severity.CRITICAL, "Remove this field", null)
+      .setStatus(CommitState.ERROR, "SonarQube reported 1 issue, with 1 critical", "http://sonarqube");
+    spool.write(new PublicationSpool.Publication("SonarSource/sonar-github", 42, "", "abc123", 1000L,
+      Collections.singletonMap(GitHubPlugin.GITHUB_PUBLISH_MODE, "FULL"), state));
+
+    List<PublicationSpool.PendingPullRequest> pending = spool.pending();
+    assertThat(pending).hasSize(1);
+    assertThat(pending.get(0).files()).hasSize(1);
+    PublicationSpool.Publication publication = spool.read(pending.get(0).fileOf("abc123"));
+
+    assertThat(publication.repository()).isEqualTo("SonarSource/sonar-github");
+    assertThat(publication.pullRequestNumber()).isEqualTo(42);
+    assertThat(publication.headSha()).isEqualTo("abc123");
+    assertThat(publication.createdAt()).isEqualTo(1000L);
+    assertThat(publication.properties().get(GitHubPlugin.GITHUB_PUBLISH_MODE)).isEqualTo("FULL");
+    PullRequestState read = publication.state();
+    assertThat(read.reviewComments()).hasSize(1);
+    assertThat(read.reviewComments().get(0).path()).isEqualTo("src/Foo.java");
+    assertThat(read.reviewComments().get(0).position()).isEqualTo(3);
+    assertThat(read.reviewComments().get(0).severe()).isTrue();
+    assertThat(read.globalComments().get(0).body()).isEqualTo("summary");
+    assertThat(read.annotations().get(0).severity()).isEqualTo(Severity.CRITICAL);
+    assertThat(read.annotations().get(0).link()).isNull();
+    assertThat(read.status().state()).isEqualTo(CommitState.ERROR);
+    assertThat(read.status().targetUrl()).isEqualTo("http://sonarqube");
+  }
+
+  @Test
+  public void coalesceResultsOfTheSameCommit() throws Exception {
+    write("org/repo", 1, "", "abc123", 1000L);
+    write("org/repo", 1, "", "abc123", 2000L);
+    write("org/repo", 1, "org.foo:backend", "abc123", 1500L);
+
+    List<PublicationSpool.PendingPullRequest> pending = spool.pending();
+
+    assertThat(headShas(pending)).containsOnly("abc123@", "abc123@org.foo:backend");
+    assertThat(countFiles()).isEqualTo(2);
+    for (PublicationSpool.PendingPullRequest pullRequest : pending) {
+      assertThat(pullRequest.files()).hasSize(1);
+      if (pullRequest.latest().scope().isEmpty()) {
+        assertThat(spool.read(pullRequest.fileOf("abc123")).createdAt()).isEqualTo(2000L);
+      }
+    }
+  }
+
+  @Test
+  public void keepResultsOfEachCommitWhateverTheirOrder() throws Exception {
+    // Analysis of the new head ends before the one of the previous head
+    write("org/repo", 1, "", "new", 1000L);
+    write("org/repo", 1, "", "old", 2000L);
+
+    List<PublicationSpool.PendingPullRequest> pending = spool.pending();
+
+    assertThat(pending).hasSize(1);
+    assertThat(pending.get(0).files()).hasSize(2);
+    assertThat(pending.get(0).latest().headSha()).isEqualTo("old");
+    assertThat(spool.read(pending.get(0).fileOf("new")).headSha()).isEqualTo("new");
+    assertThat(pending.get(0).fileOf("other")).isNull();
+    assertThat(countFiles()).isEqualTo(2);
+  }
+
+  @Test
+  public void repositoriesTakeTurns() throws Exception {
+    write("org/busy", 1, "", "sha1", 1000L);
+    write("org/busy", 2, "", "sha2", 2000L);
+    write("org/busy", 3, "", "sha3", 3000L);
+    write("org/quiet", 1, "", "sha4", 4000L);
+
+    assertThat(headShas(spool.pending())).containsExactly("sha1@", "sha4@", "sha2@", "sha3@");
+  }
+
+  @Test
+  public void doNotReadUnreadableResultsAgain() throws Exception {
+    Path file = spool.dir().resolve("corrupted" + PublicationSpool.EXTENSION);
+    Files.write(file, new byte[] {1, 2, 3});
+
+    assertThat(spool.pending()).isEmpty();
+    assertThat(Files.exists(file)).isFalse();
+    assertThat(Files.exists(spool.dir().resolve("corrupted" + PublicationSpool.EXTENSION + PublicationSpool.FAILED_EXTENSION))).isTrue();
+  }
+
+  private void write(String repository, int pullRequestNumber, String scope, String headSha, long createdAt) throws Exception {
+    spool.write(new PublicationSpool.Publication(repository, pullRequestNumber, scope, headSha, createdAt, Collections.emptyMap(),
+      new PullRequestState().setStatus(CommitState.SUCCESS, "SonarQube reported no issues", null)));
+  }
+
+  private static List<String> headShas(List<PublicationSpool.PendingPullRequest> pullRequests) {
+    List<String> headShas = new ArrayList<>();
+    for (PublicationSpool.PendingPullRequest pullRequest : pullRequests) {
+      headShas.add(pullRequest.latest().headSha() + "@" + pullRequest.latest().scope());
+    }
+    return headShas;
+  }
+
+  private int countFiles() throws Exception {
+    try (Stream<Path> files = Files.list(spool.dir())) {
+      return (int) files.count();
+    }
+  }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PublisherDaemonTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private PublicationSpool spool;
+  private GitHubPullRequestHost host = mock(GitHubPullRequestHost.class);
+  private List<GitHubPluginConfiguration> configs = new ArrayList<>();
+  private AtomicLong now = new AtomicLong(1_000_000L);
+  private PublisherDaemon daemon;
+
+  @Before
+  public void prepare() throws Exception {
+    spool = new PublicationSpool(temp.newFolder().toPath());
+    when(host.analyzedSha()).thenReturn("abc123");
+    daemon = new PublisherDaemon(Collections.singletonMap(GitHubPlugin.GITHUB_OAUTH, "token"), spool, config -> {
+      configs.add(config);
+      return host;
+    }, now::get);
+  }
+
+  @Test
+  public void publishLatestResultsOfPullRequest() throws Exception {
+    write("old", 1000L);
+    write("abc123", 2000L);
+
+    assertThat(daemon.runOnce()).isEqualTo(1);
+
+    verify(host).loadForPublication(42);
+    verify(host).publish(any(PullRequestState.class));
+    assertThat(configs).hasSize(1);
+    assertThat(configs.get(0).repository()).isEqualTo("SonarSource/sonar-github");
+    assertThat(configs.get(0).oauth()).isEqualTo("token");
+    assertThat(spool.pending()).isEmpty();
+  }
+
+  @Test
+  public void publishResultsOfHeadWrittenBeforeTheOnesOfPreviousHead() throws Exception {
+    write("abc123", 1000L);
+    write("old", 2000L);
+
+    assertThat(daemon.runOnce()).isEqualTo(1);
+
+    ArgumentCaptor<PullRequestState> published = ArgumentCaptor.forClass(PullRequestState.class);
+    verify(host).publish(published.capture());
+    assertThat(published.getValue().status().description()).isEqualTo("abc123");
+    assertThat(spool.pending()).isEmpty();
+  }
+
+  @Test
+  public void discardResultsOfPreviousHead() throws Exception {
+    when(host.analyzedSha()).thenReturn("def456");
+    write("abc123", 1000L);
+
+    assertThat(daemon.runOnce()).isEqualTo(1);
+
+    verify(host, never()).publish(any(PullRequestState.class));
+    assertThat(spool.pending()).isEmpty();
+  }
+
+  @Test
+  public void retryResultsThatCouldNotBePublished() throws Exception {
+    doThrow(new IOException("Server returned HTTP response code: 502")).doNothing().when(host).loadForPublication(42);
+    write("abc123", 1000L);
+
+    assertThat(daemon.runOnce()).isEqualTo(1);
+    assertThat(spool.pending()).hasSize(1);
+
+    // Next attempt waits for the back-off
+    assertThat(daemon.runOnce()).isEqualTo(0);
+    now.addAndGet(PublisherDaemon.FIRST_RETRY_DELAY_MS);
+    assertThat(daemon.runOnce()).isEqualTo(1);
+
+    verify(host, times(2)).loadForPublication(42);
+    verify(host).publish(any(PullRequestState.class));
+    assertThat(spool.pending()).isEmpty();
+  }
+
+  @Test
+  public void keepResultsThatCouldNotBePublishedAfterLastAttempt() throws Exception {
+    doThrow(new IOException("Server returned HTTP response code: 502")).when(host).loadForPublication(42);
+    write("abc123", 1000L);
+
+    for (int attempt = 1; attempt < PublisherDaemon.MAX_ATTEMPTS; attempt++) {
+      daemon.runOnce();
+      now.addAndGet(PublisherDaemon.FIRST_RETRY_DELAY_MS << (attempt - 1));
+    }
+    assertThat(spool.pending()).hasSize(1);
+    daemon.runOnce();
+
+    verify(host, times(PublisherDaemon.MAX_ATTEMPTS)).loadForPublication(42);
+    assertThat(spool.pending()).isEmpty();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(spool.dir(), "*" + PublicationSpool.FAILED_EXTENSION)) {
+      assertThat(files.iterator().hasNext()).isTrue();
+    }
+  }
+
+  private void write(String headSha, long createdAt) throws IOException {
+    Map<String, String> properties = Collections.singletonMap(GitHubPlugin.GITHUB_REPO, "SonarSource/sonar-github");
+    PullRequestState state = new PullRequestState().setStatus(CommitState.SUCCESS, headSha, null);
+    spool.write(new PublicationSpool.Publication("SonarSource/sonar-github", 42, "", headSha, createdAt, properties, state));
+  }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.util.BitSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PullRequestChangedLinesTest {
+
+  private GitHubPluginConfiguration config;
+  private PullRequestFacade facade;
+  private PullRequestChangedLines changedLines;
+  private DefaultInputFile changedFile = new DefaultInputFile("foo", "src/Foo.java");
+  private DefaultInputFile otherFile = new DefaultInputFile("foo", "src/Bar.java");
+
+  @Before
+  public void prepare() {
+    config = mock(GitHubPluginConfiguration.class);
+    facade = mock(PullRequestFacade.class);
+    changedLines = new PullRequestChangedLines(config, facade);
+    BitSet lines = new BitSet();
+    lines.set(3);
+    lines.set(4);
+    when(facade.hasFile(changedFile)).thenReturn(true);
+    when(facade.diffLines(changedFile)).thenReturn(lines);
+  }
+
+  @Test
+  public void everythingIsChangedWhenNoPullRequest() {
+    assertThat(changedLines.isChanged(otherFile)).isTrue();
+    assertThat(changedLines.isInDiff(otherFile, 1)).isTrue();
+    assertThat(changedLines.diffLines(otherFile)).isNull();
+  }
+
+  @Test
+  public void diffLinesOfPullRequest() {
+    when(config.isEnabled()).thenReturn(true);
+    when(config.tryReportIssuesInline()).thenReturn(true);
+
+    assertThat(changedLines.isChanged(changedFile)).isTrue();
+    assertThat(changedLines.isInDiff(changedFile, 3)).isTrue();
+    assertThat(changedLines.isInDiff(changedFile, 5)).isFalse();
+    assertThat(changedLines.diffLines(changedFile).cardinality()).isEqualTo(2);
+    assertThat(changedLines.isChanged(otherFile)).isFalse();
+    assertThat(changedLines.isInDiff(otherFile, 3)).isFalse();
+    assertThat(changedLines.diffLines(otherFile).isEmpty()).isTrue();
+    // Lines are computed once per file
+    verify(facade, times(1)).diffLines(changedFile);
+  }
+
+  @Test
+  public void wholeFileIsChangedWhenLinesAreNotLoaded() {
+    when(config.isEnabled()).thenReturn(true);
+
+    assertThat(changedLines.isInDiff(changedFile, 5)).isTrue();
+    assertThat(changedLines.diffLines(changedFile)).isNull();
+    assertThat(changedLines.isInDiff(otherFile, 5)).isFalse();
+  }
+
+}
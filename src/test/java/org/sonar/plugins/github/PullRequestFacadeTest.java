@@ -21,29 +21,27 @@ package org.sonar.plugins.github;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.URL;
 import java.nio.file.Files;
-import java.util.ArrayList;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
 import org.assertj.core.data.MapEntry;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
-import org.kohsuke.github.GHCommitStatus;
-import org.kohsuke.github.GHPullRequest;
-import org.kohsuke.github.GHRepository;
-import org.kohsuke.github.PagedIterable;
-import org.mockito.Mockito;
 import org.sonar.api.batch.fs.InputPath;
 import org.sonar.api.batch.fs.internal.DefaultInputFile;
+import org.sonar.api.utils.MessageException;
 
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
-import static org.mockito.Mockito.withSettings;
 
 public class PullRequestFacadeTest {
 
@@ -51,21 +49,113 @@ public class PullRequestFacadeTest {
   public TemporaryFolder temp = new TemporaryFolder();
 
   @Test
-  public void testGetGithubUrl() throws Exception {
-
+  public void testGetFileUrl() throws Exception {
     File gitBasedir = temp.newFolder();
 
     PullRequestFacade facade = new PullRequestFacade(mock(GitHubPluginConfiguration.class));
     facade.setGitBaseDir(gitBasedir);
-    GHRepository ghRepo = mock(GHRepository.class);
-    when(ghRepo.getHtmlUrl()).thenReturn(new URL("https://github.com/SonarSource/sonar-java"));
-    facade.setGhRepo(ghRepo);
-    GHPullRequest pr = mock(GHPullRequest.class, withSettings().defaultAnswer(RETURNS_DEEP_STUBS));
-    when(pr.getHead().getSha()).thenReturn("abc123");
-    facade.setPr(pr);
+    PullRequestHost host = mock(PullRequestHost.class);
+    when(host.fileUrl("src/main/Foo.java", 10)).thenReturn("https://github.com/SonarSource/sonar-java/blob/abc123/src/main/Foo.java#L10");
+    facade.setHost(host);
     InputPath inputPath = mock(InputPath.class);
     when(inputPath.file()).thenReturn(new File(gitBasedir, "src/main/Foo.java"));
-    assertThat(facade.getGithubUrl(inputPath, 10)).isEqualTo("https://github.com/SonarSource/sonar-java/blob/abc123/src/main/Foo.java#L10");
+    assertThat(facade.getFileUrl(inputPath, 10)).isEqualTo("https://github.com/SonarSource/sonar-java/blob/abc123/src/main/Foo.java#L10");
+    assertThat(facade.getFileUrl(null, 10)).isNull();
+  }
+
+  @Test
+  public void testAllFilesAreChangedWhenFilesAreNotRead() throws Exception {
+    File gitBasedir = temp.newFolder();
+    new File(gitBasedir, ".git").mkdir();
+    PullRequestFacade facade = new PullRequestFacade(mock(GitHubPluginConfiguration.class));
+    PullRequestHost host = mock(PullRequestHost.class);
+    when(host.load(1, null)).thenReturn(null);
+    facade.setHost(host);
+
+    facade.init(1, gitBasedir);
+
+    DefaultInputFile inputFile = new DefaultInputFile("foo", "src/main/Foo.java").setModuleBaseDir(gitBasedir.toPath());
+    assertThat(facade.hasFile(inputFile)).isTrue();
+    assertThat(facade.hasFileLine(inputFile, 1)).isFalse();
+    assertThat(facade.diffLines(inputFile)).isNull();
+  }
+
+  @Test
+  public void testPublishOnHost() {
+    PullRequestFacade facade = new PullRequestFacade(mock(GitHubPluginConfiguration.class));
+    PullRequestHost host = mock(PullRequestHost.class);
+    facade.setHost(host);
+    PullRequestState desired = new PullRequestState().addGlobalComment(null, "summary");
+
+    facade.publish(desired);
+    facade.createOrUpdateSonarQubeStatus(CommitState.PENDING, "SonarQube analysis in progress");
+
+    verify(host).publish(desired);
+    verify(host).publishStatus(CommitState.PENDING, "SonarQube analysis in progress");
+  }
+
+  @Test
+  public void testUploadCodeScanningOnGitHub() {
+    PullRequestFacade facade = new PullRequestFacade(mock(GitHubPluginConfiguration.class));
+    GitHubPullRequestHost host = mock(GitHubPullRequestHost.class);
+    facade.setHost(host);
+    Path sarif = Paths.get("sonar-github.sarif");
+
+    facade.uploadCodeScanning(sarif);
+
+    verify(host).uploadCodeScanning(sarif);
+  }
+
+  @Test
+  public void testLeaveResultsForPublisherDaemon() throws Exception {
+    File spoolDir = temp.newFolder();
+    GitHubPluginConfiguration config = mock(GitHubPluginConfiguration.class);
+    when(config.spoolDir()).thenReturn(spoolDir);
+    when(config.repository()).thenReturn("SonarSource/sonar-java");
+    when(config.pullRequestNumber()).thenReturn(42);
+    when(config.publicationProperties()).thenReturn(Collections.singletonMap(GitHubPlugin.GITHUB_REPO, "SonarSource/sonar-java"));
+    PullRequestFacade facade = new PullRequestFacade(config);
+    PullRequestHost host = mock(PullRequestHost.class);
+    when(host.analyzedSha()).thenReturn("abc123");
+    facade.setHost(host);
+
+    facade.publish(new PullRequestState().addGlobalComment(null, "summary"));
+
+    verify(host, never()).publish(any(PullRequestState.class));
+    PublicationSpool spool = new PublicationSpool(spoolDir.toPath());
+    PublicationSpool.Publication publication = spool.read(spool.pending().get(0));
+    assertThat(publication.toString()).isEqualTo("SonarSource/sonar-java#42 at abc123");
+    assertThat(publication.state().globalComments().get(0).body()).isEqualTo("summary");
+  }
+
+  @Test
+  public void testPublisherDaemonOnlySupportsGitHub() throws Exception {
+    GitHubPluginConfiguration config = mock(GitHubPluginConfiguration.class);
+    when(config.spoolDir()).thenReturn(temp.newFolder());
+    when(config.isBitbucket()).thenReturn(true);
+    PullRequestFacade facade = new PullRequestFacade(config);
+
+    try {
+      facade.init(1, temp.newFolder());
+      fail("Expected exception");
+    } catch (MessageException e) {
+      assertThat(e.getMessage()).contains(GitHubPlugin.GITHUB_SPOOL_DIR);
+    }
+  }
+
+  @Test
+  public void testCodeScanningOnlySupportsGitHub() throws Exception {
+    GitHubPluginConfiguration config = mock(GitHubPluginConfiguration.class);
+    when(config.codeScanningUpload()).thenReturn(true);
+    when(config.isBitbucket()).thenReturn(true);
+    PullRequestFacade facade = new PullRequestFacade(config);
+
+    try {
+      facade.init(1, temp.newFolder());
+      fail("Expected exception");
+    } catch (MessageException e) {
+      assertThat(e.getMessage()).contains(GitHubPlugin.GITHUB_CODE_SCANNING_UPLOAD);
+    }
   }
 
   @Test
@@ -103,35 +193,6 @@ public class PullRequestFacadeTest {
     assertThat(patchLocationMapping).isEmpty();
   }
 
-  @Test
-  public void testEmptyGetCommitStatusForContext() throws IOException {
-    PullRequestFacade facade = new PullRequestFacade(mock(GitHubPluginConfiguration.class));
-    GHRepository ghRepo = mock(GHRepository.class);
-    PagedIterable<GHCommitStatus> ghCommitStatuses = Mockito.mock(PagedIterable.class);
-    GHPullRequest pr = mock(GHPullRequest.class, withSettings().defaultAnswer(RETURNS_DEEP_STUBS));
-    when(pr.getRepository()).thenReturn(ghRepo);
-    when(pr.getHead().getSha()).thenReturn("abc123");
-    when(ghRepo.listCommitStatuses(pr.getHead().getSha())).thenReturn(ghCommitStatuses);
-    assertThat(facade.getCommitStatusForContext(pr, PullRequestFacade.COMMIT_CONTEXT)).isNull();
-  }
-
-  @Test
-  public void testGetCommitStatusForContextWithOneCorrectStatus() throws IOException {
-    PullRequestFacade facade = new PullRequestFacade(mock(GitHubPluginConfiguration.class));
-    GHRepository ghRepo = mock(GHRepository.class);
-    PagedIterable<GHCommitStatus> ghCommitStatuses = Mockito.mock(PagedIterable.class);
-    List<GHCommitStatus> ghCommitStatusesList = new ArrayList<>();
-    GHCommitStatus ghCommitStatusGHPRHContext = Mockito.mock(GHCommitStatus.class);
-    ghCommitStatusesList.add(ghCommitStatusGHPRHContext);
-    GHPullRequest pr = mock(GHPullRequest.class, withSettings().defaultAnswer(RETURNS_DEEP_STUBS));
-    when(pr.getRepository()).thenReturn(ghRepo);
-    when(pr.getHead().getSha()).thenReturn("abc123");
-    when(ghRepo.listCommitStatuses(pr.getHead().getSha())).thenReturn(ghCommitStatuses);
-    when(ghCommitStatuses.asList()).thenReturn(ghCommitStatusesList);
-    when(ghCommitStatusGHPRHContext.getContext()).thenReturn(PullRequestFacade.COMMIT_CONTEXT);
-    assertThat(facade.getCommitStatusForContext(pr, PullRequestFacade.COMMIT_CONTEXT).getContext()).isEqualTo(PullRequestFacade.COMMIT_CONTEXT);
-  }
-
   @Test
   public void testInitGitBaseDirNotFound() throws Exception {
     PullRequestFacade facade = new PullRequestFacade(mock(GitHubPluginConfiguration.class));
@@ -149,4 +210,5 @@ public class PullRequestFacadeTest {
     facade.initGitBaseDir(projectBaseDir);
     assertThat(facade.getPath(new DefaultInputFile("foo", "src/main/java/Foo.java").setModuleBaseDir(projectBaseDir.toPath()))).isEqualTo("myProject/src/main/java/Foo.java");
   }
+
 }
@@ -19,13 +19,24 @@
  */
 package org.sonar.plugins.github;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import javax.annotation.CheckForNull;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
-import org.kohsuke.github.GHCommitState;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 import org.sonar.api.CoreProperties;
+import org.sonar.api.batch.fs.FileSystem;
 import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.batch.fs.internal.DefaultInputFile;
 import org.sonar.api.batch.postjob.PostJobContext;
@@ -37,25 +48,31 @@ import org.sonar.api.config.Settings;
 import org.sonar.api.rule.RuleKey;
 
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.mockito.AdditionalMatchers.not;
 import static org.mockito.ArgumentCaptor.forClass;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
-import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class PullRequestIssuePostJobTest {
 
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
   private PullRequestIssuePostJob pullRequestIssuePostJob;
   private PullRequestFacade pullRequestFacade;
   private PostJobContext context;
+  private Settings settings;
+  private FileSystem fileSystem;
 
   @Before
   public void prepare() throws Exception {
     pullRequestFacade = mock(PullRequestFacade.class);
-    Settings settings = new Settings(new PropertyDefinitions(PropertyDefinition.builder(CoreProperties.SERVER_BASE_URL)
+    settings = new Settings(new PropertyDefinitions(PropertyDefinition.builder(CoreProperties.SERVER_BASE_URL)
       .name("Server base URL")
       .description("HTTP URL of this SonarQube server, such as <i>http://yourhost.yourdomain/sonar</i>. This value is used i.e. to create links in emails.")
       .category(CoreProperties.CATEGORY_GENERAL)
@@ -66,7 +83,9 @@ public class PullRequestIssuePostJobTest {
 
     settings.setProperty("sonar.host.url", "http://192.168.0.1");
     settings.setProperty(CoreProperties.SERVER_BASE_URL, "http://myserver");
-    pullRequestIssuePostJob = new PullRequestIssuePostJob(config, pullRequestFacade, new MarkDownUtils(settings));
+    fileSystem = mock(FileSystem.class);
+    when(fileSystem.workDir()).thenReturn(temp.newFolder());
+    pullRequestIssuePostJob = new PullRequestIssuePostJob(config, pullRequestFacade, new MarkDownUtils(settings), fileSystem);
   }
 
   private PostJobIssue newMockedIssue(String componentKey, @CheckForNull DefaultInputFile inputFile, @CheckForNull Integer line, Severity severity,
@@ -89,22 +108,56 @@ public class PullRequestIssuePostJobTest {
     return newMockedIssue(componentKey, null, null, severity, isNew, message);
   }
 
+  private PullRequestState capturePublishedState() {
+    ArgumentCaptor<PullRequestState> stateCaptor = forClass(PullRequestState.class);
+    ArgumentCaptor<ReviewCommentQueue> reviewCommentsCaptor = forClass(ReviewCommentQueue.class);
+    verify(pullRequestFacade).publish(stateCaptor.capture(), reviewCommentsCaptor.capture());
+    return reviewCommentsCaptor.getValue().drainInto(stateCaptor.getValue());
+  }
+
+  private String captureSingleGlobalComment() {
+    List<PullRequestState.Comment> comments = capturePublishedState().globalComments();
+    assertThat(comments).hasSize(1);
+    return comments.get(0).body();
+  }
+
+  private void assertPublishedStatus(CommitState state, String description) {
+    PullRequestState.Status status = capturePublishedState().status();
+    assertThat(status.state()).isEqualTo(state);
+    assertThat(status.description()).isEqualTo(description);
+  }
+
+  private Map<Integer, String> capturePublishedReviewCommentsByPosition() {
+    Map<Integer, String> bodyByPosition = new HashMap<>();
+    for (PullRequestState.Comment comment : capturePublishedState().reviewComments()) {
+      assertThat(comment.path()).isEqualTo("src/Foo.php");
+      bodyByPosition.put(comment.position(), comment.body());
+    }
+    return bodyByPosition;
+  }
+
+  private void mockPositionsOfFile(DefaultInputFile inputFile) {
+    when(pullRequestFacade.getPath(inputFile)).thenReturn(inputFile.relativePath());
+    // Position in patch is the line in the file
+    when(pullRequestFacade.position(eq(inputFile), anyInt())).thenAnswer(invocation -> invocation.getArguments()[1]);
+  }
+
   @Test
   public void testPullRequestAnalysisNoIssue() {
     when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList());
     pullRequestIssuePostJob.execute(context);
-    verify(pullRequestFacade).createOrUpdateGlobalComments(null);
-    verify(pullRequestFacade).createOrUpdateSonarQubeStatus(GHCommitState.SUCCESS, "SonarQube reported no issues");
+    assertThat(capturePublishedState().globalComments()).isEmpty();
+    assertPublishedStatus(CommitState.SUCCESS, "SonarQube reported no issues");
   }
 
   @Test
   public void testPullRequestAnalysisWithNewIssues() {
     DefaultInputFile inputFile1 = new DefaultInputFile("foo", "src/Foo.php");
     PostJobIssue newIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 1, Severity.BLOCKER, true, "msg1");
-    when(pullRequestFacade.getGithubUrl(inputFile1, 1)).thenReturn("http://github/blob/abc123/src/Foo.php#L1");
+    when(pullRequestFacade.getFileUrl(inputFile1, 1)).thenReturn("http://github/blob/abc123/src/Foo.php#L1");
 
     PostJobIssue lineNotVisible = newMockedIssue("foo:src/Foo.php", inputFile1, 2, Severity.BLOCKER, true, "msg2");
-    when(pullRequestFacade.getGithubUrl(inputFile1, 2)).thenReturn("http://github/blob/abc123/src/Foo.php#L2");
+    when(pullRequestFacade.getFileUrl(inputFile1, 2)).thenReturn("http://github/blob/abc123/src/Foo.php#L2");
 
     DefaultInputFile inputFile2 = new DefaultInputFile("foo", "src/Foo2.php");
     PostJobIssue fileNotInPR = newMockedIssue("foo:src/Foo2.php", inputFile2, 1, Severity.BLOCKER, true, "msg3");
@@ -122,33 +175,30 @@ public class PullRequestIssuePostJobTest {
     when(pullRequestFacade.hasFileLine(inputFile1, 1)).thenReturn(true);
 
     pullRequestIssuePostJob.execute(context);
-    verify(pullRequestFacade).createOrUpdateGlobalComments(contains("SonarQube analysis reported 5 issues"));
-    verify(pullRequestFacade)
-      .createOrUpdateGlobalComments(contains("* ![BLOCKER](https://raw.githubusercontent.com/SonarCommunity/sonar-github/master/images/severity-blocker.png) 5 blocker"));
-    verify(pullRequestFacade)
-      .createOrUpdateGlobalComments(
-        not(contains("1. [Project")));
-    verify(pullRequestFacade)
-      .createOrUpdateGlobalComments(
-        contains(
-          "1. ![BLOCKER](https://raw.githubusercontent.com/SonarCommunity/sonar-github/master/images/severity-blocker.png) [Foo.php#L2](http://github/blob/abc123/src/Foo.php#L2): msg2 [![rule](https://raw.githubusercontent.com/SonarCommunity/sonar-github/master/images/rule.png)](http://myserver/coding_rules#rule_key=repo%3Arule)"));
-
-    verify(pullRequestFacade).createOrUpdateSonarQubeStatus(GHCommitState.ERROR, "SonarQube reported 5 issues, with 5 blocker");
+    String globalComment = captureSingleGlobalComment();
+    assertThat(globalComment).contains("SonarQube analysis reported 5 issues");
+    assertThat(globalComment)
+      .contains("* ![BLOCKER](https://raw.githubusercontent.com/SonarCommunity/sonar-github/master/images/severity-blocker.png) 5 blocker");
+    assertThat(globalComment).doesNotContain("1. [Project");
+    assertThat(globalComment)
+      .contains(
+        "1. ![BLOCKER](https://raw.githubusercontent.com/SonarCommunity/sonar-github/master/images/severity-blocker.png) [Foo.php#L2](http://github/blob/abc123/src/Foo.php#L2): msg2 [![rule](https://raw.githubusercontent.com/SonarCommunity/sonar-github/master/images/rule.png)](http://myserver/coding_rules#rule_key=repo%3Arule)");
+
+    assertPublishedStatus(CommitState.ERROR, "SonarQube reported 5 issues, with 5 blocker");
   }
 
   @Test
   public void testSortIssues() {
-    ArgumentCaptor<String> commentCaptor = forClass(String.class);
     DefaultInputFile inputFile1 = new DefaultInputFile("foo", "src/Foo.php");
     DefaultInputFile inputFile2 = new DefaultInputFile("foo", "src/Foo2.php");
 
     // Blocker and 8th line => Should be displayed in 3rd position
     PostJobIssue newIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 8, Severity.BLOCKER, true, "msg1");
-    when(pullRequestFacade.getGithubUrl(inputFile1, 1)).thenReturn("http://github/blob/abc123/src/Foo.php#L1");
+    when(pullRequestFacade.getFileUrl(inputFile1, 1)).thenReturn("http://github/blob/abc123/src/Foo.php#L1");
 
     // Blocker and 2nd line (Foo2.php) => Should be displayed in 4th position
     PostJobIssue issueInSecondFile = newMockedIssue("foo:src/Foo2.php", inputFile2, 2, Severity.BLOCKER, true, "msg2");
-    when(pullRequestFacade.getGithubUrl(inputFile1, 2)).thenReturn("http://github/blob/abc123/src/Foo.php#L2");
+    when(pullRequestFacade.getFileUrl(inputFile1, 2)).thenReturn("http://github/blob/abc123/src/Foo.php#L2");
 
     // Major => Should be displayed in 6th position
     PostJobIssue newIssue2 = newMockedIssue("foo:src/Foo.php", inputFile1, 4, Severity.MAJOR, true, "msg3");
@@ -171,9 +221,7 @@ public class PullRequestIssuePostJobTest {
 
     pullRequestIssuePostJob.execute(context);
 
-    verify(pullRequestFacade).createOrUpdateGlobalComments(commentCaptor.capture());
-
-    String comment = commentCaptor.getValue();
+    String comment = captureSingleGlobalComment();
     assertThat(comment).containsSequence("msg6", "msg7", "msg1", "msg2", "msg4", "msg3", "msg5");
   }
 
@@ -181,7 +229,7 @@ public class PullRequestIssuePostJobTest {
   public void testPullRequestAnalysisWithNewCriticalIssues() {
     DefaultInputFile inputFile1 = new DefaultInputFile("foo", "src/Foo.php");
     PostJobIssue newIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 1, Severity.CRITICAL, true, "msg1");
-    when(pullRequestFacade.getGithubUrl(inputFile1, 1)).thenReturn("http://github/blob/abc123/src/Foo.php#L1");
+    when(pullRequestFacade.getFileUrl(inputFile1, 1)).thenReturn("http://github/blob/abc123/src/Foo.php#L1");
 
     when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList(newIssue));
     when(pullRequestFacade.hasFile(inputFile1)).thenReturn(true);
@@ -189,14 +237,14 @@ public class PullRequestIssuePostJobTest {
 
     pullRequestIssuePostJob.execute(context);
 
-    verify(pullRequestFacade).createOrUpdateSonarQubeStatus(GHCommitState.ERROR, "SonarQube reported 1 issue, with 1 critical");
+    assertPublishedStatus(CommitState.ERROR, "SonarQube reported 1 issue, with 1 critical");
   }
 
   @Test
   public void testPullRequestAnalysisWithNewIssuesNoBlockerNorCritical() {
     DefaultInputFile inputFile1 = new DefaultInputFile("foo", "src/Foo.php");
     PostJobIssue newIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 1, Severity.MAJOR, true, "msg1");
-    when(pullRequestFacade.getGithubUrl(inputFile1, 1)).thenReturn("http://github/blob/abc123/src/Foo.php#L1");
+    when(pullRequestFacade.getFileUrl(inputFile1, 1)).thenReturn("http://github/blob/abc123/src/Foo.php#L1");
 
     when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList(newIssue));
     when(pullRequestFacade.hasFile(inputFile1)).thenReturn(true);
@@ -204,17 +252,17 @@ public class PullRequestIssuePostJobTest {
 
     pullRequestIssuePostJob.execute(context);
 
-    verify(pullRequestFacade).createOrUpdateSonarQubeStatus(GHCommitState.SUCCESS, "SonarQube reported 1 issue, no criticals or blockers");
+    assertPublishedStatus(CommitState.SUCCESS, "SonarQube reported 1 issue, no criticals or blockers");
   }
 
   @Test
   public void testPullRequestAnalysisWithNewBlockerAndCriticalIssues() {
     DefaultInputFile inputFile1 = new DefaultInputFile("foo", "src/Foo.php");
     PostJobIssue newIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 1, Severity.CRITICAL, true, "msg1");
-    when(pullRequestFacade.getGithubUrl(inputFile1, 1)).thenReturn("http://github/blob/abc123/src/Foo.php#L1");
+    when(pullRequestFacade.getFileUrl(inputFile1, 1)).thenReturn("http://github/blob/abc123/src/Foo.php#L1");
 
     PostJobIssue lineNotVisible = newMockedIssue("foo:src/Foo.php", inputFile1, 2, Severity.BLOCKER, true, "msg2");
-    when(pullRequestFacade.getGithubUrl(inputFile1, 2)).thenReturn("http://github/blob/abc123/src/Foo.php#L2");
+    when(pullRequestFacade.getFileUrl(inputFile1, 2)).thenReturn("http://github/blob/abc123/src/Foo.php#L2");
 
     when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList(newIssue, lineNotVisible));
     when(pullRequestFacade.hasFile(inputFile1)).thenReturn(true);
@@ -222,6 +270,217 @@ public class PullRequestIssuePostJobTest {
 
     pullRequestIssuePostJob.execute(context);
 
-    verify(pullRequestFacade).createOrUpdateSonarQubeStatus(GHCommitState.ERROR, "SonarQube reported 2 issues, with 1 critical and 1 blocker");
+    assertPublishedStatus(CommitState.ERROR, "SonarQube reported 2 issues, with 1 critical and 1 blocker");
+  }
+
+  @Test
+  public void testInlineCommentLimit() {
+    DefaultInputFile inputFile1 = new DefaultInputFile("foo", "src/Foo.php");
+    PostJobIssue minorIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 1, Severity.MINOR, true, "msg1");
+    PostJobIssue blockerIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 2, Severity.BLOCKER, true, "msg2");
+    PostJobIssue criticalIssueOnSameLine = newMockedIssue("foo:src/Foo.php", inputFile1, 2, Severity.CRITICAL, true, "msg3");
+
+    when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList(minorIssue, blockerIssue, criticalIssueOnSameLine));
+    when(pullRequestFacade.hasFile(inputFile1)).thenReturn(true);
+    when(pullRequestFacade.hasFileLine(any(InputFile.class), anyInt())).thenReturn(true);
+    mockPositionsOfFile(inputFile1);
+    settings.setProperty(GitHubPlugin.GITHUB_MAX_INLINE_COMMENTS, "1");
+
+    pullRequestIssuePostJob.execute(context);
+
+    // Issues on an already commented line don't count in the limit
+    Map<Integer, String> reviewComments = capturePublishedReviewCommentsByPosition();
+    assertThat(reviewComments).hasSize(1);
+    assertThat(reviewComments.get(2)).contains("msg3");
+    String globalComment = captureSingleGlobalComment();
+    assertThat(globalComment).contains("1 issue not commented inline, over the limit of 1 inline comment").doesNotContain("not modified");
+    assertThat(globalComment).contains("msg1");
+    assertThat(globalComment).doesNotContain("msg2");
+  }
+
+  @Test
+  public void testGroupIssuesByHunk() {
+    DefaultInputFile inputFile1 = new DefaultInputFile("foo", "src/Foo.php");
+    PostJobIssue blockerIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 5, Severity.BLOCKER, true, "msg1");
+    PostJobIssue minorIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 3, Severity.MINOR, true, "msg2");
+    PostJobIssue issueInOtherHunk = newMockedIssue("foo:src/Foo.php", inputFile1, 20, Severity.MAJOR, true, "msg3");
+
+    when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList(blockerIssue, minorIssue, issueInOtherHunk));
+    when(pullRequestFacade.hasFile(inputFile1)).thenReturn(true);
+    when(pullRequestFacade.hasFileLine(any(InputFile.class), anyInt())).thenReturn(true);
+    when(pullRequestFacade.hunk(inputFile1, 20)).thenReturn(1);
+    mockPositionsOfFile(inputFile1);
+    settings.setProperty(GitHubPlugin.GITHUB_INLINE_COMMENT_GROUPING, "HUNK");
+
+    pullRequestIssuePostJob.execute(context);
+
+    Map<Integer, String> reviewComments = capturePublishedReviewCommentsByPosition();
+    // Comment is added on the first line having issues in the hunk
+    assertThat(reviewComments).hasSize(2);
+    assertThat(reviewComments.get(3)).containsSequence("Line 3: ", "msg2", "Line 5: ", "msg1");
+    assertThat(reviewComments.get(20)).contains("msg3").doesNotContain("Line ");
+    // Comments of blocker and critical issues are published first
+    for (PullRequestState.Comment comment : capturePublishedState().reviewComments()) {
+      assertThat(comment.severe()).isEqualTo(comment.position() == 3);
+    }
+  }
+
+  @Test
+  public void testShardsArePublishedByMergingAnalysis() throws Exception {
+    settings.setProperty(GitHubPlugin.GITHUB_PULL_REQUEST, "1");
+    settings.setProperty(GitHubPlugin.GITHUB_SHARD_DIR, temp.newFolder().getAbsolutePath());
+    when(pullRequestFacade.analyzedSha()).thenReturn("abc123");
+
+    DefaultInputFile inputFile1 = new DefaultInputFile("foo", "src/Foo.php");
+    PostJobIssue shardIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 1, Severity.BLOCKER, true, "msg1");
+    when(shardIssue.key()).thenReturn("issue1");
+    when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList(shardIssue));
+    when(pullRequestFacade.hasFile(inputFile1)).thenReturn(true);
+    when(pullRequestFacade.getPath(inputFile1)).thenReturn("src/Foo.php");
+    settings.setProperty(GitHubPlugin.GITHUB_SHARD, "module1");
+
+    pullRequestIssuePostJob.execute(context);
+    verify(pullRequestFacade, never()).publish(any(PullRequestState.class), any(ReviewCommentQueue.class));
+
+    PostJobIssue mergingIssue = newMockedIssue("foo:src/Bar.php", Severity.MINOR, true, "msg2");
+    when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList(mergingIssue));
+    when(pullRequestFacade.inputFile(fileSystem, "src/Foo.php")).thenReturn(new DefaultInputFile("", "src/Foo.php"));
+    settings.removeProperty(GitHubPlugin.GITHUB_SHARD);
+    settings.setProperty(GitHubPlugin.GITHUB_MERGE_SHARDS, "true");
+
+    pullRequestIssuePostJob.execute(context);
+    assertThat(captureSingleGlobalComment()).contains("SonarQube analysis reported 2 issues", "msg1", "msg2");
+    assertPublishedStatus(CommitState.ERROR, "SonarQube reported 2 issues, with 1 blocker");
+  }
+
+  @Test
+  public void testStatusTellsWhenShardsOfAnotherCommitAreIgnored() throws Exception {
+    File shardDir = temp.newFolder();
+    settings.setProperty(GitHubPlugin.GITHUB_PULL_REQUEST, "1");
+    settings.setProperty(GitHubPlugin.GITHUB_SHARD_DIR, shardDir.getAbsolutePath());
+    PullRequestShard.write(new File(shardDir, "module1" + PullRequestShard.EXTENSION).toPath(), 1, "old000", Collections.<PostJobIssue>emptyList(), i -> null);
+    when(pullRequestFacade.analyzedSha()).thenReturn("abc123");
+    PostJobIssue mergingIssue = newMockedIssue("foo:src/Bar.php", Severity.MINOR, true, "msg2");
+    when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList(mergingIssue));
+    settings.setProperty(GitHubPlugin.GITHUB_MERGE_SHARDS, "true");
+
+    pullRequestIssuePostJob.execute(context);
+
+    assertPublishedStatus(CommitState.ERROR, "SonarQube reported 1 issue, no criticals or blockers, 1 shard(s) of another commit ignored");
+  }
+
+  @Test
+  public void testExportIssuesToSarif() throws Exception {
+    DefaultInputFile inputFile1 = new DefaultInputFile("foo", "src/Foo.php");
+    PostJobIssue newIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 1, Severity.BLOCKER, true, "msg1");
+    PostJobIssue globalIssue = newMockedIssue("foo", Severity.MINOR, true, "msg2");
+    when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList(newIssue, globalIssue));
+    when(pullRequestFacade.hasFile(inputFile1)).thenReturn(true);
+    when(pullRequestFacade.hasFileLine(inputFile1, 1)).thenReturn(true);
+    mockPositionsOfFile(inputFile1);
+    settings.setProperty(GitHubPlugin.GITHUB_SARIF_EXPORT, "true");
+
+    pullRequestIssuePostJob.execute(context);
+
+    String sarif = new String(Files.readAllBytes(new File(fileSystem.workDir(), PullRequestIssuePostJob.SARIF_FILE_NAME).toPath()), StandardCharsets.UTF_8);
+    assertThat(sarif).contains("\"ruleId\":\"repo:rule\",\"level\":\"error\",\"message\":{\"text\":\"msg1\"}", "\"uri\":\"src/Foo.php\"", "\"startLine\":1");
+    // Code scanning requires a location for each result
+    assertThat(sarif).doesNotContain("msg2");
+    assertThat(capturePublishedReviewCommentsByPosition()).containsKey(1);
+    verify(pullRequestFacade, never()).uploadCodeScanning(any(Path.class));
+  }
+
+  @Test
+  public void testCodeScanningUploadKeepsInlineComments() throws Exception {
+    DefaultInputFile inputFile1 = new DefaultInputFile("foo", "src/Foo.php");
+    PostJobIssue newIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 1, Severity.BLOCKER, true, "msg1");
+    when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList(newIssue));
+    when(pullRequestFacade.hasFile(inputFile1)).thenReturn(true);
+    when(pullRequestFacade.hasFileLine(inputFile1, 1)).thenReturn(true);
+    mockPositionsOfFile(inputFile1);
+    settings.setProperty(GitHubPlugin.GITHUB_CODE_SCANNING_UPLOAD, "true");
+
+    pullRequestIssuePostJob.execute(context);
+
+    verify(pullRequestFacade).uploadCodeScanning(new File(fileSystem.workDir(), PullRequestIssuePostJob.SARIF_FILE_NAME).toPath());
+    assertThat(capturePublishedReviewCommentsByPosition()).containsKey(1);
+    assertThat(captureSingleGlobalComment()).doesNotContain("not modified");
+  }
+
+  @Test
+  public void testCodeScanningUploadWithoutInlineComments() throws Exception {
+    DefaultInputFile inputFile1 = new DefaultInputFile("foo", "src/Foo.php");
+    PostJobIssue newIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 1, Severity.BLOCKER, true, "msg1");
+    when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList(newIssue));
+    when(pullRequestFacade.hasFile(inputFile1)).thenReturn(true);
+    when(pullRequestFacade.hasFileLine(inputFile1, 1)).thenReturn(true);
+    mockPositionsOfFile(inputFile1);
+    settings.setProperty(GitHubPlugin.GITHUB_CODE_SCANNING_UPLOAD, "true");
+    settings.setProperty(GitHubPlugin.GITHUB_DISABLE_INLINE_COMMENTS, "true");
+
+    pullRequestIssuePostJob.execute(context);
+
+    assertThat(capturePublishedState().reviewComments()).isEmpty();
+    assertThat(captureSingleGlobalComment()).contains("msg1").doesNotContain("not modified");
   }
+
+  @Test
+  public void testPublishWhenCodeScanningUploadFails() throws Exception {
+    DefaultInputFile inputFile1 = new DefaultInputFile("foo", "src/Foo.php");
+    PostJobIssue newIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 1, Severity.BLOCKER, true, "msg1");
+    when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList(newIssue));
+    when(pullRequestFacade.hasFile(inputFile1)).thenReturn(true);
+    when(pullRequestFacade.hasFileLine(inputFile1, 1)).thenReturn(true);
+    mockPositionsOfFile(inputFile1);
+    settings.setProperty(GitHubPlugin.GITHUB_CODE_SCANNING_UPLOAD, "true");
+    doThrow(new IllegalStateException("Unable to upload SARIF report to GitHub code scanning", new IOException("boom")))
+      .when(pullRequestFacade).uploadCodeScanning(any(Path.class));
+
+    pullRequestIssuePostJob.execute(context);
+
+    assertThat(capturePublishedReviewCommentsByPosition()).containsKey(1);
+    assertPublishedStatus(CommitState.ERROR, "SonarQube reported 1 issue, with 1 blocker");
+  }
+
+  @Test
+  public void testAnnotateIssuesOnBitbucket() {
+    DefaultInputFile inputFile1 = new DefaultInputFile("foo", "src/Foo.php");
+    PostJobIssue minorIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 3, Severity.MINOR, true, "msg1");
+    PostJobIssue blockerIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 1, Severity.BLOCKER, true, "msg2");
+    PostJobIssue globalIssue = newMockedIssue("foo", Severity.MAJOR, true, "msg3");
+    when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList(minorIssue, blockerIssue, globalIssue));
+    when(pullRequestFacade.hasFile(inputFile1)).thenReturn(true);
+    mockPositionsOfFile(inputFile1);
+    settings.setProperty(GitHubPlugin.BITBUCKET_ENDPOINT, "https://bitbucket.mycompany.com");
+
+    pullRequestIssuePostJob.execute(context);
+
+    List<PullRequestState.Annotation> annotations = capturePublishedState().annotations();
+    assertThat(annotations).hasSize(2);
+    assertThat(annotations.get(0).path()).isEqualTo("src/Foo.php");
+    assertThat(annotations.get(0).line()).isEqualTo(1);
+    assertThat(annotations.get(0).severity()).isEqualTo(Severity.BLOCKER);
+    assertThat(annotations.get(0).message()).isEqualTo("msg2");
+    assertThat(annotations.get(0).link()).isEqualTo("http://myserver/coding_rules#rule_key=repo%3Arule");
+    assertThat(annotations.get(1).line()).isEqualTo(3);
+  }
+
+  @Test
+  public void testPublishOnlyStatus() {
+    DefaultInputFile inputFile1 = new DefaultInputFile("foo", "src/Foo.php");
+    PostJobIssue blockerIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 1, Severity.BLOCKER, true, "msg1");
+    when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList(blockerIssue));
+    when(pullRequestFacade.hasFile(inputFile1)).thenReturn(true);
+    when(pullRequestFacade.hasFileLine(any(InputFile.class), anyInt())).thenReturn(true);
+    mockPositionsOfFile(inputFile1);
+    settings.setProperty(GitHubPlugin.GITHUB_PUBLISH_MODE, "STATUS_ONLY");
+
+    pullRequestIssuePostJob.execute(context);
+
+    PullRequestState published = capturePublishedState();
+    assertThat(published.reviewComments()).isEmpty();
+    assertThat(published.globalComments()).isEmpty();
+    assertPublishedStatus(CommitState.ERROR, "SonarQube reported 1 issue, with 1 blocker");
+  }
+
 }
@@ -0,0 +1,110 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PullRequestLeaseTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void newerAnalysisTakesOverTheLease() throws Exception {
+    File file = new File(temp.newFolder(), "pr.lease");
+    PullRequestLease older = new PullRequestLease(file.toPath());
+    PullRequestLease newer = new PullRequestLease(file.toPath());
+
+    older.acquire("abc123");
+    assertThat(older.isHeld()).isTrue();
+
+    newer.acquire("abc123");
+    assertThat(older.isHeld()).isFalse();
+    assertThat(newer.isHeld()).isTrue();
+
+    // Releasing a lease taken over by another analysis has no effect
+    older.release();
+    assertThat(file).exists();
+    newer.release();
+    assertThat(file).doesNotExist();
+  }
+
+  @Test
+  public void analysisOfOlderCommitDoesNotTakeOverFromTheHead() throws Exception {
+    File file = new File(temp.newFolder(), "pr.lease");
+    PullRequestLease head = new PullRequestLease(file.toPath());
+    PullRequestLease older = new PullRequestLease(file.toPath());
+
+    head.acquire("abc123");
+    older.acquire("old000");
+
+    assertThat(head.isHeld()).isFalse();
+    assertThat(older.holderSha()).isEqualTo("old000");
+    assertThat(head.isTakenOver("abc123")).isFalse();
+    // Head of the pull request could not be checked
+    assertThat(head.isTakenOver(null)).isTrue();
+
+    PullRequestLease newer = new PullRequestLease(file.toPath());
+    newer.acquire("abc123");
+    assertThat(head.isTakenOver("abc123")).isTrue();
+  }
+
+  @Test
+  public void analysesOfDifferentProjectsDontShareTheLease() throws Exception {
+    PullRequestLease backend = PullRequestLease.forPullRequest("https://api.github.com", "owner/repo", 1, "org.foo:backend");
+    PullRequestLease frontend = PullRequestLease.forPullRequest("https://api.github.com", "owner/repo", 1, "org.foo:frontend");
+    try {
+      backend.acquire("abc123");
+      frontend.acquire("abc123");
+
+      assertThat(backend.isHeld()).isTrue();
+      assertThat(frontend.isHeld()).isTrue();
+    } finally {
+      backend.release();
+      frontend.release();
+    }
+  }
+
+  @Test
+  public void pullRequestsOfDifferentRepositoriesOrServersDontShareTheLease() {
+    String key = PullRequestLease.pullRequestKey("https://api.github.com", "owner/repo", 1, null);
+
+    assertThat(PullRequestLease.pullRequestKey("https://api.github.com", "owner/repo", 1, null)).isEqualTo(key);
+    assertThat(PullRequestLease.pullRequestKey("https://api.github.com", "owner_repo", 1, null)).isNotEqualTo(key);
+    assertThat(PullRequestLease.pullRequestKey("https://github.example.com/api/v3", "owner/repo", 1, null)).isNotEqualTo(key);
+    assertThat(PullRequestLease.pullRequestKey("https://api.github.com", "owner/repo", 1, "org.foo:backend")).isNotEqualTo(key);
+  }
+
+  @Test
+  public void leaseIsHeldWhenItCouldNotBeAcquired() throws Exception {
+    File notADirectory = temp.newFile();
+    PullRequestLease lease = new PullRequestLease(new File(notADirectory, "pr.lease").toPath());
+
+    lease.acquire("abc123");
+
+    assertThat(lease.isHeld()).isTrue();
+  }
+
+}
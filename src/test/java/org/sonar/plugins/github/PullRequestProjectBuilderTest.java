@@ -20,16 +20,21 @@
 package org.sonar.plugins.github;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.sonar.api.batch.AnalysisMode;
 import org.sonar.api.batch.bootstrap.ProjectBuilder;
+import org.sonar.api.batch.bootstrap.ProjectDefinition;
+import org.sonar.api.batch.bootstrap.ProjectReactor;
 import org.sonar.api.config.PropertyDefinitions;
 import org.sonar.api.config.Settings;
 import org.sonar.api.utils.MessageException;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
@@ -83,4 +88,111 @@ public class PullRequestProjectBuilderTest {
 
     verify(facade).init(eq(1), any(File.class));
   }
+
+  @Test
+  public void shouldFailIfScopeNeedsFilesNotReadInStatusOnlyMode() {
+    settings.setProperty(GitHubPlugin.GITHUB_PULL_REQUEST, "1");
+    settings.setProperty(GitHubPlugin.GITHUB_ANALYSIS_SCOPE, "CHANGED_FILES");
+    settings.setProperty(GitHubPlugin.GITHUB_PUBLISH_MODE, "STATUS_ONLY");
+    when(mode.isIssues()).thenReturn(true);
+
+    thrown.expect(MessageException.class);
+    thrown.expectMessage("Analysis scope CHANGED_FILES can't be used with publish mode STATUS_ONLY");
+
+    pullRequestProjectBuilder.build(null);
+  }
+
+  @Test
+  public void shouldRestrictAnalysisToChangedFiles() {
+    settings.setProperty(GitHubPlugin.GITHUB_PULL_REQUEST, "1");
+    settings.setProperty(GitHubPlugin.GITHUB_ANALYSIS_SCOPE, "CHANGED_FILES");
+    when(mode.isIssues()).thenReturn(true);
+    ProjectDefinition root = newModule("root", "");
+    ProjectDefinition changedModule = newModule("changed", "changed");
+    ProjectDefinition unchangedModule = newModule("unchanged", "unchanged");
+    root.addSubProject(changedModule);
+    root.addSubProject(unchangedModule);
+    when(facade.changedFiles()).thenReturn(new HashSet<>(Arrays.asList("changed/src/B.java", "changed/src/A.java", "pom.xml")));
+
+    pullRequestProjectBuilder.build(newContext(root));
+
+    assertThat(root.properties().get("sonar.inclusions")).isEqualTo("pom.xml");
+    assertThat(changedModule.properties().get("sonar.inclusions")).isEqualTo("src/A.java,src/B.java");
+    assertThat(changedModule.properties().get("sonar.test.inclusions")).isEqualTo("src/A.java,src/B.java");
+    assertThat(unchangedModule.properties().get("sonar.exclusions")).isEqualTo("**/*");
+    assertThat(unchangedModule.properties().get("sonar.test.exclusions")).isEqualTo("**/*");
+  }
+
+  @Test
+  public void shouldRestrictAnalysisToChangedFilesMatchedByInclusions() {
+    settings.setProperty(GitHubPlugin.GITHUB_PULL_REQUEST, "1");
+    settings.setProperty(GitHubPlugin.GITHUB_ANALYSIS_SCOPE, "CHANGED_FILES");
+    when(mode.isIssues()).thenReturn(true);
+    ProjectDefinition root = newModule("root", "");
+    root.setProperty("sonar.inclusions", "src/main/**");
+    root.setProperty("sonar.test.inclusions", "src/test/**");
+    ProjectDefinition module = newModule("module", "module");
+    module.setProperty("sonar.test.exclusions", "**/*IT.java");
+    ProjectDefinition outsideModule = newModule("outside", "outside");
+    when(facade.getPath(outsideModule.getBaseDir())).thenReturn(null);
+    root.addSubProject(module);
+    root.addSubProject(outsideModule);
+    when(facade.changedFiles()).thenReturn(new HashSet<>(Arrays.asList("src/main/A.java", "module/src/main/B.java", "module/src/main/C.java")));
+
+    pullRequestProjectBuilder.build(newContext(root));
+
+    assertThat(root.properties().get("sonar.inclusions")).isEqualTo("src/main/A.java");
+    assertThat(root.properties().get("sonar.test.inclusions")).isEqualTo("src/test/**");
+    assertThat(root.properties().get("sonar.test.exclusions")).isEqualTo("**/*");
+    assertThat(module.properties().get("sonar.inclusions")).isEqualTo("src/main/B.java,src/main/C.java");
+    assertThat(module.properties().get("sonar.exclusions")).isEmpty();
+    // No changed test file: inclusions of root module are kept, and everything is excluded
+    assertThat(module.properties().get("sonar.test.inclusions")).isEqualTo("src/test/**");
+    assertThat(module.properties().get("sonar.test.exclusions")).isEqualTo("**/*");
+    // Inclusions inherited from root module are reset
+    assertThat(outsideModule.properties().get("sonar.inclusions")).isEqualTo("src/main/**");
+    assertThat(outsideModule.properties().get("sonar.test.exclusions")).isEmpty();
+  }
+
+  @Test
+  public void shouldMatchPatternCharactersOfPathsWithSingleCharacterWildcard() {
+    assertThat(PullRequestProjectBuilder.toPattern("src/Foo.java")).isEqualTo("src/Foo.java");
+    assertThat(PullRequestProjectBuilder.toPattern("src/a*b [1],{c}?.java")).isEqualTo("src/a?b ?1???c??.java");
+    assertThat(PullRequestProjectBuilder.toPattern(" src/Foo.java ")).isEqualTo("?src/Foo.java?");
+  }
+
+  @Test
+  public void shouldRestrictAnalysisToChangedModules() {
+    settings.setProperty(GitHubPlugin.GITHUB_PULL_REQUEST, "1");
+    settings.setProperty(GitHubPlugin.GITHUB_ANALYSIS_SCOPE, "CHANGED_MODULES");
+    when(mode.isIssues()).thenReturn(true);
+    ProjectDefinition root = newModule("root", "");
+    ProjectDefinition changedModule = newModule("changed", "changed");
+    changedModule.setProperty("sonar.exclusions", "src/generated/**");
+    ProjectDefinition unchangedModule = newModule("unchanged", "unchanged");
+    root.addSubProject(changedModule);
+    root.addSubProject(unchangedModule);
+    when(facade.changedFiles()).thenReturn(new HashSet<>(Arrays.asList("changed/src/A.java")));
+
+    pullRequestProjectBuilder.build(newContext(root));
+
+    assertThat(root.properties().get("sonar.exclusions")).isEqualTo("**/*");
+    assertThat(unchangedModule.properties().get("sonar.exclusions")).isEqualTo("**/*");
+    // Exclusions inherited from root module are reset
+    assertThat(changedModule.properties()).doesNotContainKey("sonar.inclusions");
+    assertThat(changedModule.properties().get("sonar.exclusions")).isEqualTo("src/generated/**");
+    assertThat(changedModule.properties().get("sonar.test.exclusions")).isEmpty();
+  }
+
+  private ProjectDefinition newModule(String key, String path) {
+    File baseDir = new File("/git", path);
+    when(facade.getPath(baseDir)).thenReturn(path);
+    return ProjectDefinition.create().setKey(key).setBaseDir(baseDir).setWorkDir(new File(baseDir, ".sonar"));
+  }
+
+  private static ProjectBuilder.Context newContext(ProjectDefinition root) {
+    ProjectBuilder.Context context = mock(ProjectBuilder.Context.class);
+    when(context.projectReactor()).thenReturn(new ProjectReactor(root));
+    return context;
+  }
 }
@@ -0,0 +1,115 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputComponent;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
+import org.sonar.api.batch.postjob.issue.PostJobIssue;
+import org.sonar.api.batch.rule.Severity;
+import org.sonar.api.rule.RuleKey;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PullRequestShardTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void mergeIssuesOfAllShards() throws Exception {
+    Path dir = temp.newFolder().toPath();
+    PostJobIssue onFile = newMockedIssue("issue1", "foo:src/Foo.php", 3, Severity.BLOCKER, "msg1");
+    PostJobIssue onProject = newMockedIssue("issue2", "foo", null, Severity.MINOR, null);
+    PullRequestShard.write(dir.resolve("module1.shard"), 42, "abc123", Arrays.asList(onFile, onProject),
+      i -> i.line() != null ? "src/Foo.php" : null);
+    PullRequestShard.write(dir.resolve("module2.shard"), 42, "abc123", Collections.singletonList(newMockedIssue("issue3", "bar:Bar.php", 1, Severity.INFO, "msg3")),
+      i -> "Bar.php");
+
+    DefaultInputFile inputFile = new DefaultInputFile("", "src/Foo.php");
+    List<PostJobIssue> issues = PullRequestShard.readAll(dir, 42, "abc123", path -> path.equals("src/Foo.php") ? inputFile : mock(InputComponent.class)).issues();
+
+    assertThat(issues).hasSize(3);
+    PostJobIssue merged = issues.stream().filter(i -> i.key().equals("issue1")).findFirst().get();
+    assertThat(merged.ruleKey()).isEqualTo(RuleKey.of("repo", "rule"));
+    assertThat(merged.componentKey()).isEqualTo("foo:src/Foo.php");
+    assertThat(merged.inputComponent()).isSameAs(inputFile);
+    assertThat(merged.line()).isEqualTo(3);
+    assertThat(merged.message()).isEqualTo("msg1");
+    assertThat(merged.severity()).isEqualTo(Severity.BLOCKER);
+    assertThat(merged.isNew()).isTrue();
+
+    PostJobIssue mergedOnProject = issues.stream().filter(i -> i.key().equals("issue2")).findFirst().get();
+    assertThat(mergedOnProject.inputComponent()).isNull();
+    assertThat(mergedOnProject.line()).isNull();
+    assertThat(mergedOnProject.message()).isNull();
+  }
+
+  @Test
+  public void ignoreShardsOfAnotherCommit() throws Exception {
+    Path dir = temp.newFolder().toPath();
+    PullRequestShard.write(dir.resolve("module1.shard"), 42, "old", Collections.singletonList(newMockedIssue("issue1", "foo", null, Severity.MAJOR, "msg")),
+      i -> null);
+
+    PullRequestShard.Merge otherCommit = PullRequestShard.readAll(dir, 42, "abc123", path -> null);
+    assertThat(otherCommit.issues()).isEmpty();
+    assertThat(otherCommit.staleShards()).containsExactly(dir.resolve("module1.shard"));
+    PullRequestShard.Merge otherPullRequest = PullRequestShard.readAll(dir, 43, "old", path -> null);
+    assertThat(otherPullRequest.issues()).isEmpty();
+    assertThat(otherPullRequest.staleShards()).isEmpty();
+    assertThat(PullRequestShard.readAll(new File(dir.toFile(), "missing").toPath(), 42, "old", path -> null).issues()).isEmpty();
+  }
+
+  @Test
+  public void keepMessagesLongerThan64KB() throws Exception {
+    Path dir = temp.newFolder().toPath();
+    char[] chars = new char[70_000];
+    Arrays.fill(chars, '\u00e9');
+    String message = new String(chars);
+    PullRequestShard.write(dir.resolve("module1.shard"), 42, "abc123", Collections.singletonList(newMockedIssue("issue1", "foo", null, Severity.MAJOR, message)),
+      i -> null);
+
+    List<PostJobIssue> issues = PullRequestShard.readAll(dir, 42, "abc123", path -> null).issues();
+
+    assertThat(issues).hasSize(1);
+    assertThat(issues.get(0).message()).isEqualTo(message);
+  }
+
+  private static PostJobIssue newMockedIssue(String key, String componentKey, Integer line, Severity severity, String message) {
+    PostJobIssue issue = mock(PostJobIssue.class);
+    when(issue.key()).thenReturn(key);
+    when(issue.componentKey()).thenReturn(componentKey);
+    when(issue.line()).thenReturn(line);
+    when(issue.ruleKey()).thenReturn(RuleKey.of("repo", "rule"));
+    when(issue.severity()).thenReturn(severity);
+    when(issue.message()).thenReturn(message);
+    return issue;
+  }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class ReviewCommentQueueTest {
+
+  private static Supplier<List<PullRequestState.Comment>> file(String path, int... positions) {
+    return () -> {
+      List<PullRequestState.Comment> comments = new ArrayList<>();
+      for (int position : positions) {
+        comments.add(new PullRequestState.Comment(null, path, position, "comment " + position, false));
+      }
+      return comments;
+    };
+  }
+
+  private static List<Integer> positions(List<PullRequestState.Comment> comments) {
+    List<Integer> positions = new ArrayList<>();
+    for (PullRequestState.Comment comment : comments) {
+      positions.add(comment.position());
+    }
+    return positions;
+  }
+
+  @Test
+  public void takeFilesInOrder() throws Exception {
+    ReviewCommentQueue queue = new ReviewCommentQueue(3, Arrays.asList(file("src/Foo.java", 1, 2), file("src/Empty.java"), file("src/Bar.java", 3)), 1);
+
+    assertThat(queue.size()).isEqualTo(3);
+    assertThat(positions(queue.take(Long.MAX_VALUE))).containsExactly(1, 2);
+    assertThat(positions(queue.take(Long.MAX_VALUE))).containsExactly(3);
+    assertThat(queue.take(Long.MAX_VALUE)).isNull();
+    assertThat(queue.take(Long.MAX_VALUE)).isNull();
+  }
+
+  @Test
+  public void drainRemainingFiles() throws Exception {
+    ReviewCommentQueue queue = new ReviewCommentQueue(3, Arrays.asList(file("src/Foo.java", 1, 2), file("src/Bar.java", 3)));
+    queue.take(Long.MAX_VALUE);
+
+    PullRequestState desired = queue.drainInto(new PullRequestState().addGlobalComment(null, "summary"));
+
+    assertThat(positions(desired.reviewComments())).containsExactly(3);
+    assertThat(desired.globalComments()).hasSize(1);
+  }
+
+  @Test
+  public void renderingBlocksWhenQueueIsFull() throws Exception {
+    CountDownLatch lastRendered = new CountDownLatch(1);
+    Supplier<List<PullRequestState.Comment>> last = () -> {
+      lastRendered.countDown();
+      return file("src/Baz.java", 3).get();
+    };
+    ReviewCommentQueue queue = new ReviewCommentQueue(3, Arrays.asList(file("src/Foo.java", 1), file("src/Bar.java", 2), last), 1);
+    queue.start();
+
+    assertThat(lastRendered.await(200, TimeUnit.MILLISECONDS)).isFalse();
+    assertThat(positions(queue.take(Long.MAX_VALUE))).containsExactly(1);
+    assertThat(lastRendered.await(10, TimeUnit.SECONDS)).isTrue();
+    queue.abort();
+  }
+
+  @Test
+  public void timeoutWhenFileIsNotRenderedInTime() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Supplier<List<PullRequestState.Comment>> slow = () -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return Collections.emptyList();
+    };
+    ReviewCommentQueue queue = new ReviewCommentQueue(0, Collections.singletonList(slow));
+
+    try {
+      queue.take(System.currentTimeMillis() + 100);
+      fail("Expected exception");
+    } catch (TimeoutException e) {
+      assertThat(e).hasMessage("Review comments not rendered in time");
+    } finally {
+      release.countDown();
+      queue.abort();
+    }
+  }
+
+  @Test
+  public void rethrowRenderingFailure() throws Exception {
+    Supplier<List<PullRequestState.Comment>> failing = () -> {
+      throw new IllegalStateException("Unable to render the comment");
+    };
+    ReviewCommentQueue queue = new ReviewCommentQueue(2, Arrays.asList(file("src/Foo.java", 1), failing));
+
+    assertThat(queue.take(Long.MAX_VALUE)).hasSize(1);
+    try {
+      queue.take(Long.MAX_VALUE);
+      fail("Expected exception");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("Unable to render the comment");
+    }
+  }
+
+}
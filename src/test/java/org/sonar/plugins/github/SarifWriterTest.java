@@ -0,0 +1,81 @@
+/*
+ * SonarQube :: GitHub Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.github;
+
+import java.io.StringWriter;
+import org.junit.Test;
+import org.sonar.api.batch.rule.Severity;
+import org.sonar.api.config.Settings;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SarifWriterTest {
+
+  @Test
+  public void writeResultsThenRules() throws Exception {
+    Settings settings = new Settings();
+    settings.setProperty("sonar.host.url", "http://myserver");
+    StringWriter out = new StringWriter();
+
+    try (SarifWriter writer = new SarifWriter(out, new MarkDownUtils(settings))) {
+      assertThat(writer.addResult("squid:S1", Severity.BLOCKER, "Remove \"this\"\n", "src/Foo.java", 12)).isTrue();
+      assertThat(writer.addResult("squid:S2", Severity.MINOR, null, "src/Baz.java", null)).isTrue();
+      assertThat(writer.addResult("squid:S1", Severity.MAJOR, "msg", "src/Bar.java", null)).isTrue();
+      assertThat(writer.resultCount()).isEqualTo(3);
+    }
+
+    assertThat(out.toString()).isEqualTo("{\"version\":\"2.1.0\",\"$schema\":\"https://json.schemastore.org/sarif-2.1.0.json\",\"runs\":[{\"results\":["
+      + "{\"ruleId\":\"squid:S1\",\"level\":\"error\",\"message\":{\"text\":\"Remove \\\"this\\\"\\n\"},"
+      + "\"locations\":[{\"physicalLocation\":{\"artifactLocation\":{\"uri\":\"src/Foo.java\"},\"region\":{\"startLine\":12}}}]},"
+      + "{\"ruleId\":\"squid:S2\",\"level\":\"note\",\"message\":{\"text\":\"squid:S2\"},\"locations\":[{\"physicalLocation\":{\"artifactLocation\":{\"uri\":\"src/Baz.java\"}}}]},"
+      + "{\"ruleId\":\"squid:S1\",\"level\":\"warning\",\"message\":{\"text\":\"msg\"},\"locations\":[{\"physicalLocation\":{\"artifactLocation\":{\"uri\":\"src/Bar.java\"}}}]}"
+      + "],\"tool\":{\"driver\":{\"name\":\"SonarQube\",\"informationUri\":\"https://www.sonarqube.org\",\"rules\":["
+      + "{\"id\":\"squid:S1\",\"shortDescription\":{\"text\":\"squid:S1\"},\"helpUri\":\"http://myserver/coding_rules#rule_key=squid%3AS1\"},"
+      + "{\"id\":\"squid:S2\",\"shortDescription\":{\"text\":\"squid:S2\"},\"helpUri\":\"http://myserver/coding_rules#rule_key=squid%3AS2\"}"
+      + "]}}}]}");
+  }
+
+  @Test
+  public void leaveOutIssuesNotOnAFile() throws Exception {
+    Settings settings = new Settings();
+    settings.setProperty("sonar.host.url", "http://myserver");
+    StringWriter out = new StringWriter();
+
+    try (SarifWriter writer = new SarifWriter(out, new MarkDownUtils(settings))) {
+      assertThat(writer.addResult("squid:S2", Severity.MINOR, "On the project", null, null)).isFalse();
+      assertThat(writer.addResult("squid:S1", Severity.MAJOR, "msg", "src/Bar.java", 3)).isTrue();
+      assertThat(writer.resultCount()).isEqualTo(1);
+    }
+
+    assertThat(out.toString()).contains("{\"results\":[{\"ruleId\":\"squid:S1\"")
+      .doesNotContain("squid:S2")
+      .doesNotContain("On the project");
+  }
+
+  @Test
+  public void levelBySeverity() {
+    assertThat(SarifWriter.level(Severity.BLOCKER)).isEqualTo("error");
+    assertThat(SarifWriter.level(Severity.CRITICAL)).isEqualTo("error");
+    assertThat(SarifWriter.level(Severity.MAJOR)).isEqualTo("warning");
+    assertThat(SarifWriter.level(Severity.MINOR)).isEqualTo("note");
+    assertThat(SarifWriter.level(Severity.INFO)).isEqualTo("note");
+  }
+
+}